@@ -0,0 +1,269 @@
+package cartesian;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** @author Armand Bonn
+ * JMH suite of the tree operations of TreeBenchmark, on its fixtures and trees:
+ *   mvn -B package
+ *   java -jar target/benchmarks.jar TreeOperationBenchmark -prof gc
+ *   java -jar target/benchmarks.jar TreeOperationBenchmark.insertDeleteCycle -p structure=MUTABLE -p pool=true -prof gc
+ *   java -jar target/benchmarks.jar TreeOperationBenchmark -p structure=MUTABLE -p size=1000000 -bm thrpt -tu us
+ * SampleTime mode reports the distribution of single call latencies (p50, p99, p99.9...), the GC
+ * profiler the allocation rate and bytes per operation (gc.alloc.rate.norm).
+ * findNode, updatePriority and insertDeleteCycle walk the keys of the fixture in a cycle on a full
+ * tree, which keeps its size. insertNode and insertNodeKey fill an empty tree and deleteNode empties a
+ * full one: once every key is done, the tree is replaced in an Invocation level setup, outside the
+ * measurement (the GC profiler still counts what the setup allocates: B/op of deleteNode includes the
+ * rebuilt trees). pool runs the mutable tree with a node pool (the other structures ignore it): the
+ * steady state insertDeleteCycle of a pooled tree should show no allocation. orderStatistics keeps
+ * subtree sizes in the mutable and top-down trees, for the cost of their bookkeeping. insertNodeKey only
+ * runs where TreeBenchmark runs it, other configurations fail at setup and are reported as such.
+ * Running the main of this class is the same as the first command.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Thread)
+public class TreeOperationBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    @Param({"RANDOM", "SORTED", "REVERSE"})
+    public String order;
+
+    @Param({"UNIFORM", "NARROW"})
+    public String priorities;
+
+    @Param({"MUTABLE", "PERSISTENT", "TOP_DOWN"})
+    public String structure;
+
+    @Param({"false", "true"})
+    public boolean pool;
+
+    @Param({"false", "true"})
+    public boolean orderStatistics;
+
+    private TreeBenchmark.Fixture fixture;
+    private TreeBenchmark.Structure treeStructure;
+    private TreeBenchmark.BenchmarkedTree tree;
+    private Integer[] keyValues;
+    private Long[] priorityValues;
+    // Position of the next key of the cycle
+    private int nextIndex;
+    // True while updatePriority gives the keys the priority of their mirror key, false while it gives their own back
+    private boolean mirrorPriorities;
+
+    /**
+     * Build the tree holding every key of the fixture
+     */
+    @Setup(Level.Trial)
+    public void buildTree(){
+        fixture = new TreeBenchmark.Fixture(size, TreeBenchmark.KeyOrder.valueOf(order),
+                TreeBenchmark.PriorityDistribution.valueOf(priorities), pool, orderStatistics);
+        treeStructure = TreeBenchmark.Structure.valueOf(structure);
+        tree = fixture.buildTree(treeStructure);
+        keyValues = fixture.getKeyValues();
+        priorityValues = fixture.getPriorityValues();
+        nextIndex = 0;
+        mirrorPriorities = true;
+    }
+
+    /**
+     * Tree used for one pass over the keys, replaced outside the measurement once every key is done
+     */
+    public abstract static class BatchState {
+        TreeBenchmark.BenchmarkedTree batchTree;
+        TreeOperationBenchmark benchmark;
+        // Position of the next key of the pass
+        int batchIndex;
+
+        @Setup(Level.Trial)
+        public void prepare(TreeOperationBenchmark benchmark){
+            checkSupported(benchmark);
+            this.benchmark = benchmark;
+            // Forces a new tree before the first call
+            this.batchIndex = benchmark.keyValues.length;
+        }
+
+        @Setup(Level.Invocation)
+        public void replaceTreeIfDone(){
+            if(batchIndex == benchmark.keyValues.length){
+                batchTree = newBatchTree(benchmark);
+                batchIndex = 0;
+            }
+        }
+
+        /**
+         * Reject configurations the batch cannot run
+         * @param benchmark Parameters and fixture of the trial
+         */
+        void checkSupported(TreeOperationBenchmark benchmark){
+        }
+
+        /**
+         * Tree at the start of a pass
+         * @param benchmark Parameters and fixture of the trial
+         * @return New tree
+         */
+        abstract TreeBenchmark.BenchmarkedTree newBatchTree(TreeOperationBenchmark benchmark);
+    }
+
+    /**
+     * Empty tree filled by the insertion benchmarks
+     */
+    @State(Scope.Thread)
+    public static class EmptyTreeState extends BatchState {
+        @Override
+        TreeBenchmark.BenchmarkedTree newBatchTree(TreeOperationBenchmark benchmark){
+            return benchmark.fixture.emptyTree(benchmark.treeStructure);
+        }
+    }
+
+    /**
+     * Empty tree filled by insertNodeKey, only for the configurations TreeBenchmark runs
+     */
+    @State(Scope.Thread)
+    public static class KeyInsertionState extends EmptyTreeState {
+        @Override
+        void checkSupported(TreeOperationBenchmark benchmark){
+            if(!benchmark.treeStructure.hasKeyInsertion()){
+                throw new IllegalStateException("No insertNodeKey for structure " + benchmark.structure);
+            }
+            if(TreeBenchmark.isKeyInsertionQuadratic(TreeBenchmark.KeyOrder.valueOf(benchmark.order), benchmark.size)){
+                throw new IllegalStateException("insertNodeKey skipped: quadratic on " + benchmark.order + " keys of size " + benchmark.size);
+            }
+        }
+    }
+
+    /**
+     * Full tree emptied by deleteNode
+     */
+    @State(Scope.Thread)
+    public static class FullTreeState extends BatchState {
+        @Override
+        TreeBenchmark.BenchmarkedTree newBatchTree(TreeOperationBenchmark benchmark){
+            return benchmark.fixture.buildTree(benchmark.treeStructure);
+        }
+    }
+
+    /**
+     * Insert the next key with its priority
+     * @param state Tree being filled
+     */
+    @Benchmark
+    public void insertNode(EmptyTreeState state){
+        int index = state.batchIndex++;
+        state.batchTree.insertNode(keyValues[index], priorityValues[index]);
+    }
+
+    /**
+     * Insert the next key by walking down to a leaf by key only, without rotations
+     * @param state Tree being filled
+     */
+    @Benchmark
+    public void insertNodeKey(KeyInsertionState state){
+        int index = state.batchIndex++;
+        ((TreeBenchmark.KeyInsertingTree) state.batchTree).insertNodeKey(keyValues[index], priorityValues[index]);
+    }
+
+    /**
+     * Delete the next key
+     * @param state Tree being emptied
+     */
+    @Benchmark
+    public void deleteNode(FullTreeState state){
+        int index = state.batchIndex++;
+        state.batchTree.deleteNode(keyValues[index], priorityValues[index]);
+    }
+
+    /**
+     * Look up the next key
+     * @return Found key, consumed by JMH
+     */
+    @Benchmark
+    public Integer findNode(){
+        return tree.findKey(keyValues[nextIndex()]);
+    }
+
+    /**
+     * Height of the whole tree
+     * @return Height, consumed by JMH
+     */
+    @Benchmark
+    public int getHeight(){
+        return tree.getHeight();
+    }
+
+    /**
+     * Check of the whole tree
+     * @return Result of the check, consumed by JMH
+     */
+    @Benchmark
+    public boolean verifyCartiesanTree(){
+        return tree.verifyCartiesanTree();
+    }
+
+    /**
+     * Delete the next key and insert it back with its priority (steady state churn at constant size)
+     */
+    @Benchmark
+    public void insertDeleteCycle(){
+        int index = nextIndex();
+        tree.deleteNode(keyValues[index], priorityValues[index]);
+        tree.insertNode(keyValues[index], priorityValues[index]);
+    }
+
+    /**
+     * Give the next key a new priority: the priority of its mirror key (n - 1 - i) on one pass over the
+     * keys, its own one back on the next pass, so every call changes the priority (unless both keys
+     * have the same one) instead of setting the value the node already has
+     */
+    @Benchmark
+    public void updatePriority(){
+        int index = nextIndex();
+        tree.updatePriority(keyValues[index], priorityValues[mirrorPriorities ? keyValues.length - 1 - index : index]);
+        if(nextIndex == 0){
+            mirrorPriorities = !mirrorPriorities;
+        }
+    }
+
+    private int nextIndex(){
+        int index = nextIndex;
+        nextIndex = index + 1 == keyValues.length ? 0 : index + 1;
+        return index;
+    }
+
+    /**
+     * Run the suite with the GC profiler
+     * @param args Not used
+     * @throws RunnerException If JMH fails
+     */
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(TreeOperationBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
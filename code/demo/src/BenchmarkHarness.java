@@ -0,0 +1,192 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** @author Armand Bonn
+ * Plumbing shared by the benchmark, stress and check mains: "--name value" options, best-of timing
+ * of repeated runs, thread counts doubling up to a maximum and tasks started together on their own
+ * threads. Per operation latency and allocation of the tree operations are measured by the JMH suite
+ * of the jmh module (TreeOperationBenchmark), these mains cover what JMH does not: whole data set
+ * runs, scaling over threads and correctness checks.
+ */
+final class BenchmarkHarness {
+
+    // Written with the results of timed runs so the JIT cannot drop them
+    private static volatile long sink;
+
+    private BenchmarkHarness(){
+    }
+
+    /**
+     * Options of a main, given as "--name value" pairs
+     */
+    static final class Options {
+        private final Map<String, String> values = new HashMap<>();
+
+        /**
+         * Read the options of a main
+         * @param args Arguments of the main
+         * @param knownOptions Names of the accepted options, with the leading "--"
+         */
+        Options(String[] args, String... knownOptions){
+            if(args.length % 2 != 0){
+                throw new IllegalArgumentException("Missing value for option: " + args[args.length - 1]);
+            }
+            List<String> known = Arrays.asList(knownOptions);
+            for(int i = 0; i < args.length; i += 2){
+                if(!known.contains(args[i])){
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+                values.put(args[i], args[i + 1]);
+            }
+        }
+
+        boolean contains(String name){
+            return values.containsKey(name);
+        }
+
+        String getString(String name, String defaultValue){
+            return values.getOrDefault(name, defaultValue);
+        }
+
+        int getInt(String name, int defaultValue){
+            String value = values.get(name);
+            return value == null ? defaultValue : Integer.parseInt(value);
+        }
+
+        long getLong(String name, long defaultValue){
+            String value = values.get(name);
+            return value == null ? defaultValue : Long.parseLong(value);
+        }
+
+        double getDouble(String name, double defaultValue){
+            String value = values.get(name);
+            return value == null ? defaultValue : Double.parseDouble(value);
+        }
+
+        boolean getBoolean(String name, boolean defaultValue){
+            String value = values.get(name);
+            return value == null ? defaultValue : Boolean.parseBoolean(value);
+        }
+
+        /**
+         * Comma separated integers
+         * @param name Option name
+         * @param defaultValues Values if the option is absent
+         * @return Values of the option
+         */
+        int[] getInts(String name, int[] defaultValues){
+            String value = values.get(name);
+            return value == null ? defaultValues : Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+        }
+
+        /**
+         * Comma separated names
+         * @param name Option name
+         * @param defaultValues Values if the option is absent
+         * @return Values of the option
+         */
+        List<String> getStrings(String name, List<String> defaultValues){
+            String value = values.get(name);
+            return value == null ? defaultValues : Arrays.asList(value.split(","));
+        }
+    }
+
+    /**
+     * One timed run, returns a checksum of its results
+     */
+    interface TimedRun {
+        long run() throws Exception;
+    }
+
+    /**
+     * Warmup runs, then the fastest of the measured runs
+     * @param warmupRuns Runs thrown away
+     * @param measuredRuns Runs timed (at least 1)
+     * @param run Run to time
+     * @return Nanoseconds of the fastest measured run
+     * @throws Exception If a run fails
+     */
+    static long bestNanos(int warmupRuns, int measuredRuns, TimedRun run) throws Exception {
+        for(int i = 0; i < warmupRuns; i++){
+            sink += run.run();
+        }
+        long bestNanos = Long.MAX_VALUE;
+        for(int i = 0; i < Math.max(1, measuredRuns); i++){
+            long start = System.nanoTime();
+            sink += run.run();
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+        }
+        return bestNanos;
+    }
+
+    /**
+     * Duration of a single run
+     * @param run Run to time
+     * @return Elapsed nanoseconds
+     * @throws Exception If the run fails
+     */
+    static long elapsedNanos(TimedRun run) throws Exception {
+        return bestNanos(0, 1, run);
+    }
+
+    /**
+     * Rate of a run
+     * @param count Number of operations done
+     * @param nanos Elapsed nanoseconds
+     * @return Operations per second
+     */
+    static double perSecond(long count, long nanos){
+        return count / (nanos / 1e9);
+    }
+
+    /**
+     * Thread counts of a scaling run: 1, 2, 4... and the maximum itself
+     * @param maxThreads Highest number of threads (at least 1)
+     * @return Increasing thread counts
+     */
+    static List<Integer> threadCounts(int maxThreads){
+        List<Integer> counts = new ArrayList<>();
+        for(int threadCount = 1; threadCount < maxThreads; threadCount *= 2){
+            counts.add(threadCount);
+        }
+        counts.add(Math.max(1, maxThreads));
+        return counts;
+    }
+
+    /**
+     * Run tasks on their own threads, started together. If a task fails the others are interrupted.
+     * @param tasks Tasks to run
+     * @return Results in the order of the tasks
+     * @throws Exception If a task fails
+     */
+    static <T> List<T> runTogether(List<Callable<T>> tasks) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            List<Future<T>> futures = new ArrayList<>();
+            for(Callable<T> task : tasks){
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return task.call();
+                }));
+            }
+            start.countDown();
+            List<T> results = new ArrayList<>();
+            for(Future<T> future : futures){
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
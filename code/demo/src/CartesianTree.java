@@ -1,16 +1,301 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /** @author Armand Bonn
  * Cartesian tree class taking types of keys (K) and priorities (P).
  */
-public class CartesianTree<K extends Comparable<K>, P extends Comparable<P>>{
+public class CartesianTree<K extends Comparable<K>, P extends Comparable<P>> implements Iterable<Node<K, P>>{
     private Node<K, P> rootNode;
+    // True if subtree sizes are kept up to date for rank and select queries
+    private boolean orderStatistics;
+    // Source of priorities for insert(key), null if the caller gives priorities
+    private PriorityGenerator<K, P> priorityGenerator;
+    // Opt-in counters, null when disabled
+    private TreeMetrics metrics;
+    // Depth of the node returned by the last findleafNode (only kept while metrics are enabled)
+    private int lastSearchDepth;
+    // Arena recycling deleted nodes, null when nodes are plain allocations
+    private NodePool<K, P> nodePool;
+    // True if insertNode and findNode start from the finger instead of the root
+    private boolean fingerSearch;
+    // Last node inserted or found from a hint, null if none
+    private Node<K, P> fingerNode;
+    // In-order neighbours of the finger node (null for none), only used while marked known
+    private Node<K, P> fingerPredecessor;
+    private Node<K, P> fingerSuccessor;
+    private boolean fingerPredecessorKnown;
+    private boolean fingerSuccessorKnown;
 
     /**
      * initiator cartesian tree
      */
     public CartesianTree(){
+        this(false);
+    }
+
+    /**
+     * initiator cartesian tree with optional order statistics
+     * @param orderStatistics True to keep subtree sizes up to date (needed by rank, select, countRange and size)
+     */
+    public CartesianTree(boolean orderStatistics){
         this.rootNode = null;
+        this.orderStatistics = orderStatistics;
+    }
+
+    /**
+     * initiator cartesian tree around an existing subtree
+     * @param rootNode Root of the subtree (detached from any parent)
+     * @param orderStatistics True if the subtree sizes of the nodes are up to date
+     */
+    CartesianTree(Node<K, P> rootNode, boolean orderStatistics){
+        this.rootNode = rootNode;
+        this.orderStatistics = orderStatistics;
+    }
+
+    /**
+     * initiator cartesian tree generating its own priorities, see insert(key)
+     * @param priorityGenerator Source of the priorities (e.g. PriorityGenerator.random() or PriorityGenerator.keyHash(seed))
+     */
+    public CartesianTree(PriorityGenerator<K, P> priorityGenerator){
+        this(false);
+        setPriorityGenerator(priorityGenerator);
+    }
+
+    /**
+     * Set the source of priorities used by insert(key)
+     * @param priorityGenerator Source of the priorities
+     */
+    public void setPriorityGenerator(PriorityGenerator<K, P> priorityGenerator){
+        if(priorityGenerator == null){
+            throw new NullPointerException("Priority generator is null");
+        }
+        this.priorityGenerator = priorityGenerator;
+    }
+
+    /**
+     * Check if the tree keeps subtree sizes up to date
+     * @return True if order statistics are enabled
+     */
+    public boolean hasOrderStatistics(){
+        return orderStatistics;
+    }
+
+    /**
+     * Take all nodes out of the tree, leaving it empty
+     * @return Root of the detached nodes
+     */
+    Node<K, P> detachRoot(){
+        Node<K, P> detachedRoot = rootNode;
+        rootNode = null;
+        resetFinger();
+        if(metrics != null){
+            metrics.resetSize(0);
+        }
+        if(nodePool != null){
+            nodePool.markEscaped();
+        }
+        return detachedRoot;
+    }
+
+    /**
+     * Remove all nodes in O(1). With a node pool every node of the pool is reused afterwards,
+     * so nodes obtained from this tree (findNode, iterators) must not be used after clear().
+     */
+    public void clear(){
+        rootNode = null;
+        resetFinger();
+        if(metrics != null){
+            metrics.resetSize(0);
+        }
+        if(nodePool != null){
+            nodePool.reset();
+        }
+    }
+
+    /**
+     * Draw new nodes from an arena of slabs of the default size and recycle deleted nodes
+     */
+    public void enableNodePool(){
+        enableNodePool(NodePool.DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * Draw new nodes from an arena and recycle deleted nodes, so insertions following suppressions do not allocate.
+     * A deleted node is reused by a later insertion: do not keep references to nodes after deleting them.
+     * @param slabSize Number of nodes allocated at once
+     */
+    public void enableNodePool(int slabSize){
+        if(nodePool == null){
+            nodePool = new NodePool<>(slabSize, orderStatistics);
+        }
+    }
+
+    /**
+     * Start insertNode and findNode from the last node inserted or found (finger search) instead of the root.
+     * The search climbs through the parents only until the subtree holds the key, so a key at distance d
+     * in key order costs O(log d) expected, and keys arriving in ascending or descending order are
+     * inserted next to the previous one in O(1) amortized.
+     */
+    public void enableFingerSearch(){
+        fingerSearch = true;
+    }
+
+    /**
+     * Search from the root again
+     */
+    public void disableFingerSearch(){
+        fingerSearch = false;
+        resetFinger();
+    }
+
+    /**
+     * Forget the finger (its node left the tree, or the tree was restructured)
+     */
+    private void resetFinger(){
+        fingerNode = null;
+        fingerPredecessor = null;
+        fingerSuccessor = null;
+        fingerPredecessorKnown = false;
+        fingerSuccessorKnown = false;
+    }
+
+    /**
+     * Node for a new pair, from the node pool if enabled, keeping its subtree size only with order statistics
+     * @param keyValue Key value
+     * @param priorityValue Priority value
+     * @return Node without links
+     */
+    private Node<K, P> newNode(K keyValue, P priorityValue){
+        if(nodePool != null){
+            return nodePool.acquire(keyValue, priorityValue);
+        }
+        return orderStatistics ? new SizedNode<>(keyValue, priorityValue) : new Node<>(keyValue, priorityValue);
+    }
+
+    /**
+     * Give the nodes of a detached subtree back to the node pool (iterative, leaves first)
+     * @param subtreeRoot Root of the subtree, without parent
+     */
+    private void releaseSubtree(Node<K, P> subtreeRoot){
+        Node<K, P> currentNode = subtreeRoot;
+        while(currentNode != null){
+            if(currentNode.getLeftNode() != null){
+                currentNode = currentNode.getLeftNode();
+            } else if(currentNode.getRightNode() != null){
+                currentNode = currentNode.getRightNode();
+            } else{
+                // Leaf: unlink it from its parent and continue from the parent
+                Node<K, P> parentNode = currentNode == subtreeRoot ? null : currentNode.getParentNode();
+                if(parentNode != null){
+                    if(parentNode.getLeftNode() == currentNode){
+                        parentNode.addLeftNode(null);
+                    } else{
+                        parentNode.addRightNode(null);
+                    }
+                }
+                nodePool.release(currentNode);
+                currentNode = parentNode;
+            }
+        }
+    }
+
+    /**
+     * Start counting comparisons, rotations and search depths (O(n) once to measure the tree)
+     * @return Metrics of the tree
+     */
+    public TreeMetrics enableMetrics(){
+        if(metrics == null){
+            metrics = new TreeMetrics(countNodes(), getHeight());
+            metrics.registerPeriodicEvent();
+        }
+        return metrics;
+    }
+
+    /**
+     * Stop counting, the tree goes back to a single null check per operation
+     */
+    public void disableMetrics(){
+        if(metrics != null){
+            metrics.unregisterPeriodicEvent();
+            metrics = null;
+        }
+    }
+
+    /**
+     * Metrics of the tree
+     * @return Metrics, null if not enabled
+     */
+    public TreeMetrics getMetrics(){
+        return metrics;
+    }
+
+    /**
+     * Snapshot of the metrics, with the size recounted if a split, merge or range operation changed it
+     * @return Snapshot of the metrics
+     */
+    public TreeMetrics.Snapshot metricsSnapshot(){
+        if(metrics == null){
+            throw new IllegalStateException("Metrics are not enabled, call enableMetrics() first");
+        }
+        if(metrics.isSizeStale()){
+            metrics.resetSize(countNodes());
+        }
+        return metrics.snapshot();
+    }
+
+    /**
+     * Take a snapshot for the periodic Flight Recorder event if it asked for one. Snapshots are only
+     * taken here, on the thread updating the tree, so the event never reads counters being written.
+     */
+    private void publishMetricsIfRequested(){
+        if(metrics.isSnapshotRequested()){
+            metricsSnapshot();
+        }
+    }
+
+    /**
+     * Number of nodes, O(1) with order statistics and O(n) otherwise
+     * @return Number of nodes
+     */
+    private int countNodes(){
+        if(orderStatistics){
+            return subtreeSize(rootNode);
+        }
+        int count = 0;
+        for(Iterator<Node<K, P>> nodes = iterator(); nodes.hasNext(); nodes.next()){
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Read-only copy of the tree for lookup heavy phases: the pairs are copied in key order into
+     * arrays in Eytzinger layout (see FrozenCartesianTree), laid out in parallel. The tree is not changed.
+     * @return Frozen copy of the current pairs
+     */
+    public FrozenCartesianTree<K, P> freeze(){
+        int size = countNodes();
+        Object[] sortedKeys = new Object[size];
+        Object[] sortedPriorities = new Object[size];
+        int rank = 0;
+        for(Node<K, P> node : this){
+            sortedKeys[rank] = node.getKeyValue();
+            sortedPriorities[rank] = node.getPriorityValue();
+            rank++;
+        }
+        return new FrozenCartesianTree<>(sortedKeys, sortedPriorities);
     }
 
     /**
@@ -21,6 +306,157 @@ public class CartesianTree<K extends Comparable<K>, P extends Comparable<P>>{
         return rootNode == null;
     }
 
+    /**
+     * Build a tree in linear time from keys given in ascending order.
+     * The result is the same tree as inserting the pairs one by one in key order with insertNode.
+     * @param keyValues Key values sorted in ascending order
+     * @param priorityValues Priority value of each key
+     * @return New Cartesian tree holding all pairs
+     */
+    public static <K extends Comparable<K>, P extends Comparable<P>> CartesianTree<K, P> buildFromSorted(K[] keyValues, P[] priorityValues){
+        return buildFromSorted(Arrays.asList(keyValues), Arrays.asList(priorityValues));
+    }
+
+    /**
+     * Build a tree in linear time from keys given in ascending order
+     * @param keyValues Key values sorted in ascending order
+     * @param priorityValues Priority value of each key
+     * @return New Cartesian tree holding all pairs
+     */
+    public static <K extends Comparable<K>, P extends Comparable<P>> CartesianTree<K, P> buildFromSorted(List<K> keyValues, List<P> priorityValues){
+        if(keyValues.size() != priorityValues.size()){
+            throw new IllegalArgumentException("Got " + keyValues.size() + " keys and " + priorityValues.size() + " priorities");
+        }
+        return buildFromSorted(keyValues.iterator(), priorityValues.iterator());
+    }
+
+    /**
+     * Build a tree in linear time from keys given in ascending order
+     * @param keyValues Key values sorted in ascending order
+     * @param priorityValues Priority value of each key (same length as the keys)
+     * @return New Cartesian tree holding all pairs
+     */
+    public static <K extends Comparable<K>, P extends Comparable<P>> CartesianTree<K, P> buildFromSorted(Iterator<K> keyValues, Iterator<P> priorityValues){
+        return buildFromSortedNodes(new Iterator<Node<K, P>>() {
+            @Override
+            public boolean hasNext() {
+                boolean hasKey = keyValues.hasNext();
+                if(hasKey != priorityValues.hasNext()){
+                    throw new IllegalArgumentException("Keys and priorities do not have the same length");
+                }
+                return hasKey;
+            }
+
+            @Override
+            public Node<K, P> next() {
+                return new Node<>(keyValues.next(), priorityValues.next());
+            }
+        });
+    }
+
+    /**
+     * Build a tree from keys in any order (sorts a copy of the pairs first, O(n log n))
+     * @param keyValues Key values
+     * @param priorityValues Priority value of each key
+     * @return New Cartesian tree holding all pairs
+     */
+    public static <K extends Comparable<K>, P extends Comparable<P>> CartesianTree<K, P> build(K[] keyValues, P[] priorityValues){
+        return build(Arrays.asList(keyValues), Arrays.asList(priorityValues));
+    }
+
+    /**
+     * Build a tree from keys in any order (sorts a copy of the pairs first, O(n log n))
+     * @param keyValues Key values
+     * @param priorityValues Priority value of each key
+     * @return New Cartesian tree holding all pairs
+     */
+    public static <K extends Comparable<K>, P extends Comparable<P>> CartesianTree<K, P> build(List<K> keyValues, List<P> priorityValues){
+        if(keyValues.size() != priorityValues.size()){
+            throw new IllegalArgumentException("Got " + keyValues.size() + " keys and " + priorityValues.size() + " priorities");
+        }
+
+        // Pair keys with priorities and sort them by key (stable, so equal keys keep their order)
+        List<Node<K, P>> nodes = new ArrayList<>(keyValues.size());
+        Iterator<P> priorityIterator = priorityValues.iterator();
+        for(K keyValue : keyValues){
+            nodes.add(new Node<>(keyValue, priorityIterator.next()));
+        }
+        nodes.sort((first, second) -> first.getKeyValue().compareTo(second.getKeyValue()));
+
+        return buildFromSortedNodes(nodes.iterator());
+    }
+
+    /**
+     * Save the pairs of the tree to a binary snapshot file (format described in TreeSnapshot)
+     * @param path Snapshot file, replaced atomically if it exists
+     * @param keyCodec Encoding of the keys
+     * @param priorityCodec Encoding of the priorities
+     * @throws IOException If the file cannot be written
+     */
+    public void writeSnapshot(Path path, SnapshotCodec<K> keyCodec, SnapshotCodec<P> priorityCodec) throws IOException {
+        TreeSnapshot.write(this, path, keyCodec, priorityCodec);
+    }
+
+    /**
+     * Rebuild a tree from a snapshot file: the file is memory-mapped and the pairs, already sorted,
+     * are linked in linear time
+     * @param path Snapshot file
+     * @param keyCodec Encoding of the keys (as written)
+     * @param priorityCodec Encoding of the priorities (as written)
+     * @return New Cartesian tree holding the saved pairs
+     * @throws IOException If the file cannot be read or fails its checks
+     */
+    public static <K extends Comparable<K>, P extends Comparable<P>> CartesianTree<K, P> readSnapshot(Path path, SnapshotCodec<K> keyCodec, SnapshotCodec<P> priorityCodec) throws IOException {
+        return TreeSnapshot.read(path, keyCodec, priorityCodec);
+    }
+
+    /**
+     * Link unattached nodes given in ascending key order into a Cartesian tree.
+     * The right spine of the tree built so far is kept as the parent chain of the last node,
+     * every new node pops the spine nodes with a higher priority and adopts them as left subtree.
+     * Each node is pushed and popped once, so the build is linear.
+     * @param nodes Nodes without links, sorted by key
+     * @return New Cartesian tree holding all nodes
+     */
+    static <K extends Comparable<K>, P extends Comparable<P>> CartesianTree<K, P> buildFromSortedNodes(Iterator<Node<K, P>> nodes){
+        CartesianTree<K, P> tree = new CartesianTree<>();
+        Node<K, P> lastNode = null;
+
+        while(nodes.hasNext()){
+            Node<K, P> newNode = nodes.next();
+
+            if(lastNode != null && newNode.getKeyValue().compareTo(lastNode.getKeyValue()) < 0){
+                throw new IllegalArgumentException("Keys are not sorted: " + newNode.getKeyValue() + " after " + lastNode.getKeyValue());
+            }
+
+            // Pop spine nodes with a strictly higher priority (equal priorities stay above, as with insertNode)
+            Node<K, P> poppedNode = null;
+            Node<K, P> spineNode = lastNode;
+            while(spineNode != null && spineNode.getPriorityValue().compareTo(newNode.getPriorityValue()) > 0){
+                poppedNode = spineNode;
+                spineNode = spineNode.getParentNode();
+            }
+
+            // Popped part of the spine becomes the left subtree of the new node
+            newNode.addLeftNode(poppedNode);
+            if(poppedNode != null){
+                poppedNode.addParentNode(newNode);
+            }
+
+            // New node becomes the bottom of the right spine
+            newNode.addParentNode(spineNode);
+            if(spineNode != null){
+                spineNode.addRightNode(newNode);
+            } else{
+                tree.rootNode = newNode;
+            }
+
+            lastNode = newNode;
+        }
+
+        return tree;
+    }
+
     /**
      * Insert node value only considering the keys and not priorities (no rotations)
      * @param keyValue Key value of node to be inserted
@@ -30,14 +466,18 @@ public class CartesianTree<K extends Comparable<K>, P extends Comparable<P>>{
 
         // If tree is empty update root node
         if(rootNode == null){
-            rootNode = new Node<>(keyValue, priorityValue);
+            rootNode = newNode(keyValue, priorityValue);
+            if(metrics != null){
+                metrics.recordInsert(0, 0);
+                publishMetricsIfRequested();
+            }
             return;
         }
 
         // Find lead node where to insert new node
         Node<K, P> leafNode = findleafNode(keyValue, rootNode);
         // Create new  node
-        Node<K, P> newNode = new Node<>(keyValue, priorityValue);
+        Node<K, P> newNode = newNode(keyValue, priorityValue);
         // Add parent node of new node
         newNode.addParentNode(leafNode);
 
@@ -48,6 +488,20 @@ public class CartesianTree<K extends Comparable<K>, P extends Comparable<P>>{
         else{            
             leafNode.addRightNode(newNode);
         }
+
+        // Count the new node in the subtree sizes of all its ancestors
+        if(orderStatistics){
+            addToSubtreeSizes(leafNode, 1);
+        }
+
+        // The new node may sit between the finger and its neighbours
+        fingerPredecessorKnown = false;
+        fingerSuccessorKnown = false;
+
+        if(metrics != null){
+            metrics.recordInsert(lastSearchDepth + 1, 0);
+            publishMetricsIfRequested();
+        }
     }
 
     /**
@@ -56,17 +510,55 @@ public class CartesianTree<K extends Comparable<K>, P extends Comparable<P>>{
      * @param priorityValue Priority value of node
      */
     public void insertNode(K keyValue, P priorityValue){
+        insertNode(keyValue, priorityValue, fingerSearch ? fingerNode : null);
+    }
+
+    /**
+     * Insert node in tree, searching its place from a node of the tree instead of the root (finger search)
+     * @param keyValue Key value of node to be inserted
+     * @param priorityValue Priority value of node
+     * @param hint Node of this tree close to the key in key order (e.g. returned by the previous call), null to search from the root
+     * @return The inserted node (a hint for the next insertion)
+     */
+    public Node<K, P> insertNode(K keyValue, P priorityValue, Node<K, P> hint){
+        return insertNewNode(newNode(keyValue, priorityValue), hint);
+    }
+
+    /**
+     * Insert a node made by the caller, e.g. a SizedNode subclass carrying more fields (see insertNode)
+     * @param newNode Node without links, a SizedNode if the tree has order statistics
+     * @param hint Node of this tree close to the key in key order, null to search from the root
+     * @return The inserted node
+     */
+    Node<K, P> insertNewNode(Node<K, P> newNode, Node<K, P> hint){
+        K keyValue = newNode.getKeyValue();
 
         // If tree is empty update root node
         if(rootNode == null){
-            rootNode = new Node<>(keyValue, priorityValue);
-            return;
+            rootNode = newNode;
+            if(metrics != null){
+                metrics.recordInsert(0, 0);
+                publishMetricsIfRequested();
+            }
+            if(fingerSearch){
+                fingerNode = rootNode;
+                fingerPredecessor = null;
+                fingerSuccessor = null;
+                fingerPredecessorKnown = true;
+                fingerSuccessorKnown = true;
+            }
+            return rootNode;
         }
 
-        // Find lead node where to insert new node
-        Node<K, P> leafNode = findleafNode(keyValue, rootNode);
-        // Create new  node
-        Node<K, P> newNode = new Node<>(keyValue, priorityValue);
+        // Find lead node where to insert new node (from the hint, the neighbours of the new key are found on the way)
+        Node<K, P> leafNode;
+        if(hint == null){
+            leafNode = findleafNode(keyValue, rootNode);
+            fingerPredecessorKnown = false;
+            fingerSuccessorKnown = false;
+        } else{
+            leafNode = findFingerLeaf(keyValue, hint);
+        }
         // Add parent node of new node
         newNode.addParentNode(leafNode);
 
@@ -77,25 +569,152 @@ public class CartesianTree<K extends Comparable<K>, P extends Comparable<P>>{
         else{            
             leafNode.addRightNode(newNode);
         }
+
+        // Count the new node in the subtree sizes of all its ancestors
+        if(orderStatistics){
+            addToSubtreeSizes(leafNode, 1);
+        }
         
         // Rotate newly inserted node up until priority property is not violated
+        int rotations = 0;
         while(newNode.getPriorityValue().compareTo(newNode.getParentNode().getPriorityValue()) < 0){
             // Get parent node with higher priority value
             Node<K, P> parentNode = newNode.getParentNode();
 
-            // Rotate according to keyvalue
-            if(newNode.getKeyValue().compareTo(parentNode.getKeyValue()) > 0){
+            // Rotate according to the side of the node (keys may be equal)
+            if(parentNode.getRightNode() == newNode){
                 rotateLeft(newNode, parentNode);
             } else{
                 rotateRight(newNode, parentNode);
             }
+            rotations++;
 
             // If the inserted node does not have a parent anymore, break
             if (newNode.getParentNode() == null){
                 break;
             }
         }
-        
+
+        if(metrics != null){
+            metrics.recordInsert(lastSearchDepth + 1, rotations);
+            publishMetricsIfRequested();
+        }
+        if(fingerSearch){
+            fingerNode = newNode;
+        }
+        return newNode;
+    }
+
+    /**
+     * Climb from a node of the tree to the lowest ancestor whose subtree can hold a key: going up stops
+     * below the first parent reached from its left with a larger key (or from its right with a smaller
+     * key), since every key of the subtree then lies between that parent and the starting node
+     * @param keyValue Key value searched
+     * @param startNode Node of the tree to start from
+     * @return Root of the subtree to descend
+     */
+    private Node<K, P> climbToSubtree(K keyValue, Node<K, P> startNode){
+        int comparison = keyValue.compareTo(startNode.getKeyValue());
+        Node<K, P> currentNode = startNode;
+        Node<K, P> parentNode = currentNode.getParentNode();
+        if(comparison > 0){
+            while(parentNode != null && !(parentNode.getLeftNode() == currentNode && keyValue.compareTo(parentNode.getKeyValue()) < 0)){
+                currentNode = parentNode;
+                parentNode = currentNode.getParentNode();
+            }
+        } else if(comparison < 0){
+            while(parentNode != null && !(parentNode.getRightNode() == currentNode && keyValue.compareTo(parentNode.getKeyValue()) > 0)){
+                currentNode = parentNode;
+                parentNode = currentNode.getParentNode();
+            }
+        }
+        return currentNode;
+    }
+
+    /**
+     * Leaf under which a key is inserted, searched from a node of the tree. A key between the finger
+     * and one of its known neighbours goes right under one of them; otherwise the search climbs to the
+     * subtree holding the key and descends, keeping the nearest nodes on each side. The neighbours of
+     * the new key are left in the finger fields.
+     * @param keyValue Key value of node going to be inserted
+     * @param startNode Node of the tree to start from
+     * @return Node to attach the new node to
+     */
+    private Node<K, P> findFingerLeaf(K keyValue, Node<K, P> startNode){
+        int comparison = keyValue.compareTo(startNode.getKeyValue());
+
+        // Next to the finger: the successor (or predecessor) is the lowest node of its right (or left) subtree, without a child on that side
+        if(startNode == fingerNode && comparison > 0 && fingerSuccessorKnown
+                && (fingerSuccessor == null || keyValue.compareTo(fingerSuccessor.getKeyValue()) < 0)){
+            fingerPredecessor = startNode;
+            fingerPredecessorKnown = true;
+            return recordFingerSearch(startNode.getRightNode() == null ? startNode : fingerSuccessor, 1);
+        }
+        if(startNode == fingerNode && comparison < 0 && fingerPredecessorKnown
+                && (fingerPredecessor == null || keyValue.compareTo(fingerPredecessor.getKeyValue()) > 0)){
+            fingerSuccessor = startNode;
+            fingerSuccessorKnown = true;
+            return recordFingerSearch(startNode.getLeftNode() == null ? startNode : fingerPredecessor, 1);
+        }
+
+        // Bounds known from the climb: the parent that stopped it, or nothing above the root
+        Node<K, P> currentNode = climbToSubtree(keyValue, startNode);
+        Node<K, P> parentNode = currentNode.getParentNode();
+        Node<K, P> lowBound = null;
+        Node<K, P> highBound = null;
+        boolean lowKnown = parentNode == null;
+        boolean highKnown = parentNode == null;
+        if(parentNode != null && comparison > 0){
+            highBound = parentNode;
+            highKnown = true;
+        } else if(parentNode != null && comparison < 0){
+            lowBound = parentNode;
+            lowKnown = true;
+        }
+
+        // Descend as findleafNode does, the last nodes left on each side are the neighbours (metrics count the climb too)
+        int depth = 0;
+        if(metrics != null){
+            for(Node<K, P> climbedNode = startNode; climbedNode != currentNode; climbedNode = climbedNode.getParentNode()){
+                depth++;
+            }
+        }
+        while(true){
+            comparison = keyValue.compareTo(currentNode.getKeyValue());
+            if(comparison < 0 && currentNode.getLeftNode() != null){
+                highBound = currentNode;
+                highKnown = true;
+                currentNode = currentNode.getLeftNode();
+            } else if(comparison >= 0 && currentNode.getRightNode() != null){
+                lowBound = currentNode;
+                lowKnown = true;
+                currentNode = currentNode.getRightNode();
+            } else{
+                break;
+            }
+            depth++;
+        }
+        if(comparison < 0){
+            highBound = currentNode;
+            highKnown = true;
+        } else{
+            lowBound = currentNode;
+            lowKnown = true;
+        }
+        fingerPredecessor = lowBound;
+        fingerSuccessor = highBound;
+        fingerPredecessorKnown = lowKnown;
+        fingerSuccessorKnown = highKnown;
+        return recordFingerSearch(currentNode, depth);
+    }
+
+    private Node<K, P> recordFingerSearch(Node<K, P> leafNode, int depth){
+        if(metrics != null){
+            lastSearchDepth = depth;
+            metrics.recordSearch(depth);
+            publishMetricsIfRequested();
+        }
+        return leafNode;
     }
     
     /**
@@ -131,6 +750,12 @@ public class CartesianTree<K extends Comparable<K>, P extends Comparable<P>>{
             rootNode = currentNode;
         }
 
+        // Only the two rotated nodes change subtree
+        if(orderStatistics){
+            parentNode.updateSubtreeSize();
+            currentNode.updateSubtreeSize();
+        }
+
     }
 
     public void rotateLeft(Node<K, P> currentNode, Node<K, P> parentNode){
@@ -162,25 +787,71 @@ public class CartesianTree<K extends Comparable<K>, P extends Comparable<P>>{
             rootNode = currentNode;
         }
 
+        // Only the two rotated nodes change subtree
+        if(orderStatistics){
+            parentNode.updateSubtreeSize();
+            currentNode.updateSubtreeSize();
+        }
+
     } 
 
 
     /**
-     * Recursive function to find the leaf node where to insert a new node through the key value
+     * Function to find the leaf node where to insert a new node through the key value (loop, no recursion).
+     * Equal keys go right like in PersistentCartesianTree, so a duplicate key is attached after the
+     * existing ones instead of replacing a subtree.
      * @param keyValue Key value of node going to be inserted
-     * @param currentNode Current node to consider if key is on the right or left
-     * @return Next node to be considered in the tree by Binary Search Tree properties
+     * @param currentNode Node where the search starts
+     * @return Last node reached in the tree by Binary Search Tree properties
      */
     public Node<K, P> findleafNode(K keyValue, Node<K, P> currentNode){
-        
-        if (keyValue.compareTo(currentNode.getKeyValue()) < 0 && currentNode.getLeftNode() != null) {
-            return findleafNode(keyValue, currentNode.getLeftNode());
 
-        } else if (keyValue.compareTo(currentNode.getKeyValue()) > 0  && currentNode.getRightNode() != null) {
-            return findleafNode(keyValue, currentNode.getRightNode());
+        int depth = 0;
+        while(true){
+            int comparison = keyValue.compareTo(currentNode.getKeyValue());
+            if (comparison < 0 && currentNode.getLeftNode() != null) {
+                currentNode = currentNode.getLeftNode();
+            } else if (comparison >= 0 && currentNode.getRightNode() != null) {
+                currentNode = currentNode.getRightNode();
+            } else{
+                if(metrics != null){
+                    lastSearchDepth = depth;
+                    metrics.recordSearch(depth);
+                    publishMetricsIfRequested();
+                }
+                return currentNode;
+            }
+            depth++;
+        }
+    }
+
+    /**
+     * Insert a key with a priority from the priority generator of the tree
+     * @param keyValue Key value of node to be inserted
+     * @return Priority given to the new node
+     */
+    public P insert(K keyValue){
+        if(priorityGenerator == null){
+            throw new IllegalStateException("No priority generator set, use setPriorityGenerator or insertNode(key, priority)");
         }
+        P priorityValue = priorityGenerator.nextPriority(keyValue);
+        insertNode(keyValue, priorityValue);
+        return priorityValue;
+    }
 
-        return currentNode;
+    /**
+     * Delete a node by key only (for trees filled with insert(key))
+     * @param keyValue Key value of the node to delete
+     * @return Priority value of the deleted node
+     */
+    public P delete(K keyValue){
+        Node<K, P> nodeToDelete = findNode(keyValue);
+        if(nodeToDelete == null){
+            throw new NoSuchElementException("Element not found: " + keyValue);
+        }
+        P priorityValue = nodeToDelete.getPriorityValue();
+        removeNode(nodeToDelete);
+        return priorityValue;
     }
 
     /**
@@ -197,21 +868,114 @@ public class CartesianTree<K extends Comparable<K>, P extends Comparable<P>>{
             throw new NoSuchElementException("Element not found: (" + keyValue + ": " + priorityValue + ")");
         }
 
-        // Access children of node to delete
-        Node<K, P> rightNode = nodeToDelete.getRightNode();
-        Node<K, P> leftNode = nodeToDelete.getLeftNode();
+        removeNode(nodeToDelete);
+    }
 
-        // While node to delete is not a leaf, rotate it
-        while (rightNode != null || leftNode != null){
+    /**
+     * Node with the lowest priority (the root), without removing it
+     * @return Root node, null if the tree is empty
+     */
+    public Node<K, P> peekMin(){
+        return rootNode;
+    }
 
-            // If has two children, rotate with respect to highest priority value, else rotate with only child
-            if(rightNode != null && leftNode != null){
-                if(leftNode.getPriorityValue().compareTo(rightNode.getPriorityValue()) < 0){
-                    rotateRight(leftNode, nodeToDelete);
-                } else{
-                    rotateLeft(rightNode, nodeToDelete);
-                }
-            } else if (leftNode == null){
+    /**
+     * Remove the node with the lowest priority (the root)
+     * @return Key and priority of the removed node, null if the tree is empty
+     */
+    public Map.Entry<K, P> pollMin(){
+        if(rootNode == null){
+            return null;
+        }
+        Map.Entry<K, P> minimum = new AbstractMap.SimpleImmutableEntry<>(rootNode.getKeyValue(), rootNode.getPriorityValue());
+        removeNode(rootNode);
+        return minimum;
+    }
+
+    /**
+     * Change the priority of a key in place: the node is rotated up while its priority is lower than
+     * its parent's, or down while a child has a lower priority, so there is one search instead of the
+     * two of deleteNode followed by insertNode, and no node is unlinked or allocated
+     * @param keyValue Key value of the node to update
+     * @param priorityValue New priority value
+     * @return Previous priority value of the node
+     */
+    public P updatePriority(K keyValue, P priorityValue){
+        Node<K, P> node = findNode(keyValue);
+        if(node == null){
+            throw new NoSuchElementException("Element not found: " + keyValue);
+        }
+        return updateNodePriority(node, priorityValue);
+    }
+
+    /**
+     * Change the priority of a node of this tree and rotate it to its new place
+     * @param node Node of this tree
+     * @param priorityValue New priority value
+     * @return Previous priority value of the node
+     */
+    P updateNodePriority(Node<K, P> node, P priorityValue){
+        P previousPriority = node.getPriorityValue();
+        node.setPriorityValue(priorityValue);
+
+        int comparison = priorityValue.compareTo(previousPriority);
+        if(comparison < 0){
+            // Lower priority: rotate up as insertNode does
+            while(node.getParentNode() != null && node.getPriorityValue().compareTo(node.getParentNode().getPriorityValue()) < 0){
+                Node<K, P> parentNode = node.getParentNode();
+                if(parentNode.getRightNode() == node){
+                    rotateLeft(node, parentNode);
+                } else{
+                    rotateRight(node, parentNode);
+                }
+            }
+        } else if(comparison > 0){
+            // Higher priority: rotate the child with the lowest priority up while it is lower than the node
+            while(true){
+                Node<K, P> leftNode = node.getLeftNode();
+                Node<K, P> rightNode = node.getRightNode();
+                Node<K, P> lowestChild;
+                if(leftNode == null){
+                    lowestChild = rightNode;
+                } else if(rightNode == null){
+                    lowestChild = leftNode;
+                } else{
+                    lowestChild = leftNode.getPriorityValue().compareTo(rightNode.getPriorityValue()) < 0 ? leftNode : rightNode;
+                }
+                if(lowestChild == null || lowestChild.getPriorityValue().compareTo(node.getPriorityValue()) >= 0){
+                    break;
+                }
+                if(lowestChild == leftNode){
+                    rotateRight(leftNode, node);
+                } else{
+                    rotateLeft(rightNode, node);
+                }
+            }
+        }
+        return previousPriority;
+    }
+
+    /**
+     * Remove a node of this tree: rotate it down until it is a leaf, then unlink it
+     * @param nodeToDelete Node to remove
+     */
+    private void removeNode(Node<K, P> nodeToDelete){
+        // Access children of node to delete
+        Node<K, P> rightNode = nodeToDelete.getRightNode();
+        Node<K, P> leftNode = nodeToDelete.getLeftNode();
+
+        // While node to delete is not a leaf, rotate it
+        int rotations = 0;
+        while (rightNode != null || leftNode != null){
+
+            // If has two children, rotate with respect to highest priority value, else rotate with only child
+            if(rightNode != null && leftNode != null){
+                if(leftNode.getPriorityValue().compareTo(rightNode.getPriorityValue()) < 0){
+                    rotateRight(leftNode, nodeToDelete);
+                } else{
+                    rotateLeft(rightNode, nodeToDelete);
+                }
+            } else if (leftNode == null){
                 rotateLeft(rightNode, nodeToDelete);
             } else{
                 rotateRight(leftNode, nodeToDelete);
@@ -220,52 +984,1051 @@ public class CartesianTree<K extends Comparable<K>, P extends Comparable<P>>{
             // Update current children of node to delete after rotation
             rightNode = nodeToDelete.getRightNode();
             leftNode = nodeToDelete.getLeftNode();
+            rotations++;
 
         }
 
+        if(metrics != null){
+            metrics.recordDelete(rotations);
+            publishMetricsIfRequested();
+        }
+
+        // The finger moves to the parent of the removed leaf, a removed neighbour is no longer known
+        if(nodeToDelete == fingerNode){
+            resetFinger();
+            fingerNode = nodeToDelete.getParentNode();
+        } else{
+            if(nodeToDelete == fingerPredecessor){
+                fingerPredecessorKnown = false;
+            }
+            if(nodeToDelete == fingerSuccessor){
+                fingerSuccessorKnown = false;
+            }
+        }
+
         // If node to delete is root node after all rotation, set tree as empty
         if(nodeToDelete == rootNode){
             rootNode = null;
+        } else{
+            // Remove the reference of the node to delete in the tree (when it has become a leaf)
+            if (nodeToDelete.getParentNode().getRightNode() == nodeToDelete){
+                nodeToDelete.getParentNode().addRightNode(null);
+            } else{
+                nodeToDelete.getParentNode().addLeftNode(null);
+            }
+
+            // Remove the node from the subtree sizes of all its ancestors
+            if(orderStatistics){
+                addToSubtreeSizes(nodeToDelete.getParentNode(), -1);
+            }
+        }
+
+        // Recycle the unlinked node
+        if(nodePool != null){
+            nodePool.release(nodeToDelete);
+        }
+
+    }
+
+    /**
+     * Split the tree by a key: nodes with a smaller key stay in this tree, the others are moved out
+     * @param keyValue First key value of the returned tree
+     * @return New tree holding all nodes with key greater or equal to the key value
+     */
+    public CartesianTree<K, P> split(K keyValue){
+        SplitResult<K, P> result = splitNodes(rootNode, keyValue, false, orderStatistics);
+        rootNode = result.leftRoot;
+        resetFinger();
+        if(metrics != null){
+            metrics.sizeChanged();
+        }
+        if(nodePool != null){
+            nodePool.markEscaped();
+        }
+        return new CartesianTree<>(result.rightRoot, orderStatistics);
+    }
+
+    /**
+     * Merge two trees where every key of the left tree is smaller or equal to every key of the right tree.
+     * Both trees are emptied, their nodes are moved to the returned tree.
+     * @param leftTree Tree with the smaller keys
+     * @param rightTree Tree with the larger keys
+     * @return New tree holding the nodes of both trees
+     */
+    public static <K extends Comparable<K>, P extends Comparable<P>> CartesianTree<K, P> merge(CartesianTree<K, P> leftTree, CartesianTree<K, P> rightTree){
+        if(leftTree == rightTree){
+            throw new IllegalArgumentException("Cannot merge a tree with itself");
+        }
+
+        // Largest key on the left must not exceed the smallest key on the right
+        if(leftTree.rootNode != null && rightTree.rootNode != null){
+            K leftMax = lastNode(leftTree.rootNode).getKeyValue();
+            K rightMin = firstNode(rightTree.rootNode).getKeyValue();
+            if(leftMax.compareTo(rightMin) > 0){
+                throw new IllegalArgumentException("Key ranges overlap: " + leftMax + " > " + rightMin);
+            }
+        }
+
+        boolean orderStatistics = leftTree.orderStatistics && rightTree.orderStatistics;
+        Node<K, P> mergedRoot = mergeNodes(leftTree.detachRoot(), rightTree.detachRoot(), orderStatistics);
+        return new CartesianTree<>(mergedRoot, orderStatistics);
+    }
+
+    /**
+     * Delete all nodes with a key in [lowKey, highKey] in expected O(log n), whatever the number of deleted nodes
+     * @param lowKey Lowest key value to delete (inclusive)
+     * @param highKey Highest key value to delete (inclusive)
+     */
+    public void deleteRange(K lowKey, K highKey){
+        Node<K, P> cutRoot = cutRange(lowKey, highKey);
+        // With a node pool the deleted nodes are recycled, which visits them (O(log n + k))
+        if(nodePool != null){
+            releaseSubtree(cutRoot);
+        }
+    }
+
+    /**
+     * Move all nodes with a key in [lowKey, highKey] to a new tree in expected O(log n)
+     * @param lowKey Lowest key value to extract (inclusive)
+     * @param highKey Highest key value to extract (inclusive)
+     * @return New tree holding the extracted nodes
+     */
+    public CartesianTree<K, P> extractRange(K lowKey, K highKey){
+        if(nodePool != null){
+            nodePool.markEscaped();
+        }
+        return new CartesianTree<>(cutRange(lowKey, highKey), orderStatistics);
+    }
+
+    /**
+     * Cut a key range out of the tree and join what remains on both sides
+     * @param lowKey Lowest key value to cut (inclusive)
+     * @param highKey Highest key value to cut (inclusive)
+     * @return Root of the detached subtree holding the range
+     */
+    private Node<K, P> cutRange(K lowKey, K highKey){
+        if(lowKey.compareTo(highKey) > 0){
+            throw new IllegalArgumentException("Empty range: " + lowKey + " > " + highKey);
+        }
+
+        // [keys < low] [low <= keys <= high] [keys > high]
+        SplitResult<K, P> lowSplit = splitNodes(rootNode, lowKey, false, orderStatistics);
+        SplitResult<K, P> highSplit = splitNodes(lowSplit.rightRoot, highKey, true, orderStatistics);
+
+        rootNode = mergeNodes(lowSplit.leftRoot, highSplit.rightRoot, orderStatistics);
+        resetFinger();
+        if(metrics != null){
+            metrics.sizeChanged();
+        }
+        return highSplit.leftRoot;
+    }
+
+    /**
+     * Roots of the two trees produced by a split
+     */
+    static final class SplitResult<K extends Comparable<K>, P extends Comparable<P>> {
+        Node<K, P> leftRoot;
+        Node<K, P> rightRoot;
+    }
+
+    /**
+     * Split a subtree by a key in one top-down pass. Nodes going left are chained on the right spine
+     * of the left tree and nodes going right on the left spine of the right tree, so the heap order is kept.
+     * @param currentNode Root of the subtree to split (is detached from its parent)
+     * @param keyValue Key value to split on
+     * @param equalGoesLeft True if nodes with a key equal to the key value go to the left tree
+     * @param orderStatistics True to keep the subtree sizes up to date (nodes are SizedNode)
+     * @return Roots of the left and right trees
+     */
+    static <K extends Comparable<K>, P extends Comparable<P>> SplitResult<K, P> splitNodes(Node<K, P> currentNode, K keyValue, boolean equalGoesLeft, boolean orderStatistics){
+        SplitResult<K, P> result = new SplitResult<>();
+        Node<K, P> leftTail = null;
+        Node<K, P> rightTail = null;
+
+        while(currentNode != null){
+            int comparison = currentNode.getKeyValue().compareTo(keyValue);
+
+            if(comparison < 0 || (comparison == 0 && equalGoesLeft)){
+                // Node and its left subtree go left, continue in its right subtree
+                if(leftTail == null){
+                    result.leftRoot = currentNode;
+                } else{
+                    leftTail.addRightNode(currentNode);
+                }
+                currentNode.addParentNode(leftTail);
+                leftTail = currentNode;
+                currentNode = currentNode.getRightNode();
+            } else{
+                // Node and its right subtree go right, continue in its left subtree
+                if(rightTail == null){
+                    result.rightRoot = currentNode;
+                } else{
+                    rightTail.addLeftNode(currentNode);
+                }
+                currentNode.addParentNode(rightTail);
+                rightTail = currentNode;
+                currentNode = currentNode.getLeftNode();
+            }
+        }
+
+        // Close the open ends of both spines
+        if(leftTail != null){
+            leftTail.addRightNode(null);
+        }
+        if(rightTail != null){
+            rightTail.addLeftNode(null);
+        }
+
+        // Only the nodes on both spines got a new child, recompute their sizes bottom-up
+        if(orderStatistics){
+            updateSubtreeSizesToRoot(leftTail);
+            updateSubtreeSizesToRoot(rightTail);
+        }
+        return result;
+    }
+
+    /**
+     * Split a subtree by position in one top-down pass, chaining the spines like splitNodes:
+     * the first count nodes in key order go to the left tree. Nodes must keep their subtree size (SizedNode).
+     * @param currentNode Root of the subtree to split (is detached from its parent)
+     * @param count Number of nodes going to the left tree
+     * @return Roots of the left and right trees
+     */
+    static <K extends Comparable<K>, P extends Comparable<P>> SplitResult<K, P> splitNodesAt(Node<K, P> currentNode, int count){
+        SplitResult<K, P> result = new SplitResult<>();
+        Node<K, P> leftTail = null;
+        Node<K, P> rightTail = null;
+
+        while(currentNode != null){
+            int leftSize = subtreeSize(currentNode.getLeftNode());
+
+            if(count > leftSize){
+                // Node and its left subtree go left, continue in its right subtree
+                count -= leftSize + 1;
+                if(leftTail == null){
+                    result.leftRoot = currentNode;
+                } else{
+                    leftTail.addRightNode(currentNode);
+                }
+                currentNode.addParentNode(leftTail);
+                leftTail = currentNode;
+                currentNode = currentNode.getRightNode();
+            } else{
+                // Node and its right subtree go right, continue in its left subtree
+                if(rightTail == null){
+                    result.rightRoot = currentNode;
+                } else{
+                    rightTail.addLeftNode(currentNode);
+                }
+                currentNode.addParentNode(rightTail);
+                rightTail = currentNode;
+                currentNode = currentNode.getLeftNode();
+            }
+        }
+
+        // Close the open ends of both spines
+        if(leftTail != null){
+            leftTail.addRightNode(null);
+        }
+        if(rightTail != null){
+            rightTail.addLeftNode(null);
+        }
+
+        updateSubtreeSizesToRoot(leftTail);
+        updateSubtreeSizesToRoot(rightTail);
+        return result;
+    }
+
+    /**
+     * Merge two subtrees in one top-down pass, every key on the left being smaller or equal to every key on the right.
+     * The root with the lowest priority wins at each level; it keeps its outer subtree and the merge continues inside.
+     * @param leftNode Root of the subtree with the smaller keys
+     * @param rightNode Root of the subtree with the larger keys
+     * @param orderStatistics True to keep the subtree sizes up to date (nodes are SizedNode)
+     * @return Root of the merged subtree (without parent)
+     */
+    static <K extends Comparable<K>, P extends Comparable<P>> Node<K, P> mergeNodes(Node<K, P> leftNode, Node<K, P> rightNode, boolean orderStatistics){
+        Node<K, P> mergedRoot = null;
+        Node<K, P> attachNode = null;
+        boolean attachRight = false;
+
+        while(leftNode != null && rightNode != null){
+            // A left winner keeps merging in its right subtree, a right winner in its left subtree
+            Node<K, P> winnerNode;
+            if(leftNode.getPriorityValue().compareTo(rightNode.getPriorityValue()) <= 0){
+                winnerNode = leftNode;
+                linkChild(attachNode, winnerNode, attachRight);
+                leftNode = winnerNode.getRightNode();
+                attachRight = true;
+            } else{
+                winnerNode = rightNode;
+                linkChild(attachNode, winnerNode, attachRight);
+                rightNode = winnerNode.getLeftNode();
+                attachRight = false;
+            }
+
+            if(mergedRoot == null){
+                mergedRoot = winnerNode;
+            }
+            attachNode = winnerNode;
+        }
+
+        // One side is exhausted, the rest of the other side hangs below the last winner
+        Node<K, P> restNode = leftNode != null ? leftNode : rightNode;
+        linkChild(attachNode, restNode, attachRight);
+
+        // Only the winners got a new child, recompute their sizes bottom-up
+        if(orderStatistics){
+            updateSubtreeSizesToRoot(attachNode);
+        }
+        return mergedRoot != null ? mergedRoot : restNode;
+    }
+
+    /**
+     * Set a child link and the matching parent link
+     * @param parentNode New parent (null for a root)
+     * @param childNode New child (can be null)
+     * @param asRightChild True to link as right child, false as left child
+     */
+    static <K extends Comparable<K>, P extends Comparable<P>> void linkChild(Node<K, P> parentNode, Node<K, P> childNode, boolean asRightChild){
+        if(parentNode != null){
+            if(asRightChild){
+                parentNode.addRightNode(childNode);
+            } else{
+                parentNode.addLeftNode(childNode);
+            }
+        }
+        if(childNode != null){
+            childNode.addParentNode(parentNode);
+        }
+    }
+
+    /**
+     * Recompute the subtree sizes from a node up to the root of its tree
+     * @param currentNode Lowest node whose children changed (can be null)
+     */
+    static <K extends Comparable<K>, P extends Comparable<P>> void updateSubtreeSizesToRoot(Node<K, P> currentNode){
+        while(currentNode != null){
+            currentNode.updateSubtreeSize();
+            currentNode = currentNode.getParentNode();
+        }
+    }
+
+    /**
+     * Add a difference to the subtree sizes from a node up to the root
+     * @param currentNode Lowest node whose subtree changed size
+     * @param difference Number of nodes added (negative if removed)
+     */
+    private void addToSubtreeSizes(Node<K, P> currentNode, int difference){
+        while(currentNode != null){
+            currentNode.setSubtreeSize(currentNode.getSubtreeSize() + difference);
+            currentNode = currentNode.getParentNode();
+        }
+    }
+
+    /**
+     * Turn on order statistics, computing all subtree sizes first (O(n), e.g. for a tree built in bulk).
+     * Plain nodes have no room for a subtree size: every node is replaced by a SizedNode copy, so
+     * nodes obtained from this tree before (findNode, iterators) must not be used afterwards.
+     */
+    public void enableOrderStatistics(){
+        if(orderStatistics){
             return;
         }
 
-        // Remove the reference of the node to delete in the tree (when it has become a leaf)
-        if (nodeToDelete.getParentNode().getRightNode() == nodeToDelete){
-            nodeToDelete.getParentNode().addRightNode(null);
+        // Post-order walk through the parent links: a node is copied and sized once both subtrees are done
+        Node<K, P> currentNode = rootNode;
+        Node<K, P> previousNode = null;
+        while(currentNode != null){
+            Node<K, P> nextNode;
+            if(previousNode == currentNode.getParentNode() && currentNode.getLeftNode() != null){
+                nextNode = currentNode.getLeftNode();
+            } else if(previousNode != currentNode.getRightNode() && currentNode.getRightNode() != null){
+                nextNode = currentNode.getRightNode();
+            } else{
+                currentNode = toSizedNode(currentNode);
+                currentNode.updateSubtreeSize();
+                nextNode = currentNode.getParentNode();
+            }
+            previousNode = currentNode;
+            currentNode = nextNode;
+        }
+        resetFinger();
+        if(nodePool != null){
+            // Pooled nodes are plain nodes, start a new arena
+            nodePool = new NodePool<>(nodePool.getSlabSize(), true);
+        }
+        orderStatistics = true;
+    }
+
+    /**
+     * Put a SizedNode copy of a node in its place (children, parent and root links)
+     * @param node Node to replace
+     * @return The copy, or the node itself if it already keeps a subtree size
+     */
+    private Node<K, P> toSizedNode(Node<K, P> node){
+        if(node instanceof SizedNode){
+            return node;
+        }
+        Node<K, P> sizedNode = new SizedNode<>(node.getKeyValue(), node.getPriorityValue());
+        linkChild(sizedNode, node.getLeftNode(), false);
+        linkChild(sizedNode, node.getRightNode(), true);
+        Node<K, P> parentNode = node.getParentNode();
+        if(parentNode == null){
+            rootNode = sizedNode;
         } else{
-            nodeToDelete.getParentNode().addLeftNode(null);
+            linkChild(parentNode, sizedNode, parentNode.getRightNode() == node);
+        }
+        return sizedNode;
+    }
+
+    /**
+     * Number of nodes in the tree in O(1)
+     * @return Number of nodes
+     */
+    public int size(){
+        requireOrderStatistics();
+        return subtreeSize(rootNode);
+    }
+
+    /**
+     * Number of keys strictly smaller than a key value
+     * @param keyValue Key value to rank
+     * @return Rank of the key (position it has or would have in the sorted keys)
+     */
+    public int rank(K keyValue){
+        requireOrderStatistics();
+        return countBelow(keyValue, false);
+    }
+
+    /**
+     * Node holding the k-th smallest key
+     * @param index Position in the sorted keys, starting at 0
+     * @return Node at that position
+     */
+    public Node<K, P> select(int index){
+        requireOrderStatistics();
+        if(index < 0 || index >= subtreeSize(rootNode)){
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + subtreeSize(rootNode));
+        }
+
+        Node<K, P> currentNode = rootNode;
+        while(true){
+            int leftSize = subtreeSize(currentNode.getLeftNode());
+            if(index < leftSize){
+                currentNode = currentNode.getLeftNode();
+            } else if(index == leftSize){
+                return currentNode;
+            } else{
+                index -= leftSize + 1;
+                currentNode = currentNode.getRightNode();
+            }
+        }
+    }
+
+    /**
+     * Number of keys in [lowKey, highKey]
+     * @param lowKey Lowest key value (inclusive)
+     * @param highKey Highest key value (inclusive)
+     * @return Number of nodes with a key in the range
+     */
+    public int countRange(K lowKey, K highKey){
+        requireOrderStatistics();
+        if(lowKey.compareTo(highKey) > 0){
+            return 0;
+        }
+        return countBelow(highKey, true) - countBelow(lowKey, false);
+    }
+
+    /**
+     * Count the keys below a key value in one descent
+     * @param keyValue Key value to compare with
+     * @param inclusive True to also count keys equal to the key value
+     * @return Number of keys smaller (or equal) than the key value
+     */
+    private int countBelow(K keyValue, boolean inclusive){
+        int count = 0;
+        Node<K, P> currentNode = rootNode;
+        while(currentNode != null){
+            int comparison = currentNode.getKeyValue().compareTo(keyValue);
+            if(comparison < 0 || (comparison == 0 && inclusive)){
+                count += subtreeSize(currentNode.getLeftNode()) + 1;
+                currentNode = currentNode.getRightNode();
+            } else{
+                currentNode = currentNode.getLeftNode();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Size of a subtree, 0 for an empty one
+     * @param currentNode Root of the subtree
+     * @return Number of nodes in it
+     */
+    static <K extends Comparable<K>, P extends Comparable<P>> int subtreeSize(Node<K, P> currentNode){
+        return currentNode == null ? 0 : currentNode.getSubtreeSize();
+    }
+
+    /**
+     * Fail if the subtree sizes are not maintained
+     */
+    private void requireOrderStatistics(){
+        if(!orderStatistics){
+            throw new IllegalStateException("Order statistics are not enabled for this tree");
+        }
+    }
+
+    /**
+     * Iterator over the nodes in ascending key order. It walks the parent links, so it needs no stack.
+     * Removing through the iterator is supported; other changes to the tree during the iteration are not.
+     * @return In-order iterator
+     */
+    @Override
+    public Iterator<Node<K, P>> iterator(){
+        return rootNode == null ? new NodeIterator(null, null, false) : new NodeIterator(firstNode(rootNode), null, false);
+    }
+
+    /**
+     * Iterator over the nodes with a key in [lowKey, highKey], in ascending key order
+     * @param lowKey Lowest key value (inclusive)
+     * @param highKey Highest key value (inclusive)
+     * @return In-order iterator over the range
+     */
+    public Iterator<Node<K, P>> iterator(K lowKey, K highKey){
+        Node<K, P> startNode = ceilingNode(lowKey, true);
+        Node<K, P> endNode = floorNode(highKey, true);
+        if(startNode == null || endNode == null || startNode.getKeyValue().compareTo(endNode.getKeyValue()) > 0){
+            return new NodeIterator(null, null, false);
+        }
+        return new NodeIterator(startNode, endNode, false);
+    }
+
+    /**
+     * Iterator over the nodes with a key in [lowKey, highKey], in ascending priority order.
+     * Nodes are found lazily from the heap order, the range is never enumerated.
+     * @param lowKey Lowest key value (inclusive)
+     * @param highKey Highest key value (inclusive)
+     * @return Priority order iterator over the range
+     */
+    public Iterator<Node<K, P>> priorityIterator(K lowKey, K highKey){
+        return new PriorityOrderIterator(lowKey, highKey, null);
+    }
+
+    /**
+     * The k nodes of lowest priority with a key in [lowKey, highKey], in O(log n + k log k) expected
+     * @param lowKey Lowest key value (inclusive)
+     * @param highKey Highest key value (inclusive)
+     * @param k Maximum number of nodes
+     * @return Up to k nodes in ascending priority order
+     */
+    public List<Node<K, P>> topK(K lowKey, K highKey, int k){
+        if(k < 0){
+            throw new IllegalArgumentException("Negative number of nodes: " + k);
+        }
+        List<Node<K, P>> nodes = new ArrayList<>(Math.min(k, 1024));
+        Iterator<Node<K, P>> iterator = new PriorityOrderIterator(lowKey, highKey, null);
+        while(nodes.size() < k && iterator.hasNext()){
+            nodes.add(iterator.next());
+        }
+        return nodes;
+    }
+
+    /**
+     * Iterator over the nodes with a key in [lowKey, highKey] and a priority strictly below a threshold,
+     * in ascending priority order. Subtrees whose root reaches the threshold are never visited.
+     * @param lowKey Lowest key value (inclusive)
+     * @param highKey Highest key value (inclusive)
+     * @param threshold Priority value the returned nodes are below
+     * @return Priority order iterator over the matching nodes
+     */
+    public Iterator<Node<K, P>> findAllBelowPriority(K lowKey, K highKey, P threshold){
+        if(threshold == null){
+            throw new NullPointerException("Priority threshold is null");
+        }
+        return new PriorityOrderIterator(lowKey, highKey, threshold);
+    }
+
+    /**
+     * Iterator over the nodes in descending key order
+     * @return Reverse in-order iterator
+     */
+    public Iterator<Node<K, P>> descendingIterator(){
+        return rootNode == null ? new NodeIterator(null, null, true) : new NodeIterator(lastNode(rootNode), null, true);
+    }
+
+    /**
+     * Iterator over the nodes with a key in [lowKey, highKey], in descending key order
+     * @param lowKey Lowest key value (inclusive)
+     * @param highKey Highest key value (inclusive)
+     * @return Reverse in-order iterator over the range
+     */
+    public Iterator<Node<K, P>> descendingIterator(K lowKey, K highKey){
+        Node<K, P> startNode = floorNode(highKey, true);
+        Node<K, P> endNode = ceilingNode(lowKey, true);
+        if(startNode == null || endNode == null || startNode.getKeyValue().compareTo(endNode.getKeyValue()) < 0){
+            return new NodeIterator(null, null, true);
+        }
+        return new NodeIterator(startNode, endNode, true);
+    }
+
+    /**
+     * Iterator between two nodes of this tree (both inclusive)
+     * @param startNode First node returned (null for an empty iterator)
+     * @param endNode Last node returned (null to go to the end of the tree)
+     * @param descending True to walk in descending key order
+     * @return Iterator over the nodes
+     */
+    Iterator<Node<K, P>> iterator(Node<K, P> startNode, Node<K, P> endNode, boolean descending){
+        return new NodeIterator(startNode, endNode, descending);
+    }
+
+    /**
+     * Spliterator splitting the key order on subtrees, for parallel streams
+     * @return Spliterator over the nodes in ascending key order
+     */
+    @Override
+    public Spliterator<Node<K, P>> spliterator(){
+        if(rootNode == null){
+            return new NodeSpliterator<>(null, null, 0);
+        }
+        long sizeEstimate = orderStatistics ? rootNode.getSubtreeSize() : Long.MAX_VALUE;
+        return new NodeSpliterator<>(firstNode(rootNode), lastNode(rootNode), sizeEstimate);
+    }
+
+    /**
+     * Sequential stream over the nodes in ascending key order (use parallel() to split it on subtrees)
+     * @return Stream of nodes
+     */
+    public Stream<Node<K, P>> stream(){
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Node with the smallest key, null if the tree is empty
+     * @return First node in key order
+     */
+    public Node<K, P> getFirstNode(){
+        return rootNode == null ? null : firstNode(rootNode);
+    }
+
+    /**
+     * Node with the largest key, null if the tree is empty
+     * @return Last node in key order
+     */
+    public Node<K, P> getLastNode(){
+        return rootNode == null ? null : lastNode(rootNode);
+    }
+
+    /**
+     * Node with the smallest key greater than or equal to a key value
+     * @param keyValue Key value to compare with
+     * @return Node found, null if there is none
+     */
+    public Node<K, P> ceilingNode(K keyValue){
+        return ceilingNode(keyValue, true);
+    }
+
+    /**
+     * Node with the smallest key strictly greater than a key value
+     * @param keyValue Key value to compare with
+     * @return Node found, null if there is none
+     */
+    public Node<K, P> higherNode(K keyValue){
+        return ceilingNode(keyValue, false);
+    }
+
+    /**
+     * Node with the largest key smaller than or equal to a key value
+     * @param keyValue Key value to compare with
+     * @return Node found, null if there is none
+     */
+    public Node<K, P> floorNode(K keyValue){
+        return floorNode(keyValue, true);
+    }
+
+    /**
+     * Node with the largest key strictly smaller than a key value
+     * @param keyValue Key value to compare with
+     * @return Node found, null if there is none
+     */
+    public Node<K, P> lowerNode(K keyValue){
+        return floorNode(keyValue, false);
+    }
+
+    /**
+     * Node with the smallest key greater than (or equal to) a key value, in one descent
+     * @param keyValue Key value to compare with
+     * @param inclusive True to accept a node with an equal key
+     * @return Node found, null if there is none
+     */
+    private Node<K, P> ceilingNode(K keyValue, boolean inclusive){
+        Node<K, P> candidateNode = null;
+        Node<K, P> currentNode = rootNode;
+        while(currentNode != null){
+            int comparison = currentNode.getKeyValue().compareTo(keyValue);
+            if(comparison > 0 || (comparison == 0 && inclusive)){
+                candidateNode = currentNode;
+                currentNode = currentNode.getLeftNode();
+            } else{
+                currentNode = currentNode.getRightNode();
+            }
         }
+        return candidateNode;
+    }
 
+    /**
+     * Node with the largest key smaller than (or equal to) a key value, in one descent
+     * @param keyValue Key value to compare with
+     * @param inclusive True to accept a node with an equal key
+     * @return Node found, null if there is none
+     */
+    private Node<K, P> floorNode(K keyValue, boolean inclusive){
+        Node<K, P> candidateNode = null;
+        Node<K, P> currentNode = rootNode;
+        while(currentNode != null){
+            int comparison = currentNode.getKeyValue().compareTo(keyValue);
+            if(comparison < 0 || (comparison == 0 && inclusive)){
+                candidateNode = currentNode;
+                currentNode = currentNode.getRightNode();
+            } else{
+                currentNode = currentNode.getLeftNode();
+            }
+        }
+        return candidateNode;
     }
 
     /**
-     * Recusrive function to find node in a tree based on key values
+     * Next node in key order, through the parent links
+     * @param currentNode Node to start from
+     * @return In-order successor, null for the last node
+     */
+    static <K extends Comparable<K>, P extends Comparable<P>> Node<K, P> successor(Node<K, P> currentNode){
+        if(currentNode.getRightNode() != null){
+            return firstNode(currentNode.getRightNode());
+        }
+        Node<K, P> parentNode = currentNode.getParentNode();
+        while(parentNode != null && parentNode.getRightNode() == currentNode){
+            currentNode = parentNode;
+            parentNode = parentNode.getParentNode();
+        }
+        return parentNode;
+    }
+
+    /**
+     * Previous node in key order, through the parent links
+     * @param currentNode Node to start from
+     * @return In-order predecessor, null for the first node
+     */
+    static <K extends Comparable<K>, P extends Comparable<P>> Node<K, P> predecessor(Node<K, P> currentNode){
+        if(currentNode.getLeftNode() != null){
+            return lastNode(currentNode.getLeftNode());
+        }
+        Node<K, P> parentNode = currentNode.getParentNode();
+        while(parentNode != null && parentNode.getLeftNode() == currentNode){
+            currentNode = parentNode;
+            parentNode = parentNode.getParentNode();
+        }
+        return parentNode;
+    }
+
+    /**
+     * Iterator walking the in-order successors (or predecessors) from a start node to an optional end node
+     */
+    private final class NodeIterator implements Iterator<Node<K, P>> {
+        private Node<K, P> nextNode;
+        // Last node to return (inclusive), null to go to the end of the tree
+        private final Node<K, P> endNode;
+        private final boolean descending;
+        private Node<K, P> lastReturned;
+
+        NodeIterator(Node<K, P> startNode, Node<K, P> endNode, boolean descending){
+            this.nextNode = startNode;
+            this.endNode = endNode;
+            this.descending = descending;
+        }
+
+        @Override
+        public boolean hasNext(){
+            return nextNode != null;
+        }
+
+        @Override
+        public Node<K, P> next(){
+            if(nextNode == null){
+                throw new NoSuchElementException();
+            }
+            lastReturned = nextNode;
+            if(nextNode == endNode){
+                nextNode = null;
+            } else{
+                nextNode = descending ? predecessor(nextNode) : successor(nextNode);
+            }
+            return lastReturned;
+        }
+
+        @Override
+        public void remove(){
+            if(lastReturned == null){
+                throw new IllegalStateException();
+            }
+            // Rotating the node down does not change the order of the other nodes
+            removeNode(lastReturned);
+            lastReturned = null;
+        }
+    }
+
+    /**
+     * Best-first walk of the heap restricted to a key range. The queue holds, for each subtree still
+     * to visit, its node of lowest priority inside the range: from the root of the subtree, the walk
+     * goes right while the key is below the range and left while it is above, and the first node in
+     * the range holds all the others of the subtree in its own subtree. Returning a node queues the
+     * entry nodes of its two children, so k nodes cost O(log n + k log k), whatever the size of the range.
+     */
+    private final class PriorityOrderIterator implements Iterator<Node<K, P>> {
+        private final K lowKey;
+        private final K highKey;
+        // Nodes with a priority greater or equal are neither returned nor expanded, null for no limit
+        private final P threshold;
+        private final PriorityQueue<Node<K, P>> candidates = new PriorityQueue<>((leftNode, rightNode) -> leftNode.getPriorityValue().compareTo(rightNode.getPriorityValue()));
+
+        PriorityOrderIterator(K lowKey, K highKey, P threshold){
+            this.lowKey = lowKey;
+            this.highKey = highKey;
+            this.threshold = threshold;
+            if(lowKey.compareTo(highKey) <= 0){
+                offerSubtree(rootNode);
+            }
+        }
+
+        /**
+         * Queue the node of lowest priority in the range of a subtree
+         * @param subtreeRoot Root of the subtree, may be null
+         */
+        private void offerSubtree(Node<K, P> subtreeRoot){
+            Node<K, P> currentNode = subtreeRoot;
+            while(currentNode != null){
+                if(currentNode.getKeyValue().compareTo(lowKey) < 0){
+                    currentNode = currentNode.getRightNode();
+                } else if(currentNode.getKeyValue().compareTo(highKey) > 0){
+                    currentNode = currentNode.getLeftNode();
+                } else{
+                    // Descendants have a higher priority: the whole subtree is pruned by the threshold
+                    if(threshold == null || currentNode.getPriorityValue().compareTo(threshold) < 0){
+                        candidates.add(currentNode);
+                    }
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext(){
+            return !candidates.isEmpty();
+        }
+
+        @Override
+        public Node<K, P> next(){
+            Node<K, P> nextNode = candidates.poll();
+            if(nextNode == null){
+                throw new NoSuchElementException();
+            }
+            offerSubtree(nextNode.getLeftNode());
+            offerSubtree(nextNode.getRightNode());
+            return nextNode;
+        }
+    }
+
+    /**
+     * Spliterator over the in-order range [nextNode, lastNode]. A split cuts the range at the
+     * highest node inside it, so the prefix is (part of) its left subtree and the rest starts at that node.
+     */
+    private static final class NodeSpliterator<K extends Comparable<K>, P extends Comparable<P>> implements Spliterator<Node<K, P>> {
+        private Node<K, P> nextNode;
+        private final Node<K, P> lastNode;
+        private long sizeEstimate;
+
+        NodeSpliterator(Node<K, P> nextNode, Node<K, P> lastNode, long sizeEstimate){
+            this.nextNode = nextNode;
+            this.lastNode = lastNode;
+            this.sizeEstimate = sizeEstimate;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Node<K, P>> action){
+            if(nextNode == null){
+                return false;
+            }
+            Node<K, P> currentNode = nextNode;
+            nextNode = currentNode == lastNode ? null : successor(currentNode);
+            action.accept(currentNode);
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Node<K, P>> action){
+            Node<K, P> currentNode = nextNode;
+            nextNode = null;
+            while(currentNode != null){
+                action.accept(currentNode);
+                currentNode = currentNode == lastNode ? null : successor(currentNode);
+            }
+        }
+
+        @Override
+        public Spliterator<Node<K, P>> trySplit(){
+            if(nextNode == null || nextNode == lastNode){
+                return null;
+            }
+
+            // Highest node of the range; if it is the first one, cut after it instead
+            Node<K, P> middleNode = highestNode(nextNode, lastNode);
+            if(middleNode == nextNode){
+                middleNode = highestNode(successor(nextNode), lastNode);
+            }
+
+            NodeSpliterator<K, P> prefix = new NodeSpliterator<>(nextNode, predecessor(middleNode), sizeEstimate >>> 1);
+            nextNode = middleNode;
+            sizeEstimate -= prefix.sizeEstimate;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize(){
+            return nextNode == null ? 0 : sizeEstimate;
+        }
+
+        @Override
+        public int characteristics(){
+            return ORDERED | NONNULL;
+        }
+
+        /**
+         * Highest node of an in-order range: the lowest common ancestor of its two ends
+         * @param firstNode First node of the range
+         * @param secondNode Last node of the range
+         * @return Common ancestor
+         */
+        private static <K extends Comparable<K>, P extends Comparable<P>> Node<K, P> highestNode(Node<K, P> firstNode, Node<K, P> secondNode){
+            int firstDepth = depth(firstNode);
+            int secondDepth = depth(secondNode);
+            while(firstDepth > secondDepth){
+                firstNode = firstNode.getParentNode();
+                firstDepth--;
+            }
+            while(secondDepth > firstDepth){
+                secondNode = secondNode.getParentNode();
+                secondDepth--;
+            }
+            while(firstNode != secondNode){
+                firstNode = firstNode.getParentNode();
+                secondNode = secondNode.getParentNode();
+            }
+            return firstNode;
+        }
+
+        private static <K extends Comparable<K>, P extends Comparable<P>> int depth(Node<K, P> currentNode){
+            int depth = 0;
+            while(currentNode.getParentNode() != null){
+                currentNode = currentNode.getParentNode();
+                depth++;
+            }
+            return depth;
+        }
+    }
+
+    /**
+     * Left most node of a subtree
+     * @param currentNode Root of the subtree
+     * @return Node with the smallest key
+     */
+    static <K extends Comparable<K>, P extends Comparable<P>> Node<K, P> firstNode(Node<K, P> currentNode){
+        while(currentNode.getLeftNode() != null){
+            currentNode = currentNode.getLeftNode();
+        }
+        return currentNode;
+    }
+
+    /**
+     * Right most node of a subtree
+     * @param currentNode Root of the subtree
+     * @return Node with the largest key
+     */
+    static <K extends Comparable<K>, P extends Comparable<P>> Node<K, P> lastNode(Node<K, P> currentNode){
+        while(currentNode.getRightNode() != null){
+            currentNode = currentNode.getRightNode();
+        }
+        return currentNode;
+    }
+
+    /**
+     * Find node in a tree based on key values
      * @param keyValue Key value of node to be found
-     * @return The node found in the tree
+     * @return The node found in the tree, null if absent
      */
     public Node<K, P> findNode(K keyValue){
-        return findNodeRec(keyValue, rootNode);
+        if(fingerSearch && fingerNode != null){
+            return findNode(keyValue, fingerNode);
+        }
+        return findNodeBelow(keyValue, rootNode);
+    }
+
+    /**
+     * Find a node starting from a node of the tree close to the key (finger search), O(log d) expected
+     * for a key at distance d in key order. With finger search enabled the found node becomes the finger,
+     * otherwise the tree keeps no state of the search.
+     * @param keyValue Key value of node to be found
+     * @param hint Node of this tree (e.g. the last node found), null to search from the root
+     * @return The node found in the tree, null if absent
+     */
+    public Node<K, P> findNode(K keyValue, Node<K, P> hint){
+        if(hint == null){
+            return findNodeBelow(keyValue, rootNode);
+        }
+        Node<K, P> foundNode = findNodeBelow(keyValue, climbToSubtree(keyValue, hint));
+        // The finger only follows the searches when finger search is on
+        if(fingerSearch && foundNode != null && foundNode != fingerNode){
+            resetFinger();
+            fingerNode = foundNode;
+        }
+        return foundNode;
     }
 
     /**
-     * Recursive function to find the node
+     * Function to find the node below a starting node (loop, no recursion)
      * @param keyValue key value of the node to find
-     * @param currentNode current node considerent in the tree
-     * @return null if not found, current node if found, or left- or right sub tree if further in the tree
+     * @param currentNode node where the search starts
+     * @return null if not found, the node with the key value otherwise
+     * @deprecated The search is iterative, use findNodeBelow
      */
+    @Deprecated
     public Node<K, P> findNodeRec(K keyValue, Node<K, P> currentNode){
+        return findNodeBelow(keyValue, currentNode);
+    }
 
-        if(currentNode == null){
-            return currentNode;
-        } else if(currentNode.getKeyValue().equals(keyValue)){
-            return currentNode;
-        }
+    /**
+     * Function to find the node below a starting node (loop, no recursion)
+     * @param keyValue key value of the node to find
+     * @param currentNode node where the search starts
+     * @return null if not found, the node with the key value otherwise
+     */
+    public Node<K, P> findNodeBelow(K keyValue, Node<K, P> currentNode){
 
-        if(keyValue.compareTo(currentNode.getKeyValue()) < 0){
-            return findNodeRec(keyValue, currentNode.getLeftNode());
-        } else{
-            return findNodeRec(keyValue, currentNode.getRightNode());
+        int visitedNodes = 0;
+        while(currentNode != null && !currentNode.getKeyValue().equals(keyValue)){
+            if(keyValue.compareTo(currentNode.getKeyValue()) < 0){
+                currentNode = currentNode.getLeftNode();
+            } else{
+                currentNode = currentNode.getRightNode();
+            }
+            visitedNodes++;
         }
+        if(metrics != null){
+            // A hit also compares the node it stops on
+            metrics.recordSearch(currentNode != null ? visitedNodes : Math.max(0, visitedNodes - 1));
+            publishMetricsIfRequested();
+        }
+        return currentNode;
     }   
 
 
@@ -274,30 +2037,63 @@ public class CartesianTree<K extends Comparable<K>, P extends Comparable<P>>{
      * @return Height of the tree
      */
     public int getHeight(){
-        // If root node is not null start recursive function to get height, else return -1
-        if (rootNode != null){
-            return getHeightRecursive(rootNode);
-        } else{
-            return -1;
-        }
+        return subtreeHeight(rootNode);
     }
 
+    /**
+     * Height of the subtree below a node (iterative, see subtreeHeight)
+     * @param currentNode Root of the subtree
+     * @return Height of the subtree, -1 if empty
+     */
     public int getHeightRecursive(Node<K, P> currentNode){
-        // Start of with leaf node that has height of 0 (1 + max)
-        int leftHeight = -1;
-        int rightHeight = -1;
+        return subtreeHeight(currentNode);
+    }
 
-        // Get height of left subtree
-        if (currentNode.getLeftNode() != null){
-            leftHeight = getHeightRecursive(currentNode.getLeftNode());
-        }
-        // Get height of right subtree
-        if (currentNode.getRightNode() != null){
-            rightHeight = getHeightRecursive(currentNode.getRightNode());
+    /**
+     * Height of a subtree, walked through the parent links (no recursion)
+     * @param subtreeRoot Root of the subtree (the walk stops when it climbs back above it)
+     * @return Height of the subtree, -1 if empty
+     */
+    static <K extends Comparable<K>, P extends Comparable<P>> int subtreeHeight(Node<K, P> subtreeRoot){
+        // Walk the subtree through the parent links and keep track of the depth (-1 if empty)
+        int height = -1;
+        int depth = 0;
+        Node<K, P> aboveNode = subtreeRoot == null ? null : subtreeRoot.getParentNode();
+        Node<K, P> currentNode = subtreeRoot;
+        Node<K, P> previousNode = aboveNode;
+
+        while(currentNode != aboveNode){
+            Node<K, P> nextNode = nextInWalk(currentNode, previousNode);
+            if(previousNode == currentNode.getParentNode()){
+                height = Math.max(height, depth);
+            }
+            depth += nextNode == currentNode.getParentNode() ? -1 : 1;
+            previousNode = currentNode;
+            currentNode = nextNode;
         }
+        return height;
+    }
 
-        // Return the max of left and right subtree + extra depth of 1
-        return 1 + Math.max(leftHeight, rightHeight);
+    /**
+     * Next step of a walk over the whole tree through child and parent links (no stack needed).
+     * A node is first reached from its parent, then again after each of its subtrees.
+     * @param currentNode Node the walk is at
+     * @param previousNode Node the walk comes from
+     * @return Node to go to next (the parent of the root, null, when the walk is over)
+     */
+    private static <K extends Comparable<K>, P extends Comparable<P>> Node<K, P> nextInWalk(Node<K, P> currentNode, Node<K, P> previousNode){
+        if(previousNode == currentNode.getParentNode()){
+            // Coming from above: go left first, then right, then back up
+            if(currentNode.getLeftNode() != null){
+                return currentNode.getLeftNode();
+            } else if(currentNode.getRightNode() != null){
+                return currentNode.getRightNode();
+            }
+        } else if(previousNode == currentNode.getLeftNode() && currentNode.getRightNode() != null){
+            // Coming back from the left subtree: visit the right subtree
+            return currentNode.getRightNode();
+        }
+        return currentNode.getParentNode();
     }
 
     /**
@@ -308,99 +2104,88 @@ public class CartesianTree<K extends Comparable<K>, P extends Comparable<P>>{
     }
 
     /**
-     * Recursive function to print tree in pre-order
-     * @param currentNode Node to be printed and iterated
+     * Print the subtree below a node in pre-order (iterative, through the parent links)
+     * @param subtreeRoot Root of the subtree to print
      */
-    public void printTreeRecursive(Node<K, P> currentNode){
-        
-        // If node is null return
-        if(currentNode == null){
-            return;
+    public void printTreeRecursive(Node<K, P> subtreeRoot){
+        // A node is printed when the walk first reaches it from its parent
+        Node<K, P> aboveNode = subtreeRoot == null ? null : subtreeRoot.getParentNode();
+        Node<K, P> currentNode = subtreeRoot;
+        Node<K, P> previousNode = aboveNode;
+        while(currentNode != aboveNode){
+            if(previousNode == currentNode.getParentNode()){
+                System.out.println(currentNode);
+            }
+            Node<K, P> nextNode = nextInWalk(currentNode, previousNode);
+            previousNode = currentNode;
+            currentNode = nextNode;
         }
-
-        // Print current node
-        System.out.println(currentNode);
-
-        // Iterate over left subtree
-        printTreeRecursive(currentNode.getLeftNode());
-
-        // Iterate over right subtree
-        printTreeRecursive(currentNode.getRightNode());
-        
     }
 
     /**
      * Print in order traversal (start from most left leaf and go down to the right in the tree)
      */
     public void printInOrder() {
-        printInOrderRecursive(rootNode);
+        for(Node<K, P> currentNode : this){
+            System.out.println(currentNode);
+        }
     }
 
 
     /**
-     * Recursive function to print tree in in-order
-     * @param currentNode Node to be printed and iterated
+     * Verify if Cartesian tree does hold all properties
+     * @return True if all properties hold
      */
-    private void printInOrderRecursive(Node<K, P> currentNode) {
-        
-        // If node is null return
-        if (currentNode == null) {
-            return;
+    public boolean verifyCartiesanTree() {
+        // Check every node against its children (iterative, so degenerate trees do not overflow the stack)
+        for(Node<K, P> currentNode : this){
+            if(!nodeVerification(currentNode)){
+                return false;
+            }
         }
-
-        // Iterate over left subtree
-        printInOrderRecursive(currentNode.getLeftNode());
-        
-        // Print current node
-        System.out.println(currentNode);
-        
-        // Iterate over right subtree
-        printInOrderRecursive(currentNode.getRightNode());
+        return true;
     }
 
-
     /**
-     * Verify if Cartesian tree does hold all properties
-     * @return True if all properties hold
+     * Verify the properties in all the nodes of the subtree below a node (iterative, through the parent links)
+     * @param subtreeRoot Root of the subtree to check
+     * @return False if properties are not met
      */
-    public boolean verifyCartiesanTree() {
-        return cartiesianTreeVerification(rootNode);
+    public boolean cartiesianTreeVerification(Node<K, P> subtreeRoot) {
+        Node<K, P> aboveNode = subtreeRoot == null ? null : subtreeRoot.getParentNode();
+        Node<K, P> currentNode = subtreeRoot;
+        Node<K, P> previousNode = aboveNode;
+        while(currentNode != aboveNode){
+            if(previousNode == currentNode.getParentNode() && !nodeVerification(currentNode)){
+                return false;
+            }
+            Node<K, P> nextNode = nextInWalk(currentNode, previousNode);
+            previousNode = currentNode;
+            currentNode = nextNode;
+        }
+        return true;
     }
 
     /**
-     * Recursive function to verify if properties are met in all the nodes
+     * Verify the properties between a node and its children
      * @param currentNode Node to check properties
      * @return False if properties are not met
      */
-    public boolean cartiesianTreeVerification(Node<K, P> currentNode) {
-        
-        // If at lead node, return
-        if (currentNode == null) {
-            return true;
-        }
+    private boolean nodeVerification(Node<K, P> currentNode) {
+        Node<K, P> leftNode = currentNode.getLeftNode();
+        Node<K, P> rightNode = currentNode.getRightNode();
 
-        // Check properties for left node if it is not null
-        if (currentNode.getLeftNode() != null) {
-            if (currentNode.getLeftNode().getKeyValue().compareTo(currentNode.getKeyValue()) > 0) {
-                return false;
-            }
-            if (currentNode.getLeftNode().getPriorityValue().compareTo(currentNode.getPriorityValue()) <  0) {
+        if (leftNode != null) {
+            if (leftNode.getKeyValue().compareTo(currentNode.getKeyValue()) > 0 || leftNode.getPriorityValue().compareTo(currentNode.getPriorityValue()) < 0) {
                 return false;
             }
         }
-        // Check properties for right node if it not null
-        if (currentNode.getRightNode() != null) {
-            if (currentNode.getRightNode().getKeyValue().compareTo(currentNode.getKeyValue()) < 0) {
-                return false;
-            }
-            if (currentNode.getRightNode().getPriorityValue().compareTo(currentNode.getPriorityValue()) < 0) {
+        if (rightNode != null) {
+            if (rightNode.getKeyValue().compareTo(currentNode.getKeyValue()) < 0 || rightNode.getPriorityValue().compareTo(currentNode.getPriorityValue()) < 0) {
                 return false;
             }
         }
-    
-        // Verify the properties for both left- and right susbtrees
-        return cartiesianTreeVerification(currentNode.getLeftNode()) && cartiesianTreeVerification(currentNode.getRightNode());
+        return true;
     }
-    
 
 }
\ No newline at end of file
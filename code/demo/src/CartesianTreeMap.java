@@ -0,0 +1,645 @@
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+/** @author Armand Bonn
+ * NavigableMap backed by a Cartesian tree with order statistics. Priorities are generated by the
+ * map (random by default) and never come from the values, so the tree keeps its expected
+ * logarithmic height whatever the values; each node holds its value in a field of its own.
+ * Neighbor queries (floor, ceiling, lower, higher) are one descent of the tree.
+ * Sub-map, head-map, tail-map and descending views are live: they share the tree and only
+ * add key bounds (and a direction), like the views of TreeMap.
+ */
+public class CartesianTreeMap<K extends Comparable<K>, V> extends AbstractMap<K, V> implements NavigableMap<K, V> {
+
+    /**
+     * Node of the map: key, generated priority and the value
+     */
+    private static final class MapNode<K extends Comparable<K>, V> extends SizedNode<K, Long> {
+        private V value;
+
+        MapNode(K keyValue, long priorityValue, V value){
+            super(keyValue, priorityValue);
+            this.value = value;
+        }
+    }
+
+    private final CartesianTree<K, Long> tree;
+    // Source of the priorities of new keys, shared with the views
+    private final PriorityGenerator<K, Long> priorityGenerator;
+
+    // Bounds of this view on the tree (absolute key order, whatever the direction)
+    private final boolean fromStart;
+    private final K lowKey;
+    private final boolean lowInclusive;
+    private final boolean toEnd;
+    private final K highKey;
+    private final boolean highInclusive;
+    // True if this view iterates in descending key order
+    private final boolean descending;
+
+    /**
+     * initiator empty map with random priorities
+     */
+    public CartesianTreeMap(){
+        this(PriorityGenerator.random());
+    }
+
+    /**
+     * initiator empty map with a given source of priorities (e.g. PriorityGenerator.keyHash(seed) for a reproducible shape)
+     * @param priorityGenerator Source of the priorities of new keys
+     */
+    public CartesianTreeMap(PriorityGenerator<K, Long> priorityGenerator){
+        this(new CartesianTree<>(true), Objects.requireNonNull(priorityGenerator), true, null, false, true, null, false, false);
+    }
+
+    /**
+     * initiator view on a tree
+     * @param tree Tree holding the entries (with order statistics)
+     * @param priorityGenerator Source of the priorities of new keys
+     */
+    private CartesianTreeMap(CartesianTree<K, Long> tree, PriorityGenerator<K, Long> priorityGenerator, boolean fromStart, K lowKey, boolean lowInclusive, boolean toEnd, K highKey, boolean highInclusive, boolean descending){
+        if(!fromStart && !toEnd && lowKey.compareTo(highKey) > 0){
+            throw new IllegalArgumentException("fromKey > toKey");
+        }
+        this.tree = tree;
+        this.priorityGenerator = priorityGenerator;
+        this.fromStart = fromStart;
+        this.lowKey = lowKey;
+        this.lowInclusive = lowInclusive;
+        this.toEnd = toEnd;
+        this.highKey = highKey;
+        this.highInclusive = highInclusive;
+        this.descending = descending;
+    }
+
+    // --- Bounds of the view ---
+
+    private boolean tooLow(K keyValue){
+        if(fromStart){
+            return false;
+        }
+        int comparison = keyValue.compareTo(lowKey);
+        return comparison < 0 || (comparison == 0 && !lowInclusive);
+    }
+
+    private boolean tooHigh(K keyValue){
+        if(toEnd){
+            return false;
+        }
+        int comparison = keyValue.compareTo(highKey);
+        return comparison > 0 || (comparison == 0 && !highInclusive);
+    }
+
+    private boolean inRange(K keyValue){
+        return !tooLow(keyValue) && !tooHigh(keyValue);
+    }
+
+    /**
+     * Check a bound of a new view lies inside this view (an exclusive bound may sit on an exclusive bound)
+     * @param keyValue Bound of the new view
+     * @param inclusive True if the new bound is inclusive
+     */
+    private boolean inClosedRange(K keyValue, boolean inclusive){
+        if(!fromStart){
+            int comparison = keyValue.compareTo(lowKey);
+            if(comparison < 0 || (comparison == 0 && !lowInclusive && inclusive)){
+                return false;
+            }
+        }
+        if(!toEnd){
+            int comparison = keyValue.compareTo(highKey);
+            if(comparison > 0 || (comparison == 0 && !highInclusive && inclusive)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // --- Navigation in absolute key order, restricted to the view ---
+
+    private Node<K, Long> absoluteLowest(){
+        Node<K, Long> node = fromStart ? tree.getFirstNode() : (lowInclusive ? tree.ceilingNode(lowKey) : tree.higherNode(lowKey));
+        return node == null || tooHigh(node.getKeyValue()) ? null : node;
+    }
+
+    private Node<K, Long> absoluteHighest(){
+        Node<K, Long> node = toEnd ? tree.getLastNode() : (highInclusive ? tree.floorNode(highKey) : tree.lowerNode(highKey));
+        return node == null || tooLow(node.getKeyValue()) ? null : node;
+    }
+
+    private Node<K, Long> absoluteCeiling(K keyValue){
+        if(tooLow(keyValue)){
+            return absoluteLowest();
+        }
+        Node<K, Long> node = tree.ceilingNode(keyValue);
+        return node == null || tooHigh(node.getKeyValue()) ? null : node;
+    }
+
+    private Node<K, Long> absoluteHigher(K keyValue){
+        if(tooLow(keyValue)){
+            return absoluteLowest();
+        }
+        Node<K, Long> node = tree.higherNode(keyValue);
+        return node == null || tooHigh(node.getKeyValue()) ? null : node;
+    }
+
+    private Node<K, Long> absoluteFloor(K keyValue){
+        if(tooHigh(keyValue)){
+            return absoluteHighest();
+        }
+        Node<K, Long> node = tree.floorNode(keyValue);
+        return node == null || tooLow(node.getKeyValue()) ? null : node;
+    }
+
+    private Node<K, Long> absoluteLower(K keyValue){
+        if(tooHigh(keyValue)){
+            return absoluteHighest();
+        }
+        Node<K, Long> node = tree.lowerNode(keyValue);
+        return node == null || tooLow(node.getKeyValue()) ? null : node;
+    }
+
+    /**
+     * Iterator over the nodes of the view, in the direction of the view
+     * @return Node iterator
+     */
+    private Iterator<Node<K, Long>> nodeIterator(){
+        Node<K, Long> lowestNode = absoluteLowest();
+        Node<K, Long> highestNode = absoluteHighest();
+        if(lowestNode == null || highestNode == null){
+            return tree.iterator(null, null, descending);
+        }
+        return descending ? tree.iterator(highestNode, lowestNode, true) : tree.iterator(lowestNode, highestNode, false);
+    }
+
+    /**
+     * Every node of the tree is a MapNode holding a value of type V
+     * @param node Node of the tree
+     * @return The same node as a map node
+     */
+    @SuppressWarnings("unchecked")
+    private MapNode<K, V> mapNode(Node<K, Long> node){
+        return (MapNode<K, V>) node;
+    }
+
+    private Map.Entry<K, V> entry(Node<K, Long> node){
+        return node == null ? null : new AbstractMap.SimpleImmutableEntry<>(node.getKeyValue(), mapNode(node).value);
+    }
+
+    private static <K extends Comparable<K>> K key(Node<K, Long> node){
+        return node == null ? null : node.getKeyValue();
+    }
+
+    private static <K extends Comparable<K>> K keyOrException(Node<K, Long> node){
+        if(node == null){
+            throw new NoSuchElementException();
+        }
+        return node.getKeyValue();
+    }
+
+    // --- Map ---
+
+    @Override
+    public int size(){
+        if(fromStart && toEnd){
+            return tree.size();
+        }
+        // Keys below the high bound minus keys below the low bound
+        int belowHigh = toEnd ? tree.size() : tree.rank(highKey) + (highInclusive ? tree.countRange(highKey, highKey) : 0);
+        int belowLow = fromStart ? 0 : tree.rank(lowKey) + (lowInclusive ? 0 : tree.countRange(lowKey, lowKey));
+        return Math.max(0, belowHigh - belowLow);
+    }
+
+    @Override
+    public boolean isEmpty(){
+        return absoluteLowest() == null;
+    }
+
+    @Override
+    public boolean containsKey(Object key){
+        return findInView(key) != null;
+    }
+
+    @Override
+    public V get(Object key){
+        Node<K, Long> node = findInView(key);
+        return node == null ? null : mapNode(node).value;
+    }
+
+    /**
+     * Associate a value with a key, replacing the previous value of the key
+     * @param keyValue Key value
+     * @param value Value (not null)
+     * @return Previous value of the key, null if the key was absent
+     */
+    @Override
+    public V put(K keyValue, V value){
+        Objects.requireNonNull(keyValue);
+        Objects.requireNonNull(value);
+        if(!inRange(keyValue)){
+            throw new IllegalArgumentException("Key out of range: " + keyValue);
+        }
+
+        // Existing key: only the value changes, the node keeps its place and priority
+        Node<K, Long> node = tree.findNode(keyValue);
+        if(node != null){
+            MapNode<K, V> mapNode = mapNode(node);
+            V previousValue = mapNode.value;
+            mapNode.value = value;
+            return previousValue;
+        }
+        tree.insertNewNode(new MapNode<>(keyValue, priorityGenerator.nextPriority(keyValue), value), null);
+        return null;
+    }
+
+    @Override
+    public V remove(Object key){
+        Node<K, Long> node = findInView(key);
+        if(node == null){
+            return null;
+        }
+        V previousValue = mapNode(node).value;
+        tree.deleteNode(node.getKeyValue(), node.getPriorityValue());
+        return previousValue;
+    }
+
+    /**
+     * Node of a key inside the view
+     * @param key Key searched
+     * @return Node of the key, null if absent or out of the view
+     */
+    @SuppressWarnings("unchecked")
+    private Node<K, Long> findInView(Object key){
+        K keyValue = (K) Objects.requireNonNull(key);
+        return inRange(keyValue) ? tree.findNode(keyValue) : null;
+    }
+
+    @Override
+    public void clear(){
+        if(fromStart && toEnd){
+            tree.clear();
+        } else{
+            // Remove the nodes of the view one by one
+            Iterator<Node<K, Long>> nodes = nodeIterator();
+            while(nodes.hasNext()){
+                nodes.next();
+                nodes.remove();
+            }
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet(){
+        return new AbstractSet<Map.Entry<K, V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator(){
+                Iterator<Node<K, Long>> nodes = nodeIterator();
+                return new Iterator<Map.Entry<K, V>>() {
+                    @Override
+                    public boolean hasNext(){
+                        return nodes.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<K, V> next(){
+                        return entry(nodes.next());
+                    }
+
+                    @Override
+                    public void remove(){
+                        nodes.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size(){
+                return CartesianTreeMap.this.size();
+            }
+
+        };
+    }
+
+    // --- SortedMap / NavigableMap ---
+
+    @Override
+    public Comparator<? super K> comparator(){
+        return descending ? Comparator.<K>reverseOrder() : null;
+    }
+
+    @Override
+    public Map.Entry<K, V> firstEntry(){
+        return entry(descending ? absoluteHighest() : absoluteLowest());
+    }
+
+    @Override
+    public Map.Entry<K, V> lastEntry(){
+        return entry(descending ? absoluteLowest() : absoluteHighest());
+    }
+
+    @Override
+    public K firstKey(){
+        return keyOrException(descending ? absoluteHighest() : absoluteLowest());
+    }
+
+    @Override
+    public K lastKey(){
+        return keyOrException(descending ? absoluteLowest() : absoluteHighest());
+    }
+
+    @Override
+    public Map.Entry<K, V> pollFirstEntry(){
+        return pollNode(descending ? absoluteHighest() : absoluteLowest());
+    }
+
+    @Override
+    public Map.Entry<K, V> pollLastEntry(){
+        return pollNode(descending ? absoluteLowest() : absoluteHighest());
+    }
+
+    private Map.Entry<K, V> pollNode(Node<K, Long> node){
+        Map.Entry<K, V> polled = entry(node);
+        if(node != null){
+            tree.deleteNode(node.getKeyValue(), node.getPriorityValue());
+        }
+        return polled;
+    }
+
+    @Override
+    public Map.Entry<K, V> lowerEntry(K key){
+        return entry(descending ? absoluteHigher(key) : absoluteLower(key));
+    }
+
+    @Override
+    public K lowerKey(K key){
+        return key(descending ? absoluteHigher(key) : absoluteLower(key));
+    }
+
+    @Override
+    public Map.Entry<K, V> floorEntry(K key){
+        return entry(descending ? absoluteCeiling(key) : absoluteFloor(key));
+    }
+
+    @Override
+    public K floorKey(K key){
+        return key(descending ? absoluteCeiling(key) : absoluteFloor(key));
+    }
+
+    @Override
+    public Map.Entry<K, V> ceilingEntry(K key){
+        return entry(descending ? absoluteFloor(key) : absoluteCeiling(key));
+    }
+
+    @Override
+    public K ceilingKey(K key){
+        return key(descending ? absoluteFloor(key) : absoluteCeiling(key));
+    }
+
+    @Override
+    public Map.Entry<K, V> higherEntry(K key){
+        return entry(descending ? absoluteLower(key) : absoluteHigher(key));
+    }
+
+    @Override
+    public K higherKey(K key){
+        return key(descending ? absoluteLower(key) : absoluteHigher(key));
+    }
+
+    @Override
+    public NavigableMap<K, V> descendingMap(){
+        return new CartesianTreeMap<>(tree, priorityGenerator, fromStart, lowKey, lowInclusive, toEnd, highKey, highInclusive, !descending);
+    }
+
+    @Override
+    public NavigableSet<K> navigableKeySet(){
+        return new KeySet<>(this);
+    }
+
+    @Override
+    public Set<K> keySet(){
+        return navigableKeySet();
+    }
+
+    @Override
+    public NavigableSet<K> descendingKeySet(){
+        return descendingMap().navigableKeySet();
+    }
+
+    @Override
+    public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive){
+        if(descending){
+            // Bounds are given in descending order: fromKey is the high bound
+            return view(false, toKey, toInclusive, false, fromKey, fromInclusive);
+        }
+        return view(false, fromKey, fromInclusive, false, toKey, toInclusive);
+    }
+
+    @Override
+    public NavigableMap<K, V> headMap(K toKey, boolean inclusive){
+        if(descending){
+            return view(false, toKey, inclusive, toEnd, highKey, highInclusive);
+        }
+        return view(fromStart, lowKey, lowInclusive, false, toKey, inclusive);
+    }
+
+    @Override
+    public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive){
+        if(descending){
+            return view(fromStart, lowKey, lowInclusive, false, fromKey, inclusive);
+        }
+        return view(false, fromKey, inclusive, toEnd, highKey, highInclusive);
+    }
+
+    @Override
+    public SortedMap<K, V> subMap(K fromKey, K toKey){
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public SortedMap<K, V> headMap(K toKey){
+        return headMap(toKey, false);
+    }
+
+    @Override
+    public SortedMap<K, V> tailMap(K fromKey){
+        return tailMap(fromKey, true);
+    }
+
+    /**
+     * New view on the same tree with absolute bounds, checked against the bounds of this view
+     */
+    private NavigableMap<K, V> view(boolean newFromStart, K newLowKey, boolean newLowInclusive, boolean newToEnd, K newHighKey, boolean newHighInclusive){
+        if(!newFromStart && !inClosedRange(newLowKey, newLowInclusive)){
+            throw new IllegalArgumentException("Key out of range: " + newLowKey);
+        }
+        if(!newToEnd && !inClosedRange(newHighKey, newHighInclusive)){
+            throw new IllegalArgumentException("Key out of range: " + newHighKey);
+        }
+        return new CartesianTreeMap<>(tree, priorityGenerator, newFromStart, newLowKey, newLowInclusive, newToEnd, newHighKey, newHighInclusive, descending);
+    }
+
+    /**
+     * Navigable key set of a map view, delegating to the map
+     */
+    private static final class KeySet<K extends Comparable<K>, V> extends AbstractSet<K> implements NavigableSet<K> {
+        private final CartesianTreeMap<K, V> map;
+
+        KeySet(CartesianTreeMap<K, V> map){
+            this.map = map;
+        }
+
+        @Override
+        public Iterator<K> iterator(){
+            Iterator<Node<K, Long>> nodes = map.nodeIterator();
+            return new Iterator<K>() {
+                @Override
+                public boolean hasNext(){
+                    return nodes.hasNext();
+                }
+
+                @Override
+                public K next(){
+                    return nodes.next().getKeyValue();
+                }
+
+                @Override
+                public void remove(){
+                    nodes.remove();
+                }
+            };
+        }
+
+        @Override
+        public int size(){
+            return map.size();
+        }
+
+        @Override
+        public boolean isEmpty(){
+            return map.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o){
+            return map.containsKey(o);
+        }
+
+        @Override
+        public boolean remove(Object o){
+            return map.remove(o) != null;
+        }
+
+        @Override
+        public void clear(){
+            map.clear();
+        }
+
+        @Override
+        public Comparator<? super K> comparator(){
+            return map.comparator();
+        }
+
+        @Override
+        public K first(){
+            return map.firstKey();
+        }
+
+        @Override
+        public K last(){
+            return map.lastKey();
+        }
+
+        @Override
+        public K lower(K e){
+            return map.lowerKey(e);
+        }
+
+        @Override
+        public K floor(K e){
+            return map.floorKey(e);
+        }
+
+        @Override
+        public K ceiling(K e){
+            return map.ceilingKey(e);
+        }
+
+        @Override
+        public K higher(K e){
+            return map.higherKey(e);
+        }
+
+        @Override
+        public K pollFirst(){
+            Map.Entry<K, V> first = map.pollFirstEntry();
+            return first == null ? null : first.getKey();
+        }
+
+        @Override
+        public K pollLast(){
+            Map.Entry<K, V> last = map.pollLastEntry();
+            return last == null ? null : last.getKey();
+        }
+
+        @Override
+        public NavigableSet<K> descendingSet(){
+            return map.descendingKeySet();
+        }
+
+        @Override
+        public Iterator<K> descendingIterator(){
+            return descendingSet().iterator();
+        }
+
+        @Override
+        public NavigableSet<K> subSet(K fromElement, boolean fromInclusive, K toElement, boolean toInclusive){
+            return map.subMap(fromElement, fromInclusive, toElement, toInclusive).navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<K> headSet(K toElement, boolean inclusive){
+            return map.headMap(toElement, inclusive).navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<K> tailSet(K fromElement, boolean inclusive){
+            return map.tailMap(fromElement, inclusive).navigableKeySet();
+        }
+
+        @Override
+        public SortedSet<K> subSet(K fromElement, K toElement){
+            return subSet(fromElement, true, toElement, false);
+        }
+
+        @Override
+        public SortedSet<K> headSet(K toElement){
+            return headSet(toElement, false);
+        }
+
+        @Override
+        public SortedSet<K> tailSet(K fromElement){
+            return tailSet(fromElement, true);
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> c){
+            boolean modified = false;
+            for(Object o : c){
+                modified |= remove(o);
+            }
+            return modified;
+        }
+    }
+
+}
@@ -0,0 +1,747 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.LongAdder;
+
+/** @author Armand Bonn
+ * Thread-safe Cartesian tree (keys are unique) where lookups never take a lock.
+ * Readers descend optimistically and validate a version number on every node they leave,
+ * as in the concurrent AVL tree of Bronson et al. ("A Practical Concurrent Binary Search Tree"):
+ * a node's version changes whenever keys leave its subtree (the node is rotated down) or the node
+ * is unlinked, so a reader that sees an unchanged version knows its descent is still valid, and
+ * retries from the parent otherwise.
+ * Writers lock only the nodes a step touches (parent, node and child of a rotation) with per-node
+ * spin locks. A writer blocks on its first lock only and uses tryLock for the others, backing off
+ * on failure, so writers cannot deadlock. Insertion attaches a leaf then rotates it up; deletion
+ * marks the node removed (the linearization point), rotates it down to a leaf and unlinks it.
+ * Iteration is weakly consistent: every step is a lock-free search for the next higher key.
+ */
+public class ConcurrentCartesianTree<K extends Comparable<K>, P extends Comparable<P>> implements Iterable<Map.Entry<K, P>> {
+    // Version bits: keys are leaving the subtree, node is out of the tree, then a change counter
+    private static final long SHRINKING = 1L;
+    private static final long UNLINKED = 2L;
+    private static final long VERSION_INCREMENT = 4L;
+    // Spins before a waiting thread yields its processor
+    private static final int SPINS_BEFORE_YIELD = 100;
+
+    // Result of an optimistic attempt whose path changed under it
+    private static final Object RETRY = new Object();
+    // Result of an insertion of a key already present
+    private static final Object PRESENT = new Object();
+
+    /**
+     * Node with volatile links, a version for optimistic readers and a spin lock for writers
+     */
+    static final class ConcurrentNode<K, P> {
+        private static final VarHandle LOCK;
+
+        static {
+            try {
+                LOCK = MethodHandles.lookup().findVarHandle(ConcurrentNode.class, "lockState", int.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        final K keyValue;
+        final P priorityValue;
+        volatile ConcurrentNode<K, P> leftNode;
+        volatile ConcurrentNode<K, P> rightNode;
+        volatile ConcurrentNode<K, P> parentNode;
+        volatile long version;
+        // Logically deleted (set under the node lock)
+        volatile boolean removed;
+        @SuppressWarnings("unused")
+        private volatile int lockState;
+
+        ConcurrentNode(K keyValue, P priorityValue){
+            this.keyValue = keyValue;
+            this.priorityValue = priorityValue;
+        }
+
+        ConcurrentNode<K, P> child(int direction){
+            return direction < 0 ? leftNode : rightNode;
+        }
+
+        void setChild(int direction, ConcurrentNode<K, P> childNode){
+            if(direction < 0){
+                leftNode = childNode;
+            } else{
+                rightNode = childNode;
+            }
+        }
+
+        boolean tryLock(){
+            return LOCK.compareAndSet(this, 0, 1);
+        }
+
+        void lock(){
+            int spins = 0;
+            while(!tryLock()){
+                if(++spins % SPINS_BEFORE_YIELD == 0){
+                    Thread.yield();
+                } else{
+                    Thread.onSpinWait();
+                }
+            }
+        }
+
+        void unlock(){
+            LOCK.setRelease(this, 0);
+        }
+    }
+
+    // Sentinel above the root (root is its right child), never rotated
+    private final ConcurrentNode<K, P> rootHolder = new ConcurrentNode<>(null, null);
+    private final LongAdder size = new LongAdder();
+    // Source of priorities for insert(key), must be thread-safe
+    private final PriorityGenerator<K, P> priorityGenerator;
+
+    /**
+     * initiator empty tree, priorities given by the caller
+     */
+    public ConcurrentCartesianTree(){
+        this.priorityGenerator = null;
+    }
+
+    /**
+     * initiator empty tree generating its own priorities
+     * @param priorityGenerator Thread-safe source of priorities (e.g. PriorityGenerator.concurrentRandom() or keyHash(seed))
+     */
+    public ConcurrentCartesianTree(PriorityGenerator<K, P> priorityGenerator){
+        if(priorityGenerator == null){
+            throw new NullPointerException("Priority generator is null");
+        }
+        this.priorityGenerator = priorityGenerator;
+    }
+
+    /**
+     * Number of keys (exact when no update is running)
+     * @return Number of keys
+     */
+    public int size(){
+        return size.intValue();
+    }
+
+    /**
+     * Check if the tree is empty
+     * @return True if no key is present
+     */
+    public boolean isTreeEmpty(){
+        return rootHolder.rightNode == null;
+    }
+
+    // --- Lookups (lock-free) ---
+
+    /**
+     * Check if a key is present
+     * @param keyValue Key value
+     * @return True if present
+     */
+    public boolean contains(K keyValue){
+        return findPriority(keyValue) != null;
+    }
+
+    /**
+     * Priority of a key
+     * @param keyValue Key value
+     * @return Priority of the key, null if absent
+     */
+    public P findPriority(K keyValue){
+        ConcurrentNode<K, P> node = findNode(keyValue);
+        // A removed node still in the tree is already logically absent
+        return node == null || node.removed ? null : node.priorityValue;
+    }
+
+    /**
+     * Node holding a key (possibly removed but not yet unlinked)
+     * @param keyValue Key value
+     * @return Node, null if absent
+     */
+    private ConcurrentNode<K, P> findNode(K keyValue){
+        while(true){
+            Object result = attemptFind(keyValue, rootHolder, 1, rootHolder.version);
+            if(result != RETRY){
+                @SuppressWarnings("unchecked")
+                ConcurrentNode<K, P> node = (ConcurrentNode<K, P>) result;
+                return node;
+            }
+        }
+    }
+
+    /**
+     * Search below a node whose version was nodeVersion when the search entered it
+     * @param keyValue Key value
+     * @param node Current node
+     * @param direction Side of the node where the key is (-1 left, 1 right)
+     * @param nodeVersion Version of the node on entry
+     * @return Node with the key, null if absent, RETRY if the node changed
+     */
+    private Object attemptFind(K keyValue, ConcurrentNode<K, P> node, int direction, long nodeVersion){
+        while(true){
+            ConcurrentNode<K, P> childNode = node.child(direction);
+            if(childNode == null){
+                // Absent, as long as the key range of the node did not shrink meanwhile
+                return node.version != nodeVersion ? RETRY : null;
+            }
+            int comparison = keyValue.compareTo(childNode.keyValue);
+            if(comparison == 0){
+                return childNode;
+            }
+
+            long childVersion = childNode.version;
+            if((childVersion & (SHRINKING | UNLINKED)) != 0 || childNode != node.child(direction)){
+                // Child is being rotated, was unlinked or replaced: reread it if the node itself did not change
+                waitUntilNotShrinking(childNode, childVersion);
+                if(node.version != nodeVersion){
+                    return RETRY;
+                }
+                continue;
+            }
+            if(node.version != nodeVersion){
+                return RETRY;
+            }
+
+            Object result = attemptFind(keyValue, childNode, comparison, childVersion);
+            if(result != RETRY){
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Lowest present key above (or at) a key, lock-free
+     * @param keyValue Key value (null for the first key)
+     * @param inclusive True to accept the key itself
+     * @return Node of the next key, null if none
+     */
+    private ConcurrentNode<K, P> ceilingNode(K keyValue, boolean inclusive){
+        while(true){
+            ConcurrentNode<K, P> candidate = attemptCeiling(keyValue, inclusive);
+            if(candidate == null || !candidate.removed){
+                return candidate;
+            }
+            // Skip a node being deleted
+            keyValue = candidate.keyValue;
+            inclusive = false;
+        }
+    }
+
+    private ConcurrentNode<K, P> attemptCeiling(K keyValue, boolean inclusive){
+        restart:
+        while(true){
+            ConcurrentNode<K, P> bestNode = null;
+            ConcurrentNode<K, P> node = rootHolder;
+            long nodeVersion = rootHolder.version;
+            int direction = 1;
+            while(true){
+                ConcurrentNode<K, P> childNode = node.child(direction);
+                if(childNode == null){
+                    if(node.version != nodeVersion){
+                        continue restart;
+                    }
+                    return bestNode;
+                }
+                long childVersion = childNode.version;
+                if((childVersion & (SHRINKING | UNLINKED)) != 0 || childNode != node.child(direction)){
+                    waitUntilNotShrinking(childNode, childVersion);
+                    if(node.version != nodeVersion){
+                        continue restart;
+                    }
+                    continue;
+                }
+                if(node.version != nodeVersion){
+                    continue restart;
+                }
+
+                // A null key is below every key
+                int comparison = keyValue == null ? -1 : keyValue.compareTo(childNode.keyValue);
+                if(comparison == 0 && inclusive){
+                    return childNode;
+                }
+                if(comparison < 0){
+                    // Child is above the key: best so far, smaller candidates are on its left
+                    bestNode = childNode;
+                    direction = -1;
+                } else{
+                    direction = 1;
+                }
+                node = childNode;
+                nodeVersion = childVersion;
+            }
+        }
+    }
+
+    /**
+     * Spin until a rotation of the node is over
+     * @param node Node read with a shrinking version
+     * @param nodeVersion Version that was read
+     */
+    private static void waitUntilNotShrinking(ConcurrentNode<?, ?> node, long nodeVersion){
+        if((nodeVersion & SHRINKING) == 0){
+            return;
+        }
+        int spins = 0;
+        while(node.version == nodeVersion){
+            if(++spins % SPINS_BEFORE_YIELD == 0){
+                Thread.yield();
+            } else{
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    // --- Updates ---
+
+    /**
+     * Insert a key with a priority from the priority generator of the tree
+     * @param keyValue Key value
+     * @return True if inserted, false if the key was present
+     */
+    public boolean insert(K keyValue){
+        if(priorityGenerator == null){
+            throw new IllegalStateException("No priority generator set, use insertNode(key, priority)");
+        }
+        return insertNode(keyValue, priorityGenerator.nextPriority(keyValue));
+    }
+
+    /**
+     * Insert a key with a priority
+     * @param keyValue Key value
+     * @param priorityValue Priority value
+     * @return True if inserted, false if the key was present
+     */
+    public boolean insertNode(K keyValue, P priorityValue){
+        if(keyValue == null || priorityValue == null){
+            throw new NullPointerException("Null key or priority");
+        }
+        while(true){
+            Object result = attemptInsert(keyValue, priorityValue, rootHolder, 1, rootHolder.version);
+            if(result == PRESENT){
+                return false;
+            }
+            if(result != RETRY){
+                @SuppressWarnings("unchecked")
+                ConcurrentNode<K, P> newNode = (ConcurrentNode<K, P>) result;
+                size.increment();
+                rotateUp(newNode);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Descend like attemptFind and attach a new leaf where the key is missing
+     * @return New node, PRESENT or RETRY
+     */
+    private Object attemptInsert(K keyValue, P priorityValue, ConcurrentNode<K, P> node, int direction, long nodeVersion){
+        while(true){
+            ConcurrentNode<K, P> childNode = node.child(direction);
+            if(childNode == null){
+                node.lock();
+                try {
+                    if(node.version != nodeVersion){
+                        return RETRY;
+                    }
+                    if(node.child(direction) == null){
+                        ConcurrentNode<K, P> newNode = new ConcurrentNode<>(keyValue, priorityValue);
+                        newNode.parentNode = node;
+                        node.setChild(direction, newNode);
+                        return newNode;
+                    }
+                } finally {
+                    node.unlock();
+                }
+                // Another writer attached a child first
+                continue;
+            }
+
+            int comparison = keyValue.compareTo(childNode.keyValue);
+            if(comparison == 0){
+                if(!childNode.removed){
+                    return PRESENT;
+                }
+                // Same key being deleted: wait until it is out of the tree
+                waitUntilUnlinked(childNode);
+                if(node.version != nodeVersion){
+                    return RETRY;
+                }
+                continue;
+            }
+
+            long childVersion = childNode.version;
+            if((childVersion & (SHRINKING | UNLINKED)) != 0 || childNode != node.child(direction)){
+                waitUntilNotShrinking(childNode, childVersion);
+                if(node.version != nodeVersion){
+                    return RETRY;
+                }
+                continue;
+            }
+            if(node.version != nodeVersion){
+                return RETRY;
+            }
+
+            Object result = attemptInsert(keyValue, priorityValue, childNode, comparison, childVersion);
+            if(result != RETRY){
+                return result;
+            }
+        }
+    }
+
+    private static void waitUntilUnlinked(ConcurrentNode<?, ?> node){
+        int spins = 0;
+        while((node.version & UNLINKED) == 0){
+            if(++spins % SPINS_BEFORE_YIELD == 0){
+                Thread.yield();
+            } else{
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /**
+     * Rotate a new node up until its parent has a lower or equal priority.
+     * The node may be deleted by another thread meanwhile: once it is marked removed its deleter
+     * rotates it down, so rotating it up would fight the deleter (and an unlinked node keeps its
+     * stale parent link). The removed flag is set under the node lock, so it is checked under the
+     * lock before every rotation. Stopping early leaves no heap violation behind: the subtrees of
+     * the node only hold nodes that were below its parent, and the deleter takes the node out.
+     * @param node Newly attached node
+     */
+    private void rotateUp(ConcurrentNode<K, P> node){
+        int attempts = 0;
+        while(true){
+            if(node.removed){
+                return;
+            }
+            ConcurrentNode<K, P> parentNode = node.parentNode;
+            if(parentNode == rootHolder || node.priorityValue.compareTo(parentNode.priorityValue) >= 0){
+                if(node.parentNode == parentNode){
+                    return;
+                }
+                continue;
+            }
+
+            // Lock grandparent, parent and node top-down, only the first one blocking
+            ConcurrentNode<K, P> grandparentNode = parentNode.parentNode;
+            grandparentNode.lock();
+            if(!parentNode.tryLock()){
+                grandparentNode.unlock();
+                backoff(++attempts);
+                continue;
+            }
+            if(!node.tryLock()){
+                parentNode.unlock();
+                grandparentNode.unlock();
+                backoff(++attempts);
+                continue;
+            }
+            try {
+                if(node.removed){
+                    // Deleted by another thread meanwhile, possibly unlinked already
+                    return;
+                }
+                if(node.parentNode == parentNode && parentNode.parentNode == grandparentNode){
+                    rotate(node, parentNode, grandparentNode);
+                }
+            } finally {
+                node.unlock();
+                parentNode.unlock();
+                grandparentNode.unlock();
+            }
+        }
+    }
+
+    /**
+     * Delete a key (same as deleteNode, pairs with insert(key))
+     * @param keyValue Key value
+     * @return True if deleted, false if the key was absent
+     */
+    public boolean delete(K keyValue){
+        return deleteNode(keyValue);
+    }
+
+    /**
+     * Delete a key
+     * @param keyValue Key value
+     * @return True if deleted, false if the key was absent
+     */
+    public boolean deleteNode(K keyValue){
+        ConcurrentNode<K, P> node;
+        while(true){
+            node = findNode(keyValue);
+            if(node == null){
+                return false;
+            }
+            node.lock();
+            try {
+                if((node.version & UNLINKED) != 0){
+                    // Gone already: a new node with the key may have been inserted since, search again
+                    continue;
+                }
+                if(node.removed){
+                    // Another delete of the key won
+                    return false;
+                }
+                node.removed = true;
+                break;
+            } finally {
+                node.unlock();
+            }
+        }
+        size.decrement();
+        rotateDownAndUnlink(node);
+        return true;
+    }
+
+    /**
+     * Rotate a removed node down until it is a leaf, then unlink it
+     * @param node Node marked removed
+     */
+    private void rotateDownAndUnlink(ConcurrentNode<K, P> node){
+        int attempts = 0;
+        while(true){
+            // Lock parent, node and the child to rotate up, only the first one blocking
+            ConcurrentNode<K, P> parentNode = node.parentNode;
+            parentNode.lock();
+            if(!node.tryLock()){
+                parentNode.unlock();
+                backoff(++attempts);
+                continue;
+            }
+            ConcurrentNode<K, P> childNode = null;
+            try {
+                if(node.parentNode != parentNode){
+                    continue;
+                }
+                ConcurrentNode<K, P> leftNode = node.leftNode;
+                ConcurrentNode<K, P> rightNode = node.rightNode;
+
+                // Leaf: unlink it, its key range is empty so no reader has to retry
+                if(leftNode == null && rightNode == null){
+                    parentNode.setChild(parentNode.leftNode == node ? -1 : 1, null);
+                    node.version = (node.version + VERSION_INCREMENT) | UNLINKED;
+                    return;
+                }
+
+                // Child with the lowest priority goes up (the left one on ties, as in CartesianTree)
+                if(rightNode == null || (leftNode != null && leftNode.priorityValue.compareTo(rightNode.priorityValue) < 0)){
+                    childNode = leftNode;
+                } else{
+                    childNode = rightNode;
+                }
+                if(!childNode.tryLock()){
+                    childNode = null;
+                    backoff(++attempts);
+                    continue;
+                }
+                rotate(childNode, node, parentNode);
+            } finally {
+                if(childNode != null){
+                    childNode.unlock();
+                }
+                node.unlock();
+                parentNode.unlock();
+            }
+        }
+    }
+
+    /**
+     * Rotate a node above its parent. The three nodes are locked by the caller.
+     * The parent loses keys from its subtree, so it is marked shrinking for the readers.
+     * @param node Node going up
+     * @param parentNode Parent going down
+     * @param grandparentNode Parent of the parent (may be the root holder)
+     */
+    private void rotate(ConcurrentNode<K, P> node, ConcurrentNode<K, P> parentNode, ConcurrentNode<K, P> grandparentNode){
+        long parentVersion = parentNode.version;
+        parentNode.version = parentVersion | SHRINKING;
+
+        if(parentNode.leftNode == node){
+            // Rotate right
+            ConcurrentNode<K, P> middleNode = node.rightNode;
+            parentNode.leftNode = middleNode;
+            if(middleNode != null){
+                middleNode.parentNode = parentNode;
+            }
+            node.rightNode = parentNode;
+        } else{
+            // Rotate left
+            ConcurrentNode<K, P> middleNode = node.leftNode;
+            parentNode.rightNode = middleNode;
+            if(middleNode != null){
+                middleNode.parentNode = parentNode;
+            }
+            node.leftNode = parentNode;
+        }
+        parentNode.parentNode = node;
+        node.parentNode = grandparentNode;
+        grandparentNode.setChild(grandparentNode.leftNode == parentNode ? -1 : 1, node);
+
+        parentNode.version = parentVersion + VERSION_INCREMENT;
+    }
+
+    private static void backoff(int attempts){
+        if(attempts % SPINS_BEFORE_YIELD == 0){
+            Thread.yield();
+        } else{
+            for(int i = 0; i < Math.min(attempts, 64); i++){
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    // --- Iteration (lock-free, weakly consistent) ---
+
+    /**
+     * Ascending iterator over all entries (key, priority). It never throws
+     * ConcurrentModificationException: each step finds the next higher key present at that time.
+     * @return Iterator over the entries
+     */
+    @Override
+    public Iterator<Map.Entry<K, P>> iterator(){
+        return new EntryIterator(null, null);
+    }
+
+    /**
+     * Ascending iterator over the entries with a key in [lowKey, highKey]
+     * @param lowKey Lowest key value (inclusive)
+     * @param highKey Highest key value (inclusive)
+     * @return Iterator over the entries in range
+     */
+    public Iterator<Map.Entry<K, P>> iterator(K lowKey, K highKey){
+        return new EntryIterator(lowKey, highKey);
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<K, P>> {
+        private final K highKey;
+        private ConcurrentNode<K, P> nextNode;
+        private K lastKey;
+
+        EntryIterator(K lowKey, K highKey){
+            this.highKey = highKey;
+            this.nextNode = lowKey == null ? firstNode() : ceilingNode(lowKey, true);
+            skipAboveHigh();
+        }
+
+        @Override
+        public boolean hasNext(){
+            return nextNode != null;
+        }
+
+        @Override
+        public Map.Entry<K, P> next(){
+            if(nextNode == null){
+                throw new NoSuchElementException();
+            }
+            ConcurrentNode<K, P> currentNode = nextNode;
+            lastKey = currentNode.keyValue;
+            nextNode = ceilingNode(lastKey, false);
+            skipAboveHigh();
+            return new AbstractMap.SimpleImmutableEntry<>(currentNode.keyValue, currentNode.priorityValue);
+        }
+
+        @Override
+        public void remove(){
+            if(lastKey == null){
+                throw new IllegalStateException();
+            }
+            deleteNode(lastKey);
+            lastKey = null;
+        }
+
+        private void skipAboveHigh(){
+            if(nextNode != null && highKey != null && nextNode.keyValue.compareTo(highKey) > 0){
+                nextNode = null;
+            }
+        }
+    }
+
+    /**
+     * Node with the lowest present key
+     * @return First node, null if empty
+     */
+    private ConcurrentNode<K, P> firstNode(){
+        return ceilingNode(null, true);
+    }
+
+    // --- Checks (only meaningful while no update is running) ---
+
+    /**
+     * Get height of the tree (walks the whole tree, call it while no update is running)
+     * @return Height of the tree, -1 if empty
+     */
+    public int getHeight(){
+        int height = -1;
+        Deque<ConcurrentNode<K, P>> nodes = new ArrayDeque<>();
+        Deque<Integer> depths = new ArrayDeque<>();
+        if(rootHolder.rightNode != null){
+            nodes.push(rootHolder.rightNode);
+            depths.push(0);
+        }
+        while(!nodes.isEmpty()){
+            ConcurrentNode<K, P> node = nodes.pop();
+            int depth = depths.pop();
+            height = Math.max(height, depth);
+            if(node.leftNode != null){
+                nodes.push(node.leftNode);
+                depths.push(depth + 1);
+            }
+            if(node.rightNode != null){
+                nodes.push(node.rightNode);
+                depths.push(depth + 1);
+            }
+        }
+        return height;
+    }
+
+    /**
+     * Check the key order, heap order, parent links and that no removed node is left
+     * (walks the whole tree, call it while no update is running)
+     * @return True if the tree is a valid Cartesian tree
+     */
+    public boolean verifyCartiesanTree(){
+        ConcurrentNode<K, P> rootNode = rootHolder.rightNode;
+        if(rootNode == null){
+            return true;
+        }
+        if(rootNode.parentNode != rootHolder){
+            return false;
+        }
+        Deque<ConcurrentNode<K, P>> nodes = new ArrayDeque<>();
+        nodes.push(rootNode);
+        while(!nodes.isEmpty()){
+            ConcurrentNode<K, P> node = nodes.pop();
+            if(node.removed || (node.version & (SHRINKING | UNLINKED)) != 0){
+                return false;
+            }
+            for(int direction = -1; direction <= 1; direction += 2){
+                ConcurrentNode<K, P> childNode = node.child(direction);
+                if(childNode == null){
+                    continue;
+                }
+                int comparison = childNode.keyValue.compareTo(node.keyValue);
+                if(childNode.parentNode != node || comparison * direction <= 0 || childNode.priorityValue.compareTo(node.priorityValue) < 0){
+                    return false;
+                }
+                nodes.push(childNode);
+            }
+        }
+
+        // Key order over the whole tree (the local checks above only compare parent and child)
+        K previousKey = null;
+        for(Map.Entry<K, P> entry : this){
+            if(previousKey != null && previousKey.compareTo(entry.getKey()) >= 0){
+                return false;
+            }
+            previousKey = entry.getKey();
+        }
+        return true;
+    }
+
+}
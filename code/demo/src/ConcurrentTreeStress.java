@@ -0,0 +1,484 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** @author Armand Bonn
+ * Stress check and scaling run of ConcurrentCartesianTree.
+ *   java ConcurrentTreeStress --mode all --threads 8 --operations 2000000
+ * Options:
+ *   --mode        check (correctness only), scale (throughput only) or all
+ *   --threads     Highest number of threads (scaling runs use 1, 2, 4... up to it)
+ *   --operations  Operations per thread of the stress phase, shared by the threads of a scaling run
+ *   --seed        Seed of the operation choices
+ * The check has two phases:
+ *  1. Linearizability: the threads insert, delete and look up a few hot keys while recording the
+ *     invocation and response time of every operation. Linearizability is local (Herlihy and Wing):
+ *     the history is linearizable if the history of each key is, so every key is checked on its own
+ *     as a boolean object (Wing and Gong search with memoization of the visited states).
+ *  2. Stress: the threads hammer a larger key space split in classes. Stable keys are loaded
+ *     first and never deleted, so lookups and range scans must always see them; untouched keys
+ *     must never be seen; owned keys are updated by a single thread, which checks every result
+ *     against its own model; shared keys are updated by all threads, which count their successful
+ *     insertions and deletions. At the end the tree must be a valid Cartesian tree holding exactly
+ *     the stable keys, the owned keys of the models and the shared keys inserted once more than deleted.
+ * The scaling run compares a 90% read / 10% write mix on the concurrent tree with CartesianTree
+ * behind a read-write lock, for 1 to --threads threads.
+ */
+public class ConcurrentTreeStress {
+
+    // Key classes of the stress phase (key % 4)
+    private static final int STABLE = 0;
+    private static final int UNTOUCHED = 1;
+    private static final int OWNED = 2;
+    private static final int SHARED = 3;
+
+    // Operations of a recorded history
+    private static final int INSERT = 0;
+    private static final int DELETE = 1;
+    private static final int CONTAINS = 2;
+
+    private final int threads;
+    private final long operations;
+    private final long seed;
+
+    private ConcurrentTreeStress(BenchmarkHarness.Options options){
+        this.threads = options.getInt("--threads", Runtime.getRuntime().availableProcessors());
+        this.operations = options.getLong("--operations", 1000000);
+        this.seed = options.getLong("--seed", 15L);
+        if(threads <= 0 || operations <= 0){
+            throw new IllegalArgumentException("Threads and operations must be positive");
+        }
+    }
+
+    /**
+     * Run the check and the scaling run
+     * @param args Options (see class comment)
+     * @throws Exception If a worker fails
+     */
+    public static void main(String[] args) throws Exception {
+        BenchmarkHarness.Options options = new BenchmarkHarness.Options(args, "--mode", "--threads", "--operations", "--seed");
+        ConcurrentTreeStress stress = new ConcurrentTreeStress(options);
+        String mode = options.getString("--mode", "all");
+
+        boolean passed = true;
+        if(mode.equals("check") || mode.equals("all")){
+            passed = stress.checkLinearizability() & stress.checkStress();
+        }
+        if(mode.equals("scale") || mode.equals("all")){
+            stress.scale();
+        }
+        if(!passed){
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+    }
+
+
+    // --- Linearizability ---
+
+    /**
+     * Operation of a recorded history
+     */
+    private static final class HistoryOperation {
+        private final int type;
+        private final boolean result;
+        private final long invocationTime;
+        private final long responseTime;
+
+        HistoryOperation(int type, boolean result, long invocationTime, long responseTime){
+            this.type = type;
+            this.result = result;
+            this.invocationTime = invocationTime;
+            this.responseTime = responseTime;
+        }
+    }
+
+    /**
+     * Record histories of concurrent operations on a few keys and check each one
+     * @return True if every history is linearizable
+     * @throws Exception If a worker fails
+     */
+    boolean checkLinearizability() throws Exception {
+        int keyCount = 16;
+        // Few keys and short histories: the search stays small while keeping every key contended
+        int operationsPerThread = 2000;
+        int rounds = 20;
+        int threadCount = Math.max(2, threads);
+        long checkedOperations = 0;
+
+        for(int round = 0; round < rounds; round++){
+            ConcurrentCartesianTree<Integer, Long> tree = new ConcurrentCartesianTree<>(PriorityGenerator.<Integer>concurrentRandom());
+            // Keys around the hot ones give the rotations something to move
+            for(int keyValue = -64; keyValue < keyCount + 64; keyValue++){
+                if(keyValue < 0 || keyValue >= keyCount){
+                    tree.insert(keyValue);
+                }
+            }
+
+            SplittableRandom roundRandom = new SplittableRandom(seed + round);
+            List<Callable<List<List<HistoryOperation>>>> tasks = new ArrayList<>();
+            for(int thread = 0; thread < threadCount; thread++){
+                SplittableRandom random = roundRandom.split();
+                tasks.add(() -> {
+                    List<List<HistoryOperation>> histories = new ArrayList<>();
+                    for(int keyValue = 0; keyValue < keyCount; keyValue++){
+                        histories.add(new ArrayList<>());
+                    }
+                    for(int i = 0; i < operationsPerThread; i++){
+                        int keyValue = random.nextInt(keyCount);
+                        int type = random.nextInt(3);
+                        long invocationTime = System.nanoTime();
+                        boolean result = type == INSERT ? tree.insert(keyValue) : type == DELETE ? tree.delete(keyValue) : tree.contains(keyValue);
+                        long responseTime = System.nanoTime();
+                        histories.get(keyValue).add(new HistoryOperation(type, result, invocationTime, responseTime));
+                    }
+                    return histories;
+                });
+            }
+            List<List<List<HistoryOperation>>> threadHistories = BenchmarkHarness.runTogether(tasks);
+
+            for(int keyValue = 0; keyValue < keyCount; keyValue++){
+                List<HistoryOperation> history = new ArrayList<>();
+                for(List<List<HistoryOperation>> histories : threadHistories){
+                    history.addAll(histories.get(keyValue));
+                }
+                checkedOperations += history.size();
+                if(!isLinearizable(history, tree.contains(keyValue))){
+                    System.out.println("Linearizability: history of key " + keyValue + " in round " + round + " is not linearizable");
+                    return false;
+                }
+            }
+            if(!tree.verifyCartiesanTree()){
+                System.out.println("Linearizability: invalid tree after round " + round);
+                return false;
+            }
+        }
+        System.out.println("Linearizability: " + checkedOperations + " operations on " + threadCount + " threads, all histories linearizable");
+        return true;
+    }
+
+    /**
+     * Wing and Gong search for a linearization of the history of one key, seen as a boolean
+     * (present or not, initially absent). An operation can be linearized next if it was invoked
+     * before every remaining operation responded; states already explored are memoized.
+     * @param history Operations on the key
+     * @param finalPresence Presence of the key once all operations are over
+     * @return True if a linearization exists
+     */
+    static boolean isLinearizable(List<HistoryOperation> history, boolean finalPresence){
+        HistoryOperation[] operations = history.toArray(new HistoryOperation[0]);
+        Arrays.sort(operations, Comparator.comparingLong(operation -> operation.invocationTime));
+        int count = operations.length;
+
+        BitSet linearized = new BitSet(count);
+        Set<BitSet> explored = new HashSet<>();
+        // Explicit stack of (operation index chosen, presence before it)
+        int[] chosen = new int[count];
+        boolean[] presenceBefore = new boolean[count];
+        int depth = 0;
+        boolean present = false;
+        int nextCandidate = 0;
+
+        while(true){
+            if(depth == count){
+                if(present == finalPresence){
+                    return true;
+                }
+            } else{
+                // Earliest response among the remaining operations bounds the candidates
+                long minimumResponse = Long.MAX_VALUE;
+                for(int i = linearized.nextClearBit(0); i < count; i = linearized.nextClearBit(i + 1)){
+                    minimumResponse = Math.min(minimumResponse, operations[i].responseTime);
+                }
+                int candidate = -1;
+                for(int i = linearized.nextClearBit(nextCandidate); i < count && operations[i].invocationTime <= minimumResponse; i = linearized.nextClearBit(i + 1)){
+                    if(resultOf(operations[i].type, present) == operations[i].result){
+                        linearized.set(i);
+                        BitSet state = (BitSet) linearized.clone();
+                        // Presence is a function of the linearized set only when paired with it
+                        state.set(count, applyTo(operations[i].type, present));
+                        if(explored.add(state)){
+                            candidate = i;
+                            break;
+                        }
+                        linearized.clear(i);
+                    }
+                }
+                if(candidate >= 0){
+                    chosen[depth] = candidate;
+                    presenceBefore[depth] = present;
+                    present = applyTo(operations[candidate].type, present);
+                    depth++;
+                    nextCandidate = 0;
+                    continue;
+                }
+            }
+
+            // Dead end: undo the last choice and try the next candidate
+            if(depth == 0){
+                return false;
+            }
+            depth--;
+            linearized.clear(chosen[depth]);
+            present = presenceBefore[depth];
+            nextCandidate = chosen[depth] + 1;
+        }
+    }
+
+    private static boolean resultOf(int type, boolean present){
+        return type == INSERT ? !present : present;
+    }
+
+    private static boolean applyTo(int type, boolean present){
+        return type == INSERT || (type != DELETE && present);
+    }
+
+    // --- Stress ---
+
+    /**
+     * Hammer the key classes from all threads and check the invariants of each class
+     * @return True if no check failed
+     * @throws Exception If a worker fails
+     */
+    boolean checkStress() throws Exception {
+        int keySpace = 1 << 16;
+        int threadCount = Math.max(2, threads);
+        ConcurrentCartesianTree<Integer, Long> tree = new ConcurrentCartesianTree<>(PriorityGenerator.<Integer>concurrentRandom());
+        for(int keyValue = STABLE; keyValue < keySpace; keyValue += 4){
+            tree.insert(keyValue);
+        }
+        AtomicIntegerArray sharedInserts = new AtomicIntegerArray(keySpace);
+        AtomicIntegerArray sharedDeletes = new AtomicIntegerArray(keySpace);
+
+        SplittableRandom stressRandom = new SplittableRandom(seed);
+        List<Callable<boolean[]>> tasks = new ArrayList<>();
+        for(int thread = 0; thread < threadCount; thread++){
+            int threadIndex = thread;
+            SplittableRandom random = stressRandom.split();
+            tasks.add(() -> {
+                // Model of the owned keys of this thread (owner = (key / 4) % threads)
+                boolean[] model = new boolean[keySpace];
+                for(long i = 0; i < operations; i++){
+                    int keyValue = random.nextInt(keySpace);
+                    int keyClass = keyValue % 4;
+                    int draw = random.nextInt(100);
+                    if(keyClass == OWNED && (keyValue / 4) % threadCount == threadIndex && draw < 50){
+                        boolean result = draw < 25 ? tree.insert(keyValue) : tree.delete(keyValue);
+                        if(result != (draw < 25 ? !model[keyValue] : model[keyValue])){
+                            throw new IllegalStateException("Owned key " + keyValue + ": unexpected result of " + (draw < 25 ? "insert" : "delete"));
+                        }
+                        model[keyValue] = draw < 25;
+                    } else if(keyClass == SHARED && draw < 50){
+                        if(draw < 25){
+                            if(tree.insert(keyValue)){
+                                sharedInserts.incrementAndGet(keyValue);
+                            }
+                        } else if(tree.delete(keyValue)){
+                            sharedDeletes.incrementAndGet(keyValue);
+                        }
+                    } else if(draw < 95){
+                        boolean present = tree.contains(keyValue);
+                        if(keyClass == STABLE && !present){
+                            throw new IllegalStateException("Stable key " + keyValue + " not found");
+                        }
+                        if(keyClass == UNTOUCHED && present){
+                            throw new IllegalStateException("Untouched key " + keyValue + " found");
+                        }
+                        if(keyClass == OWNED && (keyValue / 4) % threadCount == threadIndex && present != model[keyValue]){
+                            throw new IllegalStateException("Owned key " + keyValue + ": lookup disagrees with the model");
+                        }
+                    } else{
+                        checkRange(tree, keyValue, Math.min(keySpace - 1, keyValue + 256));
+                    }
+                }
+                return model;
+            });
+        }
+        List<boolean[]> models;
+        try {
+            models = BenchmarkHarness.runTogether(tasks);
+        } catch (Exception e){
+            System.out.println("Stress: " + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+            return false;
+        }
+
+        // Final contents
+        if(!tree.verifyCartiesanTree()){
+            System.out.println("Stress: invalid Cartesian tree at the end");
+            return false;
+        }
+        int expectedSize = 0;
+        for(int keyValue = 0; keyValue < keySpace; keyValue++){
+            boolean expected;
+            switch(keyValue % 4){
+                case STABLE:
+                    expected = true;
+                    break;
+                case OWNED:
+                    expected = models.get((keyValue / 4) % threadCount)[keyValue];
+                    break;
+                case SHARED:
+                    int balance = sharedInserts.get(keyValue) - sharedDeletes.get(keyValue);
+                    if(balance != 0 && balance != 1){
+                        System.out.println("Stress: shared key " + keyValue + " inserted " + sharedInserts.get(keyValue) + " times and deleted " + sharedDeletes.get(keyValue) + " times");
+                        return false;
+                    }
+                    expected = balance == 1;
+                    break;
+                default:
+                    expected = false;
+            }
+            if(tree.contains(keyValue) != expected){
+                System.out.println("Stress: key " + keyValue + " should " + (expected ? "" : "not ") + "be present");
+                return false;
+            }
+            expectedSize += expected ? 1 : 0;
+        }
+        int iterated = 0;
+        for(Map.Entry<Integer, Long> ignored : tree){
+            iterated++;
+        }
+        if(tree.size() != expectedSize || iterated != expectedSize){
+            System.out.println("Stress: size " + tree.size() + " and iteration " + iterated + " instead of " + expectedSize);
+            return false;
+        }
+        System.out.println("Stress: " + operations * threadCount + " operations on " + threadCount + " threads, " + expectedSize + " keys left, height " + tree.getHeight() + ", all checks passed");
+        return true;
+    }
+
+    /**
+     * Range scan while other threads update the tree: keys ascending, in range, every stable key seen
+     * @param tree Tree under test
+     * @param lowKey Lowest key of the scan
+     * @param highKey Highest key of the scan
+     */
+    private static void checkRange(ConcurrentCartesianTree<Integer, Long> tree, int lowKey, int highKey){
+        int nextStable = (lowKey + 3) / 4 * 4;
+        int previousKey = Integer.MIN_VALUE;
+        Iterator<Map.Entry<Integer, Long>> entries = tree.iterator(lowKey, highKey);
+        while(entries.hasNext()){
+            int keyValue = entries.next().getKey();
+            if(keyValue <= previousKey || keyValue < lowKey || keyValue > highKey){
+                throw new IllegalStateException("Range [" + lowKey + ", " + highKey + "]: key " + keyValue + " after " + previousKey);
+            }
+            if(keyValue % 4 == UNTOUCHED){
+                throw new IllegalStateException("Range [" + lowKey + ", " + highKey + "]: untouched key " + keyValue);
+            }
+            if(keyValue > nextStable && nextStable <= highKey){
+                throw new IllegalStateException("Range [" + lowKey + ", " + highKey + "]: stable key " + nextStable + " missed");
+            }
+            if(keyValue == nextStable){
+                nextStable += 4;
+            }
+            previousKey = keyValue;
+        }
+        if(nextStable <= highKey){
+            throw new IllegalStateException("Range [" + lowKey + ", " + highKey + "]: stable key " + nextStable + " missed");
+        }
+    }
+
+    // --- Scaling ---
+
+    /**
+     * Throughput of a 90% read / 10% write mix for 1 to threads threads,
+     * concurrent tree against CartesianTree behind a read-write lock
+     * @throws Exception If a worker fails
+     */
+    void scale() throws Exception {
+        int keySpace = 1000000;
+        System.out.println(String.format("%-8s %18s %18s %8s", "threads", "concurrent ops/s", "locked ops/s", "ratio"));
+        for(int threadCount : BenchmarkHarness.threadCounts(threads)){
+            // Same initial keys in both trees: every other key of the key space
+            PriorityGenerator<Integer, Long> priorityGenerator = PriorityGenerator.keyHash(seed);
+            ConcurrentCartesianTree<Integer, Long> concurrentTree = new ConcurrentCartesianTree<>(priorityGenerator);
+            List<Integer> keyValues = new ArrayList<>();
+            List<Long> priorityValues = new ArrayList<>();
+            for(int keyValue = 0; keyValue < keySpace; keyValue += 2){
+                keyValues.add(keyValue);
+                priorityValues.add(priorityGenerator.nextPriority(keyValue));
+            }
+            // Random insertion order, so the concurrent tree gets the same shape as a built one
+            List<Integer> shuffledKeys = new ArrayList<>(keyValues);
+            Collections.shuffle(shuffledKeys, new Random(seed));
+            for(Integer keyValue : shuffledKeys){
+                concurrentTree.insert(keyValue);
+            }
+            CartesianTree<Integer, Long> lockedTree = CartesianTree.buildFromSorted(keyValues, priorityValues);
+            lockedTree.setPriorityGenerator(priorityGenerator);
+            ReadWriteLock lock = new ReentrantReadWriteLock();
+
+            // Warm up both, then measure
+            runMix(concurrentTree, null, null, threadCount, keySpace, operations / 4);
+            runMix(null, lockedTree, lock, threadCount, keySpace, operations / 4);
+            double concurrentRate = runMix(concurrentTree, null, null, threadCount, keySpace, operations);
+            double lockedRate = runMix(null, lockedTree, lock, threadCount, keySpace, operations);
+            System.out.println(String.format("%-8d %18.0f %18.0f %8.2f", threadCount, concurrentRate, lockedRate, concurrentRate / lockedRate));
+        }
+    }
+
+    /**
+     * Run the mix on one of the trees
+     * @return Operations per second over all threads
+     */
+    private double runMix(ConcurrentCartesianTree<Integer, Long> concurrentTree, CartesianTree<Integer, Long> lockedTree, ReadWriteLock lock,
+                          int threadCount, int keySpace, long totalOperations) throws Exception {
+        SplittableRandom mixRandom = new SplittableRandom(seed + threadCount);
+        List<Callable<Long>> tasks = new ArrayList<>();
+        for(int thread = 0; thread < threadCount; thread++){
+            SplittableRandom random = mixRandom.split();
+            long threadOperations = totalOperations / threadCount;
+            tasks.add(() -> {
+                long found = 0;
+                for(long i = 0; i < threadOperations; i++){
+                    int keyValue = random.nextInt(keySpace);
+                    int draw = random.nextInt(100);
+                    if(concurrentTree != null){
+                        if(draw < 90){
+                            found += concurrentTree.contains(keyValue) ? 1 : 0;
+                        } else if(draw < 95){
+                            concurrentTree.insert(keyValue);
+                        } else{
+                            concurrentTree.delete(keyValue);
+                        }
+                    } else if(draw < 90){
+                        lock.readLock().lock();
+                        try {
+                            found += lockedTree.findNode(keyValue) != null ? 1 : 0;
+                        } finally {
+                            lock.readLock().unlock();
+                        }
+                    } else{
+                        lock.writeLock().lock();
+                        try {
+                            boolean present = lockedTree.findNode(keyValue) != null;
+                            if(draw < 95 && !present){
+                                lockedTree.insert(keyValue);
+                            } else if(draw >= 95 && present){
+                                lockedTree.delete(keyValue);
+                            }
+                        } finally {
+                            lock.writeLock().unlock();
+                        }
+                    }
+                }
+                return found;
+            });
+        }
+        long elapsedNanos = BenchmarkHarness.elapsedNanos(() -> BenchmarkHarness.runTogether(tasks).size());
+        return BenchmarkHarness.perSecond((totalOperations / threadCount) * threadCount, elapsedNanos);
+    }
+
+}
@@ -0,0 +1,393 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** @author Armand Bonn
+ * Cartesian tree kept on the local disk: every insertNode and deleteNode is appended to a
+ * write-ahead log (WriteAheadLog) and only returns once the log is synced, so an acknowledged change
+ * survives a crash of the process or of the machine.
+ * Files of the directory, by generation g:
+ *   snapshot-g.bin  TreeSnapshot of the tree holding every change of the logs before generation g
+ *   wal-g.log       Changes made after that snapshot
+ * Opening loads the newest snapshot and replays the logs of its generation and after, cutting a torn
+ * record at the end of the last one. A checkpoint (periodic in the background, or explicit) starts
+ * the log of the next generation, writes the snapshot of that generation, then deletes the older
+ * files. A crash in between leaves the previous snapshot and both logs, which recover to the same tree.
+ * Writers apply their change to the tree under the write lock and wait for the group commit after
+ * releasing it, so readers can see a change shortly before it is durable (early lock release).
+ * Keys are unique: a change is checked against the tree before it is logged, so the logs only hold
+ * changes that replay cleanly.
+ */
+public class DurableCartesianTree<K extends Comparable<K>, P extends Comparable<P>> implements Closeable {
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+    private static final String LOG_PREFIX = "wal-";
+    private static final String LOG_SUFFIX = ".log";
+
+    private final Path directory;
+    private final SnapshotCodec<K> keyCodec;
+    private final SnapshotCodec<P> priorityCodec;
+    private final long commitDelayNanos;
+    private final CartesianTree<K, P> tree;
+    // Write lock: change the tree and append to the log in the same order; read lock: lookups, snapshots
+    private final ReentrantReadWriteLock treeLock = new ReentrantReadWriteLock();
+    // Serializes checkpoints (background and explicit)
+    private final Object checkpointMonitor = new Object();
+    private final ScheduledExecutorService checkpointer;
+
+    private WriteAheadLog<K, P> log;
+    private long generation;
+    private long recoveredRecords;
+    private volatile IOException checkpointFailure;
+    private boolean closed;
+
+    private DurableCartesianTree(Path directory, SnapshotCodec<K> keyCodec, SnapshotCodec<P> priorityCodec,
+                                 long commitDelayNanos, CartesianTree<K, P> tree, long generation, long checkpointIntervalMillis) throws IOException {
+        this.directory = directory;
+        this.keyCodec = keyCodec;
+        this.priorityCodec = priorityCodec;
+        this.commitDelayNanos = commitDelayNanos;
+        this.tree = tree;
+        this.generation = generation;
+        this.log = new WriteAheadLog<>(logPath(generation), keyCodec, priorityCodec, commitDelayNanos);
+
+        if(checkpointIntervalMillis > 0){
+            checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "cartesian-tree-checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            });
+            checkpointer.scheduleWithFixedDelay(this::backgroundCheckpoint, checkpointIntervalMillis, checkpointIntervalMillis, TimeUnit.MILLISECONDS);
+        } else{
+            checkpointer = null;
+        }
+    }
+
+    /**
+     * Open a durable tree syncing every group commit right away, without background checkpoints
+     * @param directory Directory of the snapshot and log files (created if missing)
+     * @param keyCodec Encoding of the keys
+     * @param priorityCodec Encoding of the priorities
+     * @return Tree recovered from the directory
+     * @throws IOException If the files cannot be read or are corrupt
+     */
+    public static <K extends Comparable<K>, P extends Comparable<P>> DurableCartesianTree<K, P> open(Path directory, SnapshotCodec<K> keyCodec, SnapshotCodec<P> priorityCodec) throws IOException {
+        return open(directory, keyCodec, priorityCodec, 0, 0);
+    }
+
+    /**
+     * Open a durable tree, recovering it from the newest snapshot and the logs after it
+     * @param directory Directory of the snapshot and log files (created if missing)
+     * @param keyCodec Encoding of the keys
+     * @param priorityCodec Encoding of the priorities
+     * @param commitDelayMicros Time a group commit waits for more writers before its fsync (0 for none):
+     *                          higher values trade latency of each change for fewer syncs under load
+     * @param checkpointIntervalMillis Time between background checkpoints (0 for none)
+     * @return Tree recovered from the directory
+     * @throws IOException If the files cannot be read or are corrupt
+     */
+    public static <K extends Comparable<K>, P extends Comparable<P>> DurableCartesianTree<K, P> open(Path directory, SnapshotCodec<K> keyCodec, SnapshotCodec<P> priorityCodec,
+                                                                                                      long commitDelayMicros, long checkpointIntervalMillis) throws IOException {
+        if(commitDelayMicros < 0 || checkpointIntervalMillis < 0){
+            throw new IllegalArgumentException("Commit delay and checkpoint interval cannot be negative");
+        }
+        Files.createDirectories(directory);
+
+        // Collect the files by generation, dropping the leftovers of an interrupted snapshot write
+        TreeMap<Long, Path> snapshots = new TreeMap<>();
+        TreeMap<Long, Path> logs = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for(Path file : files){
+                String name = file.getFileName().toString();
+                if(name.endsWith(".tmp")){
+                    Files.delete(file);
+                } else if(name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX)){
+                    snapshots.put(parseGeneration(name, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX), file);
+                } else if(name.startsWith(LOG_PREFIX) && name.endsWith(LOG_SUFFIX)){
+                    logs.put(parseGeneration(name, LOG_PREFIX, LOG_SUFFIX), file);
+                }
+            }
+        }
+
+        // Newest snapshot, then every log from its generation on, in order
+        long snapshotGeneration = snapshots.isEmpty() ? 0 : snapshots.lastKey();
+        CartesianTree<K, P> tree = snapshots.isEmpty() ? new CartesianTree<>() : TreeSnapshot.read(snapshots.lastEntry().getValue(), keyCodec, priorityCodec);
+        long replayed = 0;
+        long lastGeneration = snapshotGeneration;
+        for(var entry : logs.tailMap(snapshotGeneration, true).entrySet()){
+            boolean lastLog = entry.getKey().equals(logs.lastKey());
+            replayed += WriteAheadLog.replay(entry.getValue(), keyCodec, priorityCodec, (type, keyValue, priorityValue) -> {
+                if(type == WriteAheadLog.INSERT){
+                    tree.insertNode(keyValue, priorityValue);
+                } else{
+                    tree.deleteNode(keyValue, priorityValue);
+                }
+            }, lastLog);
+            lastGeneration = entry.getKey();
+        }
+
+        DurableCartesianTree<K, P> durableTree = new DurableCartesianTree<>(directory, keyCodec, priorityCodec,
+                TimeUnit.MICROSECONDS.toNanos(commitDelayMicros), tree, lastGeneration, checkpointIntervalMillis);
+        durableTree.recoveredRecords = replayed;
+        return durableTree;
+    }
+
+    private static long parseGeneration(String name, String prefix, String suffix) throws IOException {
+        try {
+            return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+        } catch (NumberFormatException e){
+            throw new IOException("Unexpected file in tree directory: " + name, e);
+        }
+    }
+
+    private Path snapshotPath(long fileGeneration){
+        return directory.resolve(SNAPSHOT_PREFIX + fileGeneration + SNAPSHOT_SUFFIX);
+    }
+
+    private Path logPath(long fileGeneration){
+        return directory.resolve(LOG_PREFIX + fileGeneration + LOG_SUFFIX);
+    }
+
+    /**
+     * Insert a node and wait until the change is durable. Keys are unique: delete a key before
+     * inserting it again with another priority.
+     * @param keyValue Key value of node to be inserted
+     * @param priorityValue Priority value of node to be inserted
+     * @throws IOException If the change cannot be logged (the tree must then be reopened)
+     * @throws IllegalArgumentException If the key is already in the tree (nothing is logged)
+     */
+    public void insertNode(K keyValue, P priorityValue) throws IOException {
+        WriteAheadLog<K, P> currentLog;
+        long position;
+        treeLock.writeLock().lock();
+        try {
+            checkOpen();
+            // Only log insertions that change the tree, so the log never replays a duplicate key
+            Node<K, P> existingNode = tree.findNode(keyValue);
+            if(existingNode != null){
+                throw new IllegalArgumentException("Key already in the tree: (" + keyValue + ": " + existingNode.getPriorityValue() + ")");
+            }
+            currentLog = log;
+            position = currentLog.append(WriteAheadLog.INSERT, keyValue, priorityValue);
+            tree.insertNode(keyValue, priorityValue);
+        } finally {
+            treeLock.writeLock().unlock();
+        }
+        currentLog.awaitDurable(position);
+    }
+
+    /**
+     * Delete a node and wait until the change is durable
+     * @param keyValue Key value of the node to delete
+     * @param priorityValue Priority value of the node to delete
+     * @throws IOException If the change cannot be logged (the tree must then be reopened)
+     */
+    public void deleteNode(K keyValue, P priorityValue) throws IOException {
+        WriteAheadLog<K, P> currentLog;
+        long position;
+        treeLock.writeLock().lock();
+        try {
+            checkOpen();
+            // Only log deletions that can be replayed
+            if(tree.findNode(keyValue) == null){
+                throw new NoSuchElementException("Element not found: (" + keyValue + ": " + priorityValue + ")");
+            }
+            currentLog = log;
+            position = currentLog.append(WriteAheadLog.DELETE, keyValue, priorityValue);
+            tree.deleteNode(keyValue, priorityValue);
+        } finally {
+            treeLock.writeLock().unlock();
+        }
+        currentLog.awaitDurable(position);
+    }
+
+    private void checkOpen() throws IOException {
+        if(closed){
+            throw new IOException("Durable tree is closed");
+        }
+        IOException failure = checkpointFailure;
+        if(failure != null){
+            throw new IOException("Background checkpoint failed", failure);
+        }
+    }
+
+    /**
+     * Find the priority of a key
+     * @param keyValue Key value to look up
+     * @return Priority value of the key, null if absent
+     */
+    public P findPriority(K keyValue){
+        treeLock.readLock().lock();
+        try {
+            Node<K, P> node = tree.findNode(keyValue);
+            return node == null ? null : node.getPriorityValue();
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Check if a key is in the tree
+     * @param keyValue Key value to look up
+     * @return True if the key is present
+     */
+    public boolean contains(K keyValue){
+        return findPriority(keyValue) != null;
+    }
+
+    /**
+     * Check if the tree is empty
+     * @return True if there is no node
+     */
+    public boolean isTreeEmpty(){
+        treeLock.readLock().lock();
+        try {
+            return tree.isTreeEmpty();
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Height of the tree
+     * @return Number of levels
+     */
+    public int getHeight(){
+        treeLock.readLock().lock();
+        try {
+            return tree.getHeight();
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Check the key order and heap order of the tree
+     * @return True if the tree is a valid Cartesian tree
+     */
+    public boolean verifyCartiesanTree(){
+        treeLock.readLock().lock();
+        try {
+            return tree.verifyCartiesanTree();
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copy of the (key, priority) pairs in key order, taken under the read lock
+     * @return New in-memory tree
+     */
+    public CartesianTree<K, P> copy(){
+        treeLock.readLock().lock();
+        try {
+            return copyTree();
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Linear copy of the tree, the caller holds a lock
+     * @return New in-memory tree with the same pairs
+     */
+    private CartesianTree<K, P> copyTree(){
+        return CartesianTree.buildFromSortedNodes(tree.stream().map(node -> new Node<>(node.getKeyValue(), node.getPriorityValue())).iterator());
+    }
+
+    /**
+     * Number of log records replayed when the tree was opened
+     * @return Replayed records
+     */
+    public long getRecoveredRecords(){
+        return recoveredRecords;
+    }
+
+    /**
+     * Write a snapshot of the tree and delete the log it makes useless.
+     * Writers are blocked from the log switch until the tree is copied in memory, readers are not;
+     * the snapshot is written from the copy once every lock is released.
+     * @throws IOException If the snapshot or the new log cannot be written
+     */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointMonitor){
+            long snapshotGeneration;
+            CartesianTree<K, P> snapshotTree;
+            treeLock.writeLock().lock();
+            try {
+                checkOpen();
+                // Every change so far goes to the old log, synced by close; later ones to the new log
+                log.close();
+                snapshotGeneration = generation + 1;
+                log = new WriteAheadLog<>(logPath(snapshotGeneration), keyCodec, priorityCodec, commitDelayNanos);
+                generation = snapshotGeneration;
+
+                // Downgrade so lookups go on while the tree is copied
+                treeLock.readLock().lock();
+            } finally {
+                treeLock.writeLock().unlock();
+            }
+            try {
+                // The copy holds exactly the changes of the older logs
+                snapshotTree = copyTree();
+            } finally {
+                treeLock.readLock().unlock();
+            }
+            TreeSnapshot.write(snapshotTree, snapshotPath(snapshotGeneration), keyCodec, priorityCodec);
+
+            // The new snapshot holds all older changes
+            for(long older = snapshotGeneration - 1; older >= 0; older--){
+                boolean deleted = Files.deleteIfExists(logPath(older)) | Files.deleteIfExists(snapshotPath(older));
+                if(!deleted){
+                    break;
+                }
+            }
+        }
+    }
+
+    private void backgroundCheckpoint(){
+        try {
+            checkpoint();
+        } catch (IOException e){
+            // Reported to the next writer; the log keeps every change meanwhile
+            if(!closed){
+                checkpointFailure = e;
+            }
+        }
+    }
+
+    /**
+     * Stop the background checkpoints and sync the log
+     * @throws IOException If the last log write failed
+     */
+    @Override
+    public void close() throws IOException {
+        if(checkpointer != null){
+            checkpointer.shutdown();
+            try {
+                checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+        treeLock.writeLock().lock();
+        try {
+            if(closed){
+                return;
+            }
+            closed = true;
+            log.close();
+        } finally {
+            treeLock.writeLock().unlock();
+        }
+    }
+
+}
@@ -0,0 +1,244 @@
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+
+/** @author Armand Bonn
+ * Crash-recovery check of DurableCartesianTree: a child JVM updates a durable tree from several
+ * threads with background checkpoints, and is killed (SIGKILL) at a random time; the tree is then
+ * recovered from its directory and compared with what the child acknowledged.
+ *   java DurableTreeCrashCheck --rounds 10 --threads 4 --commit-delay 0
+ * Options:
+ *   --rounds        Number of child runs killed (each one continues on the tree left by the previous one)
+ *   --threads       Writer threads of the child
+ *   --keys          Size of the key space
+ *   --commit-delay  Group commit delay of the child in microseconds
+ *   --directory     Tree directory (a new temporary directory if not given, deleted at the end)
+ *   --seed          Seed of the kill times and of the child operations
+ * Every key is updated by a single child thread, which prints "B key op priority" before a change
+ * and "A key op priority" once it returned (so once it is durable). After recovery each key must be
+ * in its last acknowledged state, or in the state of its one change begun but not acknowledged.
+ */
+public class DurableTreeCrashCheck {
+
+    private final int rounds;
+    private final int threads;
+    private final int keys;
+    private final long commitDelayMicros;
+    private Path directory;
+    private final long seed;
+
+    private DurableTreeCrashCheck(BenchmarkHarness.Options options){
+        this.rounds = options.getInt("--rounds", 10);
+        this.threads = options.getInt("--threads", 4);
+        this.keys = options.getInt("--keys", 4096);
+        this.commitDelayMicros = options.getLong("--commit-delay", 0);
+        this.directory = options.contains("--directory") ? Paths.get(options.getString("--directory", null)) : null;
+        this.seed = options.getLong("--seed", 15L);
+        if(rounds <= 0 || threads <= 0 || keys < threads){
+            throw new IllegalArgumentException("Rounds, threads and keys must be positive, with at least one key per thread");
+        }
+    }
+
+    /**
+     * Run the check, or the child writer when started with --child
+     * @param args Options (see class comment)
+     * @throws Exception If the check cannot run
+     */
+    public static void main(String[] args) throws Exception {
+        BenchmarkHarness.Options options = new BenchmarkHarness.Options(args, "--rounds", "--threads", "--keys", "--commit-delay", "--directory", "--seed", "--child");
+        DurableTreeCrashCheck check = new DurableTreeCrashCheck(options);
+        boolean child = options.getBoolean("--child", false);
+
+        if(child){
+            check.runChild();
+            return;
+        }
+        boolean temporary = check.directory == null;
+        if(temporary){
+            check.directory = Files.createTempDirectory("durable-cartesian-tree");
+        }
+        boolean passed;
+        try {
+            passed = check.run();
+        } finally {
+            if(temporary){
+                deleteDirectory(check.directory);
+            }
+        }
+        System.out.println(passed ? "PASSED" : "FAILED");
+        if(!passed){
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Child: update the tree until killed, printing every change before and after it
+     * @throws Exception If the tree cannot be opened or a change fails
+     */
+    private void runChild() throws Exception {
+        PrintStream out = new PrintStream(new FileOutputStream(FileDescriptor.out), true, StandardCharsets.UTF_8);
+        DurableCartesianTree<Integer, Long> tree = DurableCartesianTree.open(directory, SnapshotCodec.ints(), SnapshotCodec.longs(), commitDelayMicros, 50);
+        List<Thread> writers = new ArrayList<>();
+        for(int t = 0; t < threads; t++){
+            int owner = t;
+            SplittableRandom random = new SplittableRandom(seed * 31 + t);
+            Thread writer = new Thread(() -> {
+                try {
+                    // Start from the recovered priorities of the keys of this thread
+                    Map<Integer, Long> model = new HashMap<>();
+                    for(int key = owner; key < keys; key += threads){
+                        Long priority = tree.findPriority(key);
+                        if(priority != null){
+                            model.put(key, priority);
+                        }
+                    }
+                    while(true){
+                        int key = owner + threads * random.nextInt((keys - owner + threads - 1) / threads);
+                        Long priority = model.get(key);
+                        if(priority == null){
+                            long newPriority = random.nextLong();
+                            out.println("B " + key + " I " + newPriority);
+                            tree.insertNode(key, newPriority);
+                            model.put(key, newPriority);
+                            out.println("A " + key + " I " + newPriority);
+                        } else{
+                            out.println("B " + key + " D " + priority);
+                            tree.deleteNode(key, priority);
+                            model.remove(key);
+                            out.println("A " + key + " D " + priority);
+                        }
+                    }
+                } catch (IOException e){
+                    e.printStackTrace();
+                    System.exit(2);
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        for(Thread writer : writers){
+            writer.join();
+        }
+    }
+
+    /**
+     * Parent: start, kill and recover the child for every round
+     * @return True if every recovery matched the acknowledged changes
+     * @throws Exception If the child cannot be started
+     */
+    private boolean run() throws Exception {
+        SplittableRandom random = new SplittableRandom(seed);
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Map<Integer, Long> recovered = new HashMap<>();
+        boolean passed = true;
+        long totalAcknowledged = 0;
+
+        for(int round = 0; round < rounds; round++){
+            ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), DurableTreeCrashCheck.class.getName(),
+                    "--child", "true", "--directory", directory.toString(), "--threads", String.valueOf(threads),
+                    "--keys", String.valueOf(keys), "--commit-delay", String.valueOf(commitDelayMicros), "--seed", String.valueOf(seed + round));
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            Process process = builder.start();
+
+            // Read the child output while it runs, it is killed at a random time
+            List<String> lines = new ArrayList<>();
+            Thread reader = new Thread(() -> {
+                try (BufferedReader input = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while((line = input.readLine()) != null){
+                        lines.add(line);
+                    }
+                } catch (IOException e){
+                    // Pipe closed by the kill
+                }
+            });
+            reader.start();
+            Thread.sleep(300 + random.nextInt(700));
+            process.destroyForcibly();
+            process.waitFor();
+            reader.join();
+
+            // Expected state: the recovered one of the previous round, with the changes of this round
+            Map<Integer, Long> acknowledged = new HashMap<>(recovered);
+            Map<Integer, String> pending = new HashMap<>();
+            long acknowledgedChanges = 0;
+            for(String line : lines){
+                String[] fields = line.split(" ");
+                if(fields.length != 4){
+                    // Line cut by the kill
+                    continue;
+                }
+                int key = Integer.parseInt(fields[1]);
+                if(fields[0].equals("B")){
+                    pending.put(key, fields[2] + " " + fields[3]);
+                } else{
+                    pending.remove(key);
+                    if(fields[2].equals("I")){
+                        acknowledged.put(key, Long.parseLong(fields[3]));
+                    } else{
+                        acknowledged.remove(key);
+                    }
+                    acknowledgedChanges++;
+                }
+            }
+            totalAcknowledged += acknowledgedChanges;
+
+            long start = System.nanoTime();
+            DurableCartesianTree<Integer, Long> tree = DurableCartesianTree.open(directory, SnapshotCodec.ints(), SnapshotCodec.longs());
+            long recoveryMillis = (System.nanoTime() - start) / 1000000;
+            recovered.clear();
+            int mismatches = 0;
+            for(int key = 0; key < keys; key++){
+                Long priority = tree.findPriority(key);
+                if(priority != null){
+                    recovered.put(key, priority);
+                }
+                Long expected = acknowledged.get(key);
+                boolean matches = priority == null ? expected == null : priority.equals(expected);
+                String change = pending.get(key);
+                if(!matches && change != null){
+                    // The change begun before the kill may have been logged
+                    String[] fields = change.split(" ");
+                    matches = fields[0].equals("I") ? priority != null && priority == Long.parseLong(fields[1]) : priority == null;
+                }
+                if(!matches){
+                    if(mismatches++ < 10){
+                        System.out.println("  key " + key + ": recovered " + priority + ", acknowledged " + expected + (change == null ? "" : ", pending " + change));
+                    }
+                }
+            }
+            boolean valid = tree.verifyCartiesanTree();
+            tree.close();
+
+            System.out.println("Round " + (round + 1) + ": " + acknowledgedChanges + " acknowledged changes, " + pending.size() + " in flight at the kill, "
+                    + tree.getRecoveredRecords() + " log records replayed in " + recoveryMillis + " ms, " + recovered.size() + " keys"
+                    + (mismatches == 0 && valid ? "" : " -> " + mismatches + " mismatches" + (valid ? "" : ", invalid tree")));
+            passed &= mismatches == 0 && valid;
+        }
+        System.out.println(totalAcknowledged + " acknowledged changes in " + rounds + " rounds");
+        return passed;
+    }
+
+    private static void deleteDirectory(Path path) throws IOException {
+        try (Stream<Path> files = Files.walk(path)) {
+            for(Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator){
+                Files.delete(file);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,181 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** @author Armand Bonn
+ * Eytzinger (BFS) layout of a sorted sequence, shared by the frozen trees.
+ * Slots are 1-based: slot 1 is the root and the children of slot i are 2i and 2i + 1, so the
+ * top levels of every search share the same few cache lines and no links are stored.
+ * The in-order walk of the slots visits the sorted sequence in order.
+ */
+final class EytzingerLayout {
+    // Largest supported size: searches compute 2 * slot + 1 for slots up to the size
+    static final int MAX_SIZE = (1 << 30) - 1;
+    // Subtrees smaller than this are laid out sequentially
+    private static final int SEQUENTIAL_CUTOFF = 1 << 14;
+
+    private EytzingerLayout(){
+    }
+
+    /**
+     * Receives the rank in the sorted sequence to store in a slot
+     */
+    interface SlotFiller {
+        void fill(int slot, int rank);
+    }
+
+    /**
+     * Call the filler once for every slot with the rank of its value in the sorted sequence.
+     * Disjoint subtrees of the layout are filled in parallel on the common pool.
+     * @param size Number of values
+     * @param filler Copies the value of a rank into a slot (called from several threads)
+     */
+    static void layout(int size, SlotFiller filler){
+        if(size < 0 || size > MAX_SIZE){
+            throw new IllegalArgumentException("Size out of range: " + size);
+        }
+        if(size == 0){
+            return;
+        }
+        ForkJoinPool.commonPool().invoke(new LayoutTask(size, 1, 0, filler));
+    }
+
+    /**
+     * Fill the subtree of one slot, forking both children while the subtree is large
+     */
+    private static final class LayoutTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int size;
+        private final int slot;
+        // Rank of the first (lowest) value of the subtree
+        private final int firstRank;
+        private final SlotFiller filler;
+
+        LayoutTask(int size, int slot, int firstRank, SlotFiller filler){
+            this.size = size;
+            this.slot = slot;
+            this.firstRank = firstRank;
+            this.filler = filler;
+        }
+
+        @Override
+        protected void compute(){
+            int subtreeSize = subtreeSize(slot, size);
+            if(subtreeSize < SEQUENTIAL_CUTOFF){
+                // In-order walk of the subtree, its slots get consecutive ranks
+                int currentSlot = firstSlot(slot, size);
+                for(int rank = firstRank; rank < firstRank + subtreeSize; rank++){
+                    filler.fill(currentSlot, rank);
+                    currentSlot = nextSlot(currentSlot, size);
+                }
+                return;
+            }
+            // The slot comes after all values of its left subtree
+            int leftSize = subtreeSize(2 * slot, size);
+            filler.fill(slot, firstRank + leftSize);
+            invokeAll(new LayoutTask(size, 2 * slot, firstRank, filler), new LayoutTask(size, 2 * slot + 1, firstRank + leftSize + 1, filler));
+        }
+    }
+
+    /**
+     * Number of slots in the subtree of a slot, one level at a time
+     * @param slot Root slot of the subtree
+     * @param size Number of values
+     * @return Subtree size, 0 if the slot is past the end
+     */
+    static int subtreeSize(int slot, int size){
+        long count = 0;
+        long firstSlot = slot;
+        long lastSlot = slot;
+        while(firstSlot <= size){
+            count += Math.min(lastSlot, size) - firstSlot + 1;
+            firstSlot = 2 * firstSlot;
+            lastSlot = 2 * lastSlot + 1;
+        }
+        return (int) count;
+    }
+
+    /**
+     * Lowest slot in key order of a subtree (go left as long as possible)
+     * @param slot Root slot of the subtree
+     * @param size Number of values
+     * @return First slot, 0 if the layout is empty
+     */
+    static int firstSlot(int slot, int size){
+        if(size == 0){
+            return 0;
+        }
+        while(slot <= size / 2){
+            slot = 2 * slot;
+        }
+        return slot;
+    }
+
+    /**
+     * Highest slot in key order (go right from the root as long as possible)
+     * @param size Number of values
+     * @return Last slot, 0 if the layout is empty
+     */
+    static int lastSlot(int size){
+        if(size == 0){
+            return 0;
+        }
+        int slot = 1;
+        while(slot <= (size - 1) / 2){
+            slot = 2 * slot + 1;
+        }
+        return slot;
+    }
+
+    /**
+     * In-order successor: lowest slot of the right subtree, else the parent reached from a left child
+     * (the trailing ones of the slot are the right child steps to climb)
+     * @param slot Current slot
+     * @param size Number of values
+     * @return Next slot, 0 after the last one
+     */
+    static int nextSlot(int slot, int size){
+        if(slot <= (size - 1) / 2){
+            return firstSlot(2 * slot + 1, size);
+        }
+        return slot >>> (Integer.numberOfTrailingZeros(~slot) + 1);
+    }
+
+    /**
+     * In-order predecessor: highest slot of the left subtree, else the parent reached from a right child
+     * @param slot Current slot
+     * @param size Number of values
+     * @return Previous slot, 0 before the first one
+     */
+    static int previousSlot(int slot, int size){
+        if(slot <= size / 2){
+            slot = 2 * slot;
+            while(slot <= (size - 1) / 2){
+                slot = 2 * slot + 1;
+            }
+            return slot;
+        }
+        return slot >>> (Integer.numberOfTrailingZeros(slot) + 1);
+    }
+
+    /**
+     * Slot where a branch-free search ended: the descent went right at every ancestor that is
+     * smaller than the key, so the answer is the last ancestor where it went left
+     * @param slot Slot past the bottom of the layout where the descent stopped
+     * @return Slot of the answer, 0 if the descent never went left
+     */
+    static int resolve(int slot){
+        // A slot of 31 ones went right all the way, the shift would wrap around
+        int shift = Integer.numberOfTrailingZeros(~slot) + 1;
+        return shift >= Integer.SIZE ? 0 : slot >>> shift;
+    }
+
+    /**
+     * Height of a layout (complete binary tree)
+     * @param size Number of values
+     * @return Height, -1 when empty (same convention as CartesianTree.getHeight)
+     */
+    static int height(int size){
+        return 31 - Integer.numberOfLeadingZeros(size);
+    }
+}
@@ -0,0 +1,187 @@
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/** @author Armand Bonn
+ * Immutable read-only copy of a Cartesian tree for lookup heavy phases, made by CartesianTree.freeze().
+ * The pairs are stored in two arrays in Eytzinger (BFS) order (see EytzingerLayout): a search reads
+ * slot 1, 2 or 3, then 4 to 7 and so on, so the top levels stay in a few cache lines, and there are no
+ * node objects or links to follow. Searches are branch-free and always go down the full height.
+ * The shape is a complete binary tree over the keys, the priorities are only kept as values.
+ * Keys are still objects here; IntLongCartesianTree.freeze() gives fully primitive arrays.
+ */
+public final class FrozenCartesianTree<K extends Comparable<K>, P extends Comparable<P>> implements Iterable<Map.Entry<K, P>> {
+    // Pairs in Eytzinger order, slot 0 unused
+    private final Object[] keyValues;
+    private final Object[] priorityValues;
+    private final int size;
+
+    /**
+     * initiator frozen tree from pairs sorted by key, laid out in parallel
+     * @param sortedKeys Keys in ascending order (distinct)
+     * @param sortedPriorities Priority of each key
+     */
+    FrozenCartesianTree(Object[] sortedKeys, Object[] sortedPriorities){
+        if(sortedKeys.length != sortedPriorities.length){
+            throw new IllegalArgumentException("Got " + sortedKeys.length + " keys and " + sortedPriorities.length + " priorities");
+        }
+        this.size = sortedKeys.length;
+        this.keyValues = new Object[size + 1];
+        this.priorityValues = new Object[size + 1];
+        EytzingerLayout.layout(size, (slot, rank) -> {
+            keyValues[slot] = sortedKeys[rank];
+            priorityValues[slot] = sortedPriorities[rank];
+        });
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public boolean isTreeEmpty(){
+        return size == 0;
+    }
+
+    /**
+     * Height of the layout, ceil(log2(n + 1)) - 1
+     * @return Height, -1 if empty
+     */
+    public int getHeight(){
+        return EytzingerLayout.height(size);
+    }
+
+    @SuppressWarnings("unchecked")
+    private K keyAt(int slot){
+        return (K) keyValues[slot];
+    }
+
+    @SuppressWarnings("unchecked")
+    private P priorityAt(int slot){
+        return (P) priorityValues[slot];
+    }
+
+    /**
+     * Slot of the lowest key greater or equal to a key value
+     * @param keyValue Key value searched
+     * @return Slot, 0 if all keys are smaller
+     */
+    private int ceilingSlot(K keyValue){
+        int slot = 1;
+        while(slot <= size){
+            slot = 2 * slot + (keyAt(slot).compareTo(keyValue) < 0 ? 1 : 0);
+        }
+        return EytzingerLayout.resolve(slot);
+    }
+
+    /**
+     * Slot of the lowest key strictly greater than a key value
+     * @param keyValue Key value searched
+     * @return Slot, 0 if no key is greater
+     */
+    private int higherSlot(K keyValue){
+        int slot = 1;
+        while(slot <= size){
+            slot = 2 * slot + (keyAt(slot).compareTo(keyValue) <= 0 ? 1 : 0);
+        }
+        return EytzingerLayout.resolve(slot);
+    }
+
+    /**
+     * Slot of the highest key smaller or equal to a key value
+     * @param keyValue Key value searched
+     * @return Slot, 0 if all keys are greater
+     */
+    private int floorSlot(K keyValue){
+        int slot = higherSlot(keyValue);
+        return slot == 0 ? EytzingerLayout.lastSlot(size) : EytzingerLayout.previousSlot(slot, size);
+    }
+
+    /**
+     * Priority of a key
+     * @param keyValue Key value searched
+     * @return Priority value, null if the key is absent
+     */
+    public P findPriority(K keyValue){
+        int slot = ceilingSlot(keyValue);
+        return slot != 0 && keyAt(slot).compareTo(keyValue) == 0 ? priorityAt(slot) : null;
+    }
+
+    public boolean contains(K keyValue){
+        int slot = ceilingSlot(keyValue);
+        return slot != 0 && keyAt(slot).compareTo(keyValue) == 0;
+    }
+
+    /**
+     * Lowest key greater or equal to a key value
+     * @param keyValue Key value searched
+     * @return Key value, null if all keys are smaller
+     */
+    public K ceilingKey(K keyValue){
+        int slot = ceilingSlot(keyValue);
+        return slot == 0 ? null : keyAt(slot);
+    }
+
+    /**
+     * Highest key smaller or equal to a key value
+     * @param keyValue Key value searched
+     * @return Key value, null if all keys are greater
+     */
+    public K floorKey(K keyValue){
+        int slot = floorSlot(keyValue);
+        return slot == 0 ? null : keyAt(slot);
+    }
+
+    /**
+     * Pairs in ascending key order
+     * @return In-order iterator
+     */
+    @Override
+    public Iterator<Map.Entry<K, P>> iterator(){
+        return new SlotIterator(EytzingerLayout.firstSlot(1, size), EytzingerLayout.lastSlot(size));
+    }
+
+    /**
+     * Pairs with a key in [lowKey, highKey], in ascending key order
+     * @param lowKey Lowest key value (inclusive)
+     * @param highKey Highest key value (inclusive)
+     * @return In-order iterator over the range
+     */
+    public Iterator<Map.Entry<K, P>> iterator(K lowKey, K highKey){
+        int startSlot = ceilingSlot(lowKey);
+        int endSlot = floorSlot(highKey);
+        if(startSlot == 0 || endSlot == 0 || keyAt(startSlot).compareTo(keyAt(endSlot)) > 0){
+            return new SlotIterator(0, 0);
+        }
+        return new SlotIterator(startSlot, endSlot);
+    }
+
+    /**
+     * In-order walk between two slots (both included) with the successor arithmetic of the layout
+     */
+    private final class SlotIterator implements Iterator<Map.Entry<K, P>> {
+        private int nextSlot;
+        private final int endSlot;
+
+        SlotIterator(int startSlot, int endSlot){
+            this.nextSlot = startSlot;
+            this.endSlot = endSlot;
+        }
+
+        @Override
+        public boolean hasNext(){
+            return nextSlot != 0;
+        }
+
+        @Override
+        public Map.Entry<K, P> next(){
+            if(nextSlot == 0){
+                throw new NoSuchElementException();
+            }
+            int slot = nextSlot;
+            nextSlot = slot == endSlot ? 0 : EytzingerLayout.nextSlot(slot, size);
+            return new AbstractMap.SimpleImmutableEntry<>(keyAt(slot), priorityAt(slot));
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+/** @author Armand Bonn
+ * Immutable read-only copy of an IntLongCartesianTree, made by IntLongCartesianTree.freeze().
+ * Keys and priorities are two primitive arrays in Eytzinger (BFS) order (see EytzingerLayout):
+ * 4 bytes per key and 8 per priority, no links, and the 16 descendants four levels below a
+ * slot are 16 consecutive ints (one cache line). Searches are branch-free.
+ * Like IntLongCartesianTree, results are slots (ints), NIL if absent; read them with getKeyValue and
+ * getPriorityValue and walk a range with nextSlot.
+ */
+public final class FrozenIntLongTree {
+    // Value of a slot that does not hold a pair
+    public static final int NIL = IntLongCartesianTree.NIL;
+
+    // Pairs in Eytzinger order, slot 0 unused
+    private final int[] keys;
+    private final long[] priorities;
+    private final int size;
+
+    /**
+     * initiator frozen tree from pairs sorted by key, laid out in parallel
+     * @param sortedKeys Keys in ascending order (distinct)
+     * @param sortedPriorities Priority of each key
+     */
+    FrozenIntLongTree(int[] sortedKeys, long[] sortedPriorities){
+        if(sortedKeys.length != sortedPriorities.length){
+            throw new IllegalArgumentException("Got " + sortedKeys.length + " keys and " + sortedPriorities.length + " priorities");
+        }
+        this.size = sortedKeys.length;
+        this.keys = new int[size + 1];
+        this.priorities = new long[size + 1];
+        EytzingerLayout.layout(size, (slot, rank) -> {
+            keys[slot] = sortedKeys[rank];
+            priorities[slot] = sortedPriorities[rank];
+        });
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public boolean isTreeEmpty(){
+        return size == 0;
+    }
+
+    /**
+     * Height of the layout, ceil(log2(n + 1)) - 1
+     * @return Height, -1 if empty
+     */
+    public int getHeight(){
+        return EytzingerLayout.height(size);
+    }
+
+    /**
+     * Key of a slot
+     * @param slot Slot returned by a search
+     * @return Key value
+     */
+    public int getKeyValue(int slot){
+        return keys[slot];
+    }
+
+    /**
+     * Priority of a slot
+     * @param slot Slot returned by a search
+     * @return Priority value
+     */
+    public long getPriorityValue(int slot){
+        return priorities[slot];
+    }
+
+    /**
+     * Slot of a key
+     * @param keyValue Key value searched
+     * @return Slot of the key, NIL if absent
+     */
+    public int findNode(int keyValue){
+        int slot = ceilingNode(keyValue);
+        return slot != NIL && keys[slot] == keyValue ? slot : NIL;
+    }
+
+    /**
+     * Slot of the lowest key greater or equal to a key value
+     * @param keyValue Key value searched
+     * @return Slot, NIL if all keys are smaller
+     */
+    public int ceilingNode(int keyValue){
+        int slot = 1;
+        while(slot <= size){
+            slot = 2 * slot + (keys[slot] < keyValue ? 1 : 0);
+        }
+        slot = EytzingerLayout.resolve(slot);
+        return slot == 0 ? NIL : slot;
+    }
+
+    /**
+     * Slot of the highest key smaller or equal to a key value
+     * @param keyValue Key value searched
+     * @return Slot, NIL if all keys are greater
+     */
+    public int floorNode(int keyValue){
+        // Lowest key strictly greater, then one step back
+        int slot = 1;
+        while(slot <= size){
+            slot = 2 * slot + (keys[slot] <= keyValue ? 1 : 0);
+        }
+        slot = EytzingerLayout.resolve(slot);
+        slot = slot == 0 ? EytzingerLayout.lastSlot(size) : EytzingerLayout.previousSlot(slot, size);
+        return slot == 0 ? NIL : slot;
+    }
+
+    /**
+     * Slot with the lowest key
+     * @return Slot, NIL if empty
+     */
+    public int firstNode(){
+        return size == 0 ? NIL : EytzingerLayout.firstSlot(1, size);
+    }
+
+    /**
+     * Next slot in ascending key order, to scan a range from ceilingNode(low) while the key is at most high
+     * @param slot Current slot
+     * @return Next slot, NIL after the highest key
+     */
+    public int nextSlot(int slot){
+        int next = EytzingerLayout.nextSlot(slot, size);
+        return next == 0 ? NIL : next;
+    }
+
+}
@@ -0,0 +1,160 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/** @author Armand Bonn
+ * Lookup throughput of frozen trees (Eytzinger arrays) against the pointer trees they were frozen from.
+ *   java -Xmx24g FrozenLookupBenchmark --sizes 1000000,10000000,100000000 --structures primitive,generic
+ * Options:
+ *   --sizes       Numbers of keys (the generic tree needs about 80 bytes per key of heap, the primitive one 36)
+ *   --structures  primitive (IntLongCartesianTree / FrozenIntLongTree), generic (CartesianTree / FrozenCartesianTree)
+ *   --lookups     Lookups per measured iteration
+ *   --iterations  Measured iterations, after as many warmup iterations
+ *   --seed        Seed of the keys, priorities and lookups
+ * Trees hold the even keys of [0, 2n), inserted in random order like a real load, so the pointer
+ * tree nodes are spread over the heap. Lookups are uniform over [0, 2n): about half of them miss.
+ * Reports freeze time and lookups per second (best iteration) of both structures.
+ */
+public class FrozenLookupBenchmark {
+
+    private final int[] sizes;
+    private final List<String> structures;
+    private final int lookups;
+    private final int iterations;
+    private final long seed;
+
+    private FrozenLookupBenchmark(BenchmarkHarness.Options options){
+        this.sizes = options.getInts("--sizes", new int[]{1000000, 10000000, 100000000});
+        this.structures = options.getStrings("--structures", List.of("primitive", "generic"));
+        this.lookups = options.getInt("--lookups", 4000000);
+        this.iterations = options.getInt("--iterations", 5);
+        this.seed = options.getLong("--seed", 23L);
+    }
+
+    /**
+     * Run the benchmark
+     * @param args Options (see class comment)
+     * @throws Exception If a lookup pass fails
+     */
+    public static void main(String[] args) throws Exception {
+        FrozenLookupBenchmark benchmark = new FrozenLookupBenchmark(new BenchmarkHarness.Options(args, "--sizes", "--structures", "--lookups", "--iterations", "--seed"));
+
+        System.out.println(String.format("%-10s %11s %12s %16s %16s %8s", "structure", "size", "freeze ms", "pointer ops/s", "frozen ops/s", "speedup"));
+        for(int size : benchmark.sizes){
+            for(String structure : benchmark.structures){
+                if(structure.equals("primitive")){
+                    benchmark.runPrimitive(size);
+                } else if(structure.equals("generic")){
+                    benchmark.runGeneric(size);
+                } else{
+                    throw new IllegalArgumentException("Unknown structure: " + structure);
+                }
+                System.gc();
+            }
+        }
+    }
+
+    /**
+     * Even keys of [0, 2 * size) in random order
+     * @param size Number of keys
+     * @param random Source of the shuffle
+     * @return Shuffled keys
+     */
+    private static int[] shuffledKeys(int size, SplittableRandom random){
+        int[] keys = new int[size];
+        for(int i = 0; i < size; i++){
+            keys[i] = 2 * i;
+        }
+        for(int i = size - 1; i > 0; i--){
+            int j = random.nextInt(i + 1);
+            int swap = keys[i];
+            keys[i] = keys[j];
+            keys[j] = swap;
+        }
+        return keys;
+    }
+
+    private int[] lookupKeys(int size, SplittableRandom random){
+        int[] keys = new int[lookups];
+        for(int i = 0; i < lookups; i++){
+            keys[i] = random.nextInt(2 * size);
+        }
+        return keys;
+    }
+
+    private void runPrimitive(int size) throws Exception {
+        SplittableRandom random = new SplittableRandom(seed);
+        IntLongCartesianTree tree = new IntLongCartesianTree(size);
+        for(int keyValue : shuffledKeys(size, random)){
+            tree.insertNode(keyValue, random.nextLong());
+        }
+        int[] lookupKeys = lookupKeys(size, random);
+
+        long freezeStart = System.nanoTime();
+        FrozenIntLongTree frozenTree = tree.freeze();
+        long freezeNanos = System.nanoTime() - freezeStart;
+
+        double pointerThroughput = bestThroughput(() -> {
+            long hits = 0;
+            for(int keyValue : lookupKeys){
+                hits += tree.findNode(keyValue) == IntLongCartesianTree.NIL ? 0 : 1;
+            }
+            return hits;
+        });
+        double frozenThroughput = bestThroughput(() -> {
+            long hits = 0;
+            for(int keyValue : lookupKeys){
+                hits += frozenTree.findNode(keyValue) == FrozenIntLongTree.NIL ? 0 : 1;
+            }
+            return hits;
+        });
+        report("primitive", size, freezeNanos, pointerThroughput, frozenThroughput);
+    }
+
+    private void runGeneric(int size) throws Exception {
+        SplittableRandom random = new SplittableRandom(seed);
+        CartesianTree<Integer, Long> tree = new CartesianTree<>();
+        for(int keyValue : shuffledKeys(size, random)){
+            tree.insertNode(keyValue, random.nextLong());
+        }
+        // Boxed up front so boxing is not measured
+        List<Integer> lookupKeys = new ArrayList<>(lookups);
+        for(int keyValue : lookupKeys(size, random)){
+            lookupKeys.add(keyValue);
+        }
+
+        long freezeStart = System.nanoTime();
+        FrozenCartesianTree<Integer, Long> frozenTree = tree.freeze();
+        long freezeNanos = System.nanoTime() - freezeStart;
+
+        double pointerThroughput = bestThroughput(() -> {
+            long hits = 0;
+            for(Integer keyValue : lookupKeys){
+                hits += tree.findNode(keyValue) == null ? 0 : 1;
+            }
+            return hits;
+        });
+        double frozenThroughput = bestThroughput(() -> {
+            long hits = 0;
+            for(Integer keyValue : lookupKeys){
+                hits += frozenTree.findPriority(keyValue) == null ? 0 : 1;
+            }
+            return hits;
+        });
+        report("generic", size, freezeNanos, pointerThroughput, frozenThroughput);
+    }
+
+    /**
+     * Warmup passes, then the best of the measured passes
+     * @param pass Lookups over all lookup keys, returns the number of hits
+     * @return Lookups per second of the fastest pass
+     * @throws Exception If a pass fails
+     */
+    private double bestThroughput(BenchmarkHarness.TimedRun pass) throws Exception {
+        return BenchmarkHarness.perSecond(lookups, BenchmarkHarness.bestNanos(iterations, iterations, pass));
+    }
+
+    private static void report(String structure, int size, long freezeNanos, double pointerThroughput, double frozenThroughput){
+        System.out.println(String.format("%-10s %11d %12.1f %16.0f %16.0f %7.2fx", structure, size, freezeNanos / 1e6, pointerThroughput, frozenThroughput, frozenThroughput / pointerThroughput));
+    }
+}
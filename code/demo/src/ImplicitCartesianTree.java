@@ -0,0 +1,344 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/** @author Armand Bonn
+ * Implicit-key Cartesian tree: an editable sequence where the key of a node is its position,
+ * derived from the subtree sizes instead of being stored. Priorities are random, so the tree
+ * has the same expected logarithmic height as a Cartesian tree with random priorities.
+ * All operations are built on the split and merge of CartesianTree (split by position instead of
+ * key) over nodes keeping their subtree size; range reversal is applied lazily.
+ */
+public class ImplicitCartesianTree<V> {
+
+    /**
+     * Node of the sequence: a sized node without key (its position is derived from the sizes),
+     * with a value and a pending reversal of its subtree
+     */
+    private static final class SequenceNode<V> extends SizedNode<Integer, Long> {
+        private V value;
+        private boolean reversed;
+
+        SequenceNode(V value, long priorityValue){
+            super(null, priorityValue);
+            this.value = value;
+        }
+    }
+
+    private Node<Integer, Long> rootNode;
+    private final PriorityGenerator<V, Long> priorityGenerator;
+
+    /**
+     * initiator empty sequence
+     */
+    public ImplicitCartesianTree(){
+        this(PriorityGenerator.random());
+    }
+
+    /**
+     * initiator empty sequence with reproducible priorities
+     * @param seed Seed of the priority generator
+     */
+    public ImplicitCartesianTree(long seed){
+        this(PriorityGenerator.random(seed));
+    }
+
+    private ImplicitCartesianTree(PriorityGenerator<V, Long> priorityGenerator){
+        this.rootNode = null;
+        this.priorityGenerator = priorityGenerator;
+    }
+
+    /**
+     * Check if the sequence is empty
+     * @return True if it is empty
+     */
+    public boolean isTreeEmpty(){
+        return rootNode == null;
+    }
+
+    /**
+     * Number of values in the sequence
+     * @return Size of the sequence
+     */
+    public int size(){
+        return CartesianTree.subtreeSize(rootNode);
+    }
+
+    /**
+     * Append a value at the end of the sequence
+     * @param value Value to append
+     */
+    public void add(V value){
+        rootNode = merge(rootNode, newNode(value));
+    }
+
+    /**
+     * Insert a value at a position, shifting the following values
+     * @param index Position of the new value (0 to size)
+     * @param value Value to insert
+     */
+    public void insertAt(int index, V value){
+        checkPosition(index, size());
+        CartesianTree.SplitResult<Integer, Long> parts = split(rootNode, index);
+        rootNode = merge(merge(parts.leftRoot, newNode(value)), parts.rightRoot);
+    }
+
+    /**
+     * Remove the value at a position
+     * @param index Position of the value (0 to size - 1)
+     * @return Removed value
+     */
+    public V removeAt(int index){
+        checkIndex(index);
+        CartesianTree.SplitResult<Integer, Long> parts = split(rootNode, index);
+        CartesianTree.SplitResult<Integer, Long> tail = split(parts.rightRoot, 1);
+        rootNode = merge(parts.leftRoot, tail.rightRoot);
+        return sequenceNode(tail.leftRoot).value;
+    }
+
+    /**
+     * Value at a position
+     * @param index Position of the value (0 to size - 1)
+     * @return Value at that position
+     */
+    public V get(int index){
+        checkIndex(index);
+        return nodeAt(index).value;
+    }
+
+    /**
+     * Replace the value at a position
+     * @param index Position of the value (0 to size - 1)
+     * @param value New value
+     * @return Previous value
+     */
+    public V set(int index, V value){
+        checkIndex(index);
+        SequenceNode<V> node = nodeAt(index);
+        V previousValue = node.value;
+        node.value = value;
+        return previousValue;
+    }
+
+    /**
+     * Cut the values in [fromIndex, toIndex) out of the sequence
+     * @param fromIndex First position to cut (inclusive)
+     * @param toIndex Last position to cut (exclusive)
+     * @return New sequence holding the cut values
+     */
+    public ImplicitCartesianTree<V> cut(int fromIndex, int toIndex){
+        checkRange(fromIndex, toIndex);
+        CartesianTree.SplitResult<Integer, Long> parts = split(rootNode, fromIndex);
+        CartesianTree.SplitResult<Integer, Long> middle = split(parts.rightRoot, toIndex - fromIndex);
+        rootNode = merge(parts.leftRoot, middle.rightRoot);
+
+        // The cut sequence gets its own generator, seeded from this one
+        ImplicitCartesianTree<V> cutTree = new ImplicitCartesianTree<>(PriorityGenerator.random(priorityGenerator.nextPriority(null)));
+        cutTree.rootNode = middle.leftRoot;
+        return cutTree;
+    }
+
+    /**
+     * Paste all values of another sequence at a position; the other sequence is emptied
+     * @param index Position of the first pasted value (0 to size)
+     * @param other Sequence to paste
+     */
+    public void paste(int index, ImplicitCartesianTree<V> other){
+        if(other == this){
+            throw new IllegalArgumentException("Cannot paste a sequence into itself");
+        }
+        checkPosition(index, size());
+        CartesianTree.SplitResult<Integer, Long> parts = split(rootNode, index);
+        rootNode = merge(merge(parts.leftRoot, other.rootNode), parts.rightRoot);
+        other.rootNode = null;
+    }
+
+    /**
+     * Reverse the order of the values in [fromIndex, toIndex)
+     * @param fromIndex First position to reverse (inclusive)
+     * @param toIndex Last position to reverse (exclusive)
+     */
+    public void reverse(int fromIndex, int toIndex){
+        checkRange(fromIndex, toIndex);
+        CartesianTree.SplitResult<Integer, Long> parts = split(rootNode, fromIndex);
+        CartesianTree.SplitResult<Integer, Long> middle = split(parts.rightRoot, toIndex - fromIndex);
+        if(middle.leftRoot != null){
+            SequenceNode<V> middleRoot = sequenceNode(middle.leftRoot);
+            middleRoot.reversed = !middleRoot.reversed;
+        }
+        rootNode = merge(merge(parts.leftRoot, middle.leftRoot), middle.rightRoot);
+    }
+
+    /**
+     * Copy the sequence into a list
+     * @return Values in sequence order
+     */
+    public List<V> toList(){
+        List<V> values = new ArrayList<>(size());
+        if(rootNode == null){
+            return values;
+        }
+
+        // In-order walk through the parent links, reversals are applied on the way down
+        Node<Integer, Long> currentNode = leftmostNode(rootNode);
+        while(currentNode != null){
+            values.add(sequenceNode(currentNode).value);
+            if(currentNode.getRightNode() != null){
+                currentNode = leftmostNode(currentNode.getRightNode());
+            } else{
+                // Climb until coming up from a left subtree
+                Node<Integer, Long> childNode = currentNode;
+                currentNode = currentNode.getParentNode();
+                while(currentNode != null && currentNode.getRightNode() == childNode){
+                    childNode = currentNode;
+                    currentNode = currentNode.getParentNode();
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Get height of the tree
+     * @return Height of the tree, -1 if empty
+     */
+    public int getHeight(){
+        // Reversals swap children, they do not change the height
+        return CartesianTree.subtreeHeight(rootNode);
+    }
+
+    /**
+     * Node for a new value, alone in its subtree
+     * @param value Value of the node
+     * @return New node
+     */
+    private SequenceNode<V> newNode(V value){
+        return new SequenceNode<>(value, priorityGenerator.nextPriority(value));
+    }
+
+    /**
+     * Descend to the node at a position
+     * @param index Position in the sequence
+     * @return Node holding that position
+     */
+    private SequenceNode<V> nodeAt(int index){
+        Node<Integer, Long> currentNode = rootNode;
+        while(true){
+            pushDown(currentNode);
+            int leftSize = CartesianTree.subtreeSize(currentNode.getLeftNode());
+            if(index < leftSize){
+                currentNode = currentNode.getLeftNode();
+            } else if(index == leftSize){
+                return sequenceNode(currentNode);
+            } else{
+                index -= leftSize + 1;
+                currentNode = currentNode.getRightNode();
+            }
+        }
+    }
+
+    /**
+     * Descend to the first node of a subtree, applying the reversals on the way
+     * @param currentNode Root of the subtree (its own reversal already applied or not)
+     * @return First node in sequence order
+     */
+    private static Node<Integer, Long> leftmostNode(Node<Integer, Long> currentNode){
+        pushDown(currentNode);
+        while(currentNode.getLeftNode() != null){
+            currentNode = currentNode.getLeftNode();
+            pushDown(currentNode);
+        }
+        return currentNode;
+    }
+
+    /**
+     * Split a subtree by position with CartesianTree.splitNodesAt, once the reversals on the split path are applied
+     * @param subtreeRoot Root of the subtree
+     * @param count Number of values going to the left part
+     * @return Roots of the left part (first count values) and of the right part
+     */
+    private static CartesianTree.SplitResult<Integer, Long> split(Node<Integer, Long> subtreeRoot, int count){
+        // Apply the reversals along the path the split will follow
+        Node<Integer, Long> currentNode = subtreeRoot;
+        int remaining = count;
+        while(currentNode != null){
+            pushDown(currentNode);
+            int leftSize = CartesianTree.subtreeSize(currentNode.getLeftNode());
+            if(remaining > leftSize){
+                remaining -= leftSize + 1;
+                currentNode = currentNode.getRightNode();
+            } else{
+                currentNode = currentNode.getLeftNode();
+            }
+        }
+        return CartesianTree.splitNodesAt(subtreeRoot, count);
+    }
+
+    /**
+     * Merge two subtrees with CartesianTree.mergeNodes, all values of the left one coming first.
+     * The merge walks the right spine of the left subtree and the left spine of the right one, so
+     * the reversals on these spines are applied first.
+     * @param leftNode Root of the first part
+     * @param rightNode Root of the second part
+     * @return Root of the merged subtree
+     */
+    private static Node<Integer, Long> merge(Node<Integer, Long> leftNode, Node<Integer, Long> rightNode){
+        for(Node<Integer, Long> spineNode = leftNode; spineNode != null; spineNode = spineNode.getRightNode()){
+            pushDown(spineNode);
+        }
+        for(Node<Integer, Long> spineNode = rightNode; spineNode != null; spineNode = spineNode.getLeftNode()){
+            pushDown(spineNode);
+        }
+        return CartesianTree.mergeNodes(leftNode, rightNode, true);
+    }
+
+    /**
+     * Apply a pending reversal: swap the children and pass the reversal on to them.
+     * Parent links do not change, both children keep the same parent.
+     * @param currentNode Node whose subtree is reversed
+     */
+    private static void pushDown(Node<Integer, Long> currentNode){
+        SequenceNode<?> sequenceNode = (SequenceNode<?>) currentNode;
+        if(!sequenceNode.reversed){
+            return;
+        }
+        Node<Integer, Long> leftNode = currentNode.getLeftNode();
+        currentNode.addLeftNode(currentNode.getRightNode());
+        currentNode.addRightNode(leftNode);
+        if(currentNode.getLeftNode() != null){
+            ((SequenceNode<?>) currentNode.getLeftNode()).reversed ^= true;
+        }
+        if(currentNode.getRightNode() != null){
+            ((SequenceNode<?>) currentNode.getRightNode()).reversed ^= true;
+        }
+        sequenceNode.reversed = false;
+    }
+
+    /**
+     * Every node of the tree is a SequenceNode holding a value of type V
+     * @param node Node of this tree
+     * @return The same node as a sequence node
+     */
+    @SuppressWarnings("unchecked")
+    private SequenceNode<V> sequenceNode(Node<Integer, Long> node){
+        return (SequenceNode<V>) node;
+    }
+
+    private void checkIndex(int index){
+        if(index < 0 || index >= size()){
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size());
+        }
+    }
+
+    private static void checkPosition(int index, int size){
+        if(index < 0 || index > size){
+            throw new IndexOutOfBoundsException("Position " + index + " out of bounds for size " + size);
+        }
+    }
+
+    private void checkRange(int fromIndex, int toIndex){
+        if(fromIndex < 0 || toIndex > size() || fromIndex > toIndex){
+            throw new IndexOutOfBoundsException("Range [" + fromIndex + ", " + toIndex + ") out of bounds for size " + size());
+        }
+    }
+
+}
@@ -0,0 +1,497 @@
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/** @author Armand Bonn
+ * Cartesian tree specialized for int keys and long priorities.
+ * Nodes are not objects: every node is an int slot in parallel primitive arrays holding
+ * the key, the priority and the left, right and parent links. Freed slots are reused.
+ */
+public class IntLongCartesianTree {
+    // Value of a link that does not point to any node
+    public static final int NIL = -1;
+
+    // Default number of slots allocated by the empty constructor
+    private static final int DEFAULT_CAPACITY = 16;
+
+    // Node storage, one entry per slot
+    private int[] keys;
+    private long[] priorities;
+    private int[] leftNodes;
+    private int[] rightNodes;
+    private int[] parentNodes;
+
+    private int rootNode;
+    // Number of slots ever handed out (slots above are untouched)
+    private int usedSlots;
+    // Head of the list of freed slots, chained through the right links
+    private int freeSlot;
+    // Number of nodes in the tree
+    private int size;
+
+    /**
+     * initiator cartesian tree
+     */
+    public IntLongCartesianTree(){
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * initiator cartesian tree with pre-allocated storage
+     * @param initialCapacity Number of nodes the tree can hold before growing
+     */
+    public IntLongCartesianTree(int initialCapacity){
+        if(initialCapacity < 1){
+            throw new IllegalArgumentException("Capacity must be positive: " + initialCapacity);
+        }
+        this.keys = new int[initialCapacity];
+        this.priorities = new long[initialCapacity];
+        this.leftNodes = new int[initialCapacity];
+        this.rightNodes = new int[initialCapacity];
+        this.parentNodes = new int[initialCapacity];
+        this.rootNode = NIL;
+        this.usedSlots = 0;
+        this.freeSlot = NIL;
+        this.size = 0;
+    }
+
+    /**
+     * Check if a Cartesian tree is empty
+     * @return True if it is empty
+     */
+    public boolean isTreeEmpty(){
+        return rootNode == NIL;
+    }
+
+    /**
+     * Number of nodes in the tree
+     * @return Number of nodes
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * Key value stored in a slot
+     * @param node Slot of the node
+     * @return Key value of the node
+     */
+    public int getKeyValue(int node){
+        return keys[node];
+    }
+
+    /**
+     * Priority value stored in a slot
+     * @param node Slot of the node
+     * @return Priority value of the node
+     */
+    public long getPriorityValue(int node){
+        return priorities[node];
+    }
+
+    public int getLeftNode(int node){
+        return leftNodes[node];
+    }
+
+    public int getRightNode(int node){
+        return rightNodes[node];
+    }
+
+    public int getParentNode(int node){
+        return parentNodes[node];
+    }
+
+    public int getRootNode(){
+        return rootNode;
+    }
+
+    /**
+     * Insert node value only considering the keys and not priorities (no rotations)
+     * @param keyValue Key value of node to be inserted
+     * @param priorityValue Priority value of node (default - not used)
+     */
+    public void insertNodeKey(int keyValue, long priorityValue){
+        attachLeaf(keyValue, priorityValue);
+    }
+
+    /**
+     * Insert node in tree considering key and priority value
+     * @param keyValue Key value of node to be inserted
+     * @param priorityValue Priority value of node
+     */
+    public void insertNode(int keyValue, long priorityValue){
+        int newNode = attachLeaf(keyValue, priorityValue);
+
+        // Rotate newly inserted node up until priority property is not violated
+        int parentNode = parentNodes[newNode];
+        while(parentNode != NIL && priorityValue < priorities[parentNode]){
+            // Rotate according to the side the new node hangs on
+            if(rightNodes[parentNode] == newNode){
+                rotateLeft(newNode, parentNode);
+            } else{
+                rotateRight(newNode, parentNode);
+            }
+            parentNode = parentNodes[newNode];
+        }
+    }
+
+    /**
+     * Allocate a new node and hang it below the leaf found by the key value
+     * @param keyValue Key value of node to be inserted
+     * @param priorityValue Priority value of node
+     * @return Slot of the new node
+     */
+    private int attachLeaf(int keyValue, long priorityValue){
+        int newNode = allocateNode(keyValue, priorityValue);
+
+        // If tree is empty update root node
+        if(rootNode == NIL){
+            rootNode = newNode;
+            return newNode;
+        }
+
+        // Find leaf node where to insert new node
+        int leafNode = findleafNode(keyValue, rootNode);
+        parentNodes[newNode] = leafNode;
+
+        // Insert new node as child relative to key value
+        if(keyValue < keys[leafNode]){
+            leftNodes[leafNode] = newNode;
+        } else{
+            rightNodes[leafNode] = newNode;
+        }
+        return newNode;
+    }
+
+    /**
+     * Rotate node to the right
+     * @param currentNode Node lower in the tree which needs to go up
+     * @param parentNode Parent node who is rotated down
+     */
+    private void rotateRight(int currentNode, int parentNode){
+        // Right subtree of the current node becomes left subtree of the parent
+        int middleNode = rightNodes[currentNode];
+        leftNodes[parentNode] = middleNode;
+        if(middleNode != NIL){
+            parentNodes[middleNode] = parentNode;
+        }
+
+        rightNodes[currentNode] = parentNode;
+        replaceChild(parentNodes[parentNode], parentNode, currentNode);
+        parentNodes[parentNode] = currentNode;
+    }
+
+    /**
+     * Rotate node to the left
+     * @param currentNode Node lower in the tree which needs to go up
+     * @param parentNode Parent node who is rotated down
+     */
+    private void rotateLeft(int currentNode, int parentNode){
+        // Left subtree of the current node becomes right subtree of the parent
+        int middleNode = leftNodes[currentNode];
+        rightNodes[parentNode] = middleNode;
+        if(middleNode != NIL){
+            parentNodes[middleNode] = parentNode;
+        }
+
+        leftNodes[currentNode] = parentNode;
+        replaceChild(parentNodes[parentNode], parentNode, currentNode);
+        parentNodes[parentNode] = currentNode;
+    }
+
+    /**
+     * Make the grand parent point to the node that took the place of the old child
+     * @param grandParentNode Parent of the old child (NIL if the old child was the root)
+     * @param oldChild Node that moved down
+     * @param newChild Node that moved up
+     */
+    private void replaceChild(int grandParentNode, int oldChild, int newChild){
+        parentNodes[newChild] = grandParentNode;
+        if(grandParentNode == NIL){
+            rootNode = newChild;
+        } else if(rightNodes[grandParentNode] == oldChild){
+            rightNodes[grandParentNode] = newChild;
+        } else{
+            leftNodes[grandParentNode] = newChild;
+        }
+    }
+
+    /**
+     * Find the leaf node where to insert a new node through the key value (equal keys go right)
+     * @param keyValue Key value of node going to be inserted
+     * @param currentNode Slot where the search starts
+     * @return Slot of the node below which the key belongs
+     */
+    public int findleafNode(int keyValue, int currentNode){
+        while(true){
+            int currentKey = keys[currentNode];
+            if(keyValue < currentKey && leftNodes[currentNode] != NIL){
+                currentNode = leftNodes[currentNode];
+            } else if(keyValue >= currentKey && rightNodes[currentNode] != NIL){
+                currentNode = rightNodes[currentNode];
+            } else{
+                return currentNode;
+            }
+        }
+    }
+
+    /**
+     * Function to delete a node in the tree
+     * @param keyValue Key value of the node to delete
+     * @param priorityValue Priority value of the node to delete
+     */
+    public void deleteNode(int keyValue, long priorityValue){
+        // Find the node in the tree
+        int nodeToDelete = findNode(keyValue);
+
+        // If node is not found throw an error
+        if(nodeToDelete == NIL){
+            throw new NoSuchElementException("Element not found: (" + keyValue + ": " + priorityValue + ")");
+        }
+
+        // While node to delete is not a leaf, rotate the child with the lowest priority above it
+        int rightNode = rightNodes[nodeToDelete];
+        int leftNode = leftNodes[nodeToDelete];
+        while(rightNode != NIL || leftNode != NIL){
+            if(rightNode == NIL || (leftNode != NIL && priorities[leftNode] < priorities[rightNode])){
+                rotateRight(leftNode, nodeToDelete);
+            } else{
+                rotateLeft(rightNode, nodeToDelete);
+            }
+            rightNode = rightNodes[nodeToDelete];
+            leftNode = leftNodes[nodeToDelete];
+        }
+
+        // Remove the reference of the node to delete in the tree (when it has become a leaf)
+        int parentNode = parentNodes[nodeToDelete];
+        if(parentNode == NIL){
+            rootNode = NIL;
+        } else if(rightNodes[parentNode] == nodeToDelete){
+            rightNodes[parentNode] = NIL;
+        } else{
+            leftNodes[parentNode] = NIL;
+        }
+
+        freeNode(nodeToDelete);
+    }
+
+    /**
+     * Find node in a tree based on key values
+     * @param keyValue Key value of node to be found
+     * @return Slot of the node found in the tree, NIL if not found
+     */
+    public int findNode(int keyValue){
+        int currentNode = rootNode;
+        while(currentNode != NIL){
+            int currentKey = keys[currentNode];
+            if(keyValue == currentKey){
+                return currentNode;
+            }
+            currentNode = keyValue < currentKey ? leftNodes[currentNode] : rightNodes[currentNode];
+        }
+        return NIL;
+    }
+
+    /**
+     * Take a slot from the free list, or a fresh one (growing the arrays if needed)
+     * @param keyValue Key value of the new node
+     * @param priorityValue Priority value of the new node
+     * @return Slot of the new node
+     */
+    private int allocateNode(int keyValue, long priorityValue){
+        int node;
+        if(freeSlot != NIL){
+            node = freeSlot;
+            freeSlot = rightNodes[node];
+        } else{
+            if(usedSlots == keys.length){
+                grow();
+            }
+            node = usedSlots++;
+        }
+
+        keys[node] = keyValue;
+        priorities[node] = priorityValue;
+        leftNodes[node] = NIL;
+        rightNodes[node] = NIL;
+        parentNodes[node] = NIL;
+        size++;
+        return node;
+    }
+
+    /**
+     * Give a slot back to the free list
+     * @param node Slot of the removed node
+     */
+    private void freeNode(int node){
+        leftNodes[node] = NIL;
+        parentNodes[node] = NIL;
+        rightNodes[node] = freeSlot;
+        freeSlot = node;
+        size--;
+    }
+
+    /**
+     * Grow all arrays by half of their length
+     */
+    private void grow(){
+        int newCapacity = keys.length + Math.max(1, keys.length >> 1);
+        if(newCapacity < 0){
+            newCapacity = Integer.MAX_VALUE - 8;
+        }
+        keys = Arrays.copyOf(keys, newCapacity);
+        priorities = Arrays.copyOf(priorities, newCapacity);
+        leftNodes = Arrays.copyOf(leftNodes, newCapacity);
+        rightNodes = Arrays.copyOf(rightNodes, newCapacity);
+        parentNodes = Arrays.copyOf(parentNodes, newCapacity);
+    }
+
+    /**
+     * Get height of the tree
+     * @return Height of the tree
+     */
+    public int getHeight(){
+        // Walk the tree in order through the parent links and keep track of the depth
+        int height = -1;
+        int depth = 0;
+        int currentNode = rootNode;
+        int previousNode = NIL;
+
+        while(currentNode != NIL){
+            int nextNode;
+            if(previousNode == parentNodes[currentNode]){
+                // Coming from above: go left first, then right, then back up
+                height = Math.max(height, depth);
+                if(leftNodes[currentNode] != NIL){
+                    nextNode = leftNodes[currentNode];
+                } else if(rightNodes[currentNode] != NIL){
+                    nextNode = rightNodes[currentNode];
+                } else{
+                    nextNode = parentNodes[currentNode];
+                }
+            } else if(previousNode == leftNodes[currentNode] && rightNodes[currentNode] != NIL){
+                // Coming back from the left subtree: visit the right subtree
+                nextNode = rightNodes[currentNode];
+            } else{
+                // Both subtrees done
+                nextNode = parentNodes[currentNode];
+            }
+
+            depth += nextNode == parentNodes[currentNode] ? -1 : 1;
+            previousNode = currentNode;
+            currentNode = nextNode;
+        }
+        return height;
+    }
+
+    /**
+     * Verify if Cartesian tree does hold all properties
+     * @return True if all properties hold
+     */
+    public boolean verifyCartiesanTree(){
+        if(rootNode == NIL){
+            return true;
+        }
+
+        // Check each node against its children with an explicit stack
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = rootNode;
+        while(top > 0){
+            int currentNode = stack[--top];
+            int leftNode = leftNodes[currentNode];
+            int rightNode = rightNodes[currentNode];
+
+            if(leftNode != NIL){
+                if(keys[leftNode] > keys[currentNode] || priorities[leftNode] < priorities[currentNode]){
+                    return false;
+                }
+                if(top == stack.length){
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[top++] = leftNode;
+            }
+            if(rightNode != NIL){
+                if(keys[rightNode] < keys[currentNode] || priorities[rightNode] < priorities[currentNode]){
+                    return false;
+                }
+                if(top == stack.length){
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[top++] = rightNode;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read-only copy of the tree for lookup heavy phases: keys and priorities copied in key order into
+     * primitive arrays in Eytzinger layout (see FrozenIntLongTree), laid out in parallel. The tree is not changed.
+     * @return Frozen copy of the current pairs
+     */
+    public FrozenIntLongTree freeze(){
+        int[] sortedKeys = new int[size];
+        long[] sortedPriorities = new long[size];
+        int rank = 0;
+        int currentNode = rootNode;
+        if(currentNode != NIL){
+            while(leftNodes[currentNode] != NIL){
+                currentNode = leftNodes[currentNode];
+            }
+        }
+
+        while(currentNode != NIL){
+            sortedKeys[rank] = keys[currentNode];
+            sortedPriorities[rank] = priorities[currentNode];
+            rank++;
+
+            // Move to the in-order successor
+            if(rightNodes[currentNode] != NIL){
+                currentNode = rightNodes[currentNode];
+                while(leftNodes[currentNode] != NIL){
+                    currentNode = leftNodes[currentNode];
+                }
+            } else{
+                int parentNode = parentNodes[currentNode];
+                while(parentNode != NIL && rightNodes[parentNode] == currentNode){
+                    currentNode = parentNode;
+                    parentNode = parentNodes[currentNode];
+                }
+                currentNode = parentNode;
+            }
+        }
+        return new FrozenIntLongTree(sortedKeys, sortedPriorities);
+    }
+
+    /**
+     * Print in order traversal (start from most left leaf and go down to the right in the tree)
+     */
+    public void printInOrder(){
+        int currentNode = rootNode;
+        if(currentNode == NIL){
+            return;
+        }
+        while(leftNodes[currentNode] != NIL){
+            currentNode = leftNodes[currentNode];
+        }
+
+        while(currentNode != NIL){
+            System.out.println(keys[currentNode] + ": " + priorities[currentNode]);
+
+            // Move to the in-order successor
+            if(rightNodes[currentNode] != NIL){
+                currentNode = rightNodes[currentNode];
+                while(leftNodes[currentNode] != NIL){
+                    currentNode = leftNodes[currentNode];
+                }
+            } else{
+                int parentNode = parentNodes[currentNode];
+                while(parentNode != NIL && rightNodes[parentNode] == currentNode){
+                    currentNode = parentNode;
+                    parentNode = parentNodes[currentNode];
+                }
+                currentNode = parentNode;
+            }
+        }
+    }
+
+}
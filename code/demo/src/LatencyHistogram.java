@@ -0,0 +1,124 @@
+/** @author Armand Bonn
+ * Fixed-size log-linear histogram of latencies in nanoseconds.
+ * Values are grouped by power of two, each power split in 16 linear buckets, so a recorded
+ * value is reported with at most 1/16 (about 6%) relative error. Recording is O(1) and never
+ * allocates. Not thread-safe: keep one histogram per thread and merge them at the end.
+ */
+public class LatencyHistogram {
+    // Linear buckets per power of two (2^SUB_BUCKET_BITS)
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT];
+    private long totalCount;
+    private long totalNanos;
+    private long maxNanos;
+
+    /**
+     * Record one latency
+     * @param nanos Latency in nanoseconds (negative values count as 0)
+     */
+    public void record(long nanos){
+        long value = Math.max(0, nanos);
+        counts[bucketIndex(value)]++;
+        totalCount++;
+        totalNanos += value;
+        maxNanos = Math.max(maxNanos, value);
+    }
+
+    /**
+     * Add all latencies of another histogram to this one
+     * @param other Histogram to add
+     */
+    public void merge(LatencyHistogram other){
+        for(int i = 0; i < counts.length; i++){
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        totalNanos += other.totalNanos;
+        maxNanos = Math.max(maxNanos, other.maxNanos);
+    }
+
+    /**
+     * Number of recorded latencies
+     * @return Count
+     */
+    public long getCount(){
+        return totalCount;
+    }
+
+    /**
+     * Sum of the recorded latencies
+     * @return Total in nanoseconds
+     */
+    public long getTotalNanos(){
+        return totalNanos;
+    }
+
+    /**
+     * Highest recorded latency (exact)
+     * @return Maximum in nanoseconds, 0 if empty
+     */
+    public long getMaxNanos(){
+        return maxNanos;
+    }
+
+    /**
+     * Mean of the recorded latencies (exact)
+     * @return Mean in nanoseconds, 0 if empty
+     */
+    public double getMeanNanos(){
+        return totalCount == 0 ? 0 : (double) totalNanos / totalCount;
+    }
+
+    /**
+     * Latency below which a fraction of the recorded latencies fall
+     * @param fraction Fraction between 0 and 1 (0.99 for the 99th percentile)
+     * @return Upper bound of the bucket holding that rank, never above the maximum, 0 if empty
+     */
+    public long getPercentile(double fraction){
+        if(totalCount == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * totalCount));
+        long seen = 0;
+        for(int i = 0; i < counts.length; i++){
+            seen += counts[i];
+            if(seen >= rank){
+                return Math.min(maxNanos, bucketUpperBound(i));
+            }
+        }
+        return maxNanos;
+    }
+
+    /**
+     * Bucket of a value: exact below 2^SUB_BUCKET_BITS, then 16 buckets per power of two
+     * @param value Non negative value
+     * @return Index in the counts
+     */
+    private static int bucketIndex(long value){
+        if(value < SUB_BUCKET_COUNT){
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * Highest value falling in a bucket
+     * @param index Index in the counts
+     * @return Upper bound of the bucket (inclusive)
+     */
+    private static long bucketUpperBound(int index){
+        if(index < SUB_BUCKET_COUNT){
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        long upperBound = ((subBucket + 1) << shift) - 1;
+        return upperBound < 0 ? Long.MAX_VALUE : upperBound;
+    }
+
+}
@@ -1,6 +1,7 @@
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
@@ -196,6 +197,70 @@ public class Main {
         System.out.println("Cartesian tree does not violate properties: " + violatesProperty);
         System.out.println("Height of tree: " + height);
 
+        // Part 4.3: Cost of keeping subtree sizes (order statistics) during insertion and suppression
+        // (a rough look, TreeBenchmark --order-statistics true measures it with warmup and per call latencies)
+        List<Integer> integerKeysOrder = integersKeyList(1000000);
+        List<Long> prioritiesOrder = arrayRandomPrioritiesLong(integerKeysOrder.size());
+
+        for (boolean orderStatistics : new boolean[]{false, true}){
+            CartesianTree<Integer, Long> orderCartesianTree = new CartesianTree<>(orderStatistics);
+
+            // Insertion
+            startTime = System.currentTimeMillis();
+            for(int i = 0; i < integerKeysOrder.size(); i++){
+                orderCartesianTree.insertNode(integerKeysOrder.get(i), prioritiesOrder.get(i));
+            }
+            endTime = System.currentTimeMillis();
+            formattedElapsedTime = String.format("%.3f", (endTime - startTime) / 1000.0);
+
+            // Suppresion
+            startTime = System.currentTimeMillis();
+            for(int i = 0; i < integerKeysOrder.size(); i++){
+                orderCartesianTree.deleteNode(integerKeysOrder.get(i), prioritiesOrder.get(i));
+            }
+            endTime = System.currentTimeMillis();
+            formattedElapsedTimeSupression = String.format("%.3f", (endTime - startTime) / 1000.0);
+
+            // Print results
+            System.out.println();
+            System.out.println("Order statistics: " + orderStatistics);
+            System.out.println("End Solve Insertion: " + formattedElapsedTime);
+            System.out.println("End Solve Supression: " + formattedElapsedTimeSupression);
+        }
+
+        // Part 4.4: Priorities generated by the tree, keys inserted in sorted order (worst case for bad priorities)
+        List<CartesianTree<Integer, Long>> generatedTrees = new ArrayList<>();
+        generatedTrees.add(new CartesianTree<>(PriorityGenerator.<Integer>random()));
+        generatedTrees.add(new CartesianTree<>(PriorityGenerator.<Integer>keyHash(42L)));
+        for(CartesianTree<Integer, Long> generatedTree : generatedTrees){
+            startTime = System.currentTimeMillis();
+            for(int key = 0; key < 1000000; key++){
+                generatedTree.insert(key);
+            }
+            endTime = System.currentTimeMillis();
+            formattedElapsedTime = String.format("%.3f", (endTime - startTime) / 1000.0);
+
+            System.out.println();
+            System.out.println("End Solve Insertion (generated priorities): " + formattedElapsedTime);
+            System.out.println("Height of tree: " + generatedTree.getHeight());
+        }
+
+        // Part 4.5: Binary snapshot of the last tree, reloaded from a memory-mapped file
+        CartesianTree<Integer, Long> savedTree = generatedTrees.get(generatedTrees.size() - 1);
+        Path snapshotPath = Files.createTempFile("cartesianTree", ".snapshot");
+        startTime = System.currentTimeMillis();
+        savedTree.writeSnapshot(snapshotPath, SnapshotCodec.ints(), SnapshotCodec.longs());
+        endTime = System.currentTimeMillis();
+        System.out.println();
+        System.out.println("End Snapshot Write: " + String.format("%.3f", (endTime - startTime) / 1000.0) + " (" + Files.size(snapshotPath) + " bytes)");
+
+        startTime = System.currentTimeMillis();
+        CartesianTree<Integer, Long> reloadedTree = CartesianTree.readSnapshot(snapshotPath, SnapshotCodec.ints(), SnapshotCodec.longs());
+        endTime = System.currentTimeMillis();
+        System.out.println("End Snapshot Reload: " + String.format("%.3f", (endTime - startTime) / 1000.0));
+        System.out.println("Height of tree: " + reloadedTree.getHeight() + ", valid: " + reloadedTree.verifyCartiesanTree());
+        Files.delete(snapshotPath);
+
         // Part 5: Performance Analysis
         for(int nodes = 10000000; nodes <= 12000000; nodes+=1000000){
 
@@ -67,6 +67,51 @@ public class Node<K extends Comparable<K>, P extends Comparable<P>> {
         return parentNode;
     }
 
+    /**
+     * Number of nodes in the subtree rooted at this node, only kept by the nodes of trees with
+     * order statistics (SizedNode): a plain node has no room for it
+     * @return Size of the subtree (this node included)
+     */
+    public int getSubtreeSize(){
+        throw new UnsupportedOperationException("Node does not keep its subtree size, the tree has no order statistics");
+    }
+
+    /**
+     * Set the number of nodes in the subtree rooted at this node (SizedNode only)
+     * @param subtreeSize Size of the subtree (this node included)
+     */
+    public void setSubtreeSize(int subtreeSize){
+        throw new UnsupportedOperationException("Node does not keep its subtree size, the tree has no order statistics");
+    }
+
+    /**
+     * Recompute the subtree size from the sizes of both children (SizedNode only)
+     */
+    public void updateSubtreeSize(){
+        throw new UnsupportedOperationException("Node does not keep its subtree size, the tree has no order statistics");
+    }
+
+    /**
+     * Change the priority (the owning tree restores the heap order with rotations, see CartesianTree.updatePriority)
+     * @param priorityValue New priority value
+     */
+    void setPriorityValue(P priorityValue){
+        this.priorityValue = priorityValue;
+    }
+
+    /**
+     * Reuse this node for another pair: links are cleared
+     * @param keyValue New key value (null when the node goes back to a pool)
+     * @param priorityValue New priority value
+     */
+    void reset(K keyValue, P priorityValue){
+        this.keyValue = keyValue;
+        this.priorityValue = priorityValue;
+        this.rightNode = null;
+        this.leftNode = null;
+        this.parentNode = null;
+    }
+
     @Override
     public String toString() {
         return keyValue + ": " + priorityValue;
@@ -0,0 +1,131 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** @author Armand Bonn
+ * Arena of reusable nodes for one Cartesian tree. Nodes are allocated in slabs (arrays of
+ * ready-made nodes), deleted nodes go back to a free list and are handed out again before the
+ * slabs are used, so a tree with as many insertions as suppressions stops allocating once the
+ * free list has grown to its working size.
+ * reset() gives every slab node back in O(1) by rewinding the allocation cursor. This is only
+ * safe while no node has left the tree: after a split, merge or extraction moved nodes to another
+ * tree, reset() drops the slabs instead (still O(1), the garbage collector takes the old nodes).
+ */
+class NodePool<K extends Comparable<K>, P extends Comparable<P>> {
+    static final int DEFAULT_SLAB_SIZE = 1024;
+
+    private final int slabSize;
+    // True to allocate SizedNode (trees with order statistics)
+    private final boolean sizedNodes;
+    private final List<Node<K, P>[]> slabs = new ArrayList<>();
+    // Next slab node to hand out: slab index and position inside the slab
+    private int slabIndex;
+    private int slabPosition;
+    // Stack of released nodes
+    private Node<K, P>[] freeNodes;
+    private int freeCount;
+    // True once nodes of the arena belong to another tree
+    private boolean escaped;
+
+    /**
+     * initiator node pool
+     * @param slabSize Number of nodes allocated at once
+     * @param sizedNodes True to hand out nodes keeping their subtree size (trees with order statistics)
+     */
+    NodePool(int slabSize, boolean sizedNodes){
+        if(slabSize <= 0){
+            throw new IllegalArgumentException("Slab size must be positive: " + slabSize);
+        }
+        this.slabSize = slabSize;
+        this.sizedNodes = sizedNodes;
+        this.freeNodes = newNodeArray(slabSize);
+    }
+
+    int getSlabSize(){
+        return slabSize;
+    }
+
+    /**
+     * Node for a new pair: a released node if any, otherwise the next slab node
+     * @param keyValue Key value
+     * @param priorityValue Priority value
+     * @return Node without links
+     */
+    Node<K, P> acquire(K keyValue, P priorityValue){
+        Node<K, P> node;
+        if(freeCount > 0){
+            node = freeNodes[--freeCount];
+            freeNodes[freeCount] = null;
+        } else{
+            if(slabIndex == slabs.size() || slabPosition == slabSize){
+                nextSlab();
+            }
+            node = slabs.get(slabIndex)[slabPosition++];
+        }
+        node.reset(keyValue, priorityValue);
+        return node;
+    }
+
+    /**
+     * Give back a node unlinked from the tree
+     * @param node Node to reuse
+     */
+    void release(Node<K, P> node){
+        // Drop the key and priority now, so the pool does not keep them reachable
+        node.reset(null, null);
+        if(freeCount == freeNodes.length){
+            freeNodes = Arrays.copyOf(freeNodes, freeNodes.length + (freeNodes.length >> 1));
+        }
+        freeNodes[freeCount++] = node;
+    }
+
+    /**
+     * Nodes of the pool have moved to another tree: they must not be handed out again by reset()
+     */
+    void markEscaped(){
+        escaped = true;
+    }
+
+    /**
+     * Take back every node of the arena in O(1). Nodes keep their old contents until handed out again.
+     */
+    void reset(){
+        if(escaped){
+            slabs.clear();
+            Arrays.fill(freeNodes, 0, freeCount, null);
+            escaped = false;
+        }
+        slabIndex = 0;
+        slabPosition = 0;
+        freeCount = 0;
+    }
+
+    /**
+     * Move the allocation cursor to the next slab, allocating it if needed
+     */
+    private void nextSlab(){
+        if(slabIndex < slabs.size()){
+            slabIndex++;
+            slabPosition = 0;
+        }
+        if(slabIndex == slabs.size()){
+            Node<K, P>[] slab = newNodeArray(slabSize);
+            for(int i = 0; i < slabSize; i++){
+                slab[i] = sizedNodes ? new SizedNode<>(null, null) : new Node<>(null, null);
+            }
+            slabs.add(slab);
+        }
+    }
+
+    /**
+     * Array of nodes of the pool type (Java cannot create generic arrays, it holds Node<K, P> only)
+     * @param length Length of the array
+     * @return New array of null nodes
+     */
+    private static <K extends Comparable<K>, P extends Comparable<P>> Node<K, P>[] newNodeArray(int length){
+        @SuppressWarnings("unchecked")
+        Node<K, P>[] nodes = (Node<K, P>[]) new Node<?, ?>[length];
+        return nodes;
+    }
+
+}
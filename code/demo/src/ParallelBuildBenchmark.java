@@ -0,0 +1,182 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+/** @author Armand Bonn
+ * Check and speedup run of ParallelCartesianTreeBuilder.
+ *   java -Xmx8g ParallelBuildBenchmark --size 100000000 --threads 16 --iterations 5
+ * Options:
+ *   --size        Number of positions of the timed builds
+ *   --threads     Highest pool size (runs use 1, 2, 4... up to it)
+ *   --iterations  Timed builds per pool size (best one reported), after one warmup build
+ *   --seed        Seed of the priorities
+ * The check builds arrays of several shapes (uniform, few distinct values, sorted, reverse sorted)
+ * and sizes with small cutoffs, so many spines are merged, and compares every link with
+ * CartesianTree.buildFromSorted. The timed run compares the sequential right spine stack with
+ * buildLinks on uniform priorities.
+ */
+public class ParallelBuildBenchmark {
+
+    private final int size;
+    private final int threads;
+    private final int iterations;
+    private final long seed;
+
+    private ParallelBuildBenchmark(BenchmarkHarness.Options options){
+        this.size = options.getInt("--size", 10000000);
+        this.threads = options.getInt("--threads", Runtime.getRuntime().availableProcessors());
+        this.iterations = options.getInt("--iterations", 5);
+        this.seed = options.getLong("--seed", 31L);
+    }
+
+    /**
+     * Run the check and the timed builds
+     * @param args Options (see class comment)
+     * @throws Exception If a build fails
+     */
+    public static void main(String[] args) throws Exception {
+        ParallelBuildBenchmark benchmark = new ParallelBuildBenchmark(new BenchmarkHarness.Options(args, "--size", "--threads", "--iterations", "--seed"));
+        benchmark.check();
+        benchmark.time();
+    }
+
+    /**
+     * Priorities of one shape
+     * @param size Number of positions
+     * @param shape 0 uniform, 1 few distinct values, 2 ascending, 3 descending
+     * @param random Source of the values
+     * @return Priorities
+     */
+    private static long[] priorities(int size, int shape, SplittableRandom random){
+        long[] priorities = new long[size];
+        for(int i = 0; i < size; i++){
+            switch(shape){
+                case 0:
+                    priorities[i] = random.nextLong();
+                    break;
+                case 1:
+                    priorities[i] = random.nextInt(4);
+                    break;
+                case 2:
+                    priorities[i] = i / 3;
+                    break;
+                default:
+                    priorities[i] = (size - i) / 3;
+            }
+        }
+        return priorities;
+    }
+
+    /**
+     * Compare parallel builds with the sequential build for every shape and a few sizes and cutoffs
+     */
+    private void check(){
+        SplittableRandom random = new SplittableRandom(seed);
+        ForkJoinPool pool = new ForkJoinPool(Math.max(2, threads));
+        int[] sizes = {1, 2, 3, 17, 1000, 65537, 300000};
+        int[] cutoffs = {1, 7, 1024};
+        int builds = 0;
+        try{
+            for(int shape = 0; shape < 4; shape++){
+                for(int checkSize : sizes){
+                    long[] priorities = priorities(checkSize, shape, random);
+                    Integer[] keyValues = new Integer[checkSize];
+                    Long[] priorityValues = new Long[checkSize];
+                    for(int i = 0; i < checkSize; i++){
+                        keyValues[i] = i;
+                        priorityValues[i] = priorities[i];
+                    }
+                    CartesianTree<Integer, Long> expectedTree = CartesianTree.buildFromSorted(keyValues, priorityValues);
+
+                    for(int cutoff : cutoffs){
+                        ParallelCartesianTreeBuilder builder = new ParallelCartesianTreeBuilder(pool, cutoff);
+                        compareLinks(expectedTree, builder.buildLinks(priorities), shape, checkSize, cutoff);
+                        CartesianTree<Integer, Long> builtTree = builder.buildTree(priorities);
+                        if(!builtTree.verifyCartiesanTree() || builtTree.getHeight() != expectedTree.getHeight()){
+                            throw new IllegalStateException("Built tree differs: shape " + shape + ", size " + checkSize + ", cutoff " + cutoff);
+                        }
+                        builds++;
+                    }
+                }
+            }
+        } finally{
+            pool.shutdown();
+        }
+        System.out.println("Check passed: " + builds + " builds identical to CartesianTree.buildFromSorted");
+    }
+
+    private static void compareLinks(CartesianTree<Integer, Long> expectedTree, ParallelCartesianTreeBuilder.TreeLinks links, int shape, int size, int cutoff){
+        int position = 0;
+        for(Iterator<Node<Integer, Long>> nodes = expectedTree.iterator(); nodes.hasNext(); position++){
+            Node<Integer, Long> node = nodes.next();
+            if(links.getParentNodes()[position] != keyOf(node.getParentNode())
+                    || links.getLeftNodes()[position] != keyOf(node.getLeftNode())
+                    || links.getRightNodes()[position] != keyOf(node.getRightNode())){
+                throw new IllegalStateException("Links of position " + position + " differ: shape " + shape + ", size " + size + ", cutoff " + cutoff);
+            }
+        }
+        if(links.getRootNode() != keyOf(rootOf(expectedTree))){
+            throw new IllegalStateException("Root differs: shape " + shape + ", size " + size + ", cutoff " + cutoff);
+        }
+    }
+
+    private static Node<Integer, Long> rootOf(CartesianTree<Integer, Long> tree){
+        Node<Integer, Long> node = tree.iterator().next();
+        while(node.getParentNode() != null){
+            node = node.getParentNode();
+        }
+        return node;
+    }
+
+    private static int keyOf(Node<Integer, Long> node){
+        return node == null ? ParallelCartesianTreeBuilder.NIL : node.getKeyValue();
+    }
+
+    /**
+     * Time buildLinks without splitting (the sequential right spine stack) and on pools of 1, 2, 4... threads
+     */
+    private void time() throws Exception {
+        long[] priorities = priorities(size, 0, new SplittableRandom(seed));
+        System.out.println(String.format("%-12s %11s %10s %8s", "build", "size", "ms", "speedup"));
+
+        // Last links built by a timed run
+        ParallelCartesianTreeBuilder.TreeLinks[] builtLinks = new ParallelCartesianTreeBuilder.TreeLinks[1];
+        ForkJoinPool sequentialPool = new ForkJoinPool(1);
+        long sequentialNanos;
+        try{
+            ParallelCartesianTreeBuilder builder = new ParallelCartesianTreeBuilder(sequentialPool, Integer.MAX_VALUE);
+            sequentialNanos = BenchmarkHarness.bestNanos(1, iterations, () -> {
+                builtLinks[0] = builder.buildLinks(priorities);
+                return builtLinks[0].getRootNode();
+            });
+        } finally{
+            sequentialPool.shutdown();
+        }
+        ParallelCartesianTreeBuilder.TreeLinks expectedLinks = builtLinks[0];
+        System.out.println(String.format("%-12s %11d %10.1f %8s", "sequential", size, sequentialNanos / 1e6, "1.00x"));
+
+        for(int poolSize : BenchmarkHarness.threadCounts(threads)){
+            ForkJoinPool pool = new ForkJoinPool(poolSize);
+            try{
+                // A few ranges per thread so that stolen work evens out
+                ParallelCartesianTreeBuilder builder = new ParallelCartesianTreeBuilder(pool, Math.max(1 << 12, size / (16 * poolSize)));
+                long bestNanos = BenchmarkHarness.bestNanos(1, iterations, () -> {
+                    // Drop the previous links first, only the expected ones stay next to the new ones
+                    builtLinks[0] = null;
+                    builtLinks[0] = builder.buildLinks(priorities);
+                    return builtLinks[0].getRootNode();
+                });
+                ParallelCartesianTreeBuilder.TreeLinks links = builtLinks[0];
+                if(!Arrays.equals(links.getParentNodes(), expectedLinks.getParentNodes())
+                        || !Arrays.equals(links.getLeftNodes(), expectedLinks.getLeftNodes())
+                        || !Arrays.equals(links.getRightNodes(), expectedLinks.getRightNodes())){
+                    throw new IllegalStateException("Parallel build differs from the sequential build with " + poolSize + " threads");
+                }
+                System.out.println(String.format("%-12s %11d %10.1f %7.2fx", "threads " + poolSize, size, bestNanos / 1e6, (double) sequentialNanos / bestNanos));
+            } finally{
+                pool.shutdown();
+            }
+        }
+    }
+}
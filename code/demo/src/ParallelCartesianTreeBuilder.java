@@ -0,0 +1,314 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/** @author Armand Bonn
+ * Parallel construction of the Cartesian tree of an array: position as key, value as priority
+ * (lowest on top), equal values keep the leftmost position on top like the sequential builds
+ * (CartesianTree.buildFromSorted, RangeMinimumQuery). The result is the same tree, link for link.
+ * Both halves of the array are built in parallel, then the right spine of the left tree and the
+ * left spine of the right tree are merged from the bottom up by priority: only the spine nodes
+ * change parent. Ranges below the cutoff are built with the sequential right spine stack.
+ * Children are derived from the parents at the end, in parallel.
+ * Merging walks the spines sequentially: O(log n) per merge for random priorities, and sorted or
+ * reverse sorted arrays merge in O(1) (one of the spines is a single position).
+ */
+public class ParallelCartesianTreeBuilder {
+    // Value of a link that does not point to any node
+    public static final int NIL = -1;
+    // Default number of positions below which a range is built sequentially
+    private static final int DEFAULT_CUTOFF = 1 << 16;
+
+    private final ForkJoinPool pool;
+    // Ranges with fewer positions are built sequentially
+    private final int sequentialCutoff;
+
+    /**
+     * Builder on the common pool
+     */
+    public ParallelCartesianTreeBuilder(){
+        this(ForkJoinPool.commonPool(), DEFAULT_CUTOFF);
+    }
+
+    /**
+     * Builder with a custom pool and cutoff
+     * @param pool Pool running the build
+     * @param sequentialCutoff Number of positions below which a range is not split (at least 1)
+     */
+    public ParallelCartesianTreeBuilder(ForkJoinPool pool, int sequentialCutoff){
+        if(sequentialCutoff < 1){
+            throw new IllegalArgumentException("Cutoff must be positive: " + sequentialCutoff);
+        }
+        this.pool = pool;
+        this.sequentialCutoff = sequentialCutoff;
+    }
+
+    /**
+     * Links of a Cartesian tree over array positions, NIL where there is no node
+     */
+    public static final class TreeLinks {
+        private final int[] parentNodes;
+        private final int[] leftNodes;
+        private final int[] rightNodes;
+        private final int rootNode;
+
+        TreeLinks(int[] parentNodes, int[] leftNodes, int[] rightNodes, int rootNode){
+            this.parentNodes = parentNodes;
+            this.leftNodes = leftNodes;
+            this.rightNodes = rightNodes;
+            this.rootNode = rootNode;
+        }
+
+        public int[] getParentNodes(){
+            return parentNodes;
+        }
+
+        public int[] getLeftNodes(){
+            return leftNodes;
+        }
+
+        public int[] getRightNodes(){
+            return rightNodes;
+        }
+
+        public int getRootNode(){
+            return rootNode;
+        }
+    }
+
+    /**
+     * Cartesian tree links of an array
+     * @param priorities Priority of every position (not changed)
+     * @return Parent, left and right position of every position, and the root (NIL if empty)
+     */
+    public TreeLinks buildLinks(long[] priorities){
+        int size = priorities.length;
+        int[] parentNodes = new int[size];
+        int[] leftNodes = new int[size];
+        int[] rightNodes = new int[size];
+        if(size == 0){
+            return new TreeLinks(parentNodes, leftNodes, rightNodes, NIL);
+        }
+        int rootNode = pool.invoke(new BuildTask(priorities, parentNodes, 0, size));
+        pool.invoke(new ChildTask(parentNodes, leftNodes, rightNodes, 0, size, false));
+        pool.invoke(new ChildTask(parentNodes, leftNodes, rightNodes, 0, size, true));
+        return new TreeLinks(parentNodes, leftNodes, rightNodes, rootNode);
+    }
+
+    /**
+     * Cartesian tree of an array as a CartesianTree, nodes are created and linked in parallel
+     * @param priorities Priority of every position (not changed)
+     * @return New tree with the positions as keys
+     */
+    public CartesianTree<Integer, Long> buildTree(long[] priorities){
+        TreeLinks links = buildLinks(priorities);
+        if(links.rootNode == NIL){
+            return new CartesianTree<>();
+        }
+        @SuppressWarnings("unchecked")
+        Node<Integer, Long>[] nodes = (Node<Integer, Long>[]) new Node<?, ?>[priorities.length];
+        pool.invoke(new NodeTask(priorities, links, nodes, 0, priorities.length, false));
+        pool.invoke(new NodeTask(priorities, links, nodes, 0, priorities.length, true));
+        return new CartesianTree<>(nodes[links.rootNode], false);
+    }
+
+    /**
+     * Sequential build of a range with a right spine stack, kept as the parent chain of the last position
+     * @param priorities Priority of every position
+     * @param parentNodes Receives the parents inside the range (NIL for its root)
+     * @param firstNode First position of the range
+     * @param endNode Position after the range
+     * @return Root of the range
+     */
+    static int buildSequential(long[] priorities, int[] parentNodes, int firstNode, int endNode){
+        int rootNode = firstNode;
+        parentNodes[firstNode] = NIL;
+        for(int i = firstNode + 1; i < endNode; i++){
+            // Pop spine positions with a strictly higher priority, the last one popped becomes the left child
+            int spineNode = i - 1;
+            int poppedNode = NIL;
+            while(spineNode != NIL && priorities[spineNode] > priorities[i]){
+                poppedNode = spineNode;
+                spineNode = parentNodes[spineNode];
+            }
+            if(poppedNode != NIL){
+                parentNodes[poppedNode] = i;
+            }
+            parentNodes[i] = spineNode;
+            if(spineNode == NIL){
+                rootNode = i;
+            }
+        }
+        return rootNode;
+    }
+
+    /**
+     * Merge two adjacent trees: walk up the right spine of the left tree (from its last position) and the
+     * left spine of the right tree (from its first position), the position with the higher priority hangs
+     * under the other. On equal priorities the left position stays on top.
+     * @param priorities Priority of every position
+     * @param parentNodes Parents of both trees, updated
+     * @param leftRoot Root of the left tree
+     * @param rightRoot Root of the right tree
+     * @param middleNode First position of the right tree
+     * @return Root of the merged tree
+     */
+    static int mergeSpines(long[] priorities, int[] parentNodes, int leftRoot, int rightRoot, int middleNode){
+        int leftSpine = middleNode - 1;
+        int rightSpine = middleNode;
+        int lowestNode;
+        if(priorities[leftSpine] > priorities[rightSpine]){
+            lowestNode = leftSpine;
+            leftSpine = parentNodes[leftSpine];
+        } else{
+            lowestNode = rightSpine;
+            rightSpine = parentNodes[rightSpine];
+        }
+
+        // Link the merged spine bottom up until one of both spines is used up, the rest stays as it is
+        while(leftSpine != NIL && rightSpine != NIL){
+            if(priorities[leftSpine] > priorities[rightSpine]){
+                parentNodes[lowestNode] = leftSpine;
+                leftSpine = parentNodes[leftSpine];
+            } else{
+                parentNodes[lowestNode] = rightSpine;
+                rightSpine = parentNodes[rightSpine];
+            }
+            lowestNode = parentNodes[lowestNode];
+        }
+        parentNodes[lowestNode] = leftSpine != NIL ? leftSpine : rightSpine;
+
+        return priorities[rightRoot] < priorities[leftRoot] ? rightRoot : leftRoot;
+    }
+
+    /**
+     * Build the parents of a range, returns its root
+     */
+    private final class BuildTask extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        private final long[] priorities;
+        private final int[] parentNodes;
+        private final int firstNode;
+        private final int endNode;
+
+        BuildTask(long[] priorities, int[] parentNodes, int firstNode, int endNode){
+            this.priorities = priorities;
+            this.parentNodes = parentNodes;
+            this.firstNode = firstNode;
+            this.endNode = endNode;
+        }
+
+        @Override
+        protected Integer compute(){
+            if(endNode - firstNode <= sequentialCutoff){
+                return buildSequential(priorities, parentNodes, firstNode, endNode);
+            }
+            int middleNode = (firstNode + endNode) >>> 1;
+            BuildTask rightTask = new BuildTask(priorities, parentNodes, middleNode, endNode);
+            rightTask.fork();
+            int leftRoot = new BuildTask(priorities, parentNodes, firstNode, middleNode).compute();
+            int rightRoot = rightTask.join();
+            return mergeSpines(priorities, parentNodes, leftRoot, rightRoot, middleNode);
+        }
+    }
+
+    /**
+     * Clear the children of a range of positions, or write every position of the range into the
+     * child slot of its parent once all are cleared (a position left of its parent is its left child)
+     */
+    private final class ChildTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] parentNodes;
+        private final int[] leftNodes;
+        private final int[] rightNodes;
+        private final int firstNode;
+        private final int endNode;
+        // False to clear the children, true to write them
+        private final boolean linking;
+
+        ChildTask(int[] parentNodes, int[] leftNodes, int[] rightNodes, int firstNode, int endNode, boolean linking){
+            this.parentNodes = parentNodes;
+            this.leftNodes = leftNodes;
+            this.rightNodes = rightNodes;
+            this.firstNode = firstNode;
+            this.endNode = endNode;
+            this.linking = linking;
+        }
+
+        @Override
+        protected void compute(){
+            if(endNode - firstNode > sequentialCutoff){
+                int middleNode = (firstNode + endNode) >>> 1;
+                invokeAll(new ChildTask(parentNodes, leftNodes, rightNodes, firstNode, middleNode, linking),
+                        new ChildTask(parentNodes, leftNodes, rightNodes, middleNode, endNode, linking));
+                return;
+            }
+            if(!linking){
+                Arrays.fill(leftNodes, firstNode, endNode, NIL);
+                Arrays.fill(rightNodes, firstNode, endNode, NIL);
+                return;
+            }
+            // Every child slot has a single writer, the parent may be in another range
+            for(int i = firstNode; i < endNode; i++){
+                int parentNode = parentNodes[i];
+                if(parentNode == NIL){
+                    continue;
+                }
+                if(i < parentNode){
+                    leftNodes[parentNode] = i;
+                } else{
+                    rightNodes[parentNode] = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * Create the nodes of a range of positions, or link them to their parents once all exist
+     */
+    private final class NodeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final long[] priorities;
+        private final TreeLinks links;
+        private final Node<Integer, Long>[] nodes;
+        private final int firstNode;
+        private final int endNode;
+        // False to create the nodes, true to link them
+        private final boolean linking;
+
+        NodeTask(long[] priorities, TreeLinks links, Node<Integer, Long>[] nodes, int firstNode, int endNode, boolean linking){
+            this.priorities = priorities;
+            this.links = links;
+            this.nodes = nodes;
+            this.firstNode = firstNode;
+            this.endNode = endNode;
+            this.linking = linking;
+        }
+
+        @Override
+        protected void compute(){
+            if(endNode - firstNode > sequentialCutoff){
+                int middleNode = (firstNode + endNode) >>> 1;
+                invokeAll(new NodeTask(priorities, links, nodes, firstNode, middleNode, linking),
+                        new NodeTask(priorities, links, nodes, middleNode, endNode, linking));
+                return;
+            }
+            for(int i = firstNode; i < endNode; i++){
+                if(!linking){
+                    nodes[i] = new Node<>(i, priorities[i]);
+                    continue;
+                }
+                Node<Integer, Long> node = nodes[i];
+                int parentNode = links.parentNodes[i];
+                node.addParentNode(parentNode == NIL ? null : nodes[parentNode]);
+                node.addLeftNode(links.leftNodes[i] == NIL ? null : nodes[links.leftNodes[i]]);
+                node.addRightNode(links.rightNodes[i] == NIL ? null : nodes[links.rightNodes[i]]);
+            }
+        }
+    }
+
+}
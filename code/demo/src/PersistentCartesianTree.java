@@ -0,0 +1,554 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/** @author Armand Bonn
+ * Persistent Cartesian tree: nodes are immutable and have no parent link, so versions of the
+ * tree share every subtree an update did not touch. insertNode, deleteNode, split and merge copy
+ * only the nodes on the paths they walk (expected O(log n) new nodes) and leave the old version intact.
+ * snapshot() is O(1): it hands out the current root. A snapshot never changes, whatever the tree
+ * does afterwards, and the nodes only it still uses are reclaimed by the garbage collector once it
+ * is dropped. One thread updates a tree, any number of threads can read snapshots of it.
+ * The shape follows CartesianTree: lower priorities nearer the root, equal keys go right of the
+ * existing ones and a new node goes below nodes of equal priority.
+ */
+public class PersistentCartesianTree<K extends Comparable<K>, P extends Comparable<P>> implements Iterable<PersistentCartesianTree.PersistentNode<K, P>> {
+
+    /**
+     * Immutable node without parent link
+     */
+    public static final class PersistentNode<K, P> {
+        private final K keyValue;
+        private final P priorityValue;
+        private final PersistentNode<K, P> leftNode;
+        private final PersistentNode<K, P> rightNode;
+        // Number of nodes in the subtree rooted here
+        private final int subtreeSize;
+
+        PersistentNode(K keyValue, P priorityValue, PersistentNode<K, P> leftNode, PersistentNode<K, P> rightNode){
+            this.keyValue = keyValue;
+            this.priorityValue = priorityValue;
+            this.leftNode = leftNode;
+            this.rightNode = rightNode;
+            this.subtreeSize = 1 + sizeOf(leftNode) + sizeOf(rightNode);
+        }
+
+        /**
+         * Copy of this node with other children
+         * @param leftNode New left child
+         * @param rightNode New right child
+         * @return New node, or this node if the children did not change
+         */
+        PersistentNode<K, P> withChildren(PersistentNode<K, P> leftNode, PersistentNode<K, P> rightNode){
+            if(leftNode == this.leftNode && rightNode == this.rightNode){
+                return this;
+            }
+            return new PersistentNode<>(keyValue, priorityValue, leftNode, rightNode);
+        }
+
+        public K getKeyValue(){
+            return keyValue;
+        }
+
+        public P getPriorityValue(){
+            return priorityValue;
+        }
+
+        public PersistentNode<K, P> getLeftNode(){
+            return leftNode;
+        }
+
+        public PersistentNode<K, P> getRightNode(){
+            return rightNode;
+        }
+
+        public int getSubtreeSize(){
+            return subtreeSize;
+        }
+    }
+
+    // Current version, volatile so a snapshot taken on one thread can be read on another
+    private volatile PersistentNode<K, P> rootNode;
+    // Source of priorities for insert(key), null if priorities are given by the caller
+    private PriorityGenerator<K, P> priorityGenerator;
+
+    /**
+     * initiator empty tree
+     */
+    public PersistentCartesianTree(){
+    }
+
+    /**
+     * initiator empty tree generating its own priorities
+     * @param priorityGenerator Source of priorities for insert(key)
+     */
+    public PersistentCartesianTree(PriorityGenerator<K, P> priorityGenerator){
+        this.priorityGenerator = priorityGenerator;
+    }
+
+    /**
+     * initiator tree over an existing version
+     * @param rootNode Root of the version
+     * @param priorityGenerator Source of priorities for insert(key) (can be null)
+     */
+    private PersistentCartesianTree(PersistentNode<K, P> rootNode, PriorityGenerator<K, P> priorityGenerator){
+        this.rootNode = rootNode;
+        this.priorityGenerator = priorityGenerator;
+    }
+
+    /**
+     * Set the source of priorities used by insert(key)
+     * @param priorityGenerator Priority generator
+     */
+    public void setPriorityGenerator(PriorityGenerator<K, P> priorityGenerator){
+        this.priorityGenerator = priorityGenerator;
+    }
+
+    /**
+     * Current version of the tree in O(1). Updates of this tree do not show in the snapshot,
+     * and the snapshot can itself be updated without changing this tree.
+     * @return Tree sharing all nodes with this one
+     */
+    public PersistentCartesianTree<K, P> snapshot(){
+        return new PersistentCartesianTree<>(rootNode, priorityGenerator);
+    }
+
+    /**
+     * Root of the current version
+     * @return Root node, null if empty
+     */
+    public PersistentNode<K, P> getRootNode(){
+        return rootNode;
+    }
+
+    /**
+     * Check if the tree is empty
+     * @return True if it is empty
+     */
+    public boolean isTreeEmpty(){
+        return rootNode == null;
+    }
+
+    /**
+     * Number of nodes in O(1)
+     * @return Number of nodes
+     */
+    public int size(){
+        return sizeOf(rootNode);
+    }
+
+    private static int sizeOf(PersistentNode<?, ?> node){
+        return node == null ? 0 : node.subtreeSize;
+    }
+
+    /**
+     * Build a tree in linear time from keys given in ascending order (same shape as CartesianTree.buildFromSorted).
+     * The right spine is kept on a stack of pending nodes: a node is only created once its right
+     * subtree is final, when a lower priority pops it or at the end.
+     * @param keyValues Key values sorted in ascending order
+     * @param priorityValues Priority value of each key
+     * @return New tree holding all pairs
+     */
+    public static <K extends Comparable<K>, P extends Comparable<P>> PersistentCartesianTree<K, P> buildFromSorted(List<K> keyValues, List<P> priorityValues){
+        if(keyValues.size() != priorityValues.size()){
+            throw new IllegalArgumentException("Got " + keyValues.size() + " keys and " + priorityValues.size() + " priorities");
+        }
+
+        // Pending spine nodes: key, priority and final left subtree
+        List<K> spineKeys = new ArrayList<>();
+        List<P> spinePriorities = new ArrayList<>();
+        List<PersistentNode<K, P>> spineLefts = new ArrayList<>();
+        Iterator<P> priorityIterator = priorityValues.iterator();
+        K lastKey = null;
+
+        for(K keyValue : keyValues){
+            P priorityValue = priorityIterator.next();
+            if(lastKey != null && keyValue.compareTo(lastKey) < 0){
+                throw new IllegalArgumentException("Keys are not sorted: " + keyValue + " after " + lastKey);
+            }
+            lastKey = keyValue;
+
+            // Pop spine nodes with a strictly higher priority, they become the left subtree of the new node
+            PersistentNode<K, P> poppedNode = null;
+            int top = spineKeys.size() - 1;
+            while(top >= 0 && spinePriorities.get(top).compareTo(priorityValue) > 0){
+                poppedNode = new PersistentNode<>(spineKeys.remove(top), spinePriorities.remove(top), spineLefts.remove(top), poppedNode);
+                top--;
+            }
+            spineKeys.add(keyValue);
+            spinePriorities.add(priorityValue);
+            spineLefts.add(poppedNode);
+        }
+
+        // Close the spine from the bottom
+        PersistentNode<K, P> rootNode = null;
+        for(int top = spineKeys.size() - 1; top >= 0; top--){
+            rootNode = new PersistentNode<>(spineKeys.get(top), spinePriorities.get(top), spineLefts.get(top), rootNode);
+        }
+        return new PersistentCartesianTree<>(rootNode, null);
+    }
+
+    // --- Updates (path copying) ---
+
+    /**
+     * Insert a key with a priority from the priority generator of the tree
+     * @param keyValue Key value
+     * @return Priority given to the key
+     */
+    public P insert(K keyValue){
+        if(priorityGenerator == null){
+            throw new IllegalStateException("No priority generator set, use insertNode(key, priority) or setPriorityGenerator");
+        }
+        P priorityValue = priorityGenerator.nextPriority(keyValue);
+        insertNode(keyValue, priorityValue);
+        return priorityValue;
+    }
+
+    /**
+     * Insert node in tree considering key and priority value. The path from the root to the
+     * new node is copied, the previous version is left unchanged.
+     * @param keyValue Key value of node to be inserted
+     * @param priorityValue Priority value of node
+     */
+    public void insertNode(K keyValue, P priorityValue){
+        // Walk down while the nodes keep a priority lower or equal to the new one
+        List<PersistentNode<K, P>> path = new ArrayList<>();
+        PersistentNode<K, P> currentNode = rootNode;
+        while(currentNode != null && currentNode.priorityValue.compareTo(priorityValue) <= 0){
+            path.add(currentNode);
+            currentNode = keyValue.compareTo(currentNode.keyValue) < 0 ? currentNode.leftNode : currentNode.rightNode;
+        }
+
+        // The new node takes the place of the subtree, split around its key (equal keys stay on its left)
+        SplitResult<K, P> split = splitNodes(currentNode, keyValue, true);
+        PersistentNode<K, P> newNode = new PersistentNode<>(keyValue, priorityValue, split.leftRoot, split.rightRoot);
+        rootNode = copyPath(path, keyValue, newNode);
+    }
+
+    /**
+     * Delete one node with the key (pairs with insert(key))
+     * @param keyValue Key value
+     * @return Priority of the deleted node, null if the key was absent
+     */
+    public P delete(K keyValue){
+        PersistentNode<K, P> node = findNode(keyValue);
+        if(node == null){
+            return null;
+        }
+        deleteNode(keyValue);
+        return node.priorityValue;
+    }
+
+    /**
+     * Delete a node with the key: it is replaced by the merge of its subtrees and the path above is copied
+     * @param keyValue Key value of node to be deleted
+     * @return True if a node was deleted
+     */
+    public boolean deleteNode(K keyValue){
+        List<PersistentNode<K, P>> path = new ArrayList<>();
+        PersistentNode<K, P> currentNode = rootNode;
+        while(currentNode != null){
+            int comparison = keyValue.compareTo(currentNode.keyValue);
+            if(comparison == 0){
+                // Right child wins priority ties, as when CartesianTree rotates a deleted node down
+                rootNode = copyPath(path, keyValue, mergeNodes(currentNode.leftNode, currentNode.rightNode, false));
+                return true;
+            }
+            path.add(currentNode);
+            currentNode = comparison < 0 ? currentNode.leftNode : currentNode.rightNode;
+        }
+        return false;
+    }
+
+    /**
+     * Split the tree by a key: nodes with a smaller key stay in this tree, the others are in the returned one.
+     * Copies only the split path, earlier snapshots keep all nodes.
+     * @param keyValue First key value of the returned tree
+     * @return New tree holding all nodes with key greater or equal to the key value
+     */
+    public PersistentCartesianTree<K, P> split(K keyValue){
+        SplitResult<K, P> result = splitNodes(rootNode, keyValue, false);
+        rootNode = result.leftRoot;
+        return new PersistentCartesianTree<>(result.rightRoot, priorityGenerator);
+    }
+
+    /**
+     * Merge two trees where every key of the left tree is smaller or equal to every key of the right tree.
+     * Unlike CartesianTree.merge both trees are left unchanged: the result shares their nodes.
+     * @param leftTree Tree with the smaller keys
+     * @param rightTree Tree with the larger keys
+     * @return New tree holding the nodes of both trees
+     */
+    public static <K extends Comparable<K>, P extends Comparable<P>> PersistentCartesianTree<K, P> merge(PersistentCartesianTree<K, P> leftTree, PersistentCartesianTree<K, P> rightTree){
+        PersistentNode<K, P> leftRoot = leftTree.rootNode;
+        PersistentNode<K, P> rightRoot = rightTree.rootNode;
+
+        // Largest key on the left must not exceed the smallest key on the right
+        if(leftRoot != null && rightRoot != null){
+            K leftMax = lastNode(leftRoot).keyValue;
+            K rightMin = firstNode(rightRoot).keyValue;
+            if(leftMax.compareTo(rightMin) > 0){
+                throw new IllegalArgumentException("Key ranges overlap: " + leftMax + " > " + rightMin);
+            }
+        }
+        return new PersistentCartesianTree<>(mergeNodes(leftRoot, rightRoot, true), leftTree.priorityGenerator);
+    }
+
+    /**
+     * Replace a subtree at the bottom of a path and copy the path bottom-up
+     * @param path Nodes from the root down to the parent of the replaced subtree, walked by the key
+     * @param keyValue Key that chose the side at every node of the path (left if smaller)
+     * @param newNode Root of the new subtree
+     * @return New root
+     */
+    private static <K extends Comparable<K>, P> PersistentNode<K, P> copyPath(List<PersistentNode<K, P>> path, K keyValue, PersistentNode<K, P> newNode){
+        for(int i = path.size() - 1; i >= 0; i--){
+            PersistentNode<K, P> parentNode = path.get(i);
+            newNode = keyValue.compareTo(parentNode.keyValue) < 0
+                    ? parentNode.withChildren(newNode, parentNode.rightNode)
+                    : parentNode.withChildren(parentNode.leftNode, newNode);
+        }
+        return newNode;
+    }
+
+    /**
+     * Roots of the two trees produced by a split
+     */
+    static final class SplitResult<K, P> {
+        PersistentNode<K, P> leftRoot;
+        PersistentNode<K, P> rightRoot;
+    }
+
+    /**
+     * Split a subtree by a key: walk the split path down, then rebuild both sides bottom-up.
+     * Nodes going left get the left result so far as right child, nodes going right get the right
+     * result so far as left child.
+     * @param currentNode Root of the subtree to split
+     * @param keyValue Key value to split on
+     * @param equalGoesLeft True if nodes with a key equal to the key value go to the left tree
+     * @return Roots of the left and right trees
+     */
+    static <K extends Comparable<K>, P> SplitResult<K, P> splitNodes(PersistentNode<K, P> currentNode, K keyValue, boolean equalGoesLeft){
+        List<PersistentNode<K, P>> path = new ArrayList<>();
+        while(currentNode != null){
+            path.add(currentNode);
+            int comparison = currentNode.keyValue.compareTo(keyValue);
+            currentNode = comparison < 0 || (comparison == 0 && equalGoesLeft) ? currentNode.rightNode : currentNode.leftNode;
+        }
+
+        SplitResult<K, P> result = new SplitResult<>();
+        for(int i = path.size() - 1; i >= 0; i--){
+            PersistentNode<K, P> node = path.get(i);
+            int comparison = node.keyValue.compareTo(keyValue);
+            if(comparison < 0 || (comparison == 0 && equalGoesLeft)){
+                result.leftRoot = node.withChildren(node.leftNode, result.leftRoot);
+            } else{
+                result.rightRoot = node.withChildren(result.rightRoot, node.rightNode);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Merge two subtrees where all keys on the left are smaller or equal to the keys on the right:
+     * walk down the winners (lowest priority), then rebuild them bottom-up
+     * @param leftNode Root of the left subtree
+     * @param rightNode Root of the right subtree
+     * @param leftWinsTies True if the left root wins equal priorities (CartesianTree.merge), false for deletions
+     * @return Root of the merged subtree
+     */
+    static <K, P extends Comparable<P>> PersistentNode<K, P> mergeNodes(PersistentNode<K, P> leftNode, PersistentNode<K, P> rightNode, boolean leftWinsTies){
+        List<PersistentNode<K, P>> winners = new ArrayList<>();
+        // Side of each winner: a left winner merges on in its right subtree, a right winner in its left subtree
+        BitSet leftWinners = new BitSet();
+        while(leftNode != null && rightNode != null){
+            int comparison = leftNode.priorityValue.compareTo(rightNode.priorityValue);
+            if(comparison < 0 || (comparison == 0 && leftWinsTies)){
+                leftWinners.set(winners.size());
+                winners.add(leftNode);
+                leftNode = leftNode.rightNode;
+            } else{
+                winners.add(rightNode);
+                rightNode = rightNode.leftNode;
+            }
+        }
+
+        // The rest of the other side hangs below the last winner
+        PersistentNode<K, P> mergedNode = leftNode != null ? leftNode : rightNode;
+        for(int i = winners.size() - 1; i >= 0; i--){
+            PersistentNode<K, P> winnerNode = winners.get(i);
+            mergedNode = leftWinners.get(i) ? winnerNode.withChildren(winnerNode.leftNode, mergedNode) : winnerNode.withChildren(mergedNode, winnerNode.rightNode);
+        }
+        return mergedNode;
+    }
+
+    // --- Lookups ---
+
+    /**
+     * Find a node with the key
+     * @param keyValue Key value
+     * @return Node, null if absent
+     */
+    public PersistentNode<K, P> findNode(K keyValue){
+        PersistentNode<K, P> currentNode = rootNode;
+        while(currentNode != null){
+            int comparison = keyValue.compareTo(currentNode.keyValue);
+            if(comparison == 0){
+                return currentNode;
+            }
+            currentNode = comparison < 0 ? currentNode.leftNode : currentNode.rightNode;
+        }
+        return null;
+    }
+
+    private static <K, P> PersistentNode<K, P> firstNode(PersistentNode<K, P> node){
+        while(node.leftNode != null){
+            node = node.leftNode;
+        }
+        return node;
+    }
+
+    private static <K, P> PersistentNode<K, P> lastNode(PersistentNode<K, P> node){
+        while(node.rightNode != null){
+            node = node.rightNode;
+        }
+        return node;
+    }
+
+    /**
+     * In-order iterator over the version current when it is created
+     * @return Iterator over all nodes by ascending key
+     */
+    @Override
+    public Iterator<PersistentNode<K, P>> iterator(){
+        return new NodeIterator<>(rootNode, null, null);
+    }
+
+    /**
+     * In-order iterator over the nodes with a key in [lowKey, highKey]
+     * @param lowKey Lowest key value (inclusive)
+     * @param highKey Highest key value (inclusive)
+     * @return Iterator over the nodes in range
+     */
+    public Iterator<PersistentNode<K, P>> iterator(K lowKey, K highKey){
+        return new NodeIterator<>(rootNode, lowKey, highKey);
+    }
+
+    /**
+     * In-order iterator with an explicit stack (nodes have no parent link)
+     */
+    private static final class NodeIterator<K extends Comparable<K>, P> implements Iterator<PersistentNode<K, P>> {
+        private final Deque<PersistentNode<K, P>> stack = new ArrayDeque<>();
+        private final K lowKey;
+        private final K highKey;
+
+        NodeIterator(PersistentNode<K, P> rootNode, K lowKey, K highKey){
+            this.lowKey = lowKey;
+            this.highKey = highKey;
+            pushLeft(rootNode);
+        }
+
+        /**
+         * Push the left path of a subtree, skipping nodes below the low key (and their left subtrees)
+         */
+        private void pushLeft(PersistentNode<K, P> node){
+            while(node != null){
+                if(lowKey != null && node.keyValue.compareTo(lowKey) < 0){
+                    node = node.rightNode;
+                } else{
+                    stack.push(node);
+                    node = node.leftNode;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext(){
+            return !stack.isEmpty() && (highKey == null || stack.peek().keyValue.compareTo(highKey) <= 0);
+        }
+
+        @Override
+        public PersistentNode<K, P> next(){
+            if(!hasNext()){
+                throw new NoSuchElementException();
+            }
+            PersistentNode<K, P> node = stack.pop();
+            pushLeft(node.rightNode);
+            return node;
+        }
+    }
+
+    // --- Checks ---
+
+    /**
+     * Get height of the tree
+     * @return Height of the tree, -1 if empty
+     */
+    public int getHeight(){
+        int height = -1;
+        Deque<PersistentNode<K, P>> nodes = new ArrayDeque<>();
+        Deque<Integer> depths = new ArrayDeque<>();
+        if(rootNode != null){
+            nodes.push(rootNode);
+            depths.push(0);
+        }
+        while(!nodes.isEmpty()){
+            PersistentNode<K, P> node = nodes.pop();
+            int depth = depths.pop();
+            height = Math.max(height, depth);
+            if(node.leftNode != null){
+                nodes.push(node.leftNode);
+                depths.push(depth + 1);
+            }
+            if(node.rightNode != null){
+                nodes.push(node.rightNode);
+                depths.push(depth + 1);
+            }
+        }
+        return height;
+    }
+
+    /**
+     * Verify key order, heap order and subtree sizes of the current version
+     * @return True if the tree is a valid Cartesian tree
+     */
+    public boolean verifyCartiesanTree(){
+        Deque<PersistentNode<K, P>> nodes = new ArrayDeque<>();
+        if(rootNode != null){
+            nodes.push(rootNode);
+        }
+        while(!nodes.isEmpty()){
+            PersistentNode<K, P> node = nodes.pop();
+            if(node.subtreeSize != 1 + sizeOf(node.leftNode) + sizeOf(node.rightNode)){
+                return false;
+            }
+            if(node.leftNode != null){
+                if(node.leftNode.priorityValue.compareTo(node.priorityValue) < 0 || node.leftNode.keyValue.compareTo(node.keyValue) > 0){
+                    return false;
+                }
+                nodes.push(node.leftNode);
+            }
+            if(node.rightNode != null){
+                if(node.rightNode.priorityValue.compareTo(node.priorityValue) < 0 || node.rightNode.keyValue.compareTo(node.keyValue) < 0){
+                    return false;
+                }
+                nodes.push(node.rightNode);
+            }
+        }
+
+        // Key order over the whole tree
+        K previousKey = null;
+        for(PersistentNode<K, P> node : this){
+            if(previousKey != null && previousKey.compareTo(node.keyValue) > 0){
+                return false;
+            }
+            previousKey = node.keyValue;
+        }
+        return true;
+    }
+
+}
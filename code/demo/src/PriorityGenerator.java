@@ -0,0 +1,80 @@
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.ToLongFunction;
+
+/** @author Armand Bonn
+ * Source of priorities for CartesianTree.insert(key), so callers do not have to invent them.
+ * Priorities drawn independently of the keys give the tree an expected logarithmic height
+ * whatever the insertion order.
+ */
+@FunctionalInterface
+public interface PriorityGenerator<K, P extends Comparable<P>> {
+
+    /**
+     * Priority of a key about to be inserted
+     * @param keyValue Key value
+     * @return Priority value of the new node
+     */
+    P nextPriority(K keyValue);
+
+    /**
+     * Random priorities from a generator owned by the tree (not thread-safe, use one per tree)
+     * @return Generator of random long priorities
+     */
+    static <K> PriorityGenerator<K, Long> random(){
+        SplittableRandom random = new SplittableRandom();
+        return keyValue -> random.nextLong();
+    }
+
+    /**
+     * Random priorities from a seeded generator, same sequence on every run
+     * @param seed Seed of the generator
+     * @return Generator of random long priorities
+     */
+    static <K> PriorityGenerator<K, Long> random(long seed){
+        SplittableRandom random = new SplittableRandom(seed);
+        return keyValue -> random.nextLong();
+    }
+
+    /**
+     * Random priorities from the generator of the calling thread, for trees shared between threads
+     * @return Thread-safe generator of random long priorities
+     */
+    static <K> PriorityGenerator<K, Long> concurrentRandom(){
+        return keyValue -> ThreadLocalRandom.current().nextLong();
+    }
+
+    /**
+     * Priorities derived from the hashCode of the key: the tree shape only depends on the set of keys.
+     * Reproducible across runs and machines for keys with a specified hashCode (Integer, Long, String...).
+     * @param seed Seed mixed with the hash
+     * @return Generator of hash-derived long priorities
+     */
+    static <K> PriorityGenerator<K, Long> keyHash(long seed){
+        return keyHash(seed, Object::hashCode);
+    }
+
+    /**
+     * Priorities derived from a caller given 64-bit hash of the key
+     * @param seed Seed mixed with the hash
+     * @param keyHasher Hash function of the keys
+     * @return Generator of hash-derived long priorities
+     */
+    static <K> PriorityGenerator<K, Long> keyHash(long seed, ToLongFunction<? super K> keyHasher){
+        return keyValue -> mix64(keyHasher.applyAsLong(keyValue) + seed);
+    }
+
+    /**
+     * SplitMix64 finalizer: spreads every input bit over the whole output,
+     * so close or sequential hashes still give independent looking priorities
+     * @param value Value to mix
+     * @return Mixed value
+     */
+    static long mix64(long value){
+        long mixed = value * 0x9E3779B97F4A7C15L;
+        mixed = (mixed ^ (mixed >>> 30)) * 0xBF58476D1CE4E5B9L;
+        mixed = (mixed ^ (mixed >>> 27)) * 0x94D049BB133111EBL;
+        return mixed ^ (mixed >>> 31);
+    }
+
+}
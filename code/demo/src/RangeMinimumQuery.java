@@ -0,0 +1,276 @@
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/** @author Armand Bonn
+ * Read-only range minimum query index over a fixed array of long values.
+ * The minimum of a range [i, j] is the lowest common ancestor of i and j in the Cartesian tree
+ * of the array (position as key, value as priority). The index is built in O(n):
+ * Cartesian tree with a stack, Euler tour of the tree, then a block decomposition of the
+ * Euler tour depths (sparse table over blocks of 64, bit masks inside a block).
+ * Queries take O(1) and do not allocate. Ties return the left most minimum.
+ */
+public class RangeMinimumQuery {
+    // Block size of the decomposition, one bit per position in a long
+    private static final int BLOCK_SIZE = 64;
+    private static final int BLOCK_SHIFT = 6;
+
+    // Copy of the indexed values
+    private final long[] values;
+    // Position of the first visit of each array index in the Euler tour
+    private final int[] firstVisit;
+    // Array index and tree depth of each step of the Euler tour
+    private final int[] eulerNodes;
+    private final int[] eulerDepths;
+    // Per Euler position: positions of its block still on the minimum stack when it is reached
+    private final long[] blockMasks;
+    // sparseTable[k][b]: Euler position of the minimum of blocks b to b + 2^k - 1
+    private final int[][] sparseTable;
+
+    /**
+     * Build the index
+     * @param values Values to query (copied)
+     */
+    public RangeMinimumQuery(long[] values){
+        int size = values.length;
+        this.values = values.clone();
+
+        if(size == 0){
+            this.firstVisit = new int[0];
+            this.eulerNodes = new int[0];
+            this.eulerDepths = new int[0];
+            this.blockMasks = new long[0];
+            this.sparseTable = new int[0][];
+            return;
+        }
+
+        // Cartesian tree of the values with a stack holding the right spine
+        int[] parentNodes = new int[size];
+        int[] leftNodes = new int[size];
+        int[] rightNodes = new int[size];
+        Arrays.fill(leftNodes, -1);
+        Arrays.fill(rightNodes, -1);
+        int[] stack = new int[size];
+        int top = 0;
+        for(int i = 0; i < size; i++){
+            // Pop strictly larger values, so the left most of equal values stays the ancestor
+            int poppedNode = -1;
+            while(top > 0 && values[stack[top - 1]] > values[i]){
+                poppedNode = stack[--top];
+            }
+            leftNodes[i] = poppedNode;
+            if(poppedNode != -1){
+                parentNodes[poppedNode] = i;
+            }
+            if(top > 0){
+                rightNodes[stack[top - 1]] = i;
+                parentNodes[i] = stack[top - 1];
+            } else{
+                parentNodes[i] = -1;
+            }
+            stack[top++] = i;
+        }
+        int rootNode = stack[0];
+
+        // Euler tour: a node is written when first reached and again after each of its children
+        int tourLength = 2 * size - 1;
+        this.firstVisit = new int[size];
+        this.eulerNodes = new int[tourLength];
+        this.eulerDepths = new int[tourLength];
+        int position = 0;
+        int depth = 0;
+        int currentNode = rootNode;
+        int previousNode = -1;
+        while(currentNode != -1){
+            eulerNodes[position] = currentNode;
+            eulerDepths[position] = depth;
+
+            int nextNode;
+            if(previousNode == parentNodes[currentNode]){
+                firstVisit[currentNode] = position;
+                nextNode = leftNodes[currentNode] != -1 ? leftNodes[currentNode] : rightNodes[currentNode];
+            } else if(previousNode == leftNodes[currentNode]){
+                nextNode = rightNodes[currentNode];
+            } else{
+                nextNode = -1;
+            }
+            if(nextNode == -1){
+                nextNode = parentNodes[currentNode];
+                depth--;
+            } else{
+                depth++;
+            }
+
+            position++;
+            previousNode = currentNode;
+            currentNode = nextNode;
+        }
+
+        // In-block masks: bit p is set for positions still on the minimum stack of the block
+        this.blockMasks = new long[tourLength];
+        int blockCount = (tourLength + BLOCK_SIZE - 1) >>> BLOCK_SHIFT;
+        int[] blockMinimums = new int[blockCount];
+        for(int block = 0; block < blockCount; block++){
+            int blockStart = block << BLOCK_SHIFT;
+            int blockEnd = Math.min(blockStart + BLOCK_SIZE, tourLength);
+            long mask = 0L;
+            for(int i = blockStart; i < blockEnd; i++){
+                // Pop positions with a strictly larger depth (highest bits are the top of the stack)
+                while(mask != 0L){
+                    int topPosition = blockStart + 63 - Long.numberOfLeadingZeros(mask);
+                    if(eulerDepths[topPosition] <= eulerDepths[i]){
+                        break;
+                    }
+                    mask &= ~(1L << (topPosition - blockStart));
+                }
+                mask |= 1L << (i - blockStart);
+                blockMasks[i] = mask;
+            }
+            blockMinimums[block] = blockStart + Long.numberOfTrailingZeros(blockMasks[blockEnd - 1]);
+        }
+
+        // Sparse table over the block minimums
+        int levels = 32 - Integer.numberOfLeadingZeros(blockCount);
+        this.sparseTable = new int[levels][];
+        sparseTable[0] = blockMinimums;
+        for(int level = 1; level < levels; level++){
+            int[] previousLevel = sparseTable[level - 1];
+            int half = 1 << (level - 1);
+            int[] currentLevel = new int[blockCount - (1 << level) + 1];
+            for(int block = 0; block < currentLevel.length; block++){
+                currentLevel[block] = minimumPosition(previousLevel[block], previousLevel[block + half]);
+            }
+            sparseTable[level] = currentLevel;
+        }
+    }
+
+    /**
+     * Number of indexed values
+     * @return Size of the array
+     */
+    public int size(){
+        return values.length;
+    }
+
+    /**
+     * Minimum value in [lowIndex, highIndex]
+     * @param lowIndex First array index (inclusive)
+     * @param highIndex Last array index (inclusive)
+     * @return Minimum value of the range
+     */
+    public long rangeMin(int lowIndex, int highIndex){
+        return values[rangeMinIndex(lowIndex, highIndex)];
+    }
+
+    /**
+     * Index of the (left most) minimum value in [lowIndex, highIndex]
+     * @param lowIndex First array index (inclusive)
+     * @param highIndex Last array index (inclusive)
+     * @return Array index of the minimum
+     */
+    public int rangeMinIndex(int lowIndex, int highIndex){
+        if(lowIndex < 0 || highIndex >= values.length || lowIndex > highIndex){
+            throw new IndexOutOfBoundsException("Range [" + lowIndex + ", " + highIndex + "] out of bounds for size " + values.length);
+        }
+
+        // Lowest common ancestor: shallowest node of the Euler tour between both first visits
+        int firstPosition = firstVisit[lowIndex];
+        int lastPosition = firstVisit[highIndex];
+        if(firstPosition > lastPosition){
+            int swap = firstPosition;
+            firstPosition = lastPosition;
+            lastPosition = swap;
+        }
+        return eulerNodes[eulerMinimum(firstPosition, lastPosition)];
+    }
+
+    /**
+     * Answer a batch of queries in parallel
+     * @param lowIndices First index of each range (inclusive)
+     * @param highIndices Last index of each range (inclusive)
+     * @param results Receives the index of the minimum of each range
+     */
+    public void rangeMinIndex(int[] lowIndices, int[] highIndices, int[] results){
+        if(lowIndices.length != highIndices.length || results.length < lowIndices.length){
+            throw new IllegalArgumentException("Query and result arrays do not have matching lengths");
+        }
+        IntStream.range(0, lowIndices.length).parallel().forEach(i -> results[i] = rangeMinIndex(lowIndices[i], highIndices[i]));
+    }
+
+    /**
+     * Answer a batch of queries in parallel
+     * @param lowIndices First index of each range (inclusive)
+     * @param highIndices Last index of each range (inclusive)
+     * @param results Receives the minimum value of each range
+     */
+    public void rangeMin(int[] lowIndices, int[] highIndices, long[] results){
+        if(lowIndices.length != highIndices.length || results.length < lowIndices.length){
+            throw new IllegalArgumentException("Query and result arrays do not have matching lengths");
+        }
+        IntStream.range(0, lowIndices.length).parallel().forEach(i -> results[i] = rangeMin(lowIndices[i], highIndices[i]));
+    }
+
+    /**
+     * Approximate heap size of the index (array headers included)
+     * @return Number of bytes used by the index
+     */
+    public long memoryFootprintBytes(){
+        final long arrayHeader = 16;
+        long bytes = arrayHeader + 8L * values.length;
+        bytes += arrayHeader + 4L * firstVisit.length;
+        bytes += arrayHeader + 4L * eulerNodes.length;
+        bytes += arrayHeader + 4L * eulerDepths.length;
+        bytes += arrayHeader + 8L * blockMasks.length;
+        bytes += arrayHeader + 4L * sparseTable.length;
+        for(int[] level : sparseTable){
+            bytes += arrayHeader + 4L * level.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Euler position with the lowest depth in [firstPosition, lastPosition]
+     * @param firstPosition First Euler position (inclusive)
+     * @param lastPosition Last Euler position (inclusive)
+     * @return Position of the minimum depth
+     */
+    private int eulerMinimum(int firstPosition, int lastPosition){
+        int firstBlock = firstPosition >>> BLOCK_SHIFT;
+        int lastBlock = lastPosition >>> BLOCK_SHIFT;
+        if(firstBlock == lastBlock){
+            return inBlockMinimum(firstPosition, lastPosition);
+        }
+
+        // Tail of the first block, head of the last block and the full blocks in between
+        int minimum = inBlockMinimum(firstPosition, (firstBlock << BLOCK_SHIFT) + BLOCK_SIZE - 1);
+        if(lastBlock - firstBlock > 1){
+            int level = 31 - Integer.numberOfLeadingZeros(lastBlock - firstBlock - 1);
+            int[] table = sparseTable[level];
+            minimum = minimumPosition(minimum, table[firstBlock + 1]);
+            minimum = minimumPosition(minimum, table[lastBlock - (1 << level)]);
+        }
+        return minimumPosition(minimum, inBlockMinimum(lastBlock << BLOCK_SHIFT, lastPosition));
+    }
+
+    /**
+     * Minimum inside one block: lowest stack position at or after the first position
+     * @param firstPosition First Euler position (inclusive)
+     * @param lastPosition Last Euler position (inclusive), in the same block
+     * @return Position of the minimum depth
+     */
+    private int inBlockMinimum(int firstPosition, int lastPosition){
+        int offset = firstPosition & (BLOCK_SIZE - 1);
+        long mask = blockMasks[lastPosition] & (-1L << offset);
+        return (firstPosition - offset) + Long.numberOfTrailingZeros(mask);
+    }
+
+    /**
+     * Position of the lowest depth, the first one on ties
+     * @param firstPosition Position on the left
+     * @param secondPosition Position on the right
+     * @return Position of the minimum
+     */
+    private int minimumPosition(int firstPosition, int secondPosition){
+        return eulerDepths[secondPosition] < eulerDepths[firstPosition] ? secondPosition : firstPosition;
+    }
+
+}
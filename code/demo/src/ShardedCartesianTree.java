@@ -0,0 +1,527 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** @author Armand Bonn
+ * Thread-safe container splitting the key space in ranges (shards), each one a CartesianTree with its
+ * own read-write lock, so writers to different ranges never touch the same nodes or the same lock.
+ * The shard table (lower bound of each shard) is immutable and replaced as a whole when shards are
+ * split or merged: an operation routes its key with the current table, locks the shard, and starts
+ * over if the shard was retired meanwhile. A shard growing above maxShardSize is split at its median
+ * key; a shard shrinking below an eighth of it is merged with a neighbor if both fit in half of it.
+ * Rebalancing is serialized by a structure lock taken before shard locks, in key order, while
+ * writers hold a single shard lock, so there is no deadlock.
+ * Iterators and range queries visit the shards in key order, one read lock at a time: they are
+ * weakly consistent across shards, like the iterators of ConcurrentCartesianTree.
+ */
+public class ShardedCartesianTree<K extends Comparable<K>, P extends Comparable<P>> implements Iterable<Map.Entry<K, P>> {
+    // Default split threshold of a shard
+    public static final int DEFAULT_MAX_SHARD_SIZE = 1 << 16;
+    // Pairs copied per read lock by the iterators
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * Key range [lowKey, lowKey of the next shard) and its tree
+     */
+    private static final class Shard<K extends Comparable<K>, P extends Comparable<P>> {
+        // Lowest key of the shard, null for the first shard
+        final K lowKey;
+        // Tree with order statistics (size, select)
+        final CartesianTree<K, P> tree;
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        // Set under the write lock when a rebalance replaces the shard
+        boolean retired;
+
+        Shard(K lowKey, CartesianTree<K, P> tree){
+            this.lowKey = lowKey;
+            this.tree = tree;
+        }
+    }
+
+    private final int maxShardSize;
+    // Shards in key order, replaced (never changed) by a rebalance
+    private volatile List<Shard<K, P>> shards;
+    private final ReentrantLock structureLock = new ReentrantLock();
+
+    /**
+     * initiator sharded tree starting with one shard, split as it grows
+     */
+    public ShardedCartesianTree(){
+        this(Collections.emptyList(), DEFAULT_MAX_SHARD_SIZE);
+    }
+
+    /**
+     * initiator sharded tree starting with one shard per range between boundaries
+     * @param boundaries Lowest key of every shard after the first, in ascending order (e.g. quantiles of the expected keys)
+     * @param maxShardSize Number of nodes above which a shard is split in two
+     */
+    public ShardedCartesianTree(List<K> boundaries, int maxShardSize){
+        if(maxShardSize < 2){
+            throw new IllegalArgumentException("Shards must hold at least 2 nodes: " + maxShardSize);
+        }
+        this.maxShardSize = maxShardSize;
+        List<Shard<K, P>> initialShards = new ArrayList<>();
+        initialShards.add(new Shard<K, P>(null, new CartesianTree<>(true)));
+        for(K boundary : boundaries){
+            K previous = initialShards.get(initialShards.size() - 1).lowKey;
+            if(previous != null && previous.compareTo(boundary) >= 0){
+                throw new IllegalArgumentException("Boundaries are not in ascending order: " + previous + " >= " + boundary);
+            }
+            initialShards.add(new Shard<K, P>(boundary, new CartesianTree<>(true)));
+        }
+        this.shards = Collections.unmodifiableList(initialShards);
+    }
+
+    /**
+     * Index of the shard holding a key in a shard table (binary search on the lower bounds)
+     * @param table Shard table
+     * @param keyValue Key value, null for the first shard
+     * @return Index of the last shard with a lower bound smaller or equal to the key
+     */
+    private static <K extends Comparable<K>, P extends Comparable<P>> int shardIndex(List<Shard<K, P>> table, K keyValue){
+        if(keyValue == null){
+            return 0;
+        }
+        int low = 1;
+        int high = table.size() - 1;
+        int index = 0;
+        while(low <= high){
+            int middle = (low + high) >>> 1;
+            if(table.get(middle).lowKey.compareTo(keyValue) <= 0){
+                index = middle;
+                low = middle + 1;
+            } else{
+                high = middle - 1;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Lock the live shard of a key, routing again if a rebalance retired it
+     * @param keyValue Key value
+     * @param write True for the write lock, false for the read lock
+     * @return Locked shard (to unlock by the caller)
+     */
+    private Shard<K, P> lockShard(K keyValue, boolean write){
+        while(true){
+            List<Shard<K, P>> table = shards;
+            Shard<K, P> shard = table.get(shardIndex(table, keyValue));
+            Lock lock = write ? shard.lock.writeLock() : shard.lock.readLock();
+            lock.lock();
+            if(!shard.retired){
+                return shard;
+            }
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Insert a node in the shard of its key, splitting the shard if it became too large
+     * @param keyValue Key value of node to be inserted
+     * @param priorityValue Priority value of node
+     */
+    public void insertNode(K keyValue, P priorityValue){
+        Shard<K, P> shard = lockShard(keyValue, true);
+        int shardSize;
+        try {
+            shard.tree.insertNode(keyValue, priorityValue);
+            shardSize = shard.tree.size();
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+        if(shardSize > maxShardSize){
+            splitShard(shard);
+        }
+    }
+
+    /**
+     * Delete a node from the shard of its key, merging the shard with a neighbor if it became small
+     * @param keyValue Key value of the node to delete
+     * @param priorityValue Priority value of the node to delete
+     */
+    public void deleteNode(K keyValue, P priorityValue){
+        Shard<K, P> shard = lockShard(keyValue, true);
+        int shardSize;
+        try {
+            shard.tree.deleteNode(keyValue, priorityValue);
+            shardSize = shard.tree.size();
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+        if(shardSize < maxShardSize / 8){
+            mergeShard(shard);
+        }
+    }
+
+    /**
+     * Find the priority of a key
+     * @param keyValue Key value to look up
+     * @return Priority value of the key, null if absent
+     */
+    public P findPriority(K keyValue){
+        Shard<K, P> shard = lockShard(keyValue, false);
+        try {
+            Node<K, P> node = shard.tree.findNode(keyValue);
+            return node == null ? null : node.getPriorityValue();
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Check if a key is in the tree
+     * @param keyValue Key value to look up
+     * @return True if the key is present
+     */
+    public boolean contains(K keyValue){
+        return findPriority(keyValue) != null;
+    }
+
+    /**
+     * Split a shard at its median key (called without any shard lock held)
+     * @param shard Shard found too large by a writer
+     */
+    private void splitShard(Shard<K, P> shard){
+        structureLock.lock();
+        try {
+            shard.lock.writeLock().lock();
+            try {
+                int shardSize = shard.tree.size();
+                if(shard.retired || shardSize <= maxShardSize){
+                    return;
+                }
+                // Equal keys stay together: give up if the median key is also the first one
+                K medianKey = shard.tree.select(shardSize / 2).getKeyValue();
+                if(medianKey.compareTo(shard.tree.getFirstNode().getKeyValue()) == 0){
+                    return;
+                }
+                CartesianTree<K, P> rightTree = shard.tree.split(medianKey);
+
+                List<Shard<K, P>> table = new ArrayList<>(shards);
+                int index = table.indexOf(shard);
+                table.set(index, new Shard<>(shard.lowKey, shard.tree));
+                table.add(index + 1, new Shard<>(medianKey, rightTree));
+                shards = Collections.unmodifiableList(table);
+                shard.retired = true;
+            } finally {
+                shard.lock.writeLock().unlock();
+            }
+        } finally {
+            structureLock.unlock();
+        }
+    }
+
+    /**
+     * Merge a small shard with its smaller neighbor if both fit in half a shard (called without any shard lock held)
+     * @param shard Shard found small by a writer
+     */
+    private void mergeShard(Shard<K, P> shard){
+        structureLock.lock();
+        try {
+            List<Shard<K, P>> table = shards;
+            int index = table.indexOf(shard);
+            if(index < 0 || table.size() == 1){
+                return;
+            }
+            // Neighbor with fewer nodes (the table cannot change while the structure lock is held)
+            int neighborIndex;
+            if(index == 0){
+                neighborIndex = 1;
+            } else if(index == table.size() - 1){
+                neighborIndex = index - 1;
+            } else{
+                neighborIndex = sizeOf(table.get(index - 1)) <= sizeOf(table.get(index + 1)) ? index - 1 : index + 1;
+            }
+            Shard<K, P> leftShard = table.get(Math.min(index, neighborIndex));
+            Shard<K, P> rightShard = table.get(Math.max(index, neighborIndex));
+
+            // Shard locks in key order
+            leftShard.lock.writeLock().lock();
+            try {
+                rightShard.lock.writeLock().lock();
+                try {
+                    if(leftShard.tree.size() + rightShard.tree.size() > maxShardSize / 2){
+                        return;
+                    }
+                    CartesianTree<K, P> mergedTree = CartesianTree.merge(leftShard.tree, rightShard.tree);
+                    List<Shard<K, P>> newTable = new ArrayList<>(table);
+                    newTable.set(Math.min(index, neighborIndex), new Shard<>(leftShard.lowKey, mergedTree));
+                    newTable.remove(Math.max(index, neighborIndex));
+                    shards = Collections.unmodifiableList(newTable);
+                    leftShard.retired = true;
+                    rightShard.retired = true;
+                } finally {
+                    rightShard.lock.writeLock().unlock();
+                }
+            } finally {
+                leftShard.lock.writeLock().unlock();
+            }
+        } finally {
+            structureLock.unlock();
+        }
+    }
+
+    private static <K extends Comparable<K>, P extends Comparable<P>> int sizeOf(Shard<K, P> shard){
+        shard.lock.readLock().lock();
+        try {
+            return shard.tree.size();
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Number of nodes, summed over the shards (weakly consistent under concurrent updates)
+     * @return Number of nodes
+     */
+    public int size(){
+        while(true){
+            List<Shard<K, P>> table = shards;
+            int size = 0;
+            boolean retired = false;
+            for(Shard<K, P> shard : table){
+                shard.lock.readLock().lock();
+                try {
+                    retired = shard.retired;
+                    size += shard.tree.size();
+                } finally {
+                    shard.lock.readLock().unlock();
+                }
+                if(retired){
+                    break;
+                }
+            }
+            if(!retired){
+                return size;
+            }
+        }
+    }
+
+    /**
+     * Check if the tree is empty
+     * @return True if there is no node
+     */
+    public boolean isTreeEmpty(){
+        return size() == 0;
+    }
+
+    /**
+     * Number of shards
+     * @return Current number of shards
+     */
+    public int getShardCount(){
+        return shards.size();
+    }
+
+    /**
+     * Iterator over all pairs in ascending key order
+     * @return Weakly consistent iterator
+     */
+    @Override
+    public Iterator<Map.Entry<K, P>> iterator(){
+        return new ShardIterator(null, null);
+    }
+
+    /**
+     * Iterator over the pairs with a key in [lowKey, highKey], in ascending key order
+     * @param lowKey Lowest key value (inclusive)
+     * @param highKey Highest key value (inclusive)
+     * @return Weakly consistent iterator over the range
+     */
+    public Iterator<Map.Entry<K, P>> iterator(K lowKey, K highKey){
+        return new ShardIterator(lowKey, highKey);
+    }
+
+    /**
+     * The k pairs of lowest priority with a key in [lowKey, highKey]: the top k of every shard of the
+     * range (CartesianTree.topK), merged by priority
+     * @param lowKey Lowest key value (inclusive)
+     * @param highKey Highest key value (inclusive)
+     * @param k Maximum number of pairs
+     * @return Up to k pairs in ascending priority order
+     */
+    public List<Map.Entry<K, P>> topK(K lowKey, K highKey, int k){
+        while(true){
+            List<Shard<K, P>> table = shards;
+            List<Map.Entry<K, P>> candidates = new ArrayList<>();
+            boolean retired = false;
+            for(int index = shardIndex(table, lowKey); index < table.size() && !retired; index++){
+                Shard<K, P> shard = table.get(index);
+                if(shard.lowKey != null && shard.lowKey.compareTo(highKey) > 0){
+                    break;
+                }
+                shard.lock.readLock().lock();
+                try {
+                    retired = shard.retired;
+                    if(!retired){
+                        for(Node<K, P> node : shard.tree.topK(lowKey, highKey, k)){
+                            candidates.add(new AbstractMap.SimpleImmutableEntry<>(node.getKeyValue(), node.getPriorityValue()));
+                        }
+                    }
+                } finally {
+                    shard.lock.readLock().unlock();
+                }
+            }
+            if(!retired){
+                candidates.sort(Map.Entry.comparingByValue());
+                return candidates.size() > k ? new ArrayList<>(candidates.subList(0, k)) : candidates;
+            }
+        }
+    }
+
+    /**
+     * Height of the highest shard tree
+     * @return Number of levels
+     */
+    public int getHeight(){
+        int height = 0;
+        for(Shard<K, P> shard : shards){
+            shard.lock.readLock().lock();
+            try {
+                height = Math.max(height, shard.tree.getHeight());
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }
+        return height;
+    }
+
+    /**
+     * Check every shard is a valid Cartesian tree holding only keys of its range (only meaningful without concurrent updates)
+     * @return True if all shards are valid
+     */
+    public boolean verifyCartiesanTree(){
+        List<Shard<K, P>> table = shards;
+        for(int index = 0; index < table.size(); index++){
+            Shard<K, P> shard = table.get(index);
+            K highBound = index + 1 < table.size() ? table.get(index + 1).lowKey : null;
+            shard.lock.readLock().lock();
+            try {
+                if(shard.retired || !shard.tree.verifyCartiesanTree()){
+                    return false;
+                }
+                Node<K, P> firstNode = shard.tree.getFirstNode();
+                Node<K, P> lastNode = shard.tree.getLastNode();
+                if(firstNode != null && shard.lowKey != null && firstNode.getKeyValue().compareTo(shard.lowKey) < 0){
+                    return false;
+                }
+                if(lastNode != null && highBound != null && lastNode.getKeyValue().compareTo(highBound) >= 0){
+                    return false;
+                }
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Iterator copying batches of pairs under the read lock of one shard at a time. A batch ends on a
+     * key change, and the next one starts after that key in whatever shard holds it then.
+     */
+    private final class ShardIterator implements Iterator<Map.Entry<K, P>> {
+        // Bounds of the iteration, null for no bound
+        private final K lowKey;
+        private final K highKey;
+        private final List<Map.Entry<K, P>> batch = new ArrayList<>(BATCH_SIZE);
+        private int batchIndex;
+        // Last key copied (the next batch starts after it), null before the first batch
+        private K lastKey;
+        private boolean finished;
+
+        ShardIterator(K lowKey, K highKey){
+            this.lowKey = lowKey;
+            this.highKey = highKey;
+            this.finished = lowKey != null && highKey != null && lowKey.compareTo(highKey) > 0;
+        }
+
+        @Override
+        public boolean hasNext(){
+            if(batchIndex < batch.size()){
+                return true;
+            }
+            if(finished){
+                return false;
+            }
+            fetchBatch();
+            return batchIndex < batch.size();
+        }
+
+        @Override
+        public Map.Entry<K, P> next(){
+            if(!hasNext()){
+                throw new NoSuchElementException();
+            }
+            return batch.get(batchIndex++);
+        }
+
+        /**
+         * Copy the next pairs, moving to the following shards while the batch is not full
+         */
+        private void fetchBatch(){
+            batch.clear();
+            batchIndex = 0;
+            while(true){
+                List<Shard<K, P>> table = shards;
+                K startKey = lastKey != null ? lastKey : lowKey;
+                for(int index = shardIndex(table, startKey); index < table.size(); index++){
+                    Shard<K, P> shard = table.get(index);
+                    shard.lock.readLock().lock();
+                    try {
+                        if(shard.retired){
+                            // Start over from the last copied key with the new table
+                            break;
+                        }
+                        if(copyFromShard(shard)){
+                            return;
+                        }
+                    } finally {
+                        shard.lock.readLock().unlock();
+                    }
+                    if(index == table.size() - 1){
+                        finished = true;
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Copy pairs of a shard after the last key into the batch
+         * @return True if the batch is complete or the high bound was passed
+         */
+        private boolean copyFromShard(Shard<K, P> shard){
+            Node<K, P> currentNode;
+            if(lastKey != null){
+                currentNode = shard.tree.higherNode(lastKey);
+            } else if(lowKey != null){
+                currentNode = shard.tree.ceilingNode(lowKey);
+            } else{
+                currentNode = shard.tree.getFirstNode();
+            }
+            while(currentNode != null){
+                K keyValue = currentNode.getKeyValue();
+                if(highKey != null && keyValue.compareTo(highKey) > 0){
+                    finished = true;
+                    return true;
+                }
+                if(batch.size() >= BATCH_SIZE && keyValue.compareTo(lastKey) != 0){
+                    return true;
+                }
+                batch.add(new AbstractMap.SimpleImmutableEntry<>(keyValue, currentNode.getPriorityValue()));
+                lastKey = keyValue;
+                currentNode = CartesianTree.successor(currentNode);
+            }
+            return false;
+        }
+    }
+
+}
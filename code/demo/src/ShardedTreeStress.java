@@ -0,0 +1,278 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** @author Armand Bonn
+ * Stress check and write scaling run of ShardedCartesianTree.
+ *   java ShardedTreeStress --mode all --threads 32 --operations 2000000
+ * Options:
+ *   --mode        check (correctness only), scale (throughput only) or all
+ *   --threads     Highest number of writer threads (scaling runs use 1, 2, 4... up to it)
+ *   --operations  Operations per thread of the check, shared by the threads of a scaling run
+ *   --seed        Seed of the operation choices
+ * The check uses tiny shards so shards are split and merged all the time. Every key belongs to one
+ * writer thread, which checks each lookup against its own model; stable keys (multiples of 7) are
+ * loaded first and never deleted, so a scanner thread must see all of them in every range scan, in
+ * ascending key order. At the end the container must hold exactly the stable keys and the models.
+ * The scaling run inserts and deletes uniform keys (no reads) in a sharded tree and in a single
+ * CartesianTree behind a read-write lock, for 1 to --threads threads.
+ */
+public class ShardedTreeStress {
+
+    private final int threads;
+    private final long operations;
+    private final long seed;
+
+    private ShardedTreeStress(BenchmarkHarness.Options options){
+        this.threads = options.getInt("--threads", Runtime.getRuntime().availableProcessors());
+        this.operations = options.getLong("--operations", 1000000);
+        this.seed = options.getLong("--seed", 15L);
+        if(threads <= 0 || operations <= 0){
+            throw new IllegalArgumentException("Threads and operations must be positive");
+        }
+    }
+
+    /**
+     * Run the check and the scaling run
+     * @param args Options (see class comment)
+     * @throws Exception If a worker fails
+     */
+    public static void main(String[] args) throws Exception {
+        BenchmarkHarness.Options options = new BenchmarkHarness.Options(args, "--mode", "--threads", "--operations", "--seed");
+        ShardedTreeStress stress = new ShardedTreeStress(options);
+        String mode = options.getString("--mode", "all");
+
+        boolean passed = true;
+        if(mode.equals("check") || mode.equals("all")){
+            passed = stress.check();
+        }
+        if(mode.equals("scale") || mode.equals("all")){
+            stress.scale();
+        }
+        if(!passed){
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+    }
+
+
+    /**
+     * Owned keys updated by the writers, stable keys scanned by a reader, then a final comparison
+     * @return True if no check failed
+     * @throws Exception If a worker fails
+     */
+    boolean check() throws Exception {
+        int keySpace = 20000;
+        ShardedCartesianTree<Integer, Long> tree = new ShardedCartesianTree<>(new ArrayList<Integer>(), 64);
+        SplittableRandom random = new SplittableRandom(seed);
+        TreeMap<Integer, Long> stableKeys = new TreeMap<>();
+        for(int keyValue = 0; keyValue < keySpace; keyValue += 7){
+            long priorityValue = random.nextLong();
+            stableKeys.put(keyValue, priorityValue);
+            tree.insertNode(keyValue, priorityValue);
+        }
+
+        AtomicInteger runningWriters = new AtomicInteger(threads);
+        List<Callable<String>> tasks = new ArrayList<>();
+        List<Map<Integer, Long>> models = new ArrayList<>();
+        for(int thread = 0; thread < threads; thread++){
+            int owner = thread;
+            SplittableRandom threadRandom = random.split();
+            Map<Integer, Long> model = new HashMap<>();
+            models.add(model);
+            tasks.add(() -> {
+                try {
+                    return updateOwnedKeys(tree, model, threadRandom, owner, keySpace);
+                } finally {
+                    runningWriters.decrementAndGet();
+                }
+            });
+        }
+        // Scanner: every range scan must be sorted and contain the stable keys of the range
+        tasks.add(() -> {
+            SplittableRandom scanRandom = new SplittableRandom(seed + 1);
+            long scans = 0;
+            while(runningWriters.get() > 0 || scans == 0){
+                int lowKey = scanRandom.nextInt(keySpace);
+                int highKey = lowKey + scanRandom.nextInt(2000);
+                Iterator<Integer> expectedKeys = stableKeys.subMap(lowKey, true, highKey, true).keySet().iterator();
+                Integer nextStable = expectedKeys.hasNext() ? expectedKeys.next() : null;
+                Integer previousKey = null;
+                for(Iterator<Map.Entry<Integer, Long>> iterator = tree.iterator(lowKey, highKey); iterator.hasNext();){
+                    int keyValue = iterator.next().getKey();
+                    if(keyValue < lowKey || keyValue > highKey || (previousKey != null && keyValue <= previousKey)){
+                        return "scan [" + lowKey + ", " + highKey + "] returned " + keyValue + " after " + previousKey;
+                    }
+                    if(nextStable != null && keyValue > nextStable){
+                        return "scan [" + lowKey + ", " + highKey + "] missed stable key " + nextStable;
+                    }
+                    if(nextStable != null && keyValue == nextStable){
+                        nextStable = expectedKeys.hasNext() ? expectedKeys.next() : null;
+                    }
+                    previousKey = keyValue;
+                }
+                if(nextStable != null){
+                    return "scan [" + lowKey + ", " + highKey + "] missed stable key " + nextStable;
+                }
+                scans++;
+            }
+            return null;
+        });
+
+        List<String> failures = BenchmarkHarness.runTogether(tasks);
+
+        boolean passed = true;
+        for(String failure : failures){
+            if(failure != null){
+                System.out.println("  " + failure);
+                passed = false;
+            }
+        }
+
+        // Final contents: stable keys and the models, in order, in valid shards
+        TreeMap<Integer, Long> expected = new TreeMap<>(stableKeys);
+        for(Map<Integer, Long> model : models){
+            expected.putAll(model);
+        }
+        TreeMap<Integer, Long> actual = new TreeMap<>();
+        for(Map.Entry<Integer, Long> entry : tree){
+            actual.put(entry.getKey(), entry.getValue());
+        }
+        boolean contentsMatch = expected.equals(actual) && tree.size() == expected.size();
+        boolean valid = tree.verifyCartiesanTree();
+
+        // Top k across shards against a sort of the expected pairs
+        boolean topMatch = true;
+        for(int query = 0; query < 100 && topMatch; query++){
+            int lowKey = random.nextInt(keySpace);
+            int highKey = lowKey + random.nextInt(5000);
+            int k = 1 + random.nextInt(50);
+            List<Long> expectedTop = new ArrayList<>(expected.subMap(lowKey, true, highKey, true).values());
+            expectedTop.sort(null);
+            List<Long> actualTop = new ArrayList<>();
+            for(Map.Entry<Integer, Long> entry : tree.topK(lowKey, highKey, k)){
+                actualTop.add(entry.getValue());
+            }
+            topMatch = actualTop.equals(expectedTop.subList(0, Math.min(k, expectedTop.size())));
+        }
+
+        passed &= contentsMatch && valid && topMatch;
+        System.out.println("Sharded check: " + threads + " writers, " + (threads * operations) + " operations, " + tree.getShardCount() + " shards at the end, "
+                + expected.size() + " keys -> " + (passed ? "passed" : "contents " + contentsMatch + ", valid " + valid + ", top k " + topMatch));
+        return passed;
+    }
+
+    /**
+     * Writer of the check: insert or delete random keys of its own, checking every lookup against its model
+     * @return Failure message, null if every lookup matched
+     */
+    private String updateOwnedKeys(ShardedCartesianTree<Integer, Long> tree, Map<Integer, Long> model, SplittableRandom random, int owner, int keySpace){
+        for(long i = 0; i < operations; i++){
+            int keyValue = owner + threads * random.nextInt(keySpace / threads);
+            if(keyValue % 7 == 0){
+                continue;
+            }
+            Long expected = model.get(keyValue);
+            Long found = tree.findPriority(keyValue);
+            if(expected == null ? found != null : !expected.equals(found)){
+                return "key " + keyValue + ": found " + found + ", expected " + expected;
+            }
+            if(expected == null){
+                long priorityValue = random.nextLong();
+                tree.insertNode(keyValue, priorityValue);
+                model.put(keyValue, priorityValue);
+            } else{
+                tree.deleteNode(keyValue, expected);
+                model.remove(keyValue);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write-only throughput of the sharded tree and of a locked tree, for 1 to --threads threads
+     * @throws Exception If a worker fails
+     */
+    void scale() throws Exception {
+        int keySpace = 4000000;
+        System.out.println(String.format("%-8s %18s %18s %8s %8s", "threads", "sharded ops/s", "locked ops/s", "ratio", "shards"));
+        for(int threadCount : BenchmarkHarness.threadCounts(threads)){
+            // Half of the key space loaded in both, with evenly spaced initial shard boundaries
+            List<Integer> boundaries = new ArrayList<>();
+            for(int boundary = keySpace / 64; boundary < keySpace; boundary += keySpace / 64){
+                boundaries.add(boundary);
+            }
+            ShardedCartesianTree<Integer, Long> shardedTree = new ShardedCartesianTree<>(boundaries, ShardedCartesianTree.DEFAULT_MAX_SHARD_SIZE);
+            PriorityGenerator<Integer, Long> priorityGenerator = PriorityGenerator.keyHash(seed);
+            List<Integer> keyValues = new ArrayList<>();
+            List<Long> priorityValues = new ArrayList<>();
+            for(int keyValue = 0; keyValue < keySpace; keyValue += 2){
+                shardedTree.insertNode(keyValue, priorityGenerator.nextPriority(keyValue));
+                keyValues.add(keyValue);
+                priorityValues.add(priorityGenerator.nextPriority(keyValue));
+            }
+            CartesianTree<Integer, Long> lockedTree = CartesianTree.buildFromSorted(keyValues, priorityValues);
+            ReadWriteLock lock = new ReentrantReadWriteLock();
+
+            runWrites(shardedTree, null, null, priorityGenerator, threadCount, keySpace, operations / 4);
+            runWrites(null, lockedTree, lock, priorityGenerator, threadCount, keySpace, operations / 4);
+            double shardedRate = runWrites(shardedTree, null, null, priorityGenerator, threadCount, keySpace, operations);
+            double lockedRate = runWrites(null, lockedTree, lock, priorityGenerator, threadCount, keySpace, operations);
+            System.out.println(String.format("%-8d %18.0f %18.0f %8.2f %8d", threadCount, shardedRate, lockedRate, shardedRate / lockedRate, shardedTree.getShardCount()));
+        }
+    }
+
+    /**
+     * Insert absent keys and delete present ones; each thread owns the keys equal to its index modulo the thread count
+     * @return Operations per second over all threads
+     */
+    private double runWrites(ShardedCartesianTree<Integer, Long> shardedTree, CartesianTree<Integer, Long> lockedTree, ReadWriteLock lock,
+                             PriorityGenerator<Integer, Long> priorityGenerator, int threadCount, int keySpace, long totalOperations) throws Exception {
+        SplittableRandom writeRandom = new SplittableRandom(seed + threadCount);
+        List<Callable<Long>> tasks = new ArrayList<>();
+        for(int thread = 0; thread < threadCount; thread++){
+            int owner = thread;
+            SplittableRandom random = writeRandom.split();
+            long threadOperations = totalOperations / threadCount;
+            tasks.add(() -> {
+                long inserted = 0;
+                for(long i = 0; i < threadOperations; i++){
+                    int keyValue = owner + threadCount * random.nextInt(keySpace / threadCount);
+                    long priorityValue = priorityGenerator.nextPriority(keyValue);
+                    if(shardedTree != null){
+                        if(shardedTree.contains(keyValue)){
+                            shardedTree.deleteNode(keyValue, priorityValue);
+                        } else{
+                            shardedTree.insertNode(keyValue, priorityValue);
+                            inserted++;
+                        }
+                    } else{
+                        lock.writeLock().lock();
+                        try {
+                            if(lockedTree.findNode(keyValue) != null){
+                                lockedTree.deleteNode(keyValue, priorityValue);
+                            } else{
+                                lockedTree.insertNode(keyValue, priorityValue);
+                                inserted++;
+                            }
+                        } finally {
+                            lock.writeLock().unlock();
+                        }
+                    }
+                }
+                return inserted;
+            });
+        }
+        long elapsedNanos = BenchmarkHarness.elapsedNanos(() -> BenchmarkHarness.runTogether(tasks).size());
+        return BenchmarkHarness.perSecond((totalOperations / threadCount) * threadCount, elapsedNanos);
+    }
+
+}
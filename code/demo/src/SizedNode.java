@@ -0,0 +1,48 @@
+/**
+ * @author Armand Bonn
+ * Node of a tree with order statistics: also keeps the number of nodes in its subtree.
+ * Trees without order statistics use plain nodes and do not pay for the extra field.
+ */
+class SizedNode<K extends Comparable<K>, P extends Comparable<P>> extends Node<K, P> {
+    // Number of nodes in the subtree rooted here
+    private int subtreeSize;
+
+    /**
+     * Initiator of SizedNode object, alone in its subtree
+     * @param keyValue Key value (any type)
+     * @param priorityValue Priority value (any type)
+     */
+    SizedNode(K keyValue, P priorityValue){
+        super(keyValue, priorityValue);
+        this.subtreeSize = 1;
+    }
+
+    @Override
+    public int getSubtreeSize(){
+        return subtreeSize;
+    }
+
+    @Override
+    public void setSubtreeSize(int subtreeSize){
+        this.subtreeSize = subtreeSize;
+    }
+
+    @Override
+    public void updateSubtreeSize(){
+        int size = 1;
+        if(getLeftNode() != null){
+            size += getLeftNode().getSubtreeSize();
+        }
+        if(getRightNode() != null){
+            size += getRightNode().getSubtreeSize();
+        }
+        this.subtreeSize = size;
+    }
+
+    @Override
+    void reset(K keyValue, P priorityValue){
+        super.reset(keyValue, priorityValue);
+        this.subtreeSize = 1;
+    }
+
+}
@@ -0,0 +1,145 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/** @author Armand Bonn
+ * Binary encoding of the keys or priorities of a tree snapshot (see TreeSnapshot).
+ * Fixed width codecs (ints, longs, doubles) write every value on the same number of bytes,
+ * which the snapshot header records so a file is never read back with another codec width.
+ * Values are written in the byte order of the buffer (big-endian in snapshots).
+ */
+public interface SnapshotCodec<T> {
+    // Width of codecs whose encoded size depends on the value
+    int VARIABLE_WIDTH = -1;
+
+    /**
+     * Bytes used by every value
+     * @return Width in bytes, VARIABLE_WIDTH if it depends on the value
+     */
+    int fixedWidth();
+
+    /**
+     * Bytes used by a value
+     * @param value Value to encode
+     * @return Encoded size in bytes
+     */
+    int encodedSize(T value);
+
+    /**
+     * Write a value at the position of the buffer
+     * @param value Value to encode
+     * @param buffer Buffer with at least encodedSize(value) bytes remaining
+     */
+    void encode(T value, ByteBuffer buffer);
+
+    /**
+     * Read a value at the position of the buffer
+     * @param buffer Buffer positioned on an encoded value
+     * @return Decoded value
+     */
+    T decode(ByteBuffer buffer);
+
+    /**
+     * Ints on 4 bytes
+     * @return Codec of Integer values
+     */
+    static SnapshotCodec<Integer> ints(){
+        return new SnapshotCodec<Integer>() {
+            public int fixedWidth(){
+                return Integer.BYTES;
+            }
+
+            public int encodedSize(Integer value){
+                return Integer.BYTES;
+            }
+
+            public void encode(Integer value, ByteBuffer buffer){
+                buffer.putInt(value);
+            }
+
+            public Integer decode(ByteBuffer buffer){
+                return buffer.getInt();
+            }
+        };
+    }
+
+    /**
+     * Longs on 8 bytes
+     * @return Codec of Long values
+     */
+    static SnapshotCodec<Long> longs(){
+        return new SnapshotCodec<Long>() {
+            public int fixedWidth(){
+                return Long.BYTES;
+            }
+
+            public int encodedSize(Long value){
+                return Long.BYTES;
+            }
+
+            public void encode(Long value, ByteBuffer buffer){
+                buffer.putLong(value);
+            }
+
+            public Long decode(ByteBuffer buffer){
+                return buffer.getLong();
+            }
+        };
+    }
+
+    /**
+     * Doubles on 8 bytes (IEEE 754 bits)
+     * @return Codec of Double values
+     */
+    static SnapshotCodec<Double> doubles(){
+        return new SnapshotCodec<Double>() {
+            public int fixedWidth(){
+                return Double.BYTES;
+            }
+
+            public int encodedSize(Double value){
+                return Double.BYTES;
+            }
+
+            public void encode(Double value, ByteBuffer buffer){
+                buffer.putDouble(value);
+            }
+
+            public Double decode(ByteBuffer buffer){
+                return buffer.getDouble();
+            }
+        };
+    }
+
+    /**
+     * Strings as their UTF-8 length (4 bytes) followed by the UTF-8 bytes
+     * @return Codec of String values
+     */
+    static SnapshotCodec<String> strings(){
+        return new SnapshotCodec<String>() {
+            public int fixedWidth(){
+                return VARIABLE_WIDTH;
+            }
+
+            public int encodedSize(String value){
+                return Integer.BYTES + value.getBytes(StandardCharsets.UTF_8).length;
+            }
+
+            public void encode(String value, ByteBuffer buffer){
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                buffer.putInt(bytes.length);
+                buffer.put(bytes);
+            }
+
+            public String decode(ByteBuffer buffer){
+                int length = buffer.getInt();
+                if(length < 0 || length > buffer.remaining()){
+                    throw new IllegalArgumentException("Invalid string length: " + length);
+                }
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,1053 @@
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/** @author Armand Bonn
+ * Cartesian tree whose nodes have no parent link, updated in one top-down pass without rotations.
+ * insertNode walks down to the first node with a higher priority and splits that subtree around the
+ * new key while going further down; deleteNode walks down to the key and merges its two subtrees
+ * while going further down. Every step sets one link, and the only node above the current
+ * position that is needed is kept in a local variable.
+ * The API follows CartesianTree for insertion, deletion, lookups, neighbours, split, merge, range
+ * cuts, priority queries, linear builds from sorted keys, iteration and (optional) order statistics.
+ * Subtree sizes are fixed bottom-up over the nodes a pass went through, recorded on the way down.
+ * Finger search is not offered: moving from the finger to a nearby key climbs through parent links.
+ * Node pools and metrics are not offered either.
+ * The shape follows CartesianTree: lower priorities nearer the root, equal keys go right of the
+ * existing ones and a new node goes below nodes of equal priority.
+ * Memory: dropping the parent link saves no heap with compressed references and 8 byte object
+ * alignment, the default below 32 GB of heap. A Node (12 byte header and 5 references of 4 bytes) and a
+ * TopDownNode (header, 4 references and the int subtree size) both take 32 bytes. Without compressed
+ * references (-XX:-UseCompressedOops) a TopDownNode takes 48 bytes against 56, 8 bytes saved per node.
+ * With order statistics on, the default setting also saves 8 bytes: 32 against the 40 of a SizedNode.
+ * TreeBenchmark --operations retainedSize measures it.
+ */
+public class TopDownCartesianTree<K extends Comparable<K>, P extends Comparable<P>> implements Iterable<TopDownCartesianTree.TopDownNode<K, P>> {
+
+    /**
+     * Node without parent link, holding its subtree size in place of it (see the class comment for the sizes)
+     */
+    public static final class TopDownNode<K, P> {
+        private K keyValue;
+        private P priorityValue;
+        private TopDownNode<K, P> leftNode;
+        private TopDownNode<K, P> rightNode;
+        // Number of nodes in the subtree, only kept up to date with order statistics
+        private int subtreeSize = 1;
+
+        TopDownNode(K keyValue, P priorityValue){
+            this.keyValue = keyValue;
+            this.priorityValue = priorityValue;
+        }
+
+        public K getKeyValue(){
+            return keyValue;
+        }
+
+        public P getPriorityValue(){
+            return priorityValue;
+        }
+
+        public TopDownNode<K, P> getLeftNode(){
+            return leftNode;
+        }
+
+        public TopDownNode<K, P> getRightNode(){
+            return rightNode;
+        }
+
+        @Override
+        public String toString() {
+            return keyValue + ": " + priorityValue;
+        }
+    }
+
+    private TopDownNode<K, P> rootNode;
+    // Source of priorities for insert(key), null if priorities are given by the caller
+    private PriorityGenerator<K, P> priorityGenerator;
+    // Heads of the two trees a split builds: the left tree hangs as right child, the right tree as left child
+    private final TopDownNode<K, P> leftHead = new TopDownNode<>(null, null);
+    private final TopDownNode<K, P> rightHead = new TopDownNode<>(null, null);
+    // True if the subtree sizes are kept up to date (rank, select, countRange, size)
+    private boolean orderStatistics;
+    // Nodes whose subtree size changes in the current pass, in top-down order (order statistics only)
+    private final List<TopDownNode<K, P>> pathNodes = new ArrayList<>();
+
+    /**
+     * initiator cartesian tree
+     */
+    public TopDownCartesianTree(){
+    }
+
+    /**
+     * initiator cartesian tree
+     * @param orderStatistics True to keep subtree sizes for rank, select, countRange and size
+     */
+    public TopDownCartesianTree(boolean orderStatistics){
+        this.orderStatistics = orderStatistics;
+    }
+
+    /**
+     * initiator cartesian tree generating its own priorities, see insert(key)
+     * @param priorityGenerator Source of the priorities
+     */
+    public TopDownCartesianTree(PriorityGenerator<K, P> priorityGenerator){
+        this.priorityGenerator = priorityGenerator;
+    }
+
+    /**
+     * initiator cartesian tree around an existing subtree
+     * @param rootNode Root of the subtree
+     * @param priorityGenerator Source of priorities for insert(key) (can be null)
+     * @param orderStatistics True if the subtree sizes of the nodes are up to date
+     */
+    private TopDownCartesianTree(TopDownNode<K, P> rootNode, PriorityGenerator<K, P> priorityGenerator, boolean orderStatistics){
+        this.rootNode = rootNode;
+        this.priorityGenerator = priorityGenerator;
+        this.orderStatistics = orderStatistics;
+    }
+
+    /**
+     * Set the source of priorities used by insert(key)
+     * @param priorityGenerator Source of the priorities
+     */
+    public void setPriorityGenerator(PriorityGenerator<K, P> priorityGenerator){
+        this.priorityGenerator = priorityGenerator;
+    }
+
+    /**
+     * Check if the tree keeps subtree sizes up to date
+     * @return True if order statistics are enabled
+     */
+    public boolean hasOrderStatistics(){
+        return orderStatistics;
+    }
+
+    /**
+     * Turn on order statistics, computing all subtree sizes first (O(n), e.g. for a tree built in bulk).
+     * Sizes live in the nodes, so nodes obtained from this tree before stay valid.
+     */
+    public void enableOrderStatistics(){
+        if(orderStatistics){
+            return;
+        }
+
+        // Post-order walk with an explicit stack: children are sized before their parent
+        Deque<TopDownNode<K, P>> nodes = new ArrayDeque<>();
+        TopDownNode<K, P> currentNode = rootNode;
+        TopDownNode<K, P> sizedNode = null;
+        while(currentNode != null || !nodes.isEmpty()){
+            if(currentNode != null){
+                nodes.push(currentNode);
+                currentNode = currentNode.leftNode;
+            } else if(nodes.peek().rightNode != null && nodes.peek().rightNode != sizedNode){
+                currentNode = nodes.peek().rightNode;
+            } else{
+                sizedNode = nodes.pop();
+                sizedNode.subtreeSize = subtreeSize(sizedNode.leftNode) + subtreeSize(sizedNode.rightNode) + 1;
+            }
+        }
+        orderStatistics = true;
+    }
+
+    /**
+     * Root of the tree
+     * @return Root node, null if empty
+     */
+    public TopDownNode<K, P> getRootNode(){
+        return rootNode;
+    }
+
+    /**
+     * Check if a Cartesian tree is empty
+     * @return True if it is empty
+     */
+    public boolean isTreeEmpty(){
+        return rootNode == null;
+    }
+
+    /**
+     * Remove all nodes in O(1)
+     */
+    public void clear(){
+        rootNode = null;
+    }
+
+    /**
+     * Hang a subtree under a node, or make it the root
+     * @param parentNode Node receiving the subtree, null for the root
+     * @param leftSide True to hang it as left child
+     * @param childNode Subtree (can be null)
+     */
+    private void attach(TopDownNode<K, P> parentNode, boolean leftSide, TopDownNode<K, P> childNode){
+        if(parentNode == null){
+            rootNode = childNode;
+        } else if(leftSide){
+            parentNode.leftNode = childNode;
+        } else{
+            parentNode.rightNode = childNode;
+        }
+    }
+
+    /**
+     * Build a tree in linear time from keys given in ascending order.
+     * The result is the same tree as inserting the pairs one by one in key order with insertNode.
+     * @param keyValues Key values sorted in ascending order
+     * @param priorityValues Priority value of each key
+     * @return New Cartesian tree holding all pairs
+     */
+    public static <K extends Comparable<K>, P extends Comparable<P>> TopDownCartesianTree<K, P> buildFromSorted(K[] keyValues, P[] priorityValues){
+        return buildFromSorted(Arrays.asList(keyValues), Arrays.asList(priorityValues));
+    }
+
+    /**
+     * Build a tree in linear time from keys given in ascending order
+     * @param keyValues Key values sorted in ascending order
+     * @param priorityValues Priority value of each key
+     * @return New Cartesian tree holding all pairs
+     */
+    public static <K extends Comparable<K>, P extends Comparable<P>> TopDownCartesianTree<K, P> buildFromSorted(List<K> keyValues, List<P> priorityValues){
+        if(keyValues.size() != priorityValues.size()){
+            throw new IllegalArgumentException("Got " + keyValues.size() + " keys and " + priorityValues.size() + " priorities");
+        }
+        return buildFromSorted(keyValues.iterator(), priorityValues.iterator());
+    }
+
+    /**
+     * Build a tree in linear time from keys given in ascending order.
+     * The right spine of the tree built so far is kept on a stack (nodes have no parent link), every
+     * new node pops the spine nodes with a higher priority and adopts them as left subtree.
+     * Each node is pushed and popped once, so the build is linear.
+     * @param keyValues Key values sorted in ascending order
+     * @param priorityValues Priority value of each key (same length as the keys)
+     * @return New Cartesian tree holding all pairs
+     */
+    public static <K extends Comparable<K>, P extends Comparable<P>> TopDownCartesianTree<K, P> buildFromSorted(Iterator<K> keyValues, Iterator<P> priorityValues){
+        TopDownCartesianTree<K, P> tree = new TopDownCartesianTree<>();
+        // Bottom of the right spine (the last node) on top
+        Deque<TopDownNode<K, P>> spineNodes = new ArrayDeque<>();
+
+        while(keyValues.hasNext()){
+            if(!priorityValues.hasNext()){
+                throw new IllegalArgumentException("Keys and priorities do not have the same length");
+            }
+            TopDownNode<K, P> newNode = new TopDownNode<>(keyValues.next(), priorityValues.next());
+
+            TopDownNode<K, P> lastNode = spineNodes.peek();
+            if(lastNode != null && newNode.keyValue.compareTo(lastNode.keyValue) < 0){
+                throw new IllegalArgumentException("Keys are not sorted: " + newNode.keyValue + " after " + lastNode.keyValue);
+            }
+
+            // Pop spine nodes with a strictly higher priority (equal priorities stay above, as with insertNode)
+            TopDownNode<K, P> poppedNode = null;
+            while(!spineNodes.isEmpty() && spineNodes.peek().priorityValue.compareTo(newNode.priorityValue) > 0){
+                poppedNode = spineNodes.pop();
+            }
+
+            // Popped part of the spine becomes the left subtree, the new node the bottom of the spine
+            newNode.leftNode = poppedNode;
+            if(spineNodes.isEmpty()){
+                tree.rootNode = newNode;
+            } else{
+                spineNodes.peek().rightNode = newNode;
+            }
+            spineNodes.push(newNode);
+        }
+        if(priorityValues.hasNext()){
+            throw new IllegalArgumentException("Keys and priorities do not have the same length");
+        }
+
+        return tree;
+    }
+
+    /**
+     * Insert node value only considering the keys and not priorities (no rebalancing)
+     * @param keyValue Key value of node to be inserted
+     * @param priorityValue Priority value of node (default - not used)
+     */
+    public void insertNodeKey(K keyValue, P priorityValue){
+        TopDownNode<K, P> parentNode = null;
+        TopDownNode<K, P> currentNode = rootNode;
+        boolean leftSide = false;
+        while(currentNode != null){
+            if(orderStatistics){
+                currentNode.subtreeSize++;
+            }
+            parentNode = currentNode;
+            leftSide = keyValue.compareTo(currentNode.keyValue) < 0;
+            currentNode = leftSide ? currentNode.leftNode : currentNode.rightNode;
+        }
+        attach(parentNode, leftSide, new TopDownNode<>(keyValue, priorityValue));
+    }
+
+    /**
+     * Insert node in tree considering key and priority value, in one pass down from the root
+     * @param keyValue Key value of node to be inserted
+     * @param priorityValue Priority value of node
+     */
+    public void insertNode(K keyValue, P priorityValue){
+        // Walk down while the nodes keep a priority lower or equal to the new one
+        TopDownNode<K, P> parentNode = null;
+        TopDownNode<K, P> currentNode = rootNode;
+        boolean leftSide = false;
+        while(currentNode != null && currentNode.priorityValue.compareTo(priorityValue) <= 0){
+            // The new node ends up in the subtree of every node passed
+            if(orderStatistics){
+                currentNode.subtreeSize++;
+            }
+            parentNode = currentNode;
+            leftSide = keyValue.compareTo(currentNode.keyValue) < 0;
+            currentNode = leftSide ? currentNode.leftNode : currentNode.rightNode;
+        }
+
+        // The new node takes the place of the subtree, split around its key (equal keys stay on its left)
+        TopDownNode<K, P> newNode = new TopDownNode<>(keyValue, priorityValue);
+        splitInto(currentNode, keyValue, true);
+        newNode.leftNode = leftHead.rightNode;
+        newNode.rightNode = rightHead.leftNode;
+        leftHead.rightNode = null;
+        rightHead.leftNode = null;
+        newNode.subtreeSize = subtreeSize(newNode.leftNode) + subtreeSize(newNode.rightNode) + 1;
+        attach(parentNode, leftSide, newNode);
+    }
+
+    /**
+     * Insert a key with a priority from the priority generator of the tree
+     * @param keyValue Key value of node to be inserted
+     * @return Priority given to the new node
+     */
+    public P insert(K keyValue){
+        if(priorityGenerator == null){
+            throw new IllegalStateException("No priority generator set, use setPriorityGenerator or insertNode(key, priority)");
+        }
+        P priorityValue = priorityGenerator.nextPriority(keyValue);
+        insertNode(keyValue, priorityValue);
+        return priorityValue;
+    }
+
+    /**
+     * Delete a node by key only (for trees filled with insert(key))
+     * @param keyValue Key value of the node to delete
+     * @return Priority value of the deleted node
+     */
+    public P delete(K keyValue){
+        TopDownNode<K, P> deletedNode = removeNode(keyValue);
+        if(deletedNode == null){
+            throw new NoSuchElementException("Element not found: " + keyValue);
+        }
+        return deletedNode.priorityValue;
+    }
+
+    /**
+     * Function to delete a node in the tree
+     * @param keyValue Key value of the node to delete
+     * @param priorityValue Priority value of the node to delete
+     */
+    public void deleteNode(K keyValue, P priorityValue){
+        if(removeNode(keyValue) == null){
+            throw new NoSuchElementException("Element not found: (" + keyValue + ": " + priorityValue + ")");
+        }
+    }
+
+    /**
+     * Node with the lowest priority (the root), without removing it
+     * @return Root node, null if the tree is empty
+     */
+    public TopDownNode<K, P> peekMin(){
+        return rootNode;
+    }
+
+    /**
+     * Remove the node with the lowest priority (the root)
+     * @return Key and priority of the removed node, null if the tree is empty
+     */
+    public Map.Entry<K, P> pollMin(){
+        if(rootNode == null){
+            return null;
+        }
+        Map.Entry<K, P> minimum = new AbstractMap.SimpleImmutableEntry<>(rootNode.keyValue, rootNode.priorityValue);
+        unlinkNode(null, false, rootNode);
+        return minimum;
+    }
+
+    /**
+     * Walk down to the highest node with the key and replace it by the merge of its subtrees
+     * @param keyValue Key value of the node to delete
+     * @return Deleted node, null if the key is absent
+     */
+    private TopDownNode<K, P> removeNode(K keyValue){
+        TopDownNode<K, P> parentNode = null;
+        TopDownNode<K, P> currentNode = rootNode;
+        boolean leftSide = false;
+        while(currentNode != null){
+            int comparison = keyValue.compareTo(currentNode.keyValue);
+            if(comparison == 0){
+                break;
+            }
+            if(orderStatistics){
+                pathNodes.add(currentNode);
+            }
+            parentNode = currentNode;
+            leftSide = comparison < 0;
+            currentNode = leftSide ? currentNode.leftNode : currentNode.rightNode;
+        }
+
+        // Sizes above the deleted node shrink only once the key is found
+        if(currentNode != null){
+            for(TopDownNode<K, P> pathNode : pathNodes){
+                pathNode.subtreeSize--;
+            }
+        }
+        pathNodes.clear();
+        if(currentNode == null){
+            return null;
+        }
+
+        unlinkNode(parentNode, leftSide, currentNode);
+        return currentNode;
+    }
+
+    /**
+     * Replace a node by the merge of its subtrees. The right child wins priority ties, as when
+     * CartesianTree rotates a deleted node down.
+     * @param parentNode Parent of the node, null for the root
+     * @param leftSide True if the node is the left child of its parent
+     * @param node Node to take out of the tree
+     */
+    private void unlinkNode(TopDownNode<K, P> parentNode, boolean leftSide, TopDownNode<K, P> node){
+        attach(parentNode, leftSide, mergeNodes(node.leftNode, node.rightNode, false));
+        node.leftNode = null;
+        node.rightNode = null;
+        node.subtreeSize = 1;
+    }
+
+    /**
+     * Merge two subtrees going down the right spine of the left one and the left spine of the right
+     * one once: the winner (lowest priority) hangs under the previous winner, on the side it came from
+     * @param leftNode Root of the subtree with the smaller keys
+     * @param rightNode Root of the subtree with the larger keys
+     * @param leftWinsTies True if the left node goes above a right node of equal priority
+     * @return Root of the merged subtree
+     */
+    private TopDownNode<K, P> mergeNodes(TopDownNode<K, P> leftNode, TopDownNode<K, P> rightNode, boolean leftWinsTies){
+        // The merged subtree hangs as right child of leftHead until it is returned
+        TopDownNode<K, P> parentNode = leftHead;
+        boolean leftSide = false;
+        while(leftNode != null && rightNode != null){
+            int comparison = leftNode.priorityValue.compareTo(rightNode.priorityValue);
+            TopDownNode<K, P> winnerNode = comparison < 0 || (comparison == 0 && leftWinsTies) ? leftNode : rightNode;
+            if(leftSide){
+                parentNode.leftNode = winnerNode;
+            } else{
+                parentNode.rightNode = winnerNode;
+            }
+            if(orderStatistics){
+                pathNodes.add(winnerNode);
+            }
+
+            // A left winner keeps its left subtree and merges below its right child, a right winner the opposite
+            parentNode = winnerNode;
+            leftSide = winnerNode == rightNode;
+            if(leftSide){
+                rightNode = rightNode.leftNode;
+            } else{
+                leftNode = leftNode.rightNode;
+            }
+        }
+        TopDownNode<K, P> restNode = leftNode != null ? leftNode : rightNode;
+        if(leftSide){
+            parentNode.leftNode = restNode;
+        } else{
+            parentNode.rightNode = restNode;
+        }
+        updatePathSizes();
+
+        TopDownNode<K, P> mergedRoot = leftHead.rightNode;
+        leftHead.rightNode = null;
+        return mergedRoot;
+    }
+
+    /**
+     * Recompute the subtree sizes of the recorded nodes, from the bottom of the pass to its top,
+     * and clear the record. A recorded node only has recorded nodes (or untouched subtrees) as children.
+     */
+    private void updatePathSizes(){
+        for(int i = pathNodes.size() - 1; i >= 0; i--){
+            TopDownNode<K, P> pathNode = pathNodes.get(i);
+            pathNode.subtreeSize = subtreeSize(pathNode.leftNode) + subtreeSize(pathNode.rightNode) + 1;
+        }
+        pathNodes.clear();
+    }
+
+    /**
+     * Size of a subtree, 0 for an empty one (only meaningful with order statistics)
+     * @param node Root of the subtree
+     * @return Number of nodes in it
+     */
+    private static <K, P> int subtreeSize(TopDownNode<K, P> node){
+        return node == null ? 0 : node.subtreeSize;
+    }
+
+    /**
+     * Split a subtree by a key going down the split path once: a node going left hangs at the
+     * bottom right of the left tree (under leftHead), a node going right at the bottom left of the
+     * right tree (under rightHead). The caller takes both trees and clears the heads.
+     * With order statistics the sizes of the moved nodes are fixed once both trees are linked.
+     * @param currentNode Root of the subtree to split
+     * @param keyValue Key value to split on
+     * @param equalGoesLeft True if nodes with a key equal to the key value go to the left tree
+     */
+    private void splitInto(TopDownNode<K, P> currentNode, K keyValue, boolean equalGoesLeft){
+        TopDownNode<K, P> leftTail = leftHead;
+        TopDownNode<K, P> rightTail = rightHead;
+        while(currentNode != null){
+            if(orderStatistics){
+                pathNodes.add(currentNode);
+            }
+            int comparison = currentNode.keyValue.compareTo(keyValue);
+            if(comparison < 0 || (comparison == 0 && equalGoesLeft)){
+                leftTail.rightNode = currentNode;
+                leftTail = currentNode;
+                currentNode = currentNode.rightNode;
+            } else{
+                rightTail.leftNode = currentNode;
+                rightTail = currentNode;
+                currentNode = currentNode.leftNode;
+            }
+        }
+        leftTail.rightNode = null;
+        rightTail.leftNode = null;
+        updatePathSizes();
+    }
+
+    /**
+     * Split the tree by a key: nodes with a smaller key stay in this tree, the others are moved out
+     * @param keyValue First key value of the returned tree
+     * @return New tree holding all nodes with key greater or equal to the key value
+     */
+    public TopDownCartesianTree<K, P> split(K keyValue){
+        splitInto(rootNode, keyValue, false);
+        rootNode = leftHead.rightNode;
+        TopDownCartesianTree<K, P> rightTree = new TopDownCartesianTree<>(rightHead.leftNode, priorityGenerator, orderStatistics);
+        leftHead.rightNode = null;
+        rightHead.leftNode = null;
+        return rightTree;
+    }
+
+    /**
+     * Merge two trees where every key of the left tree is smaller or equal to every key of the right tree.
+     * Both trees are emptied, their nodes are moved to the returned tree, which keeps order
+     * statistics if both trees do.
+     * @param leftTree Tree with the smaller keys
+     * @param rightTree Tree with the larger keys
+     * @return New tree holding the nodes of both trees
+     */
+    public static <K extends Comparable<K>, P extends Comparable<P>> TopDownCartesianTree<K, P> merge(TopDownCartesianTree<K, P> leftTree, TopDownCartesianTree<K, P> rightTree){
+        if(leftTree == rightTree){
+            throw new IllegalArgumentException("Cannot merge a tree with itself");
+        }
+
+        // Largest key on the left must not exceed the smallest key on the right
+        if(leftTree.rootNode != null && rightTree.rootNode != null){
+            K leftMax = lastNode(leftTree.rootNode).keyValue;
+            K rightMin = firstNode(rightTree.rootNode).keyValue;
+            if(leftMax.compareTo(rightMin) > 0){
+                throw new IllegalArgumentException("Key ranges overlap: " + leftMax + " > " + rightMin);
+            }
+        }
+
+        // Left wins priority ties
+        TopDownCartesianTree<K, P> mergedTree = new TopDownCartesianTree<>(null, leftTree.priorityGenerator, leftTree.orderStatistics && rightTree.orderStatistics);
+        mergedTree.rootNode = mergedTree.mergeNodes(leftTree.rootNode, rightTree.rootNode, true);
+
+        leftTree.rootNode = null;
+        rightTree.rootNode = null;
+        return mergedTree;
+    }
+
+    /**
+     * Delete all nodes with a key in [lowKey, highKey] in expected O(log n), whatever the number of deleted nodes
+     * @param lowKey Lowest key value to delete (inclusive)
+     * @param highKey Highest key value to delete (inclusive)
+     */
+    public void deleteRange(K lowKey, K highKey){
+        cutRange(lowKey, highKey);
+    }
+
+    /**
+     * Move all nodes with a key in [lowKey, highKey] to a new tree in expected O(log n)
+     * @param lowKey Lowest key value to extract (inclusive)
+     * @param highKey Highest key value to extract (inclusive)
+     * @return New tree holding the extracted nodes
+     */
+    public TopDownCartesianTree<K, P> extractRange(K lowKey, K highKey){
+        return new TopDownCartesianTree<>(cutRange(lowKey, highKey), priorityGenerator, orderStatistics);
+    }
+
+    /**
+     * Cut a key range out of the tree and join what remains on both sides
+     * @param lowKey Lowest key value to cut (inclusive)
+     * @param highKey Highest key value to cut (inclusive)
+     * @return Root of the detached subtree holding the range
+     */
+    private TopDownNode<K, P> cutRange(K lowKey, K highKey){
+        if(lowKey.compareTo(highKey) > 0){
+            throw new IllegalArgumentException("Empty range: " + lowKey + " > " + highKey);
+        }
+
+        // [keys < low] [low <= keys <= high] [keys > high]
+        splitInto(rootNode, lowKey, false);
+        TopDownNode<K, P> lowerRoot = leftHead.rightNode;
+        TopDownNode<K, P> restRoot = rightHead.leftNode;
+        leftHead.rightNode = null;
+        rightHead.leftNode = null;
+        splitInto(restRoot, highKey, true);
+        TopDownNode<K, P> rangeRoot = leftHead.rightNode;
+        TopDownNode<K, P> upperRoot = rightHead.leftNode;
+        leftHead.rightNode = null;
+        rightHead.leftNode = null;
+
+        rootNode = mergeNodes(lowerRoot, upperRoot, true);
+        return rangeRoot;
+    }
+
+    /**
+     * Find node in a tree based on key values
+     * @param keyValue Key value of node to be found
+     * @return The node found in the tree, null if absent
+     */
+    public TopDownNode<K, P> findNode(K keyValue){
+        TopDownNode<K, P> currentNode = rootNode;
+        while(currentNode != null){
+            int comparison = keyValue.compareTo(currentNode.keyValue);
+            if(comparison == 0){
+                return currentNode;
+            }
+            currentNode = comparison < 0 ? currentNode.leftNode : currentNode.rightNode;
+        }
+        return null;
+    }
+
+    /**
+     * Node with the smallest key, null if the tree is empty
+     * @return First node in key order
+     */
+    public TopDownNode<K, P> getFirstNode(){
+        return rootNode == null ? null : firstNode(rootNode);
+    }
+
+    /**
+     * Node with the largest key, null if the tree is empty
+     * @return Last node in key order
+     */
+    public TopDownNode<K, P> getLastNode(){
+        return rootNode == null ? null : lastNode(rootNode);
+    }
+
+    private static <K, P> TopDownNode<K, P> firstNode(TopDownNode<K, P> node){
+        while(node.leftNode != null){
+            node = node.leftNode;
+        }
+        return node;
+    }
+
+    private static <K, P> TopDownNode<K, P> lastNode(TopDownNode<K, P> node){
+        while(node.rightNode != null){
+            node = node.rightNode;
+        }
+        return node;
+    }
+
+    /**
+     * Node with the smallest key greater than or equal to a key value
+     * @param keyValue Key value to compare with
+     * @return Node found, null if there is none
+     */
+    public TopDownNode<K, P> ceilingNode(K keyValue){
+        return ceilingNode(keyValue, true);
+    }
+
+    /**
+     * Node with the smallest key strictly greater than a key value
+     * @param keyValue Key value to compare with
+     * @return Node found, null if there is none
+     */
+    public TopDownNode<K, P> higherNode(K keyValue){
+        return ceilingNode(keyValue, false);
+    }
+
+    private TopDownNode<K, P> ceilingNode(K keyValue, boolean inclusive){
+        TopDownNode<K, P> foundNode = null;
+        TopDownNode<K, P> currentNode = rootNode;
+        while(currentNode != null){
+            int comparison = currentNode.keyValue.compareTo(keyValue);
+            if(comparison > 0 || (comparison == 0 && inclusive)){
+                foundNode = currentNode;
+                currentNode = currentNode.leftNode;
+            } else{
+                currentNode = currentNode.rightNode;
+            }
+        }
+        return foundNode;
+    }
+
+    /**
+     * Node with the largest key smaller than or equal to a key value
+     * @param keyValue Key value to compare with
+     * @return Node found, null if there is none
+     */
+    public TopDownNode<K, P> floorNode(K keyValue){
+        return floorNode(keyValue, true);
+    }
+
+    /**
+     * Node with the largest key strictly smaller than a key value
+     * @param keyValue Key value to compare with
+     * @return Node found, null if there is none
+     */
+    public TopDownNode<K, P> lowerNode(K keyValue){
+        return floorNode(keyValue, false);
+    }
+
+    private TopDownNode<K, P> floorNode(K keyValue, boolean inclusive){
+        TopDownNode<K, P> foundNode = null;
+        TopDownNode<K, P> currentNode = rootNode;
+        while(currentNode != null){
+            int comparison = currentNode.keyValue.compareTo(keyValue);
+            if(comparison < 0 || (comparison == 0 && inclusive)){
+                foundNode = currentNode;
+                currentNode = currentNode.rightNode;
+            } else{
+                currentNode = currentNode.leftNode;
+            }
+        }
+        return foundNode;
+    }
+
+    /**
+     * Number of nodes in the tree in O(1)
+     * @return Number of nodes
+     */
+    public int size(){
+        requireOrderStatistics();
+        return subtreeSize(rootNode);
+    }
+
+    /**
+     * Number of keys strictly smaller than a key value
+     * @param keyValue Key value to rank
+     * @return Rank of the key (position it has or would have in the sorted keys)
+     */
+    public int rank(K keyValue){
+        requireOrderStatistics();
+        return countBelow(keyValue, false);
+    }
+
+    /**
+     * Node holding the k-th smallest key
+     * @param index Position in the sorted keys, starting at 0
+     * @return Node at that position
+     */
+    public TopDownNode<K, P> select(int index){
+        requireOrderStatistics();
+        if(index < 0 || index >= subtreeSize(rootNode)){
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + subtreeSize(rootNode));
+        }
+
+        TopDownNode<K, P> currentNode = rootNode;
+        while(true){
+            int leftSize = subtreeSize(currentNode.leftNode);
+            if(index < leftSize){
+                currentNode = currentNode.leftNode;
+            } else if(index == leftSize){
+                return currentNode;
+            } else{
+                index -= leftSize + 1;
+                currentNode = currentNode.rightNode;
+            }
+        }
+    }
+
+    /**
+     * Number of keys in [lowKey, highKey]
+     * @param lowKey Lowest key value (inclusive)
+     * @param highKey Highest key value (inclusive)
+     * @return Number of nodes with a key in the range
+     */
+    public int countRange(K lowKey, K highKey){
+        requireOrderStatistics();
+        if(lowKey.compareTo(highKey) > 0){
+            return 0;
+        }
+        return countBelow(highKey, true) - countBelow(lowKey, false);
+    }
+
+    /**
+     * Count the keys below a key value in one descent
+     * @param keyValue Key value to compare with
+     * @param inclusive True to also count keys equal to the key value
+     * @return Number of keys smaller (or equal) than the key value
+     */
+    private int countBelow(K keyValue, boolean inclusive){
+        int count = 0;
+        TopDownNode<K, P> currentNode = rootNode;
+        while(currentNode != null){
+            int comparison = currentNode.keyValue.compareTo(keyValue);
+            if(comparison < 0 || (comparison == 0 && inclusive)){
+                count += subtreeSize(currentNode.leftNode) + 1;
+                currentNode = currentNode.rightNode;
+            } else{
+                currentNode = currentNode.leftNode;
+            }
+        }
+        return count;
+    }
+
+    private void requireOrderStatistics(){
+        if(!orderStatistics){
+            throw new IllegalStateException("Order statistics are not enabled for this tree");
+        }
+    }
+
+    /**
+     * The k nodes of lowest priority with a key in [lowKey, highKey], in O(log n + k log k) expected
+     * @param lowKey Lowest key value (inclusive)
+     * @param highKey Highest key value (inclusive)
+     * @param k Maximum number of nodes
+     * @return Up to k nodes in ascending priority order
+     */
+    public List<TopDownNode<K, P>> topK(K lowKey, K highKey, int k){
+        if(k < 0){
+            throw new IllegalArgumentException("Negative number of nodes: " + k);
+        }
+        List<TopDownNode<K, P>> nodes = new ArrayList<>(Math.min(k, 1024));
+        Iterator<TopDownNode<K, P>> iterator = new PriorityOrderIterator(lowKey, highKey, null);
+        while(nodes.size() < k && iterator.hasNext()){
+            nodes.add(iterator.next());
+        }
+        return nodes;
+    }
+
+    /**
+     * Iterator over the nodes with a key in [lowKey, highKey] and a priority strictly below a threshold,
+     * in ascending priority order. Subtrees whose root reaches the threshold are never visited.
+     * @param lowKey Lowest key value (inclusive)
+     * @param highKey Highest key value (inclusive)
+     * @param threshold Priority value the returned nodes are below
+     * @return Priority order iterator over the matching nodes
+     */
+    public Iterator<TopDownNode<K, P>> findAllBelowPriority(K lowKey, K highKey, P threshold){
+        if(threshold == null){
+            throw new NullPointerException("Priority threshold is null");
+        }
+        return new PriorityOrderIterator(lowKey, highKey, threshold);
+    }
+
+    /**
+     * Best-first walk of the heap restricted to a key range, going down child links only. The queue
+     * holds, for each subtree still to visit, its node of lowest priority inside the range: the first
+     * node in the range met going down from the root of the subtree. Returning a node queues the
+     * entry nodes of its two children, so k nodes cost O(log n + k log k).
+     */
+    private final class PriorityOrderIterator implements Iterator<TopDownNode<K, P>> {
+        private final K lowKey;
+        private final K highKey;
+        // Nodes with a priority greater or equal are neither returned nor expanded, null for no limit
+        private final P threshold;
+        private final PriorityQueue<TopDownNode<K, P>> candidates = new PriorityQueue<>((leftNode, rightNode) -> leftNode.priorityValue.compareTo(rightNode.priorityValue));
+
+        PriorityOrderIterator(K lowKey, K highKey, P threshold){
+            this.lowKey = lowKey;
+            this.highKey = highKey;
+            this.threshold = threshold;
+            if(lowKey.compareTo(highKey) <= 0){
+                offerSubtree(rootNode);
+            }
+        }
+
+        /**
+         * Queue the node of lowest priority in the range of a subtree
+         * @param subtreeRoot Root of the subtree, may be null
+         */
+        private void offerSubtree(TopDownNode<K, P> subtreeRoot){
+            TopDownNode<K, P> currentNode = subtreeRoot;
+            while(currentNode != null){
+                if(currentNode.keyValue.compareTo(lowKey) < 0){
+                    currentNode = currentNode.rightNode;
+                } else if(currentNode.keyValue.compareTo(highKey) > 0){
+                    currentNode = currentNode.leftNode;
+                } else{
+                    // Descendants have a higher priority: the whole subtree is pruned by the threshold
+                    if(threshold == null || currentNode.priorityValue.compareTo(threshold) < 0){
+                        candidates.add(currentNode);
+                    }
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext(){
+            return !candidates.isEmpty();
+        }
+
+        @Override
+        public TopDownNode<K, P> next(){
+            TopDownNode<K, P> nextNode = candidates.poll();
+            if(nextNode == null){
+                throw new NoSuchElementException();
+            }
+            offerSubtree(nextNode.leftNode);
+            offerSubtree(nextNode.rightNode);
+            return nextNode;
+        }
+    }
+
+    /**
+     * Iterator over the nodes in ascending key order
+     * @return In-order iterator
+     */
+    @Override
+    public Iterator<TopDownNode<K, P>> iterator(){
+        return new NodeIterator<>(rootNode, null, null);
+    }
+
+    /**
+     * Iterator over the nodes with a key in [lowKey, highKey], in ascending key order
+     * @param lowKey Lowest key value (inclusive)
+     * @param highKey Highest key value (inclusive)
+     * @return In-order iterator over the range
+     */
+    public Iterator<TopDownNode<K, P>> iterator(K lowKey, K highKey){
+        return new NodeIterator<>(rootNode, lowKey, highKey);
+    }
+
+    /**
+     * In-order iterator with an explicit stack (nodes have no parent link)
+     */
+    private static final class NodeIterator<K extends Comparable<K>, P> implements Iterator<TopDownNode<K, P>> {
+        private final Deque<TopDownNode<K, P>> stack = new ArrayDeque<>();
+        private final K lowKey;
+        private final K highKey;
+
+        NodeIterator(TopDownNode<K, P> rootNode, K lowKey, K highKey){
+            this.lowKey = lowKey;
+            this.highKey = highKey;
+            pushLeft(rootNode);
+        }
+
+        /**
+         * Push the left path of a subtree, skipping nodes below the low key (and their left subtrees)
+         */
+        private void pushLeft(TopDownNode<K, P> node){
+            while(node != null){
+                if(lowKey != null && node.keyValue.compareTo(lowKey) < 0){
+                    node = node.rightNode;
+                } else{
+                    stack.push(node);
+                    node = node.leftNode;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext(){
+            return !stack.isEmpty() && (highKey == null || stack.peek().keyValue.compareTo(highKey) <= 0);
+        }
+
+        @Override
+        public TopDownNode<K, P> next(){
+            if(!hasNext()){
+                throw new NoSuchElementException();
+            }
+            TopDownNode<K, P> node = stack.pop();
+            pushLeft(node.rightNode);
+            return node;
+        }
+    }
+
+    /**
+     * Get height of the tree
+     * @return Height of the tree, -1 if empty
+     */
+    public int getHeight(){
+        int height = -1;
+        Deque<TopDownNode<K, P>> nodes = new ArrayDeque<>();
+        Deque<Integer> depths = new ArrayDeque<>();
+        if(rootNode != null){
+            nodes.push(rootNode);
+            depths.push(0);
+        }
+        while(!nodes.isEmpty()){
+            TopDownNode<K, P> node = nodes.pop();
+            int depth = depths.pop();
+            height = Math.max(height, depth);
+            if(node.leftNode != null){
+                nodes.push(node.leftNode);
+                depths.push(depth + 1);
+            }
+            if(node.rightNode != null){
+                nodes.push(node.rightNode);
+                depths.push(depth + 1);
+            }
+        }
+        return height;
+    }
+
+    /**
+     * Print in order traversal (start from most left leaf and go down to the right in the tree)
+     */
+    public void printInOrder(){
+        for(TopDownNode<K, P> currentNode : this){
+            System.out.println(currentNode);
+        }
+    }
+
+    /**
+     * Verify if Cartesian tree does hold all properties
+     * @return True if all properties hold
+     */
+    public boolean verifyCartiesanTree(){
+        // Heap order between every node and its children, and subtree sizes with order statistics
+        Deque<TopDownNode<K, P>> nodes = new ArrayDeque<>();
+        if(rootNode != null){
+            nodes.push(rootNode);
+        }
+        while(!nodes.isEmpty()){
+            TopDownNode<K, P> node = nodes.pop();
+            if(orderStatistics && node.subtreeSize != subtreeSize(node.leftNode) + subtreeSize(node.rightNode) + 1){
+                return false;
+            }
+            if(node.leftNode != null){
+                if(node.leftNode.priorityValue.compareTo(node.priorityValue) < 0){
+                    return false;
+                }
+                nodes.push(node.leftNode);
+            }
+            if(node.rightNode != null){
+                if(node.rightNode.priorityValue.compareTo(node.priorityValue) < 0){
+                    return false;
+                }
+                nodes.push(node.rightNode);
+            }
+        }
+
+        // Key order over the whole tree
+        K previousKey = null;
+        for(TopDownNode<K, P> node : this){
+            if(previousKey != null && previousKey.compareTo(node.keyValue) > 0){
+                return false;
+            }
+            previousKey = node.keyValue;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,705 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.ref.Reference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+/** @author Armand Bonn
+ * Whole data set benchmark of the Cartesian tree operations, run from the command line:
+ *   java TreeBenchmark --sizes 1000,100000 --orders RANDOM,SORTED --priorities UNIFORM
+ *                      --operations insertNode,findNode --warmup 5 --iterations 10 --out results/benchmark
+ *                      --pool true --order-statistics true --structures MUTABLE,PERSISTENT
+ * Every option is optional; --pool true runs the trees with a node pool (CartesianTree.enableNodePool),
+ * --order-statistics true keeps subtree sizes in the mutable and top-down trees (new CartesianTree<>(true)),
+ * so a run with and a run without it give the cost of the size bookkeeping of the rotations and splits,
+ * --structures picks the trees to compare (CartesianTree, PersistentCartesianTree and TopDownCartesianTree,
+ * mutable only by default). B/op of insertNode is the size of a node, the keys and priorities being boxed up front.
+ * retainedSize is not timed: it builds a tree holding every key and reports, in the B/op column, the heap
+ * the tree keeps per node (used heap after full collections, with and without the tree), e.g.
+ *   java TreeBenchmark --operations retainedSize --structures MUTABLE,TOP_DOWN --sizes 1000000
+ *   java -XX:-UseCompressedOops TreeBenchmark --operations retainedSize --structures MUTABLE,TOP_DOWN --sizes 1000000
+ * Each (structure, operation, size, key order, priority distribution) runs warmup
+ * iterations that are thrown away, then measured iterations timed as a whole with System.nanoTime,
+ * then latency iterations where every call is timed on its own into a LatencyHistogram (kept apart
+ * so that the clock reads do not weigh on the throughput).
+ * Tree building and garbage collection happen outside the timed section.
+ * Reports throughput (mean and standard deviation over iterations), per operation latency percentiles,
+ * allocated bytes per operation and collector activity, on the console and in a CSV file.
+ * The JMH suite of the jmh module (TreeOperationBenchmark, run with -prof gc) reuses the fixtures
+ * and trees of this class for forked, JIT-isolated measurements.
+ */
+public class TreeBenchmark {
+    // Above this size insertNodeKey on sorted keys (a linked list) is quadratic and skipped
+    private static final int UNBALANCED_SIZE_LIMIT = 50000;
+    private static final long SEED = 54L;
+
+    // Order in which keys are inserted, deleted and looked up
+    enum KeyOrder { RANDOM, SORTED, REVERSE }
+
+    // Distribution of the priorities
+    enum PriorityDistribution {
+        // Uniform random longs
+        UNIFORM,
+        // Uniform in [0, n / 16): many equal priorities
+        NARROW,
+        // Derived from the key hash (PriorityGenerator.keyHash)
+        KEY_HASH
+    }
+
+    // Benchmarked trees
+    enum Structure {
+        // CartesianTree
+        MUTABLE(true),
+        // PersistentCartesianTree (path copying, no insertNodeKey)
+        PERSISTENT(false),
+        // TopDownCartesianTree (no parent links, split and merge instead of rotations)
+        TOP_DOWN(true);
+
+        private final boolean keyInsertion;
+
+        Structure(boolean keyInsertion){
+            this.keyInsertion = keyInsertion;
+        }
+
+        /**
+         * Check if the tree has insertNodeKey (its adapter is a KeyInsertingTree)
+         * @return True if insertNodeKey can be benchmarked
+         */
+        boolean hasKeyInsertion(){
+            return keyInsertion;
+        }
+    }
+
+    // Benchmarked methods of CartesianTree
+    enum Operation {
+        INSERT_NODE("insertNode"),
+        INSERT_NODE_KEY("insertNodeKey"),
+        DELETE_NODE("deleteNode"),
+        FIND_NODE("findNode"),
+        // deleteNode then insertNode of the same pair: steady state churn at constant size
+        INSERT_DELETE_CYCLE("insertDeleteCycle"),
+        // Priority of every key changed to the priority of another key (in place for the mutable tree)
+        UPDATE_PRIORITY("updatePriority"),
+        GET_HEIGHT("getHeight"),
+        VERIFY("verifyCartiesanTree"),
+        // Copy of the tree a reader can keep while writers go on: full copy of a mutable tree, snapshot() of a persistent one
+        SNAPSHOT("snapshot"),
+        // Heap kept by a tree holding every key, per node (not timed)
+        RETAINED_SIZE("retainedSize");
+
+        private final String methodName;
+
+        Operation(String methodName){
+            this.methodName = methodName;
+        }
+
+        static Operation fromMethodName(String methodName){
+            for(Operation operation : values()){
+                if(operation.methodName.equals(methodName)){
+                    return operation;
+                }
+            }
+            throw new IllegalArgumentException("Unknown operation: " + methodName);
+        }
+    }
+
+    /**
+     * Common view of the benchmarked trees
+     */
+    interface BenchmarkedTree {
+        void insertNode(Integer keyValue, Long priorityValue);
+        void deleteNode(Integer keyValue, Long priorityValue);
+        void updatePriority(Integer keyValue, Long newPriority);
+        Integer findKey(Integer keyValue);
+        int getHeight();
+        boolean verifyCartiesanTree();
+        // Copy that later updates do not change, returns its size
+        int snapshot();
+    }
+
+    /**
+     * Benchmarked tree that also inserts by walking down to a leaf by key only, without rotations (insertNodeKey)
+     */
+    interface KeyInsertingTree extends BenchmarkedTree {
+        void insertNodeKey(Integer keyValue, Long priorityValue);
+    }
+
+    static final class MutableTree implements KeyInsertingTree {
+        private final CartesianTree<Integer, Long> tree;
+
+        MutableTree(CartesianTree<Integer, Long> tree){
+            this.tree = tree;
+        }
+
+        public void insertNode(Integer keyValue, Long priorityValue){
+            tree.insertNode(keyValue, priorityValue);
+        }
+
+        public void insertNodeKey(Integer keyValue, Long priorityValue){
+            tree.insertNodeKey(keyValue, priorityValue);
+        }
+
+        public void deleteNode(Integer keyValue, Long priorityValue){
+            tree.deleteNode(keyValue, priorityValue);
+        }
+
+        public void updatePriority(Integer keyValue, Long newPriority){
+            tree.updatePriority(keyValue, newPriority);
+        }
+
+        public Integer findKey(Integer keyValue){
+            return tree.findNode(keyValue).getKeyValue();
+        }
+
+        public int getHeight(){
+            return tree.getHeight();
+        }
+
+        public boolean verifyCartiesanTree(){
+            return tree.verifyCartiesanTree();
+        }
+
+        public int snapshot(){
+            // Only way to keep a stable view of a mutable tree: copy it (linear build from the sorted walk)
+            List<Integer> keyValues = new ArrayList<>();
+            List<Long> priorityValues = new ArrayList<>();
+            for(Node<Integer, Long> node : tree){
+                keyValues.add(node.getKeyValue());
+                priorityValues.add(node.getPriorityValue());
+            }
+            return CartesianTree.buildFromSorted(keyValues, priorityValues).isTreeEmpty() ? 0 : keyValues.size();
+        }
+    }
+
+    static final class PersistentTree implements BenchmarkedTree {
+        private final PersistentCartesianTree<Integer, Long> tree;
+
+        PersistentTree(PersistentCartesianTree<Integer, Long> tree){
+            this.tree = tree;
+        }
+
+        public void insertNode(Integer keyValue, Long priorityValue){
+            tree.insertNode(keyValue, priorityValue);
+        }
+
+        public void deleteNode(Integer keyValue, Long priorityValue){
+            tree.deleteNode(keyValue);
+        }
+
+        public void updatePriority(Integer keyValue, Long newPriority){
+            // Immutable nodes: the new pair replaces the old one
+            tree.deleteNode(keyValue);
+            tree.insertNode(keyValue, newPriority);
+        }
+
+        public Integer findKey(Integer keyValue){
+            return tree.findNode(keyValue).getKeyValue();
+        }
+
+        public int getHeight(){
+            return tree.getHeight();
+        }
+
+        public boolean verifyCartiesanTree(){
+            return tree.verifyCartiesanTree();
+        }
+
+        public int snapshot(){
+            return tree.snapshot().size();
+        }
+    }
+
+    static final class TopDownTree implements KeyInsertingTree {
+        private final TopDownCartesianTree<Integer, Long> tree;
+
+        TopDownTree(TopDownCartesianTree<Integer, Long> tree){
+            this.tree = tree;
+        }
+
+        public void insertNode(Integer keyValue, Long priorityValue){
+            tree.insertNode(keyValue, priorityValue);
+        }
+
+        public void insertNodeKey(Integer keyValue, Long priorityValue){
+            tree.insertNodeKey(keyValue, priorityValue);
+        }
+
+        public void deleteNode(Integer keyValue, Long priorityValue){
+            tree.deleteNode(keyValue, priorityValue);
+        }
+
+        public void updatePriority(Integer keyValue, Long newPriority){
+            // No in-place update without parent links: the new pair replaces the old one
+            tree.delete(keyValue);
+            tree.insertNode(keyValue, newPriority);
+        }
+
+        public Integer findKey(Integer keyValue){
+            return tree.findNode(keyValue).getKeyValue();
+        }
+
+        public int getHeight(){
+            return tree.getHeight();
+        }
+
+        public boolean verifyCartiesanTree(){
+            return tree.verifyCartiesanTree();
+        }
+
+        public int snapshot(){
+            // Copy by inserting in key order (each insertion walks down the right spine only)
+            TopDownCartesianTree<Integer, Long> copy = new TopDownCartesianTree<>();
+            int size = 0;
+            for(TopDownCartesianTree.TopDownNode<Integer, Long> node : tree){
+                copy.insertNode(node.getKeyValue(), node.getPriorityValue());
+                size++;
+            }
+            return copy.isTreeEmpty() ? 0 : size;
+        }
+    }
+
+    /**
+     * Input of one benchmark configuration: keys in operation order and their priorities
+     */
+    static final class Fixture {
+        private final Integer[] keyValues;
+        private final Long[] priorityValues;
+        private final boolean nodePool;
+        private final boolean orderStatistics;
+
+        Fixture(int size, KeyOrder keyOrder, PriorityDistribution priorityDistribution, boolean nodePool, boolean orderStatistics){
+            this.nodePool = nodePool;
+            this.orderStatistics = orderStatistics;
+            // Keys 0 to size - 1 in the requested order (boxed up front so boxing is not measured)
+            List<Integer> keys = new ArrayList<>(size);
+            for(int i = 0; i < size; i++){
+                keys.add(i);
+            }
+            if(keyOrder == KeyOrder.RANDOM){
+                Collections.shuffle(keys, new Random(SEED));
+            } else if(keyOrder == KeyOrder.REVERSE){
+                Collections.reverse(keys);
+            }
+            this.keyValues = keys.toArray(new Integer[0]);
+
+            SplittableRandom random = new SplittableRandom(SEED);
+            PriorityGenerator<Integer, Long> hashGenerator = PriorityGenerator.keyHash(SEED);
+            this.priorityValues = new Long[size];
+            for(int i = 0; i < size; i++){
+                switch(priorityDistribution){
+                    case UNIFORM:
+                        priorityValues[i] = random.nextLong();
+                        break;
+                    case NARROW:
+                        priorityValues[i] = random.nextLong(Math.max(1, size / 16));
+                        break;
+                    default:
+                        priorityValues[i] = hashGenerator.nextPriority(keyValues[i]);
+                }
+            }
+        }
+
+        /**
+         * Keys in operation order
+         * @return Boxed keys, shared (not to be changed)
+         */
+        Integer[] getKeyValues(){
+            return keyValues;
+        }
+
+        /**
+         * Priorities of the keys, in the same order
+         * @return Boxed priorities, shared (not to be changed)
+         */
+        Long[] getPriorityValues(){
+            return priorityValues;
+        }
+
+        /**
+         * Tree holding all keys, built outside the timed section
+         * @param structure Benchmarked tree
+         * @return New tree
+         */
+        BenchmarkedTree buildTree(Structure structure){
+            if(structure == Structure.PERSISTENT){
+                // Keys are 0 to size - 1: the sorted order is the key itself
+                Integer[] sortedKeys = new Integer[keyValues.length];
+                Long[] sortedPriorities = new Long[keyValues.length];
+                for(int i = 0; i < keyValues.length; i++){
+                    sortedKeys[keyValues[i]] = keyValues[i];
+                    sortedPriorities[keyValues[i]] = priorityValues[i];
+                }
+                return new PersistentTree(PersistentCartesianTree.buildFromSorted(Arrays.asList(sortedKeys), Arrays.asList(sortedPriorities)));
+            }
+            if(structure == Structure.TOP_DOWN){
+                TopDownCartesianTree<Integer, Long> tree = new TopDownCartesianTree<>(orderStatistics);
+                for(int i = 0; i < keyValues.length; i++){
+                    tree.insertNode(keyValues[i], priorityValues[i]);
+                }
+                return new TopDownTree(tree);
+            }
+            CartesianTree<Integer, Long> tree = CartesianTree.build(Arrays.asList(keyValues), Arrays.asList(priorityValues));
+            if(orderStatistics){
+                tree.enableOrderStatistics();
+            }
+            if(nodePool){
+                tree.enableNodePool();
+            }
+            return new MutableTree(tree);
+        }
+
+        /**
+         * Empty tree for the insertion benchmarks
+         * @param structure Benchmarked tree
+         * @return New tree
+         */
+        BenchmarkedTree emptyTree(Structure structure){
+            if(structure == Structure.PERSISTENT){
+                return new PersistentTree(new PersistentCartesianTree<>());
+            }
+            if(structure == Structure.TOP_DOWN){
+                return new TopDownTree(new TopDownCartesianTree<>(orderStatistics));
+            }
+            CartesianTree<Integer, Long> tree = new CartesianTree<>(orderStatistics);
+            if(nodePool){
+                tree.enableNodePool();
+            }
+            return new MutableTree(tree);
+        }
+    }
+
+    /**
+     * Numbers of one measured iteration
+     */
+    private static final class Iteration {
+        private long operations;
+        private long elapsedNanos;
+        private long allocatedBytes;
+        private long gcCount;
+        private long gcMillis;
+    }
+
+    // Written with the results of benchmarked calls so the JIT cannot drop them
+    private static volatile long sink;
+
+    /**
+     * Run the benchmarks
+     * @param args Options (see class comment)
+     * @throws IOException If the CSV file cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        BenchmarkHarness.Options options = new BenchmarkHarness.Options(args, "--sizes", "--orders", "--priorities", "--operations",
+                "--warmup", "--iterations", "--structures", "--pool", "--order-statistics", "--out");
+        int[] sizes = options.getInts("--sizes", new int[]{1000, 10000, 100000, 1000000});
+        List<KeyOrder> keyOrders = new ArrayList<>();
+        for(String name : options.getStrings("--orders", names(KeyOrder.values()))){
+            keyOrders.add(KeyOrder.valueOf(name));
+        }
+        List<PriorityDistribution> priorityDistributions = new ArrayList<>();
+        for(String name : options.getStrings("--priorities", names(PriorityDistribution.values()))){
+            priorityDistributions.add(PriorityDistribution.valueOf(name));
+        }
+        List<Operation> operations = new ArrayList<>();
+        if(options.contains("--operations")){
+            for(String name : options.getStrings("--operations", null)){
+                operations.add(Operation.fromMethodName(name));
+            }
+        } else{
+            operations.addAll(Arrays.asList(Operation.values()));
+        }
+        List<Structure> structures = new ArrayList<>();
+        for(String name : options.getStrings("--structures", Arrays.asList(Structure.MUTABLE.name()))){
+            structures.add(Structure.valueOf(name));
+        }
+        int warmupIterations = options.getInt("--warmup", 5);
+        int measuredIterations = options.getInt("--iterations", 10);
+        boolean nodePool = options.getBoolean("--pool", false);
+        boolean orderStatistics = options.getBoolean("--order-statistics", false);
+        Path outputDirectory = Paths.get(options.getString("--out", Paths.get("results", "benchmark").toString()));
+
+        Files.createDirectories(outputDirectory);
+        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
+        Path outputPath = outputDirectory.resolve("treeBenchmark_" + timestamp + ".csv");
+
+        try (BufferedWriter writer = Files.newBufferedWriter(outputPath)) {
+            writer.write("structure,operation,size,keyOrder,priorities,opsPerSecond,opsPerSecondError,p50Nanos,p90Nanos,p99Nanos,p999Nanos,bytesPerOp,gcCount,gcMillis,pool,orderStatistics");
+            writer.newLine();
+            System.out.println(String.format("%-10s %-20s %9s %-8s %-9s %16s %8s %8s %8s %9s %10s %5s", "structure", "operation", "size", "keys", "prios", "ops/s", "p50 ns", "p99 ns", "p99.9 ns", "B/op", "gc count", "gc ms"));
+
+            for(int size : sizes){
+                for(KeyOrder keyOrder : keyOrders){
+                    for(PriorityDistribution priorityDistribution : priorityDistributions){
+                        Fixture fixture = new Fixture(size, keyOrder, priorityDistribution, nodePool, orderStatistics);
+                        for(Structure structure : structures){
+                            for(Operation operation : operations){
+                                if(operation == Operation.INSERT_NODE_KEY && !structure.hasKeyInsertion()){
+                                    continue;
+                                }
+                                if(operation == Operation.INSERT_NODE_KEY && isKeyInsertionQuadratic(keyOrder, size)){
+                                    System.out.println(String.format("%-10s %-20s %9d %-8s %-9s skipped (quadratic on sorted keys)", structure, operation.methodName, size, keyOrder, priorityDistribution));
+                                    continue;
+                                }
+                                if(operation == Operation.RETAINED_SIZE){
+                                    reportRetainedSize(writer, structure, size, keyOrder, priorityDistribution, fixture);
+                                    continue;
+                                }
+                                runConfiguration(writer, structure, operation, size, keyOrder, priorityDistribution, fixture, warmupIterations, measuredIterations);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        System.out.println("Results written to " + outputPath.toAbsolutePath());
+    }
+
+    /**
+     * Measure and report the heap a tree holding every key keeps per node. The keys and priorities are
+     * owned by the fixture and already on the heap, so what is left is the nodes (and the tree objects,
+     * negligible over many nodes, and the free slots of a node pool).
+     */
+    private static void reportRetainedSize(BufferedWriter writer, Structure structure, int size, KeyOrder keyOrder, PriorityDistribution priorityDistribution,
+            Fixture fixture) throws IOException {
+        long usedBefore = usedHeapAfterGc();
+        BenchmarkedTree tree = fixture.buildTree(structure);
+        long usedAfter = usedHeapAfterGc();
+        Reference.reachabilityFence(tree);
+        double bytesPerNode = (double) (usedAfter - usedBefore) / Math.max(1, size);
+
+        System.out.println(String.format("%-10s %-20s %9d %-8s %-9s %16s %8s %8s %8s %9.1f %10s %5s", structure, Operation.RETAINED_SIZE.methodName, size, keyOrder, priorityDistribution,
+                "-", "-", "-", "-", bytesPerNode, "-", "-"));
+        writer.write(String.format(Locale.ROOT, "%s,%s,%d,%s,%s,,,,,,,%.2f,,,%b,%b", structure, Operation.RETAINED_SIZE.methodName, size, keyOrder, priorityDistribution,
+                bytesPerNode, fixture.nodePool, fixture.orderStatistics));
+        writer.newLine();
+        writer.flush();
+    }
+
+    /**
+     * Used heap once full collections stop freeing memory
+     * @return Used heap in bytes
+     */
+    private static long usedHeapAfterGc(){
+        MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+        long usedBytes = Long.MAX_VALUE;
+        for(int i = 0; i < 10; i++){
+            System.gc();
+            long currentBytes = memoryBean.getHeapMemoryUsage().getUsed();
+            if(currentBytes >= usedBytes){
+                break;
+            }
+            usedBytes = currentBytes;
+        }
+        return usedBytes;
+    }
+
+    /**
+     * Check if insertNodeKey is too slow to benchmark: on sorted keys it builds a linked list and is quadratic
+     * @param keyOrder Order of the inserted keys
+     * @param size Number of keys
+     * @return True if the configuration is skipped
+     */
+    static boolean isKeyInsertionQuadratic(KeyOrder keyOrder, int size){
+        return keyOrder != KeyOrder.RANDOM && size > UNBALANCED_SIZE_LIMIT;
+    }
+
+    /**
+     * Warm up, measure and report one configuration
+     */
+    private static void runConfiguration(BufferedWriter writer, Structure structure, Operation operation, int size, KeyOrder keyOrder, PriorityDistribution priorityDistribution,
+            Fixture fixture, int warmupIterations, int measuredIterations) throws IOException {
+        for(int i = 0; i < warmupIterations; i++){
+            measureIteration(structure, operation, fixture, null);
+        }
+
+        List<Iteration> iterations = new ArrayList<>(measuredIterations);
+        for(int i = 0; i < measuredIterations; i++){
+            iterations.add(measureIteration(structure, operation, fixture, null));
+        }
+
+        // Latency iterations, every call timed on its own (recording never allocates)
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(int i = 0; i < measuredIterations; i++){
+            measureIteration(structure, operation, fixture, histogram);
+        }
+
+        // Throughput mean and standard deviation over the iterations
+        double[] throughputs = new double[iterations.size()];
+        long operations = 0;
+        long allocatedBytes = 0;
+        long gcCount = 0;
+        long gcMillis = 0;
+        for(int i = 0; i < iterations.size(); i++){
+            Iteration iteration = iterations.get(i);
+            throughputs[i] = iteration.operations / (iteration.elapsedNanos / 1e9);
+            operations += iteration.operations;
+            allocatedBytes = allocatedBytes < 0 || iteration.allocatedBytes < 0 ? -1 : allocatedBytes + iteration.allocatedBytes;
+            gcCount += iteration.gcCount;
+            gcMillis += iteration.gcMillis;
+        }
+        double meanThroughput = Arrays.stream(throughputs).average().orElse(0);
+        double variance = Arrays.stream(throughputs).map(t -> (t - meanThroughput) * (t - meanThroughput)).sum() / Math.max(1, throughputs.length - 1);
+        double throughputError = Math.sqrt(variance);
+        double bytesPerOperation = allocatedBytes < 0 ? -1 : (double) allocatedBytes / Math.max(1, operations);
+
+        long p50 = histogram.getPercentile(0.50);
+        long p90 = histogram.getPercentile(0.90);
+        long p99 = histogram.getPercentile(0.99);
+        long p999 = histogram.getPercentile(0.999);
+
+        System.out.println(String.format("%-10s %-20s %9d %-8s %-9s %16s %8d %8d %8d %9.1f %10d %5d", structure, operation.methodName, size, keyOrder, priorityDistribution,
+                String.format("%.0f +- %.0f", meanThroughput, throughputError), p50, p99, p999, bytesPerOperation, gcCount, gcMillis));
+        writer.write(String.format(Locale.ROOT, "%s,%s,%d,%s,%s,%.1f,%.1f,%d,%d,%d,%d,%.2f,%d,%d,%b,%b", structure, operation.methodName, size, keyOrder, priorityDistribution,
+                meanThroughput, throughputError, p50, p90, p99, p999, bytesPerOperation, gcCount, gcMillis, fixture.nodePool, fixture.orderStatistics));
+        writer.newLine();
+        writer.flush();
+    }
+
+    /**
+     * One iteration: untimed setup, garbage collection, then the timed operations
+     * @param structure Benchmarked tree
+     * @param operation Benchmarked operation
+     * @param fixture Keys and priorities
+     * @param histogram Receives the latency of every call when not null (the numbers returned then include the clock reads)
+     * @return Numbers of the iteration
+     */
+    private static Iteration measureIteration(Structure structure, Operation operation, Fixture fixture, LatencyHistogram histogram){
+        Integer[] keyValues = fixture.keyValues;
+        Long[] priorityValues = fixture.priorityValues;
+        int size = keyValues.length;
+
+        // Setup outside of the timed section
+        BenchmarkedTree tree = operation == Operation.INSERT_NODE || operation == Operation.INSERT_NODE_KEY ? fixture.emptyTree(structure) : fixture.buildTree(structure);
+        System.gc();
+
+        Iteration iteration = new Iteration();
+        long gcCountBefore = gcCount();
+        long gcMillisBefore = gcMillis();
+        long allocatedBefore = allocatedBytes();
+        long checksum = 0;
+        long startTime = System.nanoTime();
+        long operationStart = startTime;
+
+        switch(operation){
+            case INSERT_NODE:
+            case INSERT_NODE_KEY:
+            case DELETE_NODE:
+            case FIND_NODE:
+            case INSERT_DELETE_CYCLE:
+            case UPDATE_PRIORITY:
+                // Operations over every key
+                for(int i = 0; i < size; i++){
+                    if(histogram != null){
+                        operationStart = System.nanoTime();
+                    }
+                    if(operation == Operation.INSERT_NODE){
+                        tree.insertNode(keyValues[i], priorityValues[i]);
+                    } else if(operation == Operation.INSERT_NODE_KEY){
+                        ((KeyInsertingTree) tree).insertNodeKey(keyValues[i], priorityValues[i]);
+                    } else if(operation == Operation.DELETE_NODE){
+                        tree.deleteNode(keyValues[i], priorityValues[i]);
+                    } else if(operation == Operation.INSERT_DELETE_CYCLE){
+                        tree.deleteNode(keyValues[i], priorityValues[i]);
+                        tree.insertNode(keyValues[i], priorityValues[i]);
+                    } else if(operation == Operation.UPDATE_PRIORITY){
+                        tree.updatePriority(keyValues[i], priorityValues[size - 1 - i]);
+                    } else{
+                        checksum += tree.findKey(keyValues[i]);
+                    }
+                    if(histogram != null){
+                        histogram.record(System.nanoTime() - operationStart);
+                    }
+                }
+                iteration.operations = size;
+                break;
+            default:
+                // Whole tree walks, repeated to visit about a million nodes
+                int calls = wholeTreeCalls(size);
+                for(int i = 0; i < calls; i++){
+                    if(histogram != null){
+                        operationStart = System.nanoTime();
+                    }
+                    if(operation == Operation.SNAPSHOT){
+                        checksum += tree.snapshot();
+                    } else{
+                        checksum += operation == Operation.GET_HEIGHT ? tree.getHeight() : (tree.verifyCartiesanTree() ? 1 : 0);
+                    }
+                    if(histogram != null){
+                        histogram.record(System.nanoTime() - operationStart);
+                    }
+                }
+                iteration.operations = calls;
+        }
+
+        iteration.elapsedNanos = System.nanoTime() - startTime;
+        long allocatedAfter = allocatedBytes();
+        iteration.allocatedBytes = allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore;
+        iteration.gcCount = gcCount() - gcCountBefore;
+        iteration.gcMillis = gcMillis() - gcMillisBefore;
+        sink = checksum;
+        return iteration;
+    }
+
+    /**
+     * Number of getHeight or verifyCartiesanTree calls per iteration, about a million nodes visited
+     * @param size Number of nodes in the tree
+     * @return Number of calls
+     */
+    private static int wholeTreeCalls(int size){
+        return Math.max(1, 1000000 / Math.max(1, size));
+    }
+
+    /**
+     * Names of enum constants, the default of a list option
+     * @param constants Enum constants
+     * @return Their names in order
+     */
+    private static List<String> names(Enum<?>[] constants){
+        List<String> names = new ArrayList<>(constants.length);
+        for(Enum<?> constant : constants){
+            names.add(constant.name());
+        }
+        return names;
+    }
+
+    /**
+     * Bytes allocated so far by the current thread (HotSpot extension of ThreadMXBean)
+     * @return Allocated bytes, -1 if the JVM does not support it
+     */
+    private static long allocatedBytes(){
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if(threadBean instanceof com.sun.management.ThreadMXBean){
+            return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static long gcCount(){
+        long count = 0;
+        for(GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()){
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis(){
+        long millis = 0;
+        for(GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()){
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+}
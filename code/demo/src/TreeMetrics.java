@@ -0,0 +1,404 @@
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+
+/** @author Armand Bonn
+ * Opt-in counters of a Cartesian tree: comparisons, rotations per insertion and suppression,
+ * search depths (histogram), size and peak depth (deepest node reached so far, not the current height).
+ * Enabled with CartesianTree.enableMetrics(); a tree without metrics only pays a null check.
+ * Every insertion and suppression also emits a Flight Recorder event (when recording), and a
+ * periodic event reports the shape of the tree. Like the tree, the counters are not thread-safe:
+ * the periodic event runs on a Flight Recorder thread, so it only asks for a snapshot, which the
+ * tree takes on its next operation, and emits the last snapshot published through a volatile field
+ * (it lags by one period at most, or stays at the last one while the tree is idle). The event only
+ * holds the metrics weakly and removes itself once they are collected with their tree.
+ * A random treap has an expected node depth of about 2 ln(n): the depth ratio of a snapshot
+ * (mean search depth / 2 ln(n)) drifting well above 1 points at badly distributed priorities.
+ */
+public class TreeMetrics {
+    // Depths at or above this value share the last histogram bucket
+    public static final int MAX_TRACKED_DEPTH = 128;
+
+    private final long[] depthCounts = new long[MAX_TRACKED_DEPTH];
+    private long searches;
+    private long comparisons;
+    private long inserts;
+    private long insertRotations;
+    private long deletes;
+    private long deleteRotations;
+    private int size;
+    private int peakDepth;
+    // Set when a split, merge or range operation changed the size without counting it
+    private boolean sizeStale;
+    // Last snapshot taken, read by the periodic event
+    private volatile Snapshot publishedSnapshot;
+    // Set by the periodic event, cleared by the next snapshot
+    private volatile boolean snapshotRequested;
+    private ShapeHook periodicHook;
+
+    /**
+     * initiator metrics of a tree
+     * @param size Current number of nodes of the tree
+     * @param height Current height of the tree (-1 if empty)
+     */
+    TreeMetrics(int size, int height){
+        this.size = size;
+        this.peakDepth = Math.max(0, height);
+        this.publishedSnapshot = new Snapshot(this);
+    }
+
+    // --- Recording (called by CartesianTree) ---
+
+    /**
+     * Record a descent from the root
+     * @param depth Depth of the last node visited (one comparison per node visited)
+     */
+    void recordSearch(int depth){
+        searches++;
+        comparisons += depth + 1;
+        depthCounts[Math.min(depth, MAX_TRACKED_DEPTH - 1)]++;
+        if(depth > peakDepth){
+            peakDepth = depth;
+        }
+    }
+
+    /**
+     * Record an insertion
+     * @param depth Depth where the new node was attached, before rotations
+     * @param rotations Rotations needed to restore the priority order
+     */
+    void recordInsert(int depth, int rotations){
+        inserts++;
+        insertRotations += rotations;
+        size++;
+        if(depth > peakDepth){
+            peakDepth = depth;
+        }
+
+        InsertEvent event = new InsertEvent();
+        if(event.shouldCommit()){
+            event.depth = depth;
+            event.rotations = rotations;
+            event.size = size;
+            event.commit();
+        }
+    }
+
+    /**
+     * Record a suppression
+     * @param rotations Rotations needed to bring the node down to a leaf
+     */
+    void recordDelete(int rotations){
+        deletes++;
+        deleteRotations += rotations;
+        size--;
+
+        DeleteEvent event = new DeleteEvent();
+        if(event.shouldCommit()){
+            event.rotations = rotations;
+            event.size = size;
+            event.commit();
+        }
+    }
+
+    /**
+     * The size changed through split, merge or range operations: recount on the next snapshot
+     */
+    void sizeChanged(){
+        sizeStale = true;
+    }
+
+    boolean isSizeStale(){
+        return sizeStale;
+    }
+
+    void resetSize(int size){
+        this.size = size;
+        this.sizeStale = false;
+    }
+
+    /**
+     * Check if the periodic event asked for a new snapshot
+     * @return True if the tree should take a snapshot
+     */
+    boolean isSnapshotRequested(){
+        return snapshotRequested;
+    }
+
+    /**
+     * Start emitting the periodic shape event for this tree
+     */
+    void registerPeriodicEvent(){
+        periodicHook = new ShapeHook(this);
+        FlightRecorder.addPeriodicEvent(ShapeEvent.class, periodicHook);
+    }
+
+    /**
+     * Stop emitting the periodic shape event
+     */
+    void unregisterPeriodicEvent(){
+        if(periodicHook != null){
+            FlightRecorder.removePeriodicEvent(periodicHook);
+            periodicHook = null;
+        }
+    }
+
+    // --- Reading ---
+
+    /**
+     * Copy of the current counters, also published to the periodic event.
+     * Call it from the thread updating the tree.
+     * @return Snapshot of the metrics
+     */
+    public Snapshot snapshot(){
+        Snapshot snapshot = new Snapshot(this);
+        publishedSnapshot = snapshot;
+        snapshotRequested = false;
+        return snapshot;
+    }
+
+    /**
+     * Set all counters back to zero (size and peak depth are kept)
+     */
+    public void reset(){
+        Arrays.fill(depthCounts, 0);
+        searches = 0;
+        comparisons = 0;
+        inserts = 0;
+        insertRotations = 0;
+        deletes = 0;
+        deleteRotations = 0;
+    }
+
+    /**
+     * Immutable copy of the metrics of a tree
+     */
+    public static final class Snapshot {
+        private final long[] depthCounts;
+        private final long searches;
+        private final long comparisons;
+        private final long inserts;
+        private final long insertRotations;
+        private final long deletes;
+        private final long deleteRotations;
+        private final int size;
+        private final int peakDepth;
+
+        private Snapshot(TreeMetrics metrics){
+            this.depthCounts = metrics.depthCounts.clone();
+            this.searches = metrics.searches;
+            this.comparisons = metrics.comparisons;
+            this.inserts = metrics.inserts;
+            this.insertRotations = metrics.insertRotations;
+            this.deletes = metrics.deletes;
+            this.deleteRotations = metrics.deleteRotations;
+            this.size = metrics.size;
+            this.peakDepth = metrics.peakDepth;
+        }
+
+        public int getSize(){
+            return size;
+        }
+
+        /**
+         * Peak depth: deepest node reached by a search or an insertion since the metrics were enabled
+         * (the height of the tree when enabled is the starting value). It never goes down, so it is
+         * not the current height once nodes are deleted (CartesianTree.getHeight() measures that).
+         * @return Peak depth
+         */
+        public int getPeakDepth(){
+            return peakDepth;
+        }
+
+        public long getSearches(){
+            return searches;
+        }
+
+        public long getComparisons(){
+            return comparisons;
+        }
+
+        public long getInserts(){
+            return inserts;
+        }
+
+        public long getDeletes(){
+            return deletes;
+        }
+
+        public long getInsertRotations(){
+            return insertRotations;
+        }
+
+        public long getDeleteRotations(){
+            return deleteRotations;
+        }
+
+        public double getRotationsPerInsert(){
+            return inserts == 0 ? 0 : (double) insertRotations / inserts;
+        }
+
+        public double getRotationsPerDelete(){
+            return deletes == 0 ? 0 : (double) deleteRotations / deletes;
+        }
+
+        /**
+         * Number of searches that ended at each depth (last bucket holds all deeper ones)
+         * @return Copy of the depth histogram
+         */
+        public long[] getDepthHistogram(){
+            return depthCounts.clone();
+        }
+
+        public double getMeanSearchDepth(){
+            return searches == 0 ? 0 : (double) (comparisons - searches) / searches;
+        }
+
+        /**
+         * Depth below which a fraction of the searches ended
+         * @param fraction Fraction between 0 and 1
+         * @return Depth at that rank, 0 without searches
+         */
+        public int getSearchDepthPercentile(double fraction){
+            long rank = Math.max(1, (long) Math.ceil(fraction * searches));
+            long seen = 0;
+            for(int depth = 0; depth < depthCounts.length; depth++){
+                seen += depthCounts[depth];
+                if(seen >= rank){
+                    return depth;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Expected node depth of a tree with random priorities
+         * @return 2 ln(size)
+         */
+        public double getExpectedDepth(){
+            return size <= 1 ? 0 : 2 * Math.log(size);
+        }
+
+        /**
+         * Mean search depth relative to the expected depth of a random treap (about 1 when healthy)
+         * @return Depth ratio, 0 for trees with less than two nodes
+         */
+        public double getDepthRatio(){
+            double expectedDepth = getExpectedDepth();
+            return expectedDepth == 0 ? 0 : getMeanSearchDepth() / expectedDepth;
+        }
+
+        /**
+         * Metrics by name, for exporters
+         * @return Map from metric name to value
+         */
+        public Map<String, Number> toMap(){
+            Map<String, Number> values = new LinkedHashMap<>();
+            values.put("size", size);
+            values.put("peak_depth", peakDepth);
+            values.put("searches", searches);
+            values.put("comparisons", comparisons);
+            values.put("inserts", inserts);
+            values.put("deletes", deletes);
+            values.put("insert_rotations", insertRotations);
+            values.put("delete_rotations", deleteRotations);
+            values.put("mean_search_depth", getMeanSearchDepth());
+            values.put("search_depth_p99", getSearchDepthPercentile(0.99));
+            values.put("expected_depth", getExpectedDepth());
+            values.put("depth_ratio", getDepthRatio());
+            return values;
+        }
+
+        @Override
+        public String toString(){
+            StringBuilder builder = new StringBuilder();
+            for(Map.Entry<String, Number> entry : toMap().entrySet()){
+                builder.append("cartesian_tree_").append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+            }
+            return builder.toString();
+        }
+    }
+
+    // --- Flight Recorder events ---
+
+    @Name("cartesiantree.Insert")
+    @Label("Cartesian Tree Insert")
+    @Category("Cartesian Tree")
+    @Description("Insertion of a node with its depth and rotations")
+    static final class InsertEvent extends Event {
+        @Label("Depth")
+        int depth;
+        @Label("Rotations")
+        int rotations;
+        @Label("Size")
+        int size;
+    }
+
+    @Name("cartesiantree.Delete")
+    @Label("Cartesian Tree Delete")
+    @Category("Cartesian Tree")
+    @Description("Suppression of a node with its rotations")
+    static final class DeleteEvent extends Event {
+        @Label("Rotations")
+        int rotations;
+        @Label("Size")
+        int size;
+    }
+
+    @Name("cartesiantree.Shape")
+    @Label("Cartesian Tree Shape")
+    @Category("Cartesian Tree")
+    @Description("Size and depth of a tree with metrics enabled")
+    @Period("10 s")
+    static final class ShapeEvent extends Event {
+        @Label("Size")
+        int size;
+        @Label("Peak Depth")
+        @Description("Deepest node reached since the metrics were enabled, not the current height")
+        int peakDepth;
+        @Label("Mean Search Depth")
+        double meanSearchDepth;
+        @Label("Depth Ratio")
+        double depthRatio;
+    }
+
+    /**
+     * Periodic hook of the shape event. It holds the metrics weakly, so a tree dropped without
+     * disableMetrics() is still collected; the hook then removes itself.
+     */
+    private static final class ShapeHook implements Runnable {
+        private final WeakReference<TreeMetrics> metricsReference;
+
+        ShapeHook(TreeMetrics metrics){
+            this.metricsReference = new WeakReference<>(metrics);
+        }
+
+        @Override
+        public void run(){
+            TreeMetrics metrics = metricsReference.get();
+            if(metrics == null){
+                FlightRecorder.removePeriodicEvent(this);
+                return;
+            }
+            // Emit the last published snapshot and ask the tree for a fresh one
+            Snapshot snapshot = metrics.publishedSnapshot;
+            metrics.snapshotRequested = true;
+            ShapeEvent event = new ShapeEvent();
+            event.size = snapshot.getSize();
+            event.peakDepth = snapshot.getPeakDepth();
+            event.meanSearchDepth = snapshot.getMeanSearchDepth();
+            event.depthRatio = snapshot.getDepthRatio();
+            event.commit();
+        }
+    }
+
+}
@@ -0,0 +1,266 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+
+/** @author Armand Bonn
+ * Join-based set operations (union, intersection, difference) between two Cartesian trees.
+ * The root with the lowest priority is kept, the other tree is split around its key and both
+ * sides are combined recursively. The two recursive calls work on disjoint nodes, so the top
+ * levels of the recursion run in parallel on a fork-join pool.
+ * Both input trees are emptied, their nodes are reused in the returned tree.
+ */
+public class TreeSetOperations<K extends Comparable<K>, P extends Comparable<P>> {
+    // Operations supported by the recursive task
+    private enum Operation { UNION, INTERSECTION, DIFFERENCE }
+
+    private final ForkJoinPool pool;
+    // Recursion depth from which subtrees are combined sequentially
+    private final int sequentialCutoff;
+    // Chooses the priority kept for a key present in both trees (first tree, second tree)
+    private final BinaryOperator<P> priorityResolver;
+
+    /**
+     * Set operations on the common pool, keeping the lowest priority of duplicate keys
+     */
+    public TreeSetOperations(){
+        this(ForkJoinPool.commonPool(), defaultCutoff(ForkJoinPool.commonPool()), TreeSetOperations::lowestPriority);
+    }
+
+    /**
+     * Set operations with a custom pool, cutoff and resolver for duplicate keys
+     * @param pool Pool running the parallel recursion
+     * @param sequentialCutoff Recursion depth from which no more tasks are forked (0 runs sequentially)
+     * @param priorityResolver Gets the priority of a key in the first and in the second tree, returns the one to keep
+     */
+    public TreeSetOperations(ForkJoinPool pool, int sequentialCutoff, BinaryOperator<P> priorityResolver){
+        if(sequentialCutoff < 0){
+            throw new IllegalArgumentException("Cutoff must not be negative: " + sequentialCutoff);
+        }
+        this.pool = pool;
+        this.sequentialCutoff = sequentialCutoff;
+        this.priorityResolver = priorityResolver;
+    }
+
+    /**
+     * Enough forking levels to give every worker a few tasks
+     * @param pool Pool running the recursion
+     * @return Default cutoff depth
+     */
+    private static int defaultCutoff(ForkJoinPool pool){
+        return 32 - Integer.numberOfLeadingZeros(pool.getParallelism()) + 3;
+    }
+
+    /**
+     * Default resolver: the duplicate with the lowest priority (the one a treap keeps higher) wins
+     * @param firstPriority Priority in the first tree
+     * @param secondPriority Priority in the second tree
+     * @return Lowest of both priorities
+     */
+    private static <P extends Comparable<P>> P lowestPriority(P firstPriority, P secondPriority){
+        return firstPriority.compareTo(secondPriority) <= 0 ? firstPriority : secondPriority;
+    }
+
+    /**
+     * All keys of both trees
+     * @param firstTree First tree (emptied)
+     * @param secondTree Second tree (emptied)
+     * @return New tree with the union
+     */
+    public CartesianTree<K, P> union(CartesianTree<K, P> firstTree, CartesianTree<K, P> secondTree){
+        return run(Operation.UNION, firstTree, secondTree);
+    }
+
+    /**
+     * Keys present in both trees
+     * @param firstTree First tree (emptied)
+     * @param secondTree Second tree (emptied)
+     * @return New tree with the intersection
+     */
+    public CartesianTree<K, P> intersection(CartesianTree<K, P> firstTree, CartesianTree<K, P> secondTree){
+        return run(Operation.INTERSECTION, firstTree, secondTree);
+    }
+
+    /**
+     * Keys of the first tree that are not in the second tree
+     * @param firstTree First tree (emptied)
+     * @param secondTree Second tree (emptied)
+     * @return New tree with the difference
+     */
+    public CartesianTree<K, P> difference(CartesianTree<K, P> firstTree, CartesianTree<K, P> secondTree){
+        return run(Operation.DIFFERENCE, firstTree, secondTree);
+    }
+
+    /**
+     * Detach the nodes of both trees and combine them on the pool
+     * @param operation Set operation
+     * @param firstTree First tree
+     * @param secondTree Second tree
+     * @return New tree with the result
+     */
+    private CartesianTree<K, P> run(Operation operation, CartesianTree<K, P> firstTree, CartesianTree<K, P> secondTree){
+        if(firstTree == secondTree){
+            throw new IllegalArgumentException("Both operands are the same tree");
+        }
+        boolean orderStatistics = firstTree.hasOrderStatistics() && secondTree.hasOrderStatistics();
+        Node<K, P> firstRoot = firstTree.detachRoot();
+        Node<K, P> secondRoot = secondTree.detachRoot();
+
+        Node<K, P> resultRoot = pool.invoke(new SetOperationTask(operation, firstRoot, secondRoot, false, 0, orderStatistics));
+        if(resultRoot != null){
+            resultRoot.addParentNode(null);
+        }
+        return new CartesianTree<>(resultRoot, orderStatistics);
+    }
+
+    /**
+     * Recursive combination of two subtrees
+     */
+    private final class SetOperationTask extends RecursiveTask<Node<K, P>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Operation operation;
+        private final Node<K, P> firstNode;
+        private final Node<K, P> secondNode;
+        // True when the operands were swapped with respect to the trees given by the caller
+        private final boolean swapped;
+        private final int depth;
+        // True if both trees keep subtree sizes (their nodes are SizedNode)
+        private final boolean orderStatistics;
+
+        SetOperationTask(Operation operation, Node<K, P> firstNode, Node<K, P> secondNode, boolean swapped, int depth, boolean orderStatistics){
+            this.operation = operation;
+            this.firstNode = firstNode;
+            this.secondNode = secondNode;
+            this.swapped = swapped;
+            this.depth = depth;
+            this.orderStatistics = orderStatistics;
+        }
+
+        @Override
+        protected Node<K, P> compute(){
+            Node<K, P> rootNode = firstNode;
+            Node<K, P> otherNode = secondNode;
+            boolean rootSwapped = swapped;
+
+            // Trivial cases
+            if(rootNode == null || otherNode == null){
+                switch(operation){
+                    case UNION:
+                        return rootNode != null ? rootNode : otherNode;
+                    case INTERSECTION:
+                        return null;
+                    default:
+                        return rootNode;
+                }
+            }
+
+            // Union and intersection are symmetric: keep the root with the lowest priority on top
+            if(operation != Operation.DIFFERENCE && otherNode.getPriorityValue().compareTo(rootNode.getPriorityValue()) < 0){
+                rootNode = secondNode;
+                otherNode = firstNode;
+                rootSwapped = !swapped;
+            }
+
+            // Detach the root from its subtrees
+            Node<K, P> rootLeft = rootNode.getLeftNode();
+            Node<K, P> rootRight = rootNode.getRightNode();
+            rootNode.addLeftNode(null);
+            rootNode.addRightNode(null);
+            if(rootLeft != null){
+                rootLeft.addParentNode(null);
+            }
+            if(rootRight != null){
+                rootRight.addParentNode(null);
+            }
+
+            // Split the other tree in [keys < root] [keys == root] [keys > root]
+            K rootKey = rootNode.getKeyValue();
+            CartesianTree.SplitResult<K, P> lowSplit = CartesianTree.splitNodes(otherNode, rootKey, false, orderStatistics);
+            CartesianTree.SplitResult<K, P> highSplit = CartesianTree.splitNodes(lowSplit.rightRoot, rootKey, true, orderStatistics);
+            Node<K, P> duplicateNode = highSplit.leftRoot;
+            Node<K, P> otherRight = highSplit.rightRoot;
+            if(duplicateNode != null){
+                // Further equal keys inside the other tree stay with the larger keys
+                Node<K, P> equalRest = CartesianTree.mergeNodes(duplicateNode.getLeftNode(), duplicateNode.getRightNode(), orderStatistics);
+                duplicateNode.addLeftNode(null);
+                duplicateNode.addRightNode(null);
+                if(orderStatistics){
+                    duplicateNode.setSubtreeSize(1);
+                }
+                otherRight = CartesianTree.mergeNodes(equalRest, otherRight, orderStatistics);
+            }
+
+            // Combine both sides, in parallel near the top of the recursion
+            SetOperationTask leftTask = new SetOperationTask(operation, rootLeft, lowSplit.leftRoot, rootSwapped, depth + 1, orderStatistics);
+            SetOperationTask rightTask = new SetOperationTask(operation, rootRight, otherRight, rootSwapped, depth + 1, orderStatistics);
+            Node<K, P> leftResult;
+            Node<K, P> rightResult;
+            if(depth < sequentialCutoff){
+                leftTask.fork();
+                rightResult = rightTask.compute();
+                leftResult = leftTask.join();
+            } else{
+                leftResult = leftTask.compute();
+                rightResult = rightTask.compute();
+            }
+
+            switch(operation){
+                case UNION:
+                case INTERSECTION:
+                    if(duplicateNode == null){
+                        return operation == Operation.UNION ? attach(rootNode, leftResult, rightResult) : CartesianTree.mergeNodes(leftResult, rightResult, orderStatistics);
+                    }
+                    return joinResolved(rootNode, duplicateNode, rootSwapped, leftResult, rightResult);
+                default:
+                    if(duplicateNode != null){
+                        return CartesianTree.mergeNodes(leftResult, rightResult, orderStatistics);
+                    }
+                    return attach(rootNode, leftResult, rightResult);
+            }
+        }
+
+        /**
+         * Keep one node for a key present in both trees and join it between both results
+         * @param rootNode Root node of this step (lowest priority of both)
+         * @param duplicateNode Node with the same key in the other tree
+         * @param rootSwapped True if the root node comes from the second tree given by the caller
+         * @param leftResult Combined subtree with smaller keys
+         * @param rightResult Combined subtree with larger keys
+         * @return Root of the joined subtree
+         */
+        private Node<K, P> joinResolved(Node<K, P> rootNode, Node<K, P> duplicateNode, boolean rootSwapped, Node<K, P> leftResult, Node<K, P> rightResult){
+            P rootPriority = rootNode.getPriorityValue();
+            P duplicatePriority = duplicateNode.getPriorityValue();
+            P keptPriority = rootSwapped ? priorityResolver.apply(duplicatePriority, rootPriority) : priorityResolver.apply(rootPriority, duplicatePriority);
+
+            // Root still has the lowest priority of its subtree, so it can stay on top
+            if(keptPriority.compareTo(rootPriority) == 0){
+                return attach(rootNode, leftResult, rightResult);
+            }
+
+            // Otherwise the kept node may belong lower: join it as a one node tree
+            Node<K, P> keptNode = duplicateNode;
+            if(keptPriority.compareTo(duplicatePriority) != 0){
+                keptNode = orderStatistics ? new SizedNode<>(rootNode.getKeyValue(), keptPriority) : new Node<>(rootNode.getKeyValue(), keptPriority);
+            }
+            return CartesianTree.mergeNodes(CartesianTree.mergeNodes(leftResult, keptNode, orderStatistics), rightResult, orderStatistics);
+        }
+
+        /**
+         * Hang two subtrees below a node with a lower priority than both
+         * @param rootNode New root
+         * @param leftResult Left subtree
+         * @param rightResult Right subtree
+         * @return The root node
+         */
+        private Node<K, P> attach(Node<K, P> rootNode, Node<K, P> leftResult, Node<K, P> rightResult){
+            CartesianTree.linkChild(rootNode, leftResult, false);
+            CartesianTree.linkChild(rootNode, rightResult, true);
+            if(orderStatistics){
+                rootNode.updateSubtreeSize();
+            }
+            return rootNode;
+        }
+    }
+
+}
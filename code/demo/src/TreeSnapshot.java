@@ -0,0 +1,280 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32C;
+
+/** @author Armand Bonn
+ * Compact binary snapshot of a Cartesian tree: its (key, priority) pairs in ascending key order.
+ * Layout (big-endian):
+ *   header  (40 bytes)  magic "CTRE", format version, key width, priority width (bytes, -1 if
+ *                       variable), pair count, payload length, CRC32C of the payload, CRC32C of
+ *                       the 36 header bytes before it
+ *   payload             key then priority of every pair, encoded by the codecs
+ * Writing goes to a temporary file that is forced to disk and renamed over the target, so a crash
+ * leaves either the old snapshot or the new one. Reading memory-maps the file (FileChannel.map) in
+ * large windows, decodes the pairs straight from the mapping and links them with the linear build of
+ * CartesianTree, so a reload costs one sequential pass over the file instead of n insertions.
+ */
+public final class TreeSnapshot {
+    static final int MAGIC = 0x43545245;
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 40;
+    // Largest encoded pair, also the write buffer size and the slack kept at the end of a read window
+    static final int MAX_RECORD_SIZE = 1 << 20;
+    // Bytes mapped at once when reading (files above it are read through several windows)
+    private static final long WINDOW_SIZE = 1L << 28;
+
+    private TreeSnapshot(){
+    }
+
+    /**
+     * Header of a snapshot file
+     */
+    static final class Header {
+        int keyWidth;
+        int priorityWidth;
+        long count;
+        long payloadLength;
+        int payloadChecksum;
+
+        /**
+         * Encode the header with its own checksum
+         * @return Buffer of HEADER_SIZE bytes ready to be written
+         */
+        ByteBuffer encode(){
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+            buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(keyWidth).putInt(priorityWidth);
+            buffer.putLong(count).putLong(payloadLength).putInt(payloadChecksum);
+            CRC32C checksum = new CRC32C();
+            checksum.update(buffer.array(), 0, HEADER_SIZE - Integer.BYTES);
+            buffer.putInt((int) checksum.getValue());
+            buffer.flip();
+            return buffer;
+        }
+
+        /**
+         * Decode and check a header
+         * @param buffer HEADER_SIZE bytes read from the file
+         * @return Header
+         * @throws IOException If the magic, the version or the checksum is wrong
+         */
+        static Header decode(ByteBuffer buffer) throws IOException {
+            CRC32C checksum = new CRC32C();
+            checksum.update(buffer.array(), 0, HEADER_SIZE - Integer.BYTES);
+            if(buffer.getInt() != MAGIC){
+                throw new IOException("Not a Cartesian tree snapshot");
+            }
+            int version = buffer.getInt();
+            if(version != FORMAT_VERSION){
+                throw new IOException("Unsupported snapshot version " + version + " (expected " + FORMAT_VERSION + ")");
+            }
+            Header header = new Header();
+            header.keyWidth = buffer.getInt();
+            header.priorityWidth = buffer.getInt();
+            header.count = buffer.getLong();
+            header.payloadLength = buffer.getLong();
+            header.payloadChecksum = buffer.getInt();
+            if(buffer.getInt() != (int) checksum.getValue()){
+                throw new IOException("Snapshot header checksum mismatch");
+            }
+            if(header.count < 0 || header.count > Integer.MAX_VALUE || header.payloadLength < 0){
+                throw new IOException("Invalid snapshot header: " + header.count + " pairs, " + header.payloadLength + " bytes");
+            }
+            return header;
+        }
+    }
+
+    /**
+     * Write the pairs of a tree in key order to a snapshot file (replaced atomically if it exists)
+     * @param tree Tree to save
+     * @param path Snapshot file
+     * @param keyCodec Encoding of the keys
+     * @param priorityCodec Encoding of the priorities
+     * @throws IOException If the file cannot be written
+     */
+    public static <K extends Comparable<K>, P extends Comparable<P>> void write(CartesianTree<K, P> tree, Path path, SnapshotCodec<K> keyCodec, SnapshotCodec<P> priorityCodec) throws IOException {
+        Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        Header header = new Header();
+        header.keyWidth = keyCodec.fixedWidth();
+        header.priorityWidth = priorityCodec.fixedWidth();
+        boolean fixedWidth = header.keyWidth != SnapshotCodec.VARIABLE_WIDTH && header.priorityWidth != SnapshotCodec.VARIABLE_WIDTH;
+
+        try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_RECORD_SIZE);
+            CRC32C checksum = new CRC32C();
+            channel.position(HEADER_SIZE);
+
+            for(Node<K, P> node : tree){
+                int recordSize = fixedWidth ? header.keyWidth + header.priorityWidth
+                        : keyCodec.encodedSize(node.getKeyValue()) + priorityCodec.encodedSize(node.getPriorityValue());
+                if(recordSize > MAX_RECORD_SIZE){
+                    throw new IllegalArgumentException("Pair of key " + node.getKeyValue() + " needs " + recordSize + " bytes, more than " + MAX_RECORD_SIZE);
+                }
+                if(buffer.remaining() < recordSize){
+                    header.payloadLength += flush(channel, buffer, checksum);
+                }
+                keyCodec.encode(node.getKeyValue(), buffer);
+                priorityCodec.encode(node.getPriorityValue(), buffer);
+                header.count++;
+            }
+            header.payloadLength += flush(channel, buffer, checksum);
+            header.payloadChecksum = (int) checksum.getValue();
+
+            // Header last, once the payload is known
+            ByteBuffer headerBuffer = header.encode();
+            while(headerBuffer.hasRemaining()){
+                channel.write(headerBuffer, HEADER_SIZE - headerBuffer.remaining());
+            }
+            channel.force(true);
+        }
+        Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Write the buffered bytes and add them to the checksum
+     * @return Number of bytes written
+     */
+    private static int flush(FileChannel channel, ByteBuffer buffer, CRC32C checksum) throws IOException {
+        buffer.flip();
+        int length = buffer.remaining();
+        checksum.update(buffer.duplicate());
+        while(buffer.hasRemaining()){
+            channel.write(buffer);
+        }
+        buffer.clear();
+        return length;
+    }
+
+    /**
+     * Rebuild a tree from a snapshot file in linear time
+     * @param path Snapshot file
+     * @param keyCodec Encoding of the keys (same as when written)
+     * @param priorityCodec Encoding of the priorities (same as when written)
+     * @return New tree holding the saved pairs
+     * @throws IOException If the file cannot be read, or is not a valid snapshot for these codecs
+     */
+    public static <K extends Comparable<K>, P extends Comparable<P>> CartesianTree<K, P> read(Path path, SnapshotCodec<K> keyCodec, SnapshotCodec<P> priorityCodec) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if(channel.size() < HEADER_SIZE){
+                throw new IOException("Snapshot is truncated: " + channel.size() + " bytes");
+            }
+            ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_SIZE);
+            while(headerBuffer.hasRemaining()){
+                if(channel.read(headerBuffer, headerBuffer.position()) < 0){
+                    throw new IOException("Snapshot is truncated");
+                }
+            }
+            headerBuffer.flip();
+            Header header = Header.decode(headerBuffer);
+
+            if(header.keyWidth != keyCodec.fixedWidth() || header.priorityWidth != priorityCodec.fixedWidth()){
+                throw new IOException("Snapshot was written with other codecs: key width " + header.keyWidth + ", priority width " + header.priorityWidth);
+            }
+            if(channel.size() != HEADER_SIZE + header.payloadLength){
+                throw new IOException("Snapshot size " + channel.size() + " does not match its header (" + (HEADER_SIZE + header.payloadLength) + " bytes)");
+            }
+
+            MappedPairs<K, P> pairs = new MappedPairs<>(channel, header, keyCodec, priorityCodec);
+            CartesianTree<K, P> tree;
+            try {
+                tree = CartesianTree.buildFromSortedNodes(pairs);
+            } catch (BufferUnderflowException | IllegalArgumentException e){
+                throw new IOException("Corrupt snapshot " + path, e);
+            }
+            pairs.finish();
+            return tree;
+        }
+    }
+
+    /**
+     * Pairs decoded from windows of the mapped payload, checksummed as they are consumed
+     */
+    private static final class MappedPairs<K extends Comparable<K>, P extends Comparable<P>> implements Iterator<Node<K, P>> {
+        private final FileChannel channel;
+        private final Header header;
+        private final SnapshotCodec<K> keyCodec;
+        private final SnapshotCodec<P> priorityCodec;
+        private final CRC32C checksum = new CRC32C();
+        private final long payloadEnd;
+        private MappedByteBuffer window;
+        // File position of the first byte of the window
+        private long windowStart = HEADER_SIZE;
+        private long remainingPairs;
+
+        MappedPairs(FileChannel channel, Header header, SnapshotCodec<K> keyCodec, SnapshotCodec<P> priorityCodec) throws IOException {
+            this.channel = channel;
+            this.header = header;
+            this.keyCodec = keyCodec;
+            this.priorityCodec = priorityCodec;
+            this.payloadEnd = HEADER_SIZE + header.payloadLength;
+            this.remainingPairs = header.count;
+            mapWindow(HEADER_SIZE);
+        }
+
+        @Override
+        public boolean hasNext(){
+            return remainingPairs > 0;
+        }
+
+        @Override
+        public Node<K, P> next(){
+            if(remainingPairs == 0){
+                throw new NoSuchElementException();
+            }
+            // Move the window once a whole record may not fit in what is left of it
+            if(window.remaining() < MAX_RECORD_SIZE && windowStart + window.limit() < payloadEnd){
+                try {
+                    mapWindow(windowStart + window.position());
+                } catch (IOException e){
+                    throw new IllegalStateException("Cannot map snapshot", e);
+                }
+            }
+            remainingPairs--;
+            K keyValue = keyCodec.decode(window);
+            P priorityValue = priorityCodec.decode(window);
+            return new Node<>(keyValue, priorityValue);
+        }
+
+        /**
+         * Checksum the consumed part of the current window and map the next one
+         * @param position File position of the new window
+         */
+        private void mapWindow(long position) throws IOException {
+            consumeWindow();
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, payloadEnd - position));
+        }
+
+        private void consumeWindow(){
+            if(window != null){
+                ByteBuffer consumed = window.duplicate();
+                consumed.flip();
+                checksum.update(consumed);
+            }
+        }
+
+        /**
+         * Check that the whole payload was read and matches its checksum
+         * @throws IOException If bytes are left over or the checksum differs
+         */
+        void finish() throws IOException {
+            if(windowStart + window.position() != payloadEnd){
+                throw new IOException("Snapshot payload has " + (payloadEnd - windowStart - window.position()) + " bytes left after " + header.count + " pairs");
+            }
+            consumeWindow();
+            window = null;
+            if((int) checksum.getValue() != header.payloadChecksum){
+                throw new IOException("Snapshot payload checksum mismatch");
+            }
+        }
+    }
+
+}
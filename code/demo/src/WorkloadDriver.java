@@ -0,0 +1,529 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** @author Armand Bonn
+ * Macro workload driver: runs a mix of reads, inserts, deletes and range scans against a
+ * Cartesian tree, or replays a recorded trace, and records a latency histogram per operation.
+ *   java WorkloadDriver --mix read=70,insert=15,delete=10,range=5 --distribution ZIPFIAN
+ *                       --key-space 1000000 --initial-size 500000 --operations 2000000 --threads 4
+ *                       --runs 100 --out results/workload
+ * Options:
+ *   --mix             Operation weights (read, insert, delete, range)
+ *   --distribution    UNIFORM, ZIPFIAN, SEQUENTIAL or HOTSPOT
+ *   --zipf-theta      Skew of the Zipfian distribution (default 0.99)
+ *   --hot-fraction    Share of the key space that is hot (default 0.2)
+ *   --hot-probability Share of the operations going to the hot keys (default 0.8)
+ *   --range-length    Width of the key interval of a range scan (default 100)
+ *   --key-space       Keys are drawn in [0, key-space)
+ *   --initial-size    Keys loaded before the run (evenly spread over the key space)
+ *   --operations      Operations per run, shared by all threads
+ *   --threads         Worker threads sharing the tree (behind a read-write lock)
+ *   --runs            Independent runs, each on a fresh tree
+ *   --seed            Seed of the key and operation choices
+ *   --trace           Replay this trace file instead of generating operations
+ *   --record          Write the generated operations to this trace file (single thread only)
+ *   --out             Output directory of the summary files
+ *   --latency-out     Output directory of the latency files (default results/workload_latency)
+ * Trace files hold one operation per line: "READ key", "INSERT key", "DELETE key" or
+ * "RANGE low high"; empty lines and lines starting with # are skipped.
+ * Each run appends a line "initial size , height , insertion seconds , suppression seconds"
+ * (the format read by results/process_results.py, which averages 100 runs per size) to
+ * workload_[distribution]_[initial size].txt, and the latency percentiles of every operation
+ * to workload_[distribution]_[initial size]_latency.csv in the latency directory. Both directories
+ * must differ: process_results.py reads every file of the summary directory as numbers.
+ */
+public class WorkloadDriver {
+
+    // Operations of a workload
+    enum OperationType { READ, INSERT, DELETE, RANGE }
+
+    // Distribution of the keys of the operations
+    enum KeyDistribution { UNIFORM, ZIPFIAN, SEQUENTIAL, HOTSPOT }
+
+    /**
+     * Settings of a workload
+     */
+    static final class Settings {
+        private final int[] weights = {70, 15, 10, 5};
+        private KeyDistribution distribution = KeyDistribution.UNIFORM;
+        private double zipfTheta = 0.99;
+        private double hotFraction = 0.2;
+        private double hotProbability = 0.8;
+        private int rangeLength = 100;
+        private int keySpace = 1000000;
+        private int initialSize = 500000;
+        private long operations = 1000000;
+        private int threads = 1;
+        private int runs = 1;
+        private long seed = 54L;
+        private Path tracePath;
+        private Path recordPath;
+        private Path outputDirectory = Paths.get("results", "workload");
+        private Path latencyDirectory = Paths.get("results", "workload_latency");
+
+        /**
+         * Read settings from command line options
+         * @param args Options (see class comment)
+         * @return Settings
+         */
+        static Settings parse(String[] args){
+            BenchmarkHarness.Options options = new BenchmarkHarness.Options(args, "--mix", "--distribution", "--zipf-theta",
+                    "--hot-fraction", "--hot-probability", "--range-length", "--key-space", "--initial-size", "--operations",
+                    "--threads", "--runs", "--seed", "--trace", "--record", "--out", "--latency-out");
+            Settings settings = new Settings();
+            if(options.contains("--mix")){
+                Arrays.fill(settings.weights, 0);
+                for(String part : options.getStrings("--mix", null)){
+                    String[] weight = part.split("=");
+                    settings.weights[OperationType.valueOf(weight[0].trim().toUpperCase(Locale.ROOT)).ordinal()] = Integer.parseInt(weight[1].trim());
+                }
+            }
+            settings.distribution = KeyDistribution.valueOf(options.getString("--distribution", settings.distribution.name()).toUpperCase(Locale.ROOT));
+            settings.zipfTheta = options.getDouble("--zipf-theta", settings.zipfTheta);
+            settings.hotFraction = options.getDouble("--hot-fraction", settings.hotFraction);
+            settings.hotProbability = options.getDouble("--hot-probability", settings.hotProbability);
+            settings.rangeLength = options.getInt("--range-length", settings.rangeLength);
+            settings.keySpace = options.getInt("--key-space", settings.keySpace);
+            settings.initialSize = options.getInt("--initial-size", settings.initialSize);
+            settings.operations = options.getLong("--operations", settings.operations);
+            settings.threads = options.getInt("--threads", settings.threads);
+            settings.runs = options.getInt("--runs", settings.runs);
+            settings.seed = options.getLong("--seed", settings.seed);
+            if(options.contains("--trace")){
+                settings.tracePath = Paths.get(options.getString("--trace", null));
+            }
+            if(options.contains("--record")){
+                settings.recordPath = Paths.get(options.getString("--record", null));
+            }
+            settings.outputDirectory = Paths.get(options.getString("--out", settings.outputDirectory.toString()));
+            settings.latencyDirectory = Paths.get(options.getString("--latency-out", settings.latencyDirectory.toString()));
+
+            // Check the settings
+            int totalWeight = 0;
+            for(int weight : settings.weights){
+                if(weight < 0){
+                    throw new IllegalArgumentException("Operation weights must not be negative");
+                }
+                totalWeight += weight;
+            }
+            if(totalWeight == 0){
+                throw new IllegalArgumentException("Operation mix is empty");
+            }
+            if(settings.keySpace <= 0 || settings.initialSize < 0 || settings.initialSize > settings.keySpace){
+                throw new IllegalArgumentException("Initial size must be in [0, key space] and the key space positive");
+            }
+            if(settings.zipfTheta <= 0 || settings.zipfTheta >= 1){
+                throw new IllegalArgumentException("Zipfian theta must be in (0, 1): " + settings.zipfTheta);
+            }
+            if(settings.threads <= 0 || settings.runs <= 0){
+                throw new IllegalArgumentException("Threads and runs must be positive");
+            }
+            if(settings.outputDirectory.toAbsolutePath().normalize().equals(settings.latencyDirectory.toAbsolutePath().normalize())){
+                throw new IllegalArgumentException("Latency files must not go to the summary directory: " + settings.latencyDirectory);
+            }
+            if(settings.recordPath != null && settings.threads != 1){
+                throw new IllegalArgumentException("Recording a trace needs a single thread");
+            }
+            return settings;
+        }
+    }
+
+    /**
+     * One operation of a workload or of a trace
+     */
+    static final class TraceOperation {
+        private final OperationType type;
+        private final int keyValue;
+        private final int highKeyValue;
+
+        TraceOperation(OperationType type, int keyValue, int highKeyValue){
+            this.type = type;
+            this.keyValue = keyValue;
+            this.highKeyValue = highKeyValue;
+        }
+
+        /**
+         * Parse a trace line
+         * @param line Line of a trace file
+         * @return Operation, null for empty and comment lines
+         */
+        static TraceOperation parse(String line){
+            String trimmedLine = line.trim();
+            if(trimmedLine.isEmpty() || trimmedLine.startsWith("#")){
+                return null;
+            }
+            String[] fields = trimmedLine.split("\\s+");
+            OperationType type = OperationType.valueOf(fields[0].toUpperCase(Locale.ROOT));
+            int keyValue = Integer.parseInt(fields[1]);
+            int highKeyValue = type == OperationType.RANGE ? Integer.parseInt(fields[2]) : keyValue;
+            return new TraceOperation(type, keyValue, highKeyValue);
+        }
+
+        String toLine(){
+            return type == OperationType.RANGE ? type + " " + keyValue + " " + highKeyValue : type + " " + keyValue;
+        }
+    }
+
+    /**
+     * Draws the keys of the operations of one thread
+     */
+    static final class KeyGenerator {
+        private final Settings settings;
+        private final SplittableRandom random;
+        private final AtomicLong sequence;
+        // Zipfian constants (Gray et al., "Quickly generating billion-record synthetic databases")
+        private final double zetaN;
+        private final double alpha;
+        private final double eta;
+
+        KeyGenerator(Settings settings, SplittableRandom random, AtomicLong sequence, double zetaN){
+            this.settings = settings;
+            this.random = random;
+            this.sequence = sequence;
+            this.zetaN = zetaN;
+            double theta = settings.zipfTheta;
+            this.alpha = 1.0 / (1.0 - theta);
+            this.eta = (1.0 - Math.pow(2.0 / settings.keySpace, 1.0 - theta)) / (1.0 - zeta(2, theta) / zetaN);
+        }
+
+        int nextKey(){
+            int keySpace = settings.keySpace;
+            switch(settings.distribution){
+                case ZIPFIAN:
+                    // Rank drawn with the Zipfian law, scrambled so the popular keys are spread over the key space
+                    return (int) Math.floorMod(PriorityGenerator.mix64(nextZipfianRank()), (long) keySpace);
+                case SEQUENTIAL:
+                    return (int) (sequence.getAndIncrement() % keySpace);
+                case HOTSPOT:
+                    int hotKeys = Math.max(1, (int) (keySpace * settings.hotFraction));
+                    if(random.nextDouble() < settings.hotProbability || hotKeys == keySpace){
+                        return random.nextInt(hotKeys);
+                    }
+                    return hotKeys + random.nextInt(keySpace - hotKeys);
+                default:
+                    return random.nextInt(keySpace);
+            }
+        }
+
+        private long nextZipfianRank(){
+            double theta = settings.zipfTheta;
+            double u = random.nextDouble();
+            double uz = u * zetaN;
+            if(uz < 1.0){
+                return 0;
+            }
+            if(uz < 1.0 + Math.pow(0.5, theta)){
+                return 1;
+            }
+            return (long) (settings.keySpace * Math.pow(eta * u - eta + 1, alpha));
+        }
+
+        /**
+         * Generalized harmonic number sum(1 / i^theta) for i in [1, n]
+         * @param n Number of terms
+         * @param theta Exponent
+         * @return Zeta value
+         */
+        static double zeta(long n, double theta){
+            double sum = 0;
+            for(long i = 1; i <= n; i++){
+                sum += 1.0 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Latency histograms of one thread, one per operation type
+     */
+    static final class ThreadResult {
+        private final LatencyHistogram[] histograms = new LatencyHistogram[OperationType.values().length];
+
+        ThreadResult(){
+            for(int i = 0; i < histograms.length; i++){
+                histograms[i] = new LatencyHistogram();
+            }
+        }
+
+        void merge(ThreadResult other){
+            for(int i = 0; i < histograms.length; i++){
+                histograms[i].merge(other.histograms[i]);
+            }
+        }
+    }
+
+    private final Settings settings;
+    private final List<TraceOperation> trace;
+    // Checksum of the reads and scans, keeps the JIT from dropping them
+    private long checksum;
+
+    WorkloadDriver(Settings settings, List<TraceOperation> trace){
+        this.settings = settings;
+        this.trace = trace;
+    }
+
+    /**
+     * Run the workload
+     * @param args Options (see class comment)
+     * @throws Exception If a file cannot be read or written, or a worker fails
+     */
+    public static void main(String[] args) throws Exception {
+        Settings settings = Settings.parse(args);
+
+        List<TraceOperation> trace = null;
+        if(settings.tracePath != null){
+            trace = new ArrayList<>();
+            try (BufferedReader reader = Files.newBufferedReader(settings.tracePath)) {
+                String line;
+                while((line = reader.readLine()) != null){
+                    TraceOperation operation = TraceOperation.parse(line);
+                    if(operation != null){
+                        trace.add(operation);
+                    }
+                }
+            }
+        }
+
+        new WorkloadDriver(settings, trace).run();
+    }
+
+    /**
+     * Run all runs and write their results
+     * @throws Exception If a file cannot be written or a worker fails
+     */
+    void run() throws Exception {
+        Files.createDirectories(settings.outputDirectory);
+        Files.createDirectories(settings.latencyDirectory);
+        String name = (trace != null ? "TRACE" : settings.distribution.toString()) + "_" + settings.initialSize;
+        Path summaryPath = settings.outputDirectory.resolve("workload_" + name + ".txt");
+        Path latencyPath = settings.latencyDirectory.resolve("workload_" + name + "_latency.csv");
+
+        // Zeta of the key space is O(key space), computed once for all threads and runs
+        double zetaN = settings.distribution == KeyDistribution.ZIPFIAN && trace == null ? KeyGenerator.zeta(settings.keySpace, settings.zipfTheta) : 1.0;
+
+        try (BufferedWriter summaryWriter = Files.newBufferedWriter(summaryPath);
+             BufferedWriter latencyWriter = Files.newBufferedWriter(latencyPath);
+             BufferedWriter recordWriter = settings.recordPath != null ? Files.newBufferedWriter(settings.recordPath) : null) {
+            latencyWriter.write("run,operation,count,meanNanos,p50Nanos,p90Nanos,p99Nanos,p999Nanos,maxNanos");
+            latencyWriter.newLine();
+
+            for(int run = 0; run < settings.runs; run++){
+                CartesianTree<Integer, Long> tree = loadTree(run);
+                long startTime = System.nanoTime();
+                ThreadResult result = trace != null ? replay(tree) : generate(tree, run, zetaN, run == 0 ? recordWriter : null);
+                double elapsedSeconds = (System.nanoTime() - startTime) / 1e9;
+
+                // Summary line in the format of process_results.py
+                double insertionSeconds = result.histograms[OperationType.INSERT.ordinal()].getTotalNanos() / 1e9;
+                double suppressionSeconds = result.histograms[OperationType.DELETE.ordinal()].getTotalNanos() / 1e9;
+                summaryWriter.write(settings.initialSize + " , " + tree.getHeight() + " , " + String.format(Locale.ROOT, "%.3f", insertionSeconds) + " , " + String.format(Locale.ROOT, "%.3f", suppressionSeconds));
+                summaryWriter.newLine();
+
+                // Latency percentiles per operation
+                long totalOperations = 0;
+                for(OperationType type : OperationType.values()){
+                    LatencyHistogram histogram = result.histograms[type.ordinal()];
+                    totalOperations += histogram.getCount();
+                    latencyWriter.write(String.format(Locale.ROOT, "%d,%s,%d,%.1f,%d,%d,%d,%d,%d", run, type, histogram.getCount(), histogram.getMeanNanos(),
+                            histogram.getPercentile(0.50), histogram.getPercentile(0.90), histogram.getPercentile(0.99), histogram.getPercentile(0.999), histogram.getMaxNanos()));
+                    latencyWriter.newLine();
+                    if(run == settings.runs - 1 && histogram.getCount() > 0){
+                        System.out.println(String.format("%-7s count %10d  p50 %8d ns  p99 %8d ns  p99.9 %9d ns  max %10d ns", type, histogram.getCount(),
+                                histogram.getPercentile(0.50), histogram.getPercentile(0.99), histogram.getPercentile(0.999), histogram.getMaxNanos()));
+                    }
+                }
+                System.out.println(String.format("Run %d: %d operations in %.3f s (%.0f ops/s), height %d", run, totalOperations, elapsedSeconds, totalOperations / elapsedSeconds, tree.getHeight()));
+            }
+        }
+        System.out.println("Results written to " + summaryPath.toAbsolutePath() + " and " + latencyPath.toAbsolutePath() + " (checksum " + checksum + ")");
+    }
+
+    /**
+     * Fresh tree holding the initial keys, spread evenly over the key space
+     * @param run Index of the run (changes the priorities)
+     * @return Loaded tree
+     */
+    private CartesianTree<Integer, Long> loadTree(int run){
+        int initialSize = settings.initialSize;
+        double step = initialSize == 0 ? 0 : (double) settings.keySpace / initialSize;
+        PriorityGenerator<Integer, Long> priorityGenerator = PriorityGenerator.keyHash(settings.seed + run);
+
+        List<Integer> keyValues = new ArrayList<>(initialSize);
+        List<Long> priorityValues = new ArrayList<>(initialSize);
+        for(int i = 0; i < initialSize; i++){
+            int keyValue = (int) (i * step);
+            keyValues.add(keyValue);
+            priorityValues.add(priorityGenerator.nextPriority(keyValue));
+        }
+        CartesianTree<Integer, Long> tree = CartesianTree.buildFromSorted(keyValues, priorityValues);
+        tree.setPriorityGenerator(priorityGenerator);
+        return tree;
+    }
+
+    /**
+     * Replay the trace in order on the calling thread
+     * @param tree Tree of the run
+     * @return Latency histograms
+     */
+    private ThreadResult replay(CartesianTree<Integer, Long> tree){
+        ThreadResult result = new ThreadResult();
+        for(TraceOperation operation : trace){
+            long startTime = System.nanoTime();
+            checksum += execute(tree, operation);
+            result.histograms[operation.type.ordinal()].record(System.nanoTime() - startTime);
+        }
+        return result;
+    }
+
+    /**
+     * Generate and run the operations of a run on the worker threads
+     * @param tree Tree of the run
+     * @param run Index of the run
+     * @param zetaN Zeta of the key space for the Zipfian distribution
+     * @param recordWriter Receives the generated operations (null to not record)
+     * @return Latency histograms of all threads
+     * @throws Exception If a worker fails
+     */
+    private ThreadResult generate(CartesianTree<Integer, Long> tree, int run, double zetaN, BufferedWriter recordWriter) throws Exception {
+        int threads = settings.threads;
+        ReadWriteLock lock = new ReentrantReadWriteLock();
+        AtomicLong sequence = new AtomicLong();
+        SplittableRandom runRandom = new SplittableRandom(settings.seed + run);
+
+        List<WorkloadThread> workers = new ArrayList<>(threads);
+        for(int thread = 0; thread < threads; thread++){
+            long operations = settings.operations / threads + (thread < settings.operations % threads ? 1 : 0);
+            workers.add(new WorkloadThread(tree, lock, runRandom.split(), sequence, zetaN, operations, recordWriter));
+        }
+
+        ThreadResult result = new ThreadResult();
+        if(threads == 1){
+            result.merge(workers.get(0).call());
+            return result;
+        }
+        for(ThreadResult workerResult : BenchmarkHarness.runTogether(new ArrayList<Callable<ThreadResult>>(workers))){
+            result.merge(workerResult);
+        }
+        return result;
+    }
+
+    /**
+     * Worker running its share of the operations of a run
+     */
+    private final class WorkloadThread implements Callable<ThreadResult> {
+        private final CartesianTree<Integer, Long> tree;
+        private final ReadWriteLock lock;
+        private final SplittableRandom random;
+        private final KeyGenerator keyGenerator;
+        private final long operations;
+        private final BufferedWriter recordWriter;
+
+        WorkloadThread(CartesianTree<Integer, Long> tree, ReadWriteLock lock, SplittableRandom random, AtomicLong sequence, double zetaN, long operations, BufferedWriter recordWriter){
+            this.tree = tree;
+            this.lock = lock;
+            this.random = random;
+            this.keyGenerator = new KeyGenerator(settings, random.split(), sequence, zetaN);
+            this.operations = operations;
+            this.recordWriter = recordWriter;
+        }
+
+        @Override
+        public ThreadResult call() throws IOException {
+            ThreadResult result = new ThreadResult();
+            int[] weights = settings.weights;
+            int totalWeight = weights[0] + weights[1] + weights[2] + weights[3];
+            long localChecksum = 0;
+
+            for(long i = 0; i < operations; i++){
+                // Choose the operation with the weights of the mix
+                int draw = random.nextInt(totalWeight);
+                int typeIndex = 0;
+                while(draw >= weights[typeIndex]){
+                    draw -= weights[typeIndex];
+                    typeIndex++;
+                }
+                OperationType type = OperationType.values()[typeIndex];
+                int keyValue = keyGenerator.nextKey();
+                int highKeyValue = type == OperationType.RANGE ? (int) Math.min(Integer.MAX_VALUE, (long) keyValue + settings.rangeLength - 1) : keyValue;
+                TraceOperation operation = new TraceOperation(type, keyValue, highKeyValue);
+                if(recordWriter != null){
+                    recordWriter.write(operation.toLine());
+                    recordWriter.newLine();
+                }
+
+                // Readers share the tree, writers have it to themselves
+                boolean write = type == OperationType.INSERT || type == OperationType.DELETE;
+                long startTime = System.nanoTime();
+                if(write){
+                    lock.writeLock().lock();
+                } else{
+                    lock.readLock().lock();
+                }
+                try {
+                    localChecksum += execute(tree, operation);
+                } finally {
+                    if(write){
+                        lock.writeLock().unlock();
+                    } else{
+                        lock.readLock().unlock();
+                    }
+                }
+                result.histograms[typeIndex].record(System.nanoTime() - startTime);
+            }
+
+            synchronized(WorkloadDriver.this){
+                checksum += localChecksum;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Apply one operation; inserts of present keys and deletes of absent keys do nothing
+     * @param tree Tree of the run
+     * @param operation Operation to apply
+     * @return Value folded in the checksum
+     */
+    private static long execute(CartesianTree<Integer, Long> tree, TraceOperation operation){
+        switch(operation.type){
+            case READ:
+                Node<Integer, Long> node = tree.findNode(operation.keyValue);
+                return node == null ? 0 : 1;
+            case INSERT:
+                if(tree.findNode(operation.keyValue) == null){
+                    tree.insert(operation.keyValue);
+                    return 1;
+                }
+                return 0;
+            case DELETE:
+                if(tree.findNode(operation.keyValue) != null){
+                    tree.delete(operation.keyValue);
+                    return 1;
+                }
+                return 0;
+            default:
+                long count = 0;
+                Iterator<Node<Integer, Long>> nodes = tree.iterator(operation.keyValue, operation.highKeyValue);
+                while(nodes.hasNext()){
+                    nodes.next();
+                    count++;
+                }
+                return count;
+        }
+    }
+
+}
@@ -0,0 +1,300 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/** @author Armand Bonn
+ * Append-only log of the changes of a durable Cartesian tree (see DurableCartesianTree).
+ * Layout: magic "CTWL" and format version (8 bytes), then one record per change:
+ *   body length (4 bytes), CRC32C of the body (4 bytes), body = type (1 byte), key, priority
+ * A crash can leave a torn record at the end: replay stops at the first incomplete record or
+ * checksum mismatch and the log is truncated there.
+ * Group commit: append() only copies the record to a memory buffer. A writer then waits in
+ * awaitDurable() for its position: the first waiting writer becomes the leader, optionally waits
+ * commitDelayNanos so more records join, then writes the whole buffer with one fsync while the
+ * others wait for it. A longer delay means fewer fsyncs (throughput) for a longer wait (latency).
+ */
+class WriteAheadLog<K, P> implements Closeable {
+    static final int MAGIC = 0x4354574C;
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final byte INSERT = 1;
+    static final byte DELETE = 2;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int INITIAL_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Receives the records of a log during replay
+     */
+    interface Replayer<K, P> {
+        void apply(byte type, K keyValue, P priorityValue);
+    }
+
+    private final FileChannel channel;
+    private final SnapshotCodec<K> keyCodec;
+    private final SnapshotCodec<P> priorityCodec;
+    private final long commitDelayNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushed = lock.newCondition();
+    // Records appended but not written yet, and the buffer the leader wrote last (reused)
+    private ByteBuffer pendingRecords = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private ByteBuffer spareRecords = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    // Log positions (bytes from the start of the file)
+    private long appendedPosition;
+    private long durablePosition;
+    private boolean flushing;
+    private boolean closed;
+    private IOException failure;
+    private final CRC32C checksum = new CRC32C();
+
+    /**
+     * Open a log for appending, creating it with its header if needed
+     * @param path Log file (its valid length must have been checked by replay)
+     * @param keyCodec Encoding of the keys
+     * @param priorityCodec Encoding of the priorities
+     * @param commitDelayNanos Time a group commit leader waits for more records before its fsync
+     * @throws IOException If the file cannot be opened
+     */
+    WriteAheadLog(Path path, SnapshotCodec<K> keyCodec, SnapshotCodec<P> priorityCodec, long commitDelayNanos) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        this.keyCodec = keyCodec;
+        this.priorityCodec = priorityCodec;
+        this.commitDelayNanos = commitDelayNanos;
+
+        if(channel.size() == 0){
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(FORMAT_VERSION);
+            header.flip();
+            while(header.hasRemaining()){
+                channel.write(header);
+            }
+            channel.force(true);
+        }
+        this.appendedPosition = channel.size();
+        this.durablePosition = appendedPosition;
+        channel.position(appendedPosition);
+    }
+
+    /**
+     * Add a record to the buffer of the next group commit
+     * @param type INSERT or DELETE
+     * @param keyValue Key value
+     * @param priorityValue Priority value
+     * @return Position the log must reach for the record to be durable
+     * @throws IOException If the log is closed or a previous write failed
+     */
+    long append(byte type, K keyValue, P priorityValue) throws IOException {
+        int bodySize = 1 + keyCodec.encodedSize(keyValue) + priorityCodec.encodedSize(priorityValue);
+        lock.lock();
+        try {
+            checkUsable();
+            ensureCapacity(RECORD_HEADER_SIZE + bodySize);
+            int recordStart = pendingRecords.position();
+            pendingRecords.putInt(bodySize).putInt(0).put(type);
+            keyCodec.encode(keyValue, pendingRecords);
+            priorityCodec.encode(priorityValue, pendingRecords);
+
+            // Checksum of the body, written in the slot left before it
+            ByteBuffer body = pendingRecords.duplicate();
+            body.position(recordStart + RECORD_HEADER_SIZE).limit(recordStart + RECORD_HEADER_SIZE + bodySize);
+            checksum.reset();
+            checksum.update(body);
+            pendingRecords.putInt(recordStart + Integer.BYTES, (int) checksum.getValue());
+
+            appendedPosition += RECORD_HEADER_SIZE + bodySize;
+            return appendedPosition;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void ensureCapacity(int recordSize){
+        if(pendingRecords.remaining() < recordSize){
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pendingRecords.capacity() * 2, pendingRecords.position() + recordSize));
+            pendingRecords.flip();
+            grown.put(pendingRecords);
+            pendingRecords = grown;
+        }
+    }
+
+    private void checkUsable() throws IOException {
+        if(failure != null){
+            throw new IOException("Write-ahead log failed earlier", failure);
+        }
+        if(closed){
+            throw new IOException("Write-ahead log is closed");
+        }
+    }
+
+    /**
+     * Wait until the log is on disk up to a position, leading a group commit if none is running
+     * @param position Position returned by append
+     * @throws IOException If writing or syncing the log failed
+     */
+    void awaitDurable(long position) throws IOException {
+        lock.lock();
+        try {
+            while(durablePosition < position){
+                if(failure != null){
+                    throw new IOException("Write-ahead log failed", failure);
+                }
+                if(flushing){
+                    flushed.awaitUninterruptibly();
+                    continue;
+                }
+
+                // Leader: let more records join the batch, then write and sync them all
+                flushing = true;
+                if(commitDelayNanos > 0){
+                    long remainingNanos = commitDelayNanos;
+                    while(remainingNanos > 0){
+                        try {
+                            remainingNanos = flushed.awaitNanos(remainingNanos);
+                        } catch (InterruptedException e){
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                }
+                flushPending();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write and sync the pending records without holding the lock (called by the leader, lock held)
+     */
+    private void flushPending(){
+        ByteBuffer batch = pendingRecords;
+        pendingRecords = spareRecords;
+        long targetPosition = appendedPosition;
+
+        lock.unlock();
+        IOException writeFailure = null;
+        try {
+            batch.flip();
+            while(batch.hasRemaining()){
+                channel.write(batch);
+            }
+            channel.force(false);
+        } catch (IOException e){
+            writeFailure = e;
+        } finally {
+            lock.lock();
+        }
+
+        batch.clear();
+        spareRecords = batch;
+        if(writeFailure != null){
+            failure = writeFailure;
+        } else{
+            durablePosition = targetPosition;
+        }
+        flushing = false;
+        flushed.signalAll();
+    }
+
+    /**
+     * Make every appended record durable and close the file
+     * @throws IOException If the last write failed
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if(closed){
+                return;
+            }
+            while(flushing){
+                flushed.awaitUninterruptibly();
+            }
+            if(failure == null && durablePosition < appendedPosition){
+                flushing = true;
+                flushPending();
+            }
+            closed = true;
+            channel.close();
+            if(failure != null){
+                throw new IOException("Write-ahead log failed", failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Apply the valid records of a log file and cut a torn or corrupt tail
+     * @param path Log file
+     * @param keyCodec Encoding of the keys
+     * @param priorityCodec Encoding of the priorities
+     * @param replayer Receives the records in log order
+     * @param truncateTail True to cut the file after the last valid record (last log), false to fail instead
+     * @return Number of records applied
+     * @throws IOException If the file cannot be read, is not a log, or is corrupt and truncateTail is false
+     */
+    static <K, P> long replay(Path path, SnapshotCodec<K> keyCodec, SnapshotCodec<P> priorityCodec, Replayer<K, P> replayer, boolean truncateTail) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if(size < HEADER_SIZE){
+                // Crash while creating the log: nothing was ever acknowledged from it
+                channel.truncate(0);
+                return 0;
+            }
+            ByteBuffer contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if(contents.getInt() != MAGIC || contents.getInt() != FORMAT_VERSION){
+                throw new IOException("Not a write-ahead log of this version: " + path);
+            }
+
+            CRC32C checksum = new CRC32C();
+            long records = 0;
+            long validEnd = HEADER_SIZE;
+            while(contents.remaining() >= RECORD_HEADER_SIZE){
+                int bodySize = contents.getInt();
+                int expectedChecksum = contents.getInt();
+                if(bodySize <= 0 || bodySize > contents.remaining()){
+                    break;
+                }
+                ByteBuffer body = contents.slice();
+                body.limit(bodySize);
+                checksum.reset();
+                checksum.update(body.duplicate());
+                if((int) checksum.getValue() != expectedChecksum){
+                    break;
+                }
+                byte type = body.get();
+                K keyValue = keyCodec.decode(body);
+                P priorityValue = priorityCodec.decode(body);
+                replayer.apply(type, keyValue, priorityValue);
+                records++;
+                contents.position(contents.position() + bodySize);
+                validEnd = contents.position();
+            }
+
+            if(validEnd < size){
+                if(!truncateTail){
+                    throw new IOException("Corrupt record at offset " + validEnd + " of " + path);
+                }
+                channel.truncate(validEnd);
+                channel.force(true);
+            }
+            return records;
+        }
+    }
+
+    /**
+     * Time a leader waits for more records, for reporting
+     * @return Delay in microseconds
+     */
+    long getCommitDelayMicros(){
+        return TimeUnit.NANOSECONDS.toMicros(commitDelayNanos);
+    }
+
+}